@@ -0,0 +1,319 @@
+/*
+ * Copyright 2016 Smash.bi Inc.
+ * http://www.smash.bi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package smash.f1.collection;
+
+import smash.f1.core.agrona.LongAtomicBuffer;
+import smash.f1.core.agrona.LongDirectBuffer;
+import smash.f1.core.agrona.LongMutableDirectBuffer;
+import smash.f1.core.agrona.LongUnsafeBuffer;
+import uk.co.real_logic.agrona.UnsafeAccess;
+
+/**
+ * ChunkedDirectMemoryBackingStore uses direct volatile memory allocated in chunks of 2^N bytes to serve as the backing store
+ * for the F1 Binary Map. Only the chunks in use are allocated, so the map grows chunk by chunk on demand up to its max size
+ * and gives the trailing chunks back when it is shrunk. The map has to lay out its records segment aligned with the chunks
+ * as segments, so no access straddles 2 chunks
+ */
+final class ChunkedDirectMemoryBackingStore implements MapBackingStore
+{
+	final static int MIN_CHUNK_BITS = 20;		// smallest chunk of 1MB, which is a multiple of every page size
+
+	private final int chunkBits;
+	private final long chunkSize;
+	private final long chunkMask;
+	private final LongUnsafeBuffer[] chunks;
+	private final long[] chunkAddresses;		// address of the memory allocated for each chunk
+	private final boolean useHugePages;
+	private MapBackingStoreWriteListener writeListener;
+	private boolean disposed;
+
+	/**
+	 * create chunked direct memory backing store
+	 * @param aMaxMapSize max size of the map in bytes
+	 * @param aChunkBits no of address bits of a chunk, i.e., each chunk holds 2^N bytes
+	 * @param anInitialMapSize initial size of the map in bytes
+	 * @param useHugePages true to align each chunk to a huge page and back it with transparent huge pages where possible
+	 */
+	ChunkedDirectMemoryBackingStore( final long aMaxMapSize, final int aChunkBits, final long anInitialMapSize, final boolean useHugePages )
+	{
+		if ( aChunkBits < MIN_CHUNK_BITS || aChunkBits > F1BinaryMap.MAX_SEGMENT_BITS )
+		{
+			throw new IllegalArgumentException( "Chunk bits " + aChunkBits + " must be between " + MIN_CHUNK_BITS +
+												" and " + F1BinaryMap.MAX_SEGMENT_BITS );
+		}
+		chunkBits = aChunkBits;
+		chunkSize = 1L << chunkBits;
+		chunkMask = chunkSize - 1;
+		this.useHugePages = useHugePages;
+		long maxNoOfChunks = Math.max( 1, calculateNoOfMemoryPages( aMaxMapSize ) );
+		if ( maxNoOfChunks > Integer.MAX_VALUE )
+		{
+			throw new IllegalArgumentException( "Map of " + aMaxMapSize + " bytes needs too many chunks of " + chunkSize + " bytes" );
+		}
+		chunks = new LongUnsafeBuffer[(int)maxNoOfChunks];
+		chunkAddresses = new long[(int)maxNoOfChunks];
+		long noOfChunks = Math.max( 1, Math.min( maxNoOfChunks, calculateNoOfMemoryPages( anInitialMapSize ) ) );
+		for( int chunkIndex = 0; chunkIndex < noOfChunks; chunkIndex++ )
+		{
+			allocateChunk( chunkIndex );
+		}
+	}
+
+	/**
+	 * allocate the chunk of the given index
+	 * @param aChunkIndex index of the chunk
+	 */
+	private void allocateChunk( final int aChunkIndex )
+	{
+		if ( useHugePages )
+		{
+			chunkAddresses[aChunkIndex] = NativeMemory.AllocateHugePageMemory( chunkSize );
+			chunks[aChunkIndex] = new LongUnsafeBuffer( NativeMemory.AlignToHugePage( chunkAddresses[aChunkIndex] ), chunkSize );
+		}
+		else
+		{
+			chunkAddresses[aChunkIndex] = UnsafeAccess.UNSAFE.allocateMemory( chunkSize );
+			chunks[aChunkIndex] = new LongUnsafeBuffer( chunkAddresses[aChunkIndex], chunkSize );
+		}
+	}
+
+	/**
+	 * free the chunk of the given index
+	 * @param aChunkIndex index of the chunk
+	 */
+	private void freeChunk( final int aChunkIndex )
+	{
+		chunks[aChunkIndex] = null;
+		UnsafeAccess.UNSAFE.freeMemory( chunkAddresses[aChunkIndex] );
+	}
+
+	/**
+	 * get no of chunks allocated
+	 * @return no of chunks allocated
+	 */
+	int getNoOfChunks()
+	{
+		int noOfChunks = 0;
+		while( noOfChunks < chunks.length && chunks[noOfChunks] != null )
+		{
+			noOfChunks += 1;
+		}
+		return noOfChunks;
+	}
+
+	@Override
+	public long getLongFromHeaderMemoryRegion( final long anAddress )
+	{
+		return chunks[0].getLong( anAddress );
+	}
+
+	@Override
+	public long getLongVolatileFromHeaderMemoryRegion( final long anAddress )
+	{
+		return chunks[0].getLongVolatile( anAddress );
+	}
+
+	@Override
+	public void putLongInHeaderMemoryRegion( final long anAddress, final long aNewValue )
+	{
+		if ( writeListener != null )
+		{
+			writeListener.beforeWrite( anAddress, Long.BYTES );
+		}
+		chunks[0].putLong( anAddress, aNewValue );
+	}
+
+	@Override
+	public boolean compareAndPutLongInHeaderMemoryRegion( final long anAddress, final long aNewValue, final long anOldValue )
+	{
+		if ( writeListener != null )
+		{
+			writeListener.beforeWrite( anAddress, Long.BYTES );
+		}
+		return chunks[0].compareAndSetLong( anAddress, anOldValue, aNewValue );
+	}
+
+	@Override
+	public long getLongFromMemoryRegion( final long anAddress )
+	{
+		return getMemoryRegion( anAddress ).getLong( getMemoryBufferAddress( anAddress ) );
+	}
+
+	@Override
+	public void putLongInMemoryRegion( final long anAddress, final long aNewValue )
+	{
+		if ( writeListener != null )
+		{
+			writeListener.beforeWrite( anAddress, Long.BYTES );
+		}
+		getMemoryRegion( anAddress ).putLong( getMemoryBufferAddress( anAddress ), aNewValue );
+	}
+
+	@Override
+	public void putLongOrderedInMemoryRegion( final long anAddress, final long aNewValue )
+	{
+		getMemoryRegion( anAddress ).putLongOrdered( getMemoryBufferAddress( anAddress ), aNewValue );
+	}
+
+	@Override
+	public void putLongInMemoryRegion( final long anAddress, final long aNewValue, final long anOldValue )
+	{
+		long memoryBufferAddress = getMemoryBufferAddress( anAddress );
+		LongAtomicBuffer memoryRegion = getMemoryRegion( anAddress );
+		while( !memoryRegion.compareAndSetLong( memoryBufferAddress, anOldValue, aNewValue ) )
+		{
+		}
+	}
+
+	@Override
+	public void getBytesFromMemoryRegion( final long anAddress, final int aLength, final LongMutableDirectBuffer aReceivingBuffer,
+										final long aReceivingBufferStartIndex )
+	{
+		aReceivingBuffer.putBytes( aReceivingBufferStartIndex, getMemoryRegion( anAddress ), getMemoryBufferAddress( anAddress ), aLength );
+	}
+
+	@Override
+	public void putBytesToMemoryRegion( final long anAddress, final int aLength, final LongDirectBuffer aSourceBuffer,
+										final long aSourceBufferStartIndex )
+	{
+		if ( writeListener != null )
+		{
+			writeListener.beforeWrite( anAddress, aLength );
+		}
+		aSourceBuffer.getBytes( aSourceBufferStartIndex, getMemoryRegion( anAddress ), getMemoryBufferAddress( anAddress ), aLength );
+	}
+
+	@Override
+	public long expand( final long aMapHeaderFieldAddressNoOfMemoryPages )
+	{
+		int noOfChunks = (int)getLongFromHeaderMemoryRegion( aMapHeaderFieldAddressNoOfMemoryPages );
+		// cannot expand => evict
+		if ( noOfChunks == chunks.length )
+		{
+			return -1;
+		}
+		try
+		{
+			allocateChunk( noOfChunks );
+		}
+		catch( OutOfMemoryError e )
+		{
+			return -1;
+		}
+		noOfChunks += 1;
+		putLongInHeaderMemoryRegion( aMapHeaderFieldAddressNoOfMemoryPages, noOfChunks );
+		return noOfChunks * chunkSize;
+	}
+
+	@Override
+	public long shrink( final long aMapHeaderFieldAddressNoOfMemoryPages, final long aNoOfMemoryPages )
+	{
+		int noOfChunks = (int)getLongFromHeaderMemoryRegion( aMapHeaderFieldAddressNoOfMemoryPages );
+		int newNoOfChunks = (int)Math.max( 1, Math.min( noOfChunks, aNoOfMemoryPages ) );
+		putLongInHeaderMemoryRegion( aMapHeaderFieldAddressNoOfMemoryPages, newNoOfChunks );
+		for( int chunkIndex = newNoOfChunks; chunkIndex < noOfChunks; chunkIndex++ )
+		{
+			freeChunk( chunkIndex );
+		}
+		return newNoOfChunks * chunkSize;
+	}
+
+	@Override
+	public LongAtomicBuffer getMemoryRegion( final long anAddress )
+	{
+		return chunks[(int)(anAddress >>> chunkBits)];
+	}
+
+	@Override
+	public long getMemoryBufferAddress( final long anAddress )
+	{
+		return anAddress & chunkMask;
+	}
+
+	@Override
+	public long calculateNoOfMemoryPages( final long aMapSize )
+	{
+		return (aMapSize + chunkSize - 1) >>> chunkBits;
+	}
+
+	@Override
+	public int getSegmentBits()
+	{
+		return chunkBits;
+	}
+
+	@Override
+	public void setWriteListener( final MapBackingStoreWriteListener aWriteListener )
+	{
+		writeListener = aWriteListener;
+	}
+
+	@Override
+	public void enableAsyncFlush( final long aFlushIntervalInMs, final long aMaxNoOfDirtyBytes )
+	{
+		throw new RuntimeException( "Direct memory is not persisted" );
+	}
+
+	@Override
+	public long lockInMemory( final long anAddress, final long aLength )
+	{
+		long noOfLockedBytes = 0;
+		while( noOfLockedBytes < aLength )
+		{
+			long address = anAddress + noOfLockedBytes;
+			long length = Math.min( aLength - noOfLockedBytes, chunkSize - ( address & chunkMask ) );
+			if ( !NativeMemory.Lock( chunks[(int)(address >>> chunkBits)].addressOffset() + ( address & chunkMask ), length ) )
+			{
+				break;
+			}
+			noOfLockedBytes += length;
+		}
+		return noOfLockedBytes;
+	}
+
+	@Override
+	public void unlockInMemory( final long anAddress, final long aLength )
+	{
+		for( long noOfUnlockedBytes = 0; noOfUnlockedBytes < aLength; )
+		{
+			long address = anAddress + noOfUnlockedBytes;
+			long length = Math.min( aLength - noOfUnlockedBytes, chunkSize - ( address & chunkMask ) );
+			NativeMemory.Unlock( chunks[(int)(address >>> chunkBits)].addressOffset() + ( address & chunkMask ), length );
+			noOfUnlockedBytes += length;
+		}
+	}
+
+	@Override
+	public void sync()
+	{
+		// nothing is persisted
+	}
+
+	@Override
+	public void dispose( final boolean shouldEraseAllPersistedMemory )
+	{
+		if ( disposed )
+		{
+			return;
+		}
+		disposed = true;
+		for( int chunkIndex = 0; chunkIndex < chunks.length && chunks[chunkIndex] != null; chunkIndex++ )
+		{
+			freeChunk( chunkIndex );
+		}
+	}
+}
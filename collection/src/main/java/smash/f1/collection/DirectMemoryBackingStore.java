@@ -29,16 +29,38 @@ import uk.co.real_logic.agrona.UnsafeAccess;
 final class DirectMemoryBackingStore implements MapBackingStore
 {
 	private final long mapSize;
+	private final long allocatedAddress;
 	private final long startingAddress;
 	private final LongUnsafeBuffer buffer;
+	private MapBackingStoreWriteListener writeListener;
+	private boolean disposed;
 	
 	/**
 	 * create direct memory backing store
 	 */
 	DirectMemoryBackingStore( final long aMaxMapSize )
+	{
+		this( aMaxMapSize, false );
+	}
+	
+	/**
+	 * create direct memory backing store
+	 * @param aMaxMapSize size of the memory
+	 * @param useHugePages true to align the memory to a huge page and back it with transparent huge pages where possible
+	 */
+	DirectMemoryBackingStore( final long aMaxMapSize, final boolean useHugePages )
 	{
 		mapSize = aMaxMapSize;
-		startingAddress = UnsafeAccess.UNSAFE.allocateMemory(aMaxMapSize);
+		if ( useHugePages )
+		{
+			allocatedAddress = NativeMemory.AllocateHugePageMemory(aMaxMapSize);
+			startingAddress = NativeMemory.AlignToHugePage(allocatedAddress);
+		}
+		else
+		{
+			allocatedAddress = UnsafeAccess.UNSAFE.allocateMemory(aMaxMapSize);
+			startingAddress = allocatedAddress;
+		}
 		buffer = new LongUnsafeBuffer(startingAddress, mapSize);
 	}
 	
@@ -57,6 +79,10 @@ final class DirectMemoryBackingStore implements MapBackingStore
 	@Override
 	public void putLongInHeaderMemoryRegion(long anAddress, long aNewValue) 
 	{
+		if ( writeListener != null )
+		{
+			writeListener.beforeWrite( anAddress, Long.BYTES );
+		}
 		buffer.putLong(anAddress, aNewValue);
 	}
 
@@ -64,6 +90,10 @@ final class DirectMemoryBackingStore implements MapBackingStore
 	public boolean compareAndPutLongInHeaderMemoryRegion(long anAddress,
 			long aNewValue, long anOldValue) 
 	{
+		if ( writeListener != null )
+		{
+			writeListener.beforeWrite( anAddress, Long.BYTES );
+		}
 		return buffer.compareAndSetLong( anAddress, anOldValue, aNewValue );
 	}
 
@@ -76,9 +106,19 @@ final class DirectMemoryBackingStore implements MapBackingStore
 	@Override
 	public void putLongInMemoryRegion(long anAddress, long aNewValue) 
 	{
+		if ( writeListener != null )
+		{
+			writeListener.beforeWrite( anAddress, Long.BYTES );
+		}
 		buffer.putLong(anAddress, aNewValue);
 	}
 
+	@Override
+	public void putLongOrderedInMemoryRegion(long anAddress, long aNewValue) 
+	{
+		buffer.putLongOrdered(anAddress, aNewValue);
+	}
+
 	@Override
 	public void putLongInMemoryRegion(long anAddress, long aNewValue,
 			long anOldValue) 
@@ -99,6 +139,10 @@ final class DirectMemoryBackingStore implements MapBackingStore
 	public void putBytesToMemoryRegion(long anAddress, int aLength,
 			LongDirectBuffer aSourceBuffer, long aSourceBufferStartIndex) 
 	{
+		if ( writeListener != null )
+		{
+			writeListener.beforeWrite( anAddress, aLength );
+		}
 		aSourceBuffer.getBytes( aSourceBufferStartIndex, buffer, anAddress, aLength );
 	}
 
@@ -109,6 +153,13 @@ final class DirectMemoryBackingStore implements MapBackingStore
 		return -1;
 	}
 
+	@Override
+	public long shrink(long aMapHeaderFieldAddressNoOfMemoryPages, long aNoOfMemoryPages) 
+	{
+		// the memory is allocated at once
+		return -1;
+	}
+
 	@Override
 	public LongAtomicBuffer getMemoryRegion(long anAddress) 
 	{
@@ -127,9 +178,50 @@ final class DirectMemoryBackingStore implements MapBackingStore
 		return 1;
 	}
 
+	@Override
+	public int getSegmentBits() 
+	{
+		return 0;
+	}
+
+	@Override
+	public void setWriteListener(MapBackingStoreWriteListener aWriteListener) 
+	{
+		writeListener = aWriteListener;
+	}
+
+	@Override
+	public void enableAsyncFlush(long aFlushIntervalInMs, long aMaxNoOfDirtyBytes) 
+	{
+		throw new RuntimeException( "Direct memory is not persisted" );
+	}
+
+	@Override
+	public long lockInMemory( final long anAddress, final long aLength )
+	{
+		return NativeMemory.Lock( startingAddress + anAddress, aLength ) ? aLength : 0;
+	}
+	
+	@Override
+	public void unlockInMemory( final long anAddress, final long aLength )
+	{
+		NativeMemory.Unlock( startingAddress + anAddress, aLength );
+	}
+	
+	@Override
+	public void sync() 
+	{
+		// nothing is persisted
+	}
+
 	@Override
 	public void dispose(boolean shouldEraseAllPersistedMemory) 
 	{
-		UnsafeAccess.UNSAFE.freeMemory(startingAddress);
+		if ( disposed )
+		{
+			return;
+		}
+		disposed = true;
+		UnsafeAccess.UNSAFE.freeMemory(allocatedAddress);
 	}
 }
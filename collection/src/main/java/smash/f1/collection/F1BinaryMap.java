@@ -18,10 +18,26 @@
 package smash.f1.collection;
 
 import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.LongBinaryOperator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import smash.f1.core.agrona.LongAtomicBuffer;
 import smash.f1.core.agrona.LongDirectBuffer;
 import smash.f1.core.agrona.LongMutableDirectBuffer;
+import smash.f1.core.agrona.LongUnsafeBuffer;
+import uk.co.real_logic.agrona.UnsafeAccess;
 
 /**
  * F1BinaryMap is a small foot print off heap binary fixed length key value data lookup
@@ -31,8 +47,8 @@ import smash.f1.core.agrona.LongMutableDirectBuffer;
  * The binary region of the map is separated into
  * 3 regions - Map Header Region, Hash Bucket Region, and Record Region.
  * 
- * Map Header Region consists of 9 long fields (72 bytes) with starting offset 0
- * LOCK protects storage allocation operations
+ * Map Header Region consists of 14 long fields (112 bytes) with starting offset 0
+ * LOCK protects storage allocation operations and holds the id of the locking process
  * SBRK size of sbrk area in recordRegion, i.e., index of last usable record
  * END last unused record in sbrk area, i.e., exceeds sbrk => increase sbrk
  * FREE stack (LIFO) of free recordRegion, chained together by hash-chain link
@@ -41,26 +57,54 @@ import smash.f1.core.agrona.LongMutableDirectBuffer;
  * NO OF BUCKETS current no of buckets in the map
  * MAX MAP SIZE maximum size of the map in bytes
  * SIZE current no of records in the map
+ * GENERATION current generation of the buckets, incremented by every clear
+ * SEGMENT BITS no of address bits of a memory mapped file, i.e., each file holds 2^N bytes, or 0 for direct memory
+ * RECORD LAYOUT layout of the records, packed or aligned to the memory mapped files
+ * EPOCH epoch of the record positions, incremented whenever the record region is reset or rearranged
+ * FORMAT VERSION magic number and version of the layout of the map, a map of another layout is not opened
  * 
- * Hash Bucket Region consists of no of buckets of 2 long fields (2 bytes * no of buckets) with offset 72
- * TOP address to the first record in the bucket
- * LOCK protects bucket record allocation/deallocation operations
+ * Hash Bucket Region consists of no of buckets of 2 long fields (2 bytes * no of buckets) with offset 112
+ * TOP generation of the bucket in the top 16 bits and address + 1 to the first record in the bucket in the lower 48 bits.
+ * A bucket of an older generation is empty, so clear only increments the generation instead of walking every chain
+ * LOCK protects bucket record allocation/deallocation operations. The lock is a version in the lower 32 bits, which is odd 
+ * while the bucket is locked and incremented by every lock and unlock, so a read only map in another process reads a bucket 
+ * without locking it and reads it again if the version has changed in the meantime. The upper 32 bits hold the id of the 
+ * locking process, so a lock left by a process which has terminated is taken over
  * 
- * Record Region consists of 1 long field, followed by the key and then the value with offset 72 + 16 * no of buckets
+ * Record Region consists of 1 long field, followed by the key and then the value with offset 112 + 16 * no of buckets.
+ * Packed records follow each other across the memory mapped files, so a record may straddle 2 files. Segment aligned
+ * records fill each memory mapped file with as many whole records as it can hold and leave the rest of the file unused
  * LINK long field to store the address of the linked record node
+ * The link of a free record is stored with bit 62 flipped so that free records can be skipped when the record region is scanned in record order
  * KEY key of the data
  * VALUE value of the data
  */
-public class F1BinaryMap 
+public class F1BinaryMap implements AutoCloseable
 {    
     private final static int WORDSIZE = Long.SIZE / Byte.SIZE;
     private final static int LINK_VALUE_SIZE = WORDSIZE;
     private final static int RECORD_KEY_OFFSET = LINK_VALUE_SIZE;
     public final static long NULL = -1;			// JNI null pointer
+    private final static long NOT_IN_CHAIN = -2;	// record position of a record not found in a chain
+    public final static int MIN_SEGMENT_BITS = 26;		// smallest memory mapped file of 64MB
+    // files of 2GB and more are mapped natively, which needs --add-opens java.base/sun.nio.ch=ALL-UNNAMED on java 9 and later
+    public final static int MAX_SEGMENT_BITS = 40;		// largest memory mapped file of 1TB
+    public final static int DEFAULT_SEGMENT_BITS = 30;	// memory mapped file of 1GB
+    public final static int RECORD_LAYOUT_PACKED = 0;				// records may straddle 2 memory mapped files
+    public final static int RECORD_LAYOUT_SEGMENT_ALIGNED = 1;		// records never straddle 2 memory mapped files
+    public final static int LOAD_MODE_EAGER = 0;				// memory mapped files are loaded when they are mapped
+    public final static int LOAD_MODE_LAZY = 1;					// memory mapped files are loaded page by page on first access
+    public final static int LOAD_MODE_PARALLEL_PREFAULT = 2;	// memory mapped files are loaded by background threads
+    public final static int PAGE_MODE_DEFAULT = 0;				// memory is backed by pages of the default size
+    public final static int PAGE_MODE_HUGE = 1;					// memory is backed by 2MB transparent huge pages where possible
+    public final static int MEMORY_LOCK_MODE_NONE = 0;			// no memory is locked in physical memory
+    public final static int MEMORY_LOCK_MODE_INDEX = 1;			// header and bucket region are locked in physical memory
+    public final static int MEMORY_LOCK_MODE_ALL = 2;			// header, bucket and record region are locked in physical memory
+    public final static int DEFAULT_PROMOTION_SAMPLE_BITS = 3;	// a cold record is promoted by 1 out of 8 of its gets
       
 	// Map Header constants
     private final static long	MAP_HEADER_BASE_OFFSET = 0;
-    private final static long	MAP_HEADER_NO_OF_FIELDS = 9;
+    private final static long	MAP_HEADER_NO_OF_FIELDS = 14;
     // protects storage allocation operations
     private final static long	MAP_HEADER_FIELD_ADDRESS_LOCK = GetLongAddress( MAP_HEADER_BASE_OFFSET, 0 );
     // size of sbrk area in recordRegion, i.e., index of last usable record
@@ -79,8 +123,29 @@ public class F1BinaryMap
     private final static long	MAP_HEADER_FIELD_ADDRESS_MAX_MAP_SIZE = GetLongAddress( MAP_HEADER_BASE_OFFSET, 7 );
     // size of the map no of records in the map
     private final static long	MAP_HEADER_FIELD_ADDRESS_SIZE = GetLongAddress( MAP_HEADER_BASE_OFFSET, 8 );
+    // generation of the buckets, buckets of older generations are empty
+    private final static long	MAP_HEADER_FIELD_ADDRESS_GENERATION = GetLongAddress( MAP_HEADER_BASE_OFFSET, 9 );
+    // no of address bits of a memory page
+    private final static long	MAP_HEADER_FIELD_ADDRESS_SEGMENT_BITS = GetLongAddress( MAP_HEADER_BASE_OFFSET, 10 );
+    // layout of the records
+    private final static long	MAP_HEADER_FIELD_ADDRESS_RECORD_LAYOUT = GetLongAddress( MAP_HEADER_BASE_OFFSET, 11 );
+    // epoch of the record positions, advanced whenever the record region is reset or rearranged under the lock of the entire map
+    private final static long	MAP_HEADER_FIELD_ADDRESS_EPOCH = GetLongAddress( MAP_HEADER_BASE_OFFSET, 12 );
+    // magic number and version of the layout of the map
+    private final static long	MAP_HEADER_FIELD_ADDRESS_FORMAT_VERSION = GetLongAddress( MAP_HEADER_BASE_OFFSET, 13 );
+    final static long			FORMAT_VERSION = 0x46314D4150000002L;	// F1MAP followed by the version of the layout
     private final static long	VALUE_UNLOCKED = 0;
-    private final static long	VALUE_LOCKED = 1;
+    private final static long	VALUE_LOCKED = 1;		// set in the version of a locked bucket
+    private final static long	BUCKET_VERSION_MASK = 0xFFFFFFFFL;	// version of a bucket lock below the id of the locking process
+    private final static int	STALE_LOCK_CHECK_SPINS = 1 << 20;	// spins on a lock before the locking process is checked
+    // bit flipped in the LINK field of free records, see RecordRegion
+    private final static long	FREE_RECORD_MARK = 1L << 62;
+    private final static long	OPTIMISTIC_READ_STEPS = 64;		// records of a chain read by a read only map between checks of the version
+    private final static int	OPTIMISTIC_READ_SPINS = 1 << 10;	// reads of a bucket by a read only map before it yields between reads
+    private final static long	PARALLEL_TRAVERSE_MIN_NO_OF_BUCKETS = 1024;	// smallest bucket range worth a task of its own
+    private final static long	PARALLEL_TRAVERSE_TASKS_PER_THREAD = 8;		// tasks per thread to even out chain length differences
+    private final static int	COMPACT_MAX_ATTEMPTS = 64;		// attempts to find no record being put or removed in front of the new end
+    private final static long	SCAN_BUCKETS_PER_RECORD = 10;	// buckets visited by a scan step per record to be iterated, bounding the steps of a sparse map
     
     // Hash Buckets constants
     private final static long	HASH_BUCKETS_BASE_OFFSET = MAP_HEADER_BASE_OFFSET + MAP_HEADER_NO_OF_FIELDS * WORDSIZE;
@@ -90,6 +155,9 @@ public class F1BinaryMap
     private final static int	HASH_BUCKETS_FIELD_LOCK = 1;
     private final static long	HASH_BUCKETS_TOP_FIELD_OFFSET = HASH_BUCKETS_BASE_OFFSET + HASH_BUCKETS_FIELD_TOP * WORDSIZE;
     private final static long	HASH_BUCKETS_LOCK_FIELD_OFFSET = HASH_BUCKETS_BASE_OFFSET + HASH_BUCKETS_FIELD_LOCK * WORDSIZE;
+    private final static int	HASH_BUCKETS_TOP_POSITION_BITS = 48;	// lower bits of top holding record position + 1
+    private final static long	HASH_BUCKETS_TOP_POSITION_MASK = ( 1L << HASH_BUCKETS_TOP_POSITION_BITS ) - 1;
+    private final static long	HASH_BUCKETS_MAX_GENERATION = ( 1L << ( Long.SIZE - HASH_BUCKETS_TOP_POSITION_BITS ) ) - 1;
 	
     /**
      * get the long address of the given base offset and field index
@@ -102,6 +170,29 @@ public class F1BinaryMap
     	return aBaseOffset + aFieldIndex * WORDSIZE;
     }
     
+    /**
+     * get the value of a bucket lock of the given version locked by this process
+     * @param aVersion odd version
+     * @return value of the bucket lock
+     */
+    private final static long	GetBucketLockValue( final long aVersion )
+    {
+    	return ( (long)NativeMemory.GetProcessId() << Integer.SIZE ) | ( aVersion & BUCKET_VERSION_MASK );
+    }
+    
+    /**
+     * check if a bucket lock of the given value is held by another process which has terminated. A lock without a process id
+     * has been taken before the process ids were kept and is never taken for terminated
+     * @param aVersion value of the bucket lock
+     * @return true if the bucket is locked by a terminated process
+     */
+    private final static boolean IsLockedByTerminatedProcess( final long aVersion )
+    {
+    	int processId = (int)( aVersion >>> Integer.SIZE );
+    	return ( aVersion & VALUE_LOCKED ) != VALUE_UNLOCKED && processId != 0 && processId != NativeMemory.GetProcessId() && 
+    		   !NativeMemory.IsProcessAlive( processId );
+    }
+    
 	/**
 	 * utility method to calculate the total size of the binary map including overhead based on 
 	 */
@@ -112,6 +203,89 @@ public class F1BinaryMap
 		return MAP_HEADER_NO_OF_FIELDS * WORDSIZE + HASH_BUCKETS_NO_OF_FIELDS * WORDSIZE * noOfBuckets + recordSize * aNoOfRecord;
 	}
 	
+	/**
+	 * utility method to calculate the total size of the binary map including the unused end of each memory mapped file
+	 * for the given record layout
+	 */
+	private final static long CalculateBinaryMapSize( long aNoOfBuckets, long aNoOfRecord, int aKeySize, int aValueSize, 
+													int aSegmentBits, int aRecordLayout )
+	{
+		if ( aRecordLayout == RECORD_LAYOUT_PACKED )
+		{
+			return CalculateBinaryMapSize( aNoOfBuckets, aNoOfRecord, aKeySize, aValueSize );
+		}
+		long recordRegionBaseOffset = HASH_BUCKETS_BASE_OFFSET + HASH_BUCKETS_NO_OF_FIELDS * WORDSIZE * aNoOfBuckets;
+		int recordSize = LINK_VALUE_SIZE + aKeySize + aValueSize;
+		// the record after the last one starts after the end of the last one
+		return GetSegmentAlignedRecordMemoryAddress( recordRegionBaseOffset, aNoOfRecord, recordSize, aSegmentBits );
+	}
+	
+	/**
+	 * check if the given link value belongs to a free record, i.e., its 2 top bits differ
+	 * @param aLinkValue link value
+	 * @return true if the link value belongs to a free record
+	 */
+	private final static boolean IsFreeLinkValue( final long aLinkValue )
+	{
+		return ( aLinkValue ^ ( aLinkValue << 1 ) ) < 0;
+	}
+	
+	/**
+	 * utility method to calculate the memory address of the given record for segment aligned records
+	 * @param aRecordRegionBaseOffset starting offset of the record region
+	 * @param aRecordPosition record number
+	 * @param aRecordSize size of each record
+	 * @param aSegmentBits no of address bits of a memory mapped file
+	 * @return memory address of the record
+	 */
+	private final static long GetSegmentAlignedRecordMemoryAddress( long aRecordRegionBaseOffset, long aRecordPosition, int aRecordSize, int aSegmentBits )
+	{
+		long segmentSize = 1L << aSegmentBits;
+		long noOfRecordsInFirstSegment = ( segmentSize - ( aRecordRegionBaseOffset & ( segmentSize - 1 ) ) ) / aRecordSize;
+		if ( aRecordPosition < noOfRecordsInFirstSegment )
+		{
+			return aRecordRegionBaseOffset + aRecordPosition * aRecordSize;
+		}
+		long noOfRecordsPerSegment = segmentSize / aRecordSize;
+		long recordPosition = aRecordPosition - noOfRecordsInFirstSegment;
+		long segmentIndex = ( aRecordRegionBaseOffset >>> aSegmentBits ) + 1 + recordPosition / noOfRecordsPerSegment;
+		return ( segmentIndex << aSegmentBits ) + ( recordPosition % noOfRecordsPerSegment ) * aRecordSize;
+	}
+	
+	/**
+	 * check the given load mode
+	 * @param aLoadMode load mode of the memory mapped files
+	 */
+	private final static void CheckLoadMode( final int aLoadMode )
+	{
+		if ( aLoadMode != LOAD_MODE_EAGER && aLoadMode != LOAD_MODE_LAZY && aLoadMode != LOAD_MODE_PARALLEL_PREFAULT )
+		{
+			throw new IllegalArgumentException( "Unknown load mode " + aLoadMode );
+		}
+	}
+	
+	/**
+	 * check the given page mode
+	 * @param aPageMode page mode of the memory
+	 */
+	private final static void CheckPageMode( final int aPageMode )
+	{
+		if ( aPageMode != PAGE_MODE_DEFAULT && aPageMode != PAGE_MODE_HUGE )
+		{
+			throw new IllegalArgumentException( "Unknown page mode " + aPageMode );
+		}
+	}
+	
+	/**
+	 * get no of bytes the process can still lock in physical memory within its limit, i.e., the soft limit of RLIMIT_MEMLOCK 
+	 * less the memory locked by the maps so far
+	 * @return no of bytes still to be locked, Long.MAX_VALUE if it is unlimited or 0 if memory cannot be locked
+	 */
+	public final static long GetMemoryLockBudget()
+	{
+		return NativeMemory.GetMemoryLockBudget();
+	}
+	
 	/**
 	 * utility method to calculate the closest power of 2 of the given value
 	 */
@@ -137,6 +311,134 @@ public class F1BinaryMap
 	{
 		return MemoryMappedFileBackingStore.DoesMapExist(aMemoryMappedFilenamePrefix);
 	}
+	
+	/**
+	 * open the memory mapped map of the given prefix read only, while the map is written by a concurrent map in another
+	 * process, so the processes on the same host share the physical memory of a single map. The read only map never writes 
+	 * to the memory mapped files. A get reads the bucket of the key without locking it and reads it again if the version of
+	 * the bucket shows that the writer has locked or changed the bucket in the meantime. The files added by the writer are
+	 * mapped once a get reaches a record in them. A read only map supports gets, zero copy gets with segment aligned records,
+	 * getSize, sync and dispose, which never erases the files, and throws an UnsupportedOperationException for anything else
+	 * @param aMemoryMappedFilenamePrefix prefix for the underlying memory mapped files
+     * @param aKeySize size of the key in bytes
+     * @param aValueSize size of the value in bytes
+     * @param aLoadMode LOAD_MODE_EAGER, LOAD_MODE_LAZY or LOAD_MODE_PARALLEL_PREFAULT
+     * @param aHashFunction hash function implementation, which has to be the one of the writer
+	 * @return read only map
+	 * @throws IOException if the map cannot be opened
+	 */
+	public final static F1BinaryMap OpenReadOnly( final String aMemoryMappedFilenamePrefix, final int aKeySize, final int aValueSize, 
+												final int aLoadMode, final KeyFunction aHashFunction ) throws IOException
+	{
+		return new F1BinaryMap( aMemoryMappedFilenamePrefix, aKeySize, aValueSize, aLoadMode, true, aHashFunction );
+	}
+	
+	/**
+	 * open the memory mapped map of the given prefix as a concurrent map written by several processes on the same host. 
+	 * The map lock and the bucket locks are held by the processes in the memory mapped files and carry the id of the locking
+	 * process, so a lock left by a process which has terminated is taken over by the next process waiting for it, see 
+	 * statistics. A map taken over from a terminated process may have leaked a record, which verify repairs once no other
+	 * process writes to the map. The files added by any process are mapped by the others once they reach a record in them, 
+	 * and the header holding the no of files, the free list and the generation of the buckets is shared, so every process
+	 * expands, evicts and clears the map for all of them. The map has to be created with segment aligned records by a 
+	 * constructor beforehand. The near cache, the journal, snapshots and compact keep state of a single process, so they
+	 * are not supported by a shared map
+	 * @param aMemoryMappedFilenamePrefix prefix for the underlying memory mapped files
+     * @param aKeySize size of the key in bytes
+     * @param aValueSize size of the value in bytes
+     * @param aLoadMode LOAD_MODE_EAGER, LOAD_MODE_LAZY or LOAD_MODE_PARALLEL_PREFAULT
+     * @param aHashFunction hash function implementation, which has to be the same in every process
+	 * @return shared map
+	 * @throws IOException if the map cannot be opened or its records are not segment aligned
+	 */
+	public final static F1BinaryMap OpenShared( final String aMemoryMappedFilenamePrefix, final int aKeySize, final int aValueSize, 
+												final int aLoadMode, final KeyFunction aHashFunction ) throws IOException
+	{
+		return new F1BinaryMap( aMemoryMappedFilenamePrefix, aKeySize, aValueSize, aLoadMode, false, aHashFunction );
+	}
+	
+	/**
+	 * check if the maps on memory segments can be created in this runtime. The memory segment backing store is built on the 
+	 * foreign function and memory API, which is final as of Java 22
+	 * @return true if the maps on memory segments are available
+	 */
+	public final static boolean IsMemorySegmentAvailable()
+	{
+		return MemorySegmentBackingStore.IsAvailable();
+	}
+	
+	/**
+	 * create F1BinaryMap in direct memory accessed through a memory segment of the foreign function and memory API instead 
+	 * of sun.misc.Unsafe. Every access to the map memory is bounds checked by the segment, whatever agrona.disable.bounds.checks
+	 * says, and the memory is allocated at once like a direct memory map
+     * @param anInitialNoOfRecords initial no of recordRegion
+     * @param aKeySize size of the key in bytes
+     * @param aValueSize size of the value in bytes
+     * @param aNoOfHashBuckets no of hash buckets to be used in the backing store
+	 * @param aMaxNoOfRecords max no of records this map can hold
+     * @param isConcurrentMap true indicates if this map is accessed by multiple threads and locking will be applied or false if
+     * the map is accessed by a single thread only and no locking is required
+     * @param aHashFunction hash function implementation
+	 * @return map on a memory segment
+	 * @throws UnsupportedOperationException if the runtime is older than Java 22, see IsMemorySegmentAvailable
+	 */
+	public final static F1BinaryMap CreateOnMemorySegment( final long anInitialNoOfRecords, final int aKeySize, final int aValueSize, 
+												final long aSuggestedNoOfBuckets, final long aMaxNoOfRecords, final boolean isConcurrentMap, 
+												final KeyFunction aHashFunction )
+	{
+		long noOfBuckets = GetClosestPowerOfTwo( aSuggestedNoOfBuckets );
+		long maxMapSize = CalculateBinaryMapSize( noOfBuckets, aMaxNoOfRecords, aKeySize, aValueSize );
+		return new F1BinaryMap( MemorySegmentBackingStore.Allocate( maxMapSize ), anInitialNoOfRecords, aKeySize, aValueSize, 
+								noOfBuckets, maxMapSize, isConcurrentMap, aHashFunction );
+	}
+	
+	/**
+	 * create F1BinaryMap in a single memory mapped file accessed through a memory segment of the foreign function and memory
+	 * API instead of sun.misc.Unsafe. A memory segment is not limited to 2GB like a mapped byte buffer, so the whole map is 
+	 * mapped from one file of the max map size without any segmenting. The file is sparse, so it only takes the disk space 
+	 * of the pages written. The map never expands and is reopened by OpenOnMemorySegment
+	 * @param aMemoryMappedFilename name of the memory mapped file
+     * @param anInitialNoOfRecords initial no of recordRegion
+     * @param aKeySize size of the key in bytes
+     * @param aValueSize size of the value in bytes
+     * @param aNoOfHashBuckets no of hash buckets to be used in the backing store
+	 * @param aMaxNoOfRecords max no of records this map can hold
+     * @param isConcurrentMap true indicates if this map is accessed by multiple threads and locking will be applied or false if
+     * the map is accessed by a single thread only and no locking is required
+     * @param aHashFunction hash function implementation
+	 * @return map on a memory segment
+	 * @throws IOException if the file cannot be mapped
+	 * @throws UnsupportedOperationException if the runtime is older than Java 22, see IsMemorySegmentAvailable
+	 */
+	public final static F1BinaryMap CreateOnMemorySegment( final String aMemoryMappedFilename, final long anInitialNoOfRecords, 
+												final int aKeySize, final int aValueSize, final long aSuggestedNoOfBuckets, 
+												final long aMaxNoOfRecords, final boolean isConcurrentMap, final KeyFunction aHashFunction ) 
+												throws IOException
+	{
+		long noOfBuckets = GetClosestPowerOfTwo( aSuggestedNoOfBuckets );
+		long maxMapSize = CalculateBinaryMapSize( noOfBuckets, aMaxNoOfRecords, aKeySize, aValueSize );
+		return new F1BinaryMap( MemorySegmentBackingStore.Map( aMemoryMappedFilename, maxMapSize ), anInitialNoOfRecords, aKeySize, 
+								aValueSize, noOfBuckets, maxMapSize, isConcurrentMap, aHashFunction );
+	}
+	
+	/**
+	 * open F1BinaryMap of a single memory mapped file created by CreateOnMemorySegment
+	 * @param aMemoryMappedFilename name of the memory mapped file
+     * @param aKeySize size of the key in bytes
+     * @param aValueSize size of the value in bytes
+     * @param isConcurrentMap true indicates if this map is accessed by multiple threads and locking will be applied or false if
+     * the map is accessed by a single thread only and no locking is required
+     * @param aHashFunction hash function implementation
+	 * @return map on a memory segment
+	 * @throws IOException if the file cannot be mapped or does not hold a map of the given key and value
+	 * @throws UnsupportedOperationException if the runtime is older than Java 22, see IsMemorySegmentAvailable
+	 */
+	public final static F1BinaryMap OpenOnMemorySegment( final String aMemoryMappedFilename, final int aKeySize, final int aValueSize, 
+												final boolean isConcurrentMap, final KeyFunction aHashFunction ) throws IOException
+	{
+		return new F1BinaryMap( MemorySegmentBackingStore.Open( aMemoryMappedFilename ), aKeySize, aValueSize, isConcurrentMap, 
+								aHashFunction );
+	}
 
 	private final long maxMapSize;          // maximum size of map in bytes
     private final boolean concurrentMap; // indicates if the map is accessed by single thread or multiple threads
@@ -155,6 +457,24 @@ public class F1BinaryMap
     
     private F1BinaryMapStatistics statistics = new F1BinaryMapStatistics();
     private final boolean zeroCopyGetAllowed;
+    private F1BinaryMapNearCache nearCache;		// optional on heap cache of the hottest records
+    private F1BinaryMapChangeLog changeLog;		// optional off heap log of the mutations
+    private F1BinaryMapJournal journal;			// optional redo journal of the mutations
+    private F1BinaryMapTiering tiering;			// promotion of the cold records of a tiered backing store
+    private ThreadLocal<SwapBuffers> swapBuffers;	// buffers of the records swapped by the promotions of each thread
+    private MapBackingStoreWriteListener[] writeListeners = new MapBackingStoreWriteListener[0];	// listeners of the backing store writes
+    private final F1BinaryMapAccessGuard accessGuard = new F1BinaryMapAccessGuard();	// accesses in progress, which dispose waits for
+    private int memoryLockMode = MEMORY_LOCK_MODE_NONE;	// regions of the map to be locked in physical memory
+    private long noOfMemoryLockedBytes;			// bytes locked in physical memory from the start of the map
+    private MemoryMappedFileBackingStore readOnlyBackingStore;	// backing store of a read only map written by another process
+    private volatile long noOfReadableRecords;	// no of records mapped by a read only map
+    private boolean sharedMap;					// true if other processes write to the memory mapped files as well
+    private final LongAdder noOfStaleLocksRecovered = new LongAdder();	// locks taken over from terminated processes
+    private final Object backupLock = new Object();	// serializes the backups
+    private F1BinaryMapBackup mapBackup;		// ranges of the memory written since the last backup
+    private long restoredBackupSequence = F1BinaryMapBackup.NO_BACKUP;	// sequence of the backup restored last
+    private final Object parallelPoolLock = new Object();	// guards the pool of the parallel operations
+    private ForkJoinPool parallelPool;			// pool of the parallel traversals, reductions and verifications
     
 	/**
 	 * create F1BinaryMap based on existing memory mapped files
@@ -170,18 +490,68 @@ public class F1BinaryMap
     		final boolean isConcurrentMap, final KeyFunction aHashFunction )
     		throws IOException
     {
+		this( aMemoryMappedFilenamePrefix, anInitialNoOfRecords, aKeySize, aValueSize, LOAD_MODE_EAGER, isConcurrentMap, aHashFunction );
+    }
+	
+	/**
+	 * create F1BinaryMap based on existing memory mapped files with the given load mode. Only the memory mapped files in use are mapped.
+	 * A large map opens faster with lazy loading, which loads each page on its first access, or with parallel prefault, which
+	 * loads the files by background threads while the map is already accessed
+	 * @param aMemoryMappedFilenamePrefix prefix for the underlying memory mapped files
+     * @param aKeySize size of the key in bytes
+     * @param aValueSize size of the value in bytes
+     * @param aLoadMode LOAD_MODE_EAGER, LOAD_MODE_LAZY or LOAD_MODE_PARALLEL_PREFAULT
+     * @param isConcurrentMap true indicates if this map is accessed by multiple threads and locking will be applied or false if
+     * the map is accessed by a single thread only and no locking is required
+     * @param aHashFunction hash function implementation
+	 */
+	public F1BinaryMap( final String aMemoryMappedFilenamePrefix, final long anInitialNoOfRecords, 
+    		final int aKeySize, final int aValueSize, final int aLoadMode,
+    		final boolean isConcurrentMap, final KeyFunction aHashFunction )
+    		throws IOException
+    {
+		this( aMemoryMappedFilenamePrefix, anInitialNoOfRecords, aKeySize, aValueSize, aLoadMode, PAGE_MODE_DEFAULT, isConcurrentMap, aHashFunction );
+    }
+	
+	/**
+	 * create F1BinaryMap based on existing memory mapped files with the given load mode and page mode. Huge pages cut the
+	 * TLB misses of random accesses into a large map. Huge pages are advised for the files mapped, which takes effect where 
+	 * the file system supports transparent huge pages, or the files are placed on hugetlbfs
+	 * @param aMemoryMappedFilenamePrefix prefix for the underlying memory mapped files
+     * @param aKeySize size of the key in bytes
+     * @param aValueSize size of the value in bytes
+     * @param aLoadMode LOAD_MODE_EAGER, LOAD_MODE_LAZY or LOAD_MODE_PARALLEL_PREFAULT
+     * @param aPageMode PAGE_MODE_DEFAULT or PAGE_MODE_HUGE
+     * @param isConcurrentMap true indicates if this map is accessed by multiple threads and locking will be applied or false if
+     * the map is accessed by a single thread only and no locking is required
+     * @param aHashFunction hash function implementation
+	 */
+	public F1BinaryMap( final String aMemoryMappedFilenamePrefix, final long anInitialNoOfRecords, 
+    		final int aKeySize, final int aValueSize, final int aLoadMode, final int aPageMode,
+    		final boolean isConcurrentMap, final KeyFunction aHashFunction )
+    		throws IOException
+    {
+		CheckLoadMode( aLoadMode );
+		CheckPageMode( aPageMode );
     	concurrentMap = isConcurrentMap;
     	keyFunction = aHashFunction;
     	keySize = aKeySize;
     	valueSize = aValueSize;
     	recordSize = LINK_VALUE_SIZE + keySize + valueSize;
     	recordValueOffset = RECORD_KEY_OFFSET + keySize;
-    	mapBackingStore = new MemoryMappedFileBackingStore( aMemoryMappedFilenamePrefix, MAP_HEADER_FIELD_ADDRESS_MAX_MAP_SIZE );
+    	mapBackingStore = new MemoryMappedFileBackingStore( aMemoryMappedFilenamePrefix, MAP_HEADER_FIELD_ADDRESS_MAX_MAP_SIZE, 
+    								MAP_HEADER_FIELD_ADDRESS_SEGMENT_BITS, MAP_HEADER_FIELD_ADDRESS_RECORD_LAYOUT, 
+    								MAP_HEADER_FIELD_ADDRESS_NO_OF_MEMORY_PAGES, MAP_HEADER_FIELD_ADDRESS_FORMAT_VERSION, aLoadMode, aPageMode == PAGE_MODE_HUGE, false );
 		maxMapSize = mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_MAX_MAP_SIZE ); // extract manually
-		assert( mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_RECORD_SIZE ) == recordSize ); // consistency check
+		if ( mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_RECORD_SIZE ) != recordSize ) // consistency check
+		{
+			mapBackingStore.dispose( false );
+			throw new IOException( "Record size " + mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_RECORD_SIZE ) + 
+									" of the memory mapped file does not match the record size " + recordSize + " of the key and value" );
+		}
     	hashBucketRegion = new HashBucketRegion( mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_NO_OF_BUCKETS ) );		// can now set number of hash buckets
     	recordRegion = new RecordRegion();
-    	zeroCopyGetAllowed = false;
+    	zeroCopyGetAllowed = !isConcurrentMap && recordRegion.isSegmentAligned();
     }
 	
 	/**
@@ -201,6 +571,117 @@ public class F1BinaryMap
     		final boolean isConcurrentMap, final KeyFunction aHashFunction )
     		throws IOException
 	{
+		this( aMemoryMappedFilenamePrefix, anInitialNoOfRecords, aKeySize, aValueSize, aSuggestedNoOfBuckets, aMaxNoOfRecords,
+				DEFAULT_SEGMENT_BITS, isConcurrentMap, aHashFunction );
+	}
+	
+	/**
+	 * create F1BinaryMap with the given size of the memory mapped files. Larger files need fewer mappings and
+	 * buffers for a large map, smaller files let a small map grow in smaller steps
+	 * @param aMemoryMappedFilenamePrefix prefix for the underlying memory mapped files
+     * @param anInitialNoOfRecords initial no of recordRegion
+     * @param aKeySize size of the key in bytes
+     * @param aValueSize size of the value in bytes
+     * @param aNoOfHashBuckets no of hash buckets to be used in the backing store
+	 * @param aMaxNoOfRecords max no of records this map can hold
+	 * @param aSegmentBits no of address bits of a memory mapped file, i.e., each file holds 2^N bytes, between 
+	 * MIN_SEGMENT_BITS and MAX_SEGMENT_BITS. 31 bits and more are not supported by every runtime, see MAX_SEGMENT_BITS
+     * @param isConcurrentMap true indicates if this map is accessed by multiple threads and locking will be applied or false if
+     * the map is accessed by a single thread only and no locking is required
+     * @param aHashFunction hash function implementation
+     * @throws UnsupportedOperationException if this runtime cannot map files of the given segment bits
+	 */
+	public F1BinaryMap( final String aMemoryMappedFilenamePrefix, final long anInitialNoOfRecords, 
+    		final int aKeySize, final int aValueSize, final long aSuggestedNoOfBuckets, final long aMaxNoOfRecords,
+    		final int aSegmentBits, final boolean isConcurrentMap, final KeyFunction aHashFunction )
+    		throws IOException
+	{
+		this( aMemoryMappedFilenamePrefix, anInitialNoOfRecords, aKeySize, aValueSize, aSuggestedNoOfBuckets, aMaxNoOfRecords,
+				aSegmentBits, RECORD_LAYOUT_PACKED, isConcurrentMap, aHashFunction );
+	}
+	
+	/**
+	 * create F1BinaryMap with the given size of the memory mapped files and record layout. Segment aligned records never straddle
+	 * 2 memory mapped files, so they are accessed without checking for a straddle and zero copy get is allowed for a non-concurrent map
+	 * @param aMemoryMappedFilenamePrefix prefix for the underlying memory mapped files
+     * @param anInitialNoOfRecords initial no of recordRegion
+     * @param aKeySize size of the key in bytes
+     * @param aValueSize size of the value in bytes
+     * @param aNoOfHashBuckets no of hash buckets to be used in the backing store
+	 * @param aMaxNoOfRecords max no of records this map can hold
+	 * @param aSegmentBits no of address bits of a memory mapped file, i.e., each file holds 2^N bytes, between 
+	 * MIN_SEGMENT_BITS and MAX_SEGMENT_BITS. 31 bits and more are not supported by every runtime, see MAX_SEGMENT_BITS
+	 * @param aRecordLayout RECORD_LAYOUT_PACKED or RECORD_LAYOUT_SEGMENT_ALIGNED
+     * @param isConcurrentMap true indicates if this map is accessed by multiple threads and locking will be applied or false if
+     * the map is accessed by a single thread only and no locking is required
+     * @param aHashFunction hash function implementation
+	 */
+	public F1BinaryMap( final String aMemoryMappedFilenamePrefix, final long anInitialNoOfRecords, 
+    		final int aKeySize, final int aValueSize, final long aSuggestedNoOfBuckets, final long aMaxNoOfRecords,
+    		final int aSegmentBits, final int aRecordLayout, final boolean isConcurrentMap, final KeyFunction aHashFunction )
+    		throws IOException
+	{
+		this( aMemoryMappedFilenamePrefix, anInitialNoOfRecords, aKeySize, aValueSize, aSuggestedNoOfBuckets, aMaxNoOfRecords,
+				aSegmentBits, aRecordLayout, LOAD_MODE_EAGER, isConcurrentMap, aHashFunction );
+	}
+	
+	/**
+	 * create F1BinaryMap with the given size of the memory mapped files, record layout and load mode
+	 * @param aMemoryMappedFilenamePrefix prefix for the underlying memory mapped files
+     * @param anInitialNoOfRecords initial no of recordRegion
+     * @param aKeySize size of the key in bytes
+     * @param aValueSize size of the value in bytes
+     * @param aNoOfHashBuckets no of hash buckets to be used in the backing store
+	 * @param aMaxNoOfRecords max no of records this map can hold
+	 * @param aSegmentBits no of address bits of a memory mapped file, i.e., each file holds 2^N bytes, between 
+	 * MIN_SEGMENT_BITS and MAX_SEGMENT_BITS. 31 bits and more are not supported by every runtime, see MAX_SEGMENT_BITS
+	 * @param aRecordLayout RECORD_LAYOUT_PACKED or RECORD_LAYOUT_SEGMENT_ALIGNED
+     * @param aLoadMode LOAD_MODE_EAGER, LOAD_MODE_LAZY or LOAD_MODE_PARALLEL_PREFAULT
+     * @param isConcurrentMap true indicates if this map is accessed by multiple threads and locking will be applied or false if
+     * the map is accessed by a single thread only and no locking is required
+     * @param aHashFunction hash function implementation
+	 */
+	public F1BinaryMap( final String aMemoryMappedFilenamePrefix, final long anInitialNoOfRecords, 
+    		final int aKeySize, final int aValueSize, final long aSuggestedNoOfBuckets, final long aMaxNoOfRecords,
+    		final int aSegmentBits, final int aRecordLayout, final int aLoadMode, final boolean isConcurrentMap, final KeyFunction aHashFunction )
+    		throws IOException
+	{
+		this( aMemoryMappedFilenamePrefix, anInitialNoOfRecords, aKeySize, aValueSize, aSuggestedNoOfBuckets, aMaxNoOfRecords,
+				aSegmentBits, aRecordLayout, aLoadMode, PAGE_MODE_DEFAULT, isConcurrentMap, aHashFunction );
+	}
+	
+	/**
+	 * create F1BinaryMap with the given size of the memory mapped files, record layout, load mode and page mode. Huge pages 
+	 * cut the TLB misses of random accesses into a large map. The files are sized in whole huge pages and huge pages are 
+	 * advised for them, which takes effect where the file system supports transparent huge pages, or the files are placed 
+	 * on hugetlbfs
+	 * @param aMemoryMappedFilenamePrefix prefix for the underlying memory mapped files
+     * @param anInitialNoOfRecords initial no of recordRegion
+     * @param aKeySize size of the key in bytes
+     * @param aValueSize size of the value in bytes
+     * @param aNoOfHashBuckets no of hash buckets to be used in the backing store
+	 * @param aMaxNoOfRecords max no of records this map can hold
+	 * @param aSegmentBits no of address bits of a memory mapped file, i.e., each file holds 2^N bytes, between 
+	 * MIN_SEGMENT_BITS and MAX_SEGMENT_BITS. 31 bits and more are not supported by every runtime, see MAX_SEGMENT_BITS
+	 * @param aRecordLayout RECORD_LAYOUT_PACKED or RECORD_LAYOUT_SEGMENT_ALIGNED
+     * @param aLoadMode LOAD_MODE_EAGER, LOAD_MODE_LAZY or LOAD_MODE_PARALLEL_PREFAULT
+     * @param aPageMode PAGE_MODE_DEFAULT or PAGE_MODE_HUGE
+     * @param isConcurrentMap true indicates if this map is accessed by multiple threads and locking will be applied or false if
+     * the map is accessed by a single thread only and no locking is required
+     * @param aHashFunction hash function implementation
+	 */
+	public F1BinaryMap( final String aMemoryMappedFilenamePrefix, final long anInitialNoOfRecords, 
+    		final int aKeySize, final int aValueSize, final long aSuggestedNoOfBuckets, final long aMaxNoOfRecords,
+    		final int aSegmentBits, final int aRecordLayout, final int aLoadMode, final int aPageMode, final boolean isConcurrentMap, 
+    		final KeyFunction aHashFunction )
+    		throws IOException
+	{
+		CheckLoadMode( aLoadMode );
+		CheckPageMode( aPageMode );
+		if ( aRecordLayout != RECORD_LAYOUT_PACKED && aRecordLayout != RECORD_LAYOUT_SEGMENT_ALIGNED )
+		{
+			throw new IllegalArgumentException( "Unknown record layout " + aRecordLayout );
+		}
     	concurrentMap = isConcurrentMap;
     	keyFunction = aHashFunction;
     	keySize = aKeySize;
@@ -208,17 +689,18 @@ public class F1BinaryMap
     	recordSize = LINK_VALUE_SIZE + keySize + valueSize;
     	recordValueOffset = RECORD_KEY_OFFSET + keySize;
 		long noOfBuckets = GetClosestPowerOfTwo( aSuggestedNoOfBuckets );
-        maxMapSize = CalculateBinaryMapSize( noOfBuckets, aMaxNoOfRecords, keySize, valueSize );
-    	long mapSize = MAP_HEADER_NO_OF_FIELDS * WORDSIZE + HASH_BUCKETS_NO_OF_FIELDS * WORDSIZE * noOfBuckets + recordSize * anInitialNoOfRecords;
+        maxMapSize = CalculateBinaryMapSize( noOfBuckets, aMaxNoOfRecords, keySize, valueSize, aSegmentBits, aRecordLayout );
+    	long mapSize = CalculateBinaryMapSize( noOfBuckets, anInitialNoOfRecords, keySize, valueSize, aSegmentBits, aRecordLayout );
     	mapBackingStore = new MemoryMappedFileBackingStore( aMemoryMappedFilenamePrefix, maxMapSize, anInitialNoOfRecords, 
-    	    						aKeySize, aValueSize, noOfBuckets, aMaxNoOfRecords );
+    	    						aKeySize, aValueSize, noOfBuckets, aMaxNoOfRecords, aSegmentBits, aRecordLayout == RECORD_LAYOUT_SEGMENT_ALIGNED,
+    	    						mapSize, aLoadMode, aPageMode == PAGE_MODE_HUGE, MAP_HEADER_FIELD_ADDRESS_NO_OF_MEMORY_PAGES );
 
     	long noOfMemoryPages = mapBackingStore.calculateNoOfMemoryPages(mapSize); // rounding trick
-    	initializeMapHeaderInfo( anInitialNoOfRecords, recordSize, noOfMemoryPages, noOfBuckets, maxMapSize ); // construction
+    	initializeMapHeaderInfo( anInitialNoOfRecords, recordSize, noOfMemoryPages, noOfBuckets, maxMapSize, aRecordLayout ); // construction
     	hashBucketRegion = new HashBucketRegion( mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_NO_OF_BUCKETS ) );		// can now set number of hash buckets
     	recordRegion = new RecordRegion();			// can now use number of hash buckets
 		hashBucketRegion.initializeHashBuckets();				// construction
-		zeroCopyGetAllowed = false;
+		zeroCopyGetAllowed = !isConcurrentMap && recordRegion.isSegmentAligned();
 	}
 	
 	/**
@@ -237,6 +719,29 @@ public class F1BinaryMap
     		final boolean isConcurrentMap, final KeyFunction aHashFunction )
     		throws IOException
 	{
+		this( anInitialNoOfRecords, aKeySize, aValueSize, aSuggestedNoOfBuckets, aMaxNoOfRecords, isConcurrentMap, PAGE_MODE_DEFAULT, aHashFunction );
+	}
+	
+	/**
+	 * create F1BinaryMap using direct memory with the given page mode. Huge pages cut the TLB misses of random accesses into 
+	 * a large map. The memory is aligned to a huge page and huge pages are advised for it, which takes effect where 
+	 * transparent huge pages are enabled
+     * @param anInitialNoOfRecords initial no of recordRegion
+     * @param aKeySize size of the key in bytes
+     * @param aValueSize size of the value in bytes
+     * @param aNoOfHashBuckets no of hash buckets to be used in the backing store
+	 * @param aMaxNoOfRecords max no of records this map can hold
+     * @param isConcurrentMap true indicates if this map is accessed by multiple threads and locking will be applied or false if
+     * the map is accessed by a single thread only and no locking is required
+     * @param aPageMode PAGE_MODE_DEFAULT or PAGE_MODE_HUGE
+     * @param aHashFunction hash function implementation
+	 */
+	public F1BinaryMap( final long anInitialNoOfRecords, 
+    		final int aKeySize, final int aValueSize, final long aSuggestedNoOfBuckets, final long aMaxNoOfRecords,
+    		final boolean isConcurrentMap, final int aPageMode, final KeyFunction aHashFunction )
+    		throws IOException
+	{
+		CheckPageMode( aPageMode );
     	concurrentMap = isConcurrentMap;
     	keyFunction = aHashFunction;
     	keySize = aKeySize;
@@ -247,9 +752,9 @@ public class F1BinaryMap
 		long noOfBuckets = GetClosestPowerOfTwo( aSuggestedNoOfBuckets );
         maxMapSize = CalculateBinaryMapSize( noOfBuckets, aMaxNoOfRecords, keySize, valueSize );
     	long mapSize = MAP_HEADER_NO_OF_FIELDS * WORDSIZE + HASH_BUCKETS_NO_OF_FIELDS * WORDSIZE * noOfBuckets + recordSize * anInitialNoOfRecords;
-    	mapBackingStore = new DirectMemoryBackingStore( maxMapSize );
+    	mapBackingStore = new DirectMemoryBackingStore( maxMapSize, aPageMode == PAGE_MODE_HUGE );
     	long noOfMemoryPages = mapBackingStore.calculateNoOfMemoryPages(mapSize); // rounding trick
-    	initializeMapHeaderInfo( anInitialNoOfRecords, recordSize, noOfMemoryPages, noOfBuckets, maxMapSize ); // construction
+    	initializeMapHeaderInfo( anInitialNoOfRecords, recordSize, noOfMemoryPages, noOfBuckets, maxMapSize, RECORD_LAYOUT_PACKED ); // construction
     	hashBucketRegion = new HashBucketRegion( mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_NO_OF_BUCKETS ) );		// can now set number of hash buckets
     	recordRegion = new RecordRegion();			// can now use number of hash buckets
 		hashBucketRegion.initializeHashBuckets();				// construction
@@ -257,24 +762,318 @@ public class F1BinaryMap
 	}
 	
 	/**
-	 * put key value into the map
-	 * @param aKey key for lookup reference to the value
-	 * @param aValue value to be placed into the map
+	 * create F1BinaryMap using direct memory allocated in chunks on demand. The map starts with the chunks holding the initial
+	 * no of records and allocates another chunk whenever it runs out of records, so only the memory in use is committed. 
+	 * The records are segment aligned with the chunks, so zero copy get stays allowed. Compact gives the trailing chunks back
+     * @param anInitialNoOfRecords initial no of recordRegion
+     * @param aKeySize size of the key in bytes
+     * @param aValueSize size of the value in bytes
+     * @param aNoOfHashBuckets no of hash buckets to be used in the backing store
+	 * @param aMaxNoOfRecords max no of records this map can hold
+	 * @param aChunkBits no of address bits of a chunk, i.e., each chunk holds 2^N bytes, between 20 and MAX_SEGMENT_BITS
+     * @param isConcurrentMap true indicates if this map is accessed by multiple threads and locking will be applied or false if
+     * the map is accessed by a single thread only and no locking is required
+     * @param aHashFunction hash function implementation
 	 */
-	public final void put( final LongDirectBuffer aKey, final LongDirectBuffer aValue )
+	public F1BinaryMap( final long anInitialNoOfRecords, 
+    		final int aKeySize, final int aValueSize, final long aSuggestedNoOfBuckets, final long aMaxNoOfRecords,
+    		final int aChunkBits, final boolean isConcurrentMap, final KeyFunction aHashFunction )
 	{
-		putRecord( aKey, 0, aValue, 0 );
+		this( anInitialNoOfRecords, aKeySize, aValueSize, aSuggestedNoOfBuckets, aMaxNoOfRecords, aChunkBits, PAGE_MODE_DEFAULT, 
+				isConcurrentMap, aHashFunction );
 	}
 	
 	/**
-	 * put key value into the map
-	 * @param aKey key for lookup reference to the value
-	 * @param aKeyStartIndex byte start index of the key in the key buffer
-	 * @param aValue value to be placed into the map
-	 * @param aValueStartIndex start index of the value from the buffer
+	 * create F1BinaryMap using direct memory allocated in chunks on demand with the given page mode. Huge pages cut the TLB 
+	 * misses of random accesses into a large map. Each chunk is aligned to a huge page and huge pages are advised for it, 
+	 * which takes effect where transparent huge pages are enabled
+     * @param anInitialNoOfRecords initial no of recordRegion
+     * @param aKeySize size of the key in bytes
+     * @param aValueSize size of the value in bytes
+     * @param aNoOfHashBuckets no of hash buckets to be used in the backing store
+	 * @param aMaxNoOfRecords max no of records this map can hold
+	 * @param aChunkBits no of address bits of a chunk, i.e., each chunk holds 2^N bytes, between 20 and MAX_SEGMENT_BITS
+     * @param aPageMode PAGE_MODE_DEFAULT or PAGE_MODE_HUGE
+     * @param isConcurrentMap true indicates if this map is accessed by multiple threads and locking will be applied or false if
+     * the map is accessed by a single thread only and no locking is required
+     * @param aHashFunction hash function implementation
 	 */
-	public final void put( final LongDirectBuffer aKey, final long aKeyStartIndex,
-			final LongDirectBuffer aValue, final long aValueStartIndex )
+	public F1BinaryMap( final long anInitialNoOfRecords, 
+    		final int aKeySize, final int aValueSize, final long aSuggestedNoOfBuckets, final long aMaxNoOfRecords,
+    		final int aChunkBits, final int aPageMode, final boolean isConcurrentMap, final KeyFunction aHashFunction )
+	{
+		CheckPageMode( aPageMode );
+    	concurrentMap = isConcurrentMap;
+    	keyFunction = aHashFunction;
+    	keySize = aKeySize;
+    	valueSize = aValueSize;
+    	recordSize = LINK_VALUE_SIZE + keySize + valueSize;
+    	recordValueOffset = RECORD_KEY_OFFSET + keySize;
+    	if ( aChunkBits < Long.SIZE - 1 && recordSize > ( 1L << aChunkBits ) )
+    	{
+    		throw new IllegalArgumentException( "Record of " + recordSize + " bytes does not fit into a chunk of 2^" + aChunkBits + " bytes" );
+    	}
+		long noOfBuckets = GetClosestPowerOfTwo( aSuggestedNoOfBuckets );
+        maxMapSize = CalculateBinaryMapSize( noOfBuckets, aMaxNoOfRecords, keySize, valueSize, aChunkBits, RECORD_LAYOUT_SEGMENT_ALIGNED );
+    	long mapSize = CalculateBinaryMapSize( noOfBuckets, anInitialNoOfRecords, keySize, valueSize, aChunkBits, RECORD_LAYOUT_SEGMENT_ALIGNED );
+    	mapBackingStore = new ChunkedDirectMemoryBackingStore( maxMapSize, aChunkBits, mapSize, aPageMode == PAGE_MODE_HUGE );
+    	long noOfMemoryPages = mapBackingStore.calculateNoOfMemoryPages(mapSize); // rounding trick
+    	initializeMapHeaderInfo( anInitialNoOfRecords, recordSize, noOfMemoryPages, noOfBuckets, maxMapSize, RECORD_LAYOUT_SEGMENT_ALIGNED ); // construction
+    	hashBucketRegion = new HashBucketRegion( mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_NO_OF_BUCKETS ) );		// can now set number of hash buckets
+    	recordRegion = new RecordRegion();			// can now use number of hash buckets
+		hashBucketRegion.initializeHashBuckets();				// construction
+		zeroCopyGetAllowed = !isConcurrentMap;
+	}
+	
+	/**
+	 * create F1BinaryMap with the hot records in direct memory and the cold records in memory mapped files. The header, 
+	 * the bucket region and the records of the record positions below the given no of hot records, rounded up to whole 
+	 * segments, are kept in direct memory, and the rest of the records are kept in memory mapped files loaded lazily. 
+	 * Every get of a cold record is sampled and a sampled record is promoted by swapping its record position with a hot
+	 * record, choosing the hot record hit least recently, see statistics. A record swapped by a promotion changes its record 
+	 * position, so the value buffer of a zero copy get becomes undefined after the next get as well.
+	 * The records are laid out segment aligned. The memory mapped files hold the hot records as of the last sync or dispose 
+	 * and make up a memory mapped map, which can be reopened as such
+	 * @param aMemoryMappedFilenamePrefix prefix for the underlying memory mapped files
+     * @param anInitialNoOfRecords initial no of recordRegion
+     * @param aKeySize size of the key in bytes
+     * @param aValueSize size of the value in bytes
+     * @param aNoOfHashBuckets no of hash buckets to be used in the backing store
+	 * @param aMaxNoOfRecords max no of records this map can hold
+	 * @param aSegmentBits no of address bits of a memory mapped file, i.e., each file holds 2^N bytes, between 
+	 * MIN_SEGMENT_BITS and MAX_SEGMENT_BITS. 31 bits and more are not supported by every runtime, see MAX_SEGMENT_BITS
+     * @param isConcurrentMap true indicates if this map is accessed by multiple threads and locking will be applied or false if
+     * the map is accessed by a single thread only and no locking is required
+     * @param aNoOfHotRecords no of records to be kept in direct memory
+     * @param aPromotionSampleBits a cold record is promoted by 1 out of 2^N of its gets, see DEFAULT_PROMOTION_SAMPLE_BITS
+     * @param aHashFunction hash function implementation
+	 */
+	public F1BinaryMap( final String aMemoryMappedFilenamePrefix, final long anInitialNoOfRecords, 
+    		final int aKeySize, final int aValueSize, final long aSuggestedNoOfBuckets, final long aMaxNoOfRecords,
+    		final int aSegmentBits, final boolean isConcurrentMap, final long aNoOfHotRecords, final int aPromotionSampleBits, 
+    		final KeyFunction aHashFunction )
+    		throws IOException
+	{
+		this( aMemoryMappedFilenamePrefix, anInitialNoOfRecords, aKeySize, aValueSize, aSuggestedNoOfBuckets, aMaxNoOfRecords,
+				aSegmentBits, LOAD_MODE_LAZY, PAGE_MODE_DEFAULT, isConcurrentMap, aNoOfHotRecords, aPromotionSampleBits, aHashFunction );
+	}
+	
+	/**
+	 * create F1BinaryMap with the hot records in direct memory and the cold records in memory mapped files of the given load 
+	 * mode and page mode, see the constructor loading the cold records lazily
+	 * @param aMemoryMappedFilenamePrefix prefix for the underlying memory mapped files
+     * @param anInitialNoOfRecords initial no of recordRegion
+     * @param aKeySize size of the key in bytes
+     * @param aValueSize size of the value in bytes
+     * @param aNoOfHashBuckets no of hash buckets to be used in the backing store
+	 * @param aMaxNoOfRecords max no of records this map can hold
+	 * @param aSegmentBits no of address bits of a memory mapped file, i.e., each file holds 2^N bytes, between 
+	 * MIN_SEGMENT_BITS and MAX_SEGMENT_BITS. 31 bits and more are not supported by every runtime, see MAX_SEGMENT_BITS
+     * @param aLoadMode LOAD_MODE_EAGER, LOAD_MODE_LAZY or LOAD_MODE_PARALLEL_PREFAULT of the memory mapped files
+     * @param aPageMode PAGE_MODE_DEFAULT or PAGE_MODE_HUGE of the memory mapped files
+     * @param isConcurrentMap true indicates if this map is accessed by multiple threads and locking will be applied or false if
+     * the map is accessed by a single thread only and no locking is required
+     * @param aNoOfHotRecords no of records to be kept in direct memory
+     * @param aPromotionSampleBits a cold record is promoted by 1 out of 2^N of its gets, see DEFAULT_PROMOTION_SAMPLE_BITS
+     * @param aHashFunction hash function implementation
+	 */
+	public F1BinaryMap( final String aMemoryMappedFilenamePrefix, final long anInitialNoOfRecords, 
+    		final int aKeySize, final int aValueSize, final long aSuggestedNoOfBuckets, final long aMaxNoOfRecords,
+    		final int aSegmentBits, final int aLoadMode, final int aPageMode, final boolean isConcurrentMap, final long aNoOfHotRecords, 
+    		final int aPromotionSampleBits, final KeyFunction aHashFunction )
+    		throws IOException
+	{
+		CheckLoadMode( aLoadMode );
+		CheckPageMode( aPageMode );
+    	concurrentMap = isConcurrentMap;
+    	keyFunction = aHashFunction;
+    	keySize = aKeySize;
+    	valueSize = aValueSize;
+    	recordSize = LINK_VALUE_SIZE + keySize + valueSize;
+    	recordValueOffset = RECORD_KEY_OFFSET + keySize;
+		long noOfBuckets = GetClosestPowerOfTwo( aSuggestedNoOfBuckets );
+        maxMapSize = CalculateBinaryMapSize( noOfBuckets, aMaxNoOfRecords, keySize, valueSize, aSegmentBits, RECORD_LAYOUT_SEGMENT_ALIGNED );
+    	long mapSize = CalculateBinaryMapSize( noOfBuckets, anInitialNoOfRecords, keySize, valueSize, aSegmentBits, RECORD_LAYOUT_SEGMENT_ALIGNED );
+    	long hotMapSize = CalculateBinaryMapSize( noOfBuckets, aNoOfHotRecords, keySize, valueSize, aSegmentBits, RECORD_LAYOUT_SEGMENT_ALIGNED );
+    	TieredMemoryBackingStore tieredMemoryBackingStore = new TieredMemoryBackingStore( 
+    			new MemoryMappedFileBackingStore( aMemoryMappedFilenamePrefix, maxMapSize, anInitialNoOfRecords, aKeySize, aValueSize, 
+    											noOfBuckets, aMaxNoOfRecords, aSegmentBits, true, mapSize, aLoadMode, aPageMode == PAGE_MODE_HUGE,
+    											MAP_HEADER_FIELD_ADDRESS_NO_OF_MEMORY_PAGES ),
+    			maxMapSize, hotMapSize );
+    	mapBackingStore = tieredMemoryBackingStore;
+    	long noOfMemoryPages = mapBackingStore.calculateNoOfMemoryPages(mapSize); // rounding trick
+    	initializeMapHeaderInfo( anInitialNoOfRecords, recordSize, noOfMemoryPages, noOfBuckets, maxMapSize, RECORD_LAYOUT_SEGMENT_ALIGNED ); // construction
+    	hashBucketRegion = new HashBucketRegion( mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_NO_OF_BUCKETS ) );		// can now set number of hash buckets
+    	recordRegion = new RecordRegion();			// can now use number of hash buckets
+		hashBucketRegion.initializeHashBuckets();				// construction
+		tiering = new F1BinaryMapTiering( recordRegion.getNoOfRecords( tieredMemoryBackingStore.getHotMapSize() ), aPromotionSampleBits );
+		swapBuffers = ThreadLocal.withInitial( () -> new SwapBuffers( recordSize ) );
+		zeroCopyGetAllowed = !isConcurrentMap;
+	}
+	
+	/**
+	 * open F1BinaryMap based on existing memory mapped files shared with other processes, see OpenReadOnly and OpenShared
+	 * @param aMemoryMappedFilenamePrefix prefix for the underlying memory mapped files
+     * @param aKeySize size of the key in bytes
+     * @param aValueSize size of the value in bytes
+     * @param aLoadMode LOAD_MODE_EAGER, LOAD_MODE_LAZY or LOAD_MODE_PARALLEL_PREFAULT
+     * @param isReadOnly true to open the map read only or false to write to it along with the other processes
+     * @param aHashFunction hash function implementation
+	 */
+	private F1BinaryMap( final String aMemoryMappedFilenamePrefix, final int aKeySize, final int aValueSize, final int aLoadMode, 
+						final boolean isReadOnly, final KeyFunction aHashFunction ) throws IOException
+	{
+		CheckLoadMode( aLoadMode );
+		// the buckets are locked by the writers only
+    	concurrentMap = !isReadOnly;
+    	sharedMap = !isReadOnly;
+    	keyFunction = aHashFunction;
+    	keySize = aKeySize;
+    	valueSize = aValueSize;
+    	recordSize = LINK_VALUE_SIZE + keySize + valueSize;
+    	recordValueOffset = RECORD_KEY_OFFSET + keySize;
+    	MemoryMappedFileBackingStore memoryMappedFileBackingStore = new MemoryMappedFileBackingStore( aMemoryMappedFilenamePrefix, 
+    								MAP_HEADER_FIELD_ADDRESS_MAX_MAP_SIZE, MAP_HEADER_FIELD_ADDRESS_SEGMENT_BITS, MAP_HEADER_FIELD_ADDRESS_RECORD_LAYOUT, 
+    								MAP_HEADER_FIELD_ADDRESS_NO_OF_MEMORY_PAGES, MAP_HEADER_FIELD_ADDRESS_FORMAT_VERSION, aLoadMode, false, isReadOnly );
+    	mapBackingStore = memoryMappedFileBackingStore;
+		maxMapSize = mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_MAX_MAP_SIZE );
+		if ( mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_RECORD_SIZE ) != recordSize ) // consistency check
+		{
+			mapBackingStore.dispose( false );
+			throw new IOException( "Record size " + mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_RECORD_SIZE ) + 
+									" of the memory mapped file does not match the record size " + recordSize + " of the key and value" );
+		}
+    	hashBucketRegion = new HashBucketRegion( mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_NO_OF_BUCKETS ) );
+    	recordRegion = new RecordRegion();
+    	if ( isReadOnly )
+    	{
+    		readOnlyBackingStore = memoryMappedFileBackingStore;
+        	zeroCopyGetAllowed = recordRegion.isSegmentAligned();
+        	followExpansion();
+    	}
+    	else
+    	{
+    		if ( !recordRegion.isSegmentAligned() )
+    		{
+    			// a record straddling into a file not mapped yet could not be accessed
+    			mapBackingStore.dispose( false );
+    			throw new IOException( "Records of a map shared by processes have to be segment aligned" );
+    		}
+    		zeroCopyGetAllowed = false;
+    	}
+	}
+	
+	/**
+	 * create F1BinaryMap in the given backing store of a single memory region allocated at once
+	 * @param aMapBackingStore backing store of the map
+     * @param anInitialNoOfRecords initial no of recordRegion
+     * @param aKeySize size of the key in bytes
+     * @param aValueSize size of the value in bytes
+     * @param aNoOfBuckets no of hash buckets, which is a power of 2
+	 * @param aMaxMapSize size of the backing store
+     * @param isConcurrentMap true indicates if this map is accessed by multiple threads and locking will be applied or false if
+     * the map is accessed by a single thread only and no locking is required
+     * @param aHashFunction hash function implementation
+	 */
+	private F1BinaryMap( final MapBackingStore aMapBackingStore, final long anInitialNoOfRecords, final int aKeySize, final int aValueSize, 
+						final long aNoOfBuckets, final long aMaxMapSize, final boolean isConcurrentMap, final KeyFunction aHashFunction )
+	{
+    	concurrentMap = isConcurrentMap;
+    	keyFunction = aHashFunction;
+    	keySize = aKeySize;
+    	valueSize = aValueSize;
+    	recordSize = LINK_VALUE_SIZE + keySize + valueSize;
+    	recordValueOffset = RECORD_KEY_OFFSET + keySize;
+        maxMapSize = aMaxMapSize;
+    	long mapSize = MAP_HEADER_NO_OF_FIELDS * WORDSIZE + HASH_BUCKETS_NO_OF_FIELDS * WORDSIZE * aNoOfBuckets + recordSize * anInitialNoOfRecords;
+    	mapBackingStore = aMapBackingStore;
+    	long noOfMemoryPages = mapBackingStore.calculateNoOfMemoryPages(mapSize); // rounding trick
+    	initializeMapHeaderInfo( anInitialNoOfRecords, recordSize, noOfMemoryPages, aNoOfBuckets, maxMapSize, RECORD_LAYOUT_PACKED ); // construction
+    	hashBucketRegion = new HashBucketRegion( mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_NO_OF_BUCKETS ) );		// can now set number of hash buckets
+    	recordRegion = new RecordRegion();			// can now use number of hash buckets
+		hashBucketRegion.initializeHashBuckets();				// construction
+		zeroCopyGetAllowed = !isConcurrentMap;
+	}
+	
+	/**
+	 * open F1BinaryMap in the given backing store of a single memory region holding an existing map
+	 * @param aMapBackingStore backing store holding the map
+     * @param aKeySize size of the key in bytes
+     * @param aValueSize size of the value in bytes
+     * @param isConcurrentMap true indicates if this map is accessed by multiple threads and locking will be applied or false if
+     * the map is accessed by a single thread only and no locking is required
+     * @param aHashFunction hash function implementation
+	 */
+	private F1BinaryMap( final MapBackingStore aMapBackingStore, final int aKeySize, final int aValueSize, final boolean isConcurrentMap, 
+						final KeyFunction aHashFunction ) throws IOException
+	{
+    	concurrentMap = isConcurrentMap;
+    	keyFunction = aHashFunction;
+    	keySize = aKeySize;
+    	valueSize = aValueSize;
+    	recordSize = LINK_VALUE_SIZE + keySize + valueSize;
+    	recordValueOffset = RECORD_KEY_OFFSET + keySize;
+    	mapBackingStore = aMapBackingStore;
+		if ( mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_FORMAT_VERSION ) != FORMAT_VERSION )
+		{
+			mapBackingStore.dispose( false );
+			throw new IOException( "Memory mapped file has not been created by this version of F1BinaryMap" );
+		}
+		maxMapSize = mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_MAX_MAP_SIZE );
+		long recordSizeOfMap = mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_RECORD_SIZE );
+		if ( recordSizeOfMap != recordSize ) // consistency check
+		{
+			// the memory of a segment is gone once disposed
+			mapBackingStore.dispose( false );
+			throw new IOException( "Record size " + recordSizeOfMap + " of the memory mapped file does not match the record size " + 
+									recordSize + " of the key and value" );
+		}
+    	hashBucketRegion = new HashBucketRegion( mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_NO_OF_BUCKETS ) );
+    	recordRegion = new RecordRegion();
+    	zeroCopyGetAllowed = !isConcurrentMap;
+	}
+	
+	/**
+	 * create read only F1BinaryMap over the given backing store holding an existing map
+	 * @param aMapBackingStore backing store holding the map
+     * @param aKeySize size of the key in bytes
+     * @param aValueSize size of the value in bytes
+     * @param aHashFunction hash function implementation
+	 */
+	F1BinaryMap( final MapBackingStore aMapBackingStore, final int aKeySize, final int aValueSize, final KeyFunction aHashFunction )
+	{
+    	concurrentMap = false;
+    	keyFunction = aHashFunction;
+    	keySize = aKeySize;
+    	valueSize = aValueSize;
+    	recordSize = LINK_VALUE_SIZE + keySize + valueSize;
+    	recordValueOffset = RECORD_KEY_OFFSET + keySize;
+    	mapBackingStore = aMapBackingStore;
+		maxMapSize = mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_MAX_MAP_SIZE );
+    	hashBucketRegion = new HashBucketRegion( mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_NO_OF_BUCKETS ) );
+    	recordRegion = new RecordRegion();
+    	zeroCopyGetAllowed = false;
+	}
+	
+	/**
+	 * put key value into the map
+	 * @param aKey key for lookup reference to the value
+	 * @param aValue value to be placed into the map
+	 */
+	public final void put( final LongDirectBuffer aKey, final LongDirectBuffer aValue )
+	{
+		putRecord( aKey, 0, aValue, 0 );
+	}
+	
+	/**
+	 * put key value into the map
+	 * @param aKey key for lookup reference to the value
+	 * @param aKeyStartIndex byte start index of the key in the key buffer
+	 * @param aValue value to be placed into the map
+	 * @param aValueStartIndex start index of the value from the buffer
+	 */
+	public final void put( final LongDirectBuffer aKey, final long aKeyStartIndex,
+			final LongDirectBuffer aValue, final long aValueStartIndex )
 	{
 		putRecord( aKey, aKeyStartIndex, aValue, aValueStartIndex );
 	}
@@ -377,105 +1176,999 @@ public class F1BinaryMap
 		return maxMapSize;
 	}
 	
-    /**
-     * initialize map header information
-     * @param aNoOfRecords no of recordRegion
-     * @param aRecordSize size of each record
-     * @param aNoOfMemoryPages no of memory pages
-     * @param aNoOfBuckets no of buckets 
-     * @param aMaxMapSize maximum map size
-     */
-	private void initializeMapHeaderInfo( final long aNoOfRecords, final long aRecordSize, final long aNoOfMemoryPages, final long aNoOfBuckets, final long aMaxMapSize ) 
+	/**
+	 * enable the on heap near cache of the given no of entries in front of the map. Gets copying the value will be served from
+	 * the near cache when the key is cached, saving the copy out of the backing store. Puts and removes invalidate the cached 
+	 * entries under the bucket lock so the near cache stays correct in concurrent map. The near cache is direct mapped, 
+	 * so keys hashing to the same entry replace each other and the hottest keys tend to stay in the cache.
+	 * This method has to be called before the map is shared with other threads
+	 * @param aNoOfEntries no of entries of the near cache, rounded to the closest power of 2
+	 */
+	public void enableNearCache( final int aNoOfEntries )
 	{
-		mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_LOCK, VALUE_UNLOCKED );
-		mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_SBRK, aNoOfRecords );
-		mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_END, 0 );
-		mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_FREE, NULL );
-		mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_RECORD_SIZE, aRecordSize );
-		mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_NO_OF_MEMORY_PAGES, aNoOfMemoryPages );
-		mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_NO_OF_BUCKETS, aNoOfBuckets );
-		mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_MAX_MAP_SIZE, aMaxMapSize );
+		beginWritableAccess();
+		try
+		{
+			ensureNotShared( "Near cache" );
+			nearCache = new F1BinaryMapNearCache( aNoOfEntries, keySize, valueSize, keyFunction );
+		}
+		finally
+		{
+			endAccess();
+		}
 	}
 	
 	/**
-	 * returns the number of records contained within the map
-	 * @return number of records contained within the map
+	 * enable the off heap change log of the map. Every put, remove, eviction and clear is appended to the change log while 
+	 * the affected bucket is locked, so consumers can keep track of the map by tailing the change log instead of traversing 
+	 * the map. This method has to be called before the map is shared with other threads. The change log is released by dispose
+	 * once the reads in progress have ended, and reading it afterwards throws an IllegalStateException
+	 * @param aNoOfChanges no of changes the change log can hold before the oldest changes are overwritten, rounded to the closest power of 2
+	 * @return change log to be tailed by the consumers
 	 */
-	public final long getSize()
-	{ 
-		if ( concurrentMap )
+	public F1BinaryMapChangeLog enableChangeLog( final long aNoOfChanges )
+	{
+		beginWritableAccess();
+		try
 		{
-			return mapBackingStore.getLongVolatileFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_SIZE );
+			changeLog = new F1BinaryMapChangeLog( aNoOfChanges, keySize, valueSize );
+			return changeLog;
 		}
-		else
+		finally
 		{
-			return mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_SIZE );
+			endAccess();
 		}
 	}
 	
 	/**
-	 * increment size of the map
+	 * enable flushing the memory written by the map to the persisted memory from a background thread. The backing store 
+	 * keeps track of the regions written and flushes them every given interval or as soon as the given no of bytes is dirty, 
+	 * so the writes are persisted in batches without waiting for the write back of the operating system. The dirty memory is 
+	 * flushed once more when the map is disposed without erasing it. This method has to be called before the map is shared 
+	 * with other threads
+	 * @param aFlushIntervalInMs max time in ms the written memory stays unflushed
+	 * @param aMaxNoOfDirtyBytes no of dirty bytes triggering a flush before the interval has elapsed
 	 */
-	private void incrementSize()
+	public void enableAsyncFlush( final long aFlushIntervalInMs, final long aMaxNoOfDirtyBytes )
 	{
-		if ( concurrentMap )
+		beginWritableAccess();
+		try
 		{
-	    	long oldSize = getSize();
-	    	while( !mapBackingStore.compareAndPutLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_SIZE, oldSize+1, oldSize ) )
-	    	{
-	    		oldSize = getSize();
-	    	}			
+			mapBackingStore.enableAsyncFlush( aFlushIntervalInMs, aMaxNoOfDirtyBytes );
 		}
-		else
+		finally
 		{
-			long size = getSize() + 1;
-			mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_SIZE, size );
+			endAccess();
 		}
 	}
 	
 	/**
-	 * decrement size of the map
+	 * lock the regions of the map of the given mode in physical memory, so the accesses to them never take a major page fault 
+	 * after the operating system has paged them out. The header and the bucket region are locked first and the record region 
+	 * next, and the record region expanded later is locked as it is expanded. The memory is locked as far as the lock budget 
+	 * and the operating system permit, see GetMemoryLockBudget, so a low RLIMIT_MEMLOCK only leaves the end of the map unlocked
+	 * and the statistics tell how much of the map is locked. Nothing is locked without JNA. The memory locked beyond the given 
+	 * mode is unlocked, so MEMORY_LOCK_MODE_NONE unlocks the whole map
+	 * @param aMemoryLockMode MEMORY_LOCK_MODE_NONE, MEMORY_LOCK_MODE_INDEX or MEMORY_LOCK_MODE_ALL
+	 * @return no of bytes of the map locked in physical memory
 	 */
-	private void decrementSize()
+	public long lockInMemory( final int aMemoryLockMode )
 	{
-		if ( concurrentMap )
+		beginWritableAccess();
+		try
 		{
-	    	long oldSize = getSize();
-	    	while( !mapBackingStore.compareAndPutLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_SIZE, oldSize-1, oldSize ) )
-	    	{
-	    		oldSize = getSize();
-	    	}			
+			if ( aMemoryLockMode != MEMORY_LOCK_MODE_NONE && aMemoryLockMode != MEMORY_LOCK_MODE_INDEX && aMemoryLockMode != MEMORY_LOCK_MODE_ALL )
+			{
+				throw new IllegalArgumentException( "Unknown memory lock mode " + aMemoryLockMode );
+			}
+			lockMap();
+			try
+			{
+				memoryLockMode = aMemoryLockMode;
+				unlockInMemory( getNoOfBytesToLockInMemory() );
+				lockMoreInMemory();
+				return noOfMemoryLockedBytes;
+			}
+			finally
+			{
+				unlockMap();
+			}
 		}
-		else
+		finally
 		{
-			long size = getSize() - 1;
-			mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_SIZE, size );
+			endAccess();
 		}
 	}
-
-    /**
-     * HashBucketRegion is the second structure within the Map Backing Store to host the information
-     * for the hash buckets
-     */
-    private class HashBucketRegion
-    {
-    	private final long noOfBuckets;
-    	private final long modFactor;
-    	
-    	/**
-    	 * create hash buckets
-    	 * @param aNoOfBuckets no of buckets 
-    	 */
-    	private HashBucketRegion( final long aNoOfBuckets )
-    	{
-    		noOfBuckets = aNoOfBuckets;
-    		modFactor = noOfBuckets - 1;
-    	}
-    	
-    	/**
-    	 * get top field address
-    	 * @param aBucketIndex bucket index
-    	 * @return top field address for the given bucket
+	
+	/**
+	 * get no of bytes from the start of the map to be locked in physical memory according to the memory lock mode
+	 * @return no of bytes to be locked
+	 */
+	private long getNoOfBytesToLockInMemory()
+	{
+		switch( memoryLockMode )
+		{
+			case MEMORY_LOCK_MODE_INDEX:
+				return recordRegion.baseOffset;
+			case MEMORY_LOCK_MODE_ALL:
+				long noOfRecords = mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_SBRK );
+				return noOfRecords == 0 ? recordRegion.baseOffset : recordRegion.getRecordMemoryAddress( noOfRecords - 1 ) + recordSize;
+			default:
+				return 0;
+		}
+	}
+	
+	/**
+	 * lock the memory to be locked beyond the memory locked so far within the lock budget. The map lock must be held
+	 */
+	private void lockMoreInMemory()
+	{
+		long noOfBytesToLock = Math.min( getNoOfBytesToLockInMemory() - noOfMemoryLockedBytes, NativeMemory.GetMemoryLockBudget() );
+		if ( noOfBytesToLock > 0 )
+		{
+			noOfMemoryLockedBytes += mapBackingStore.lockInMemory( noOfMemoryLockedBytes, noOfBytesToLock );
+		}
+	}
+	
+	/**
+	 * unlock the memory locked beyond the given no of bytes from the start of the map. The map lock must be held
+	 * @param aNoOfBytesToKeepLocked no of bytes to stay locked
+	 */
+	private void unlockInMemory( final long aNoOfBytesToKeepLocked )
+	{
+		if ( noOfMemoryLockedBytes > aNoOfBytesToKeepLocked )
+		{
+			mapBackingStore.unlockInMemory( aNoOfBytesToKeepLocked, noOfMemoryLockedBytes - aNoOfBytesToKeepLocked );
+			noOfMemoryLockedBytes = aNoOfBytesToKeepLocked;
+		}
+	}
+	
+	/**
+	 * make the puts and removes completed so far durable and wait until it is done, so many puts can be made durable by a 
+	 * single sync. The journal is forced when it is enabled. Otherwise the memory written is flushed to the persisted memory, 
+	 * only the dirty regions when async flush is enabled or the whole map otherwise. Nothing is done for a map in direct memory.
+	 * The hot records of a tiered map are copied to their memory mapped files while all the buckets are locked
+	 * @throws IOException if the journal or the memory cannot be flushed
+	 */
+	public void sync() throws IOException
+	{
+		beginAccess();
+		try
+		{
+			if ( journal != null )
+			{
+				journal.sync();
+				return;
+			}
+			if ( tiering != null )
+			{
+				lockAll();
+				try
+				{
+					mapBackingStore.sync();
+				}
+				finally
+				{
+					unlockAll();
+				}
+				return;
+			}
+			mapBackingStore.sync();
+		}
+		finally
+		{
+			endAccess();
+		}
+	}
+	
+	/**
+	 * take a point in time snapshot of the map. The snapshot is a read only map which keeps the content of this map at the
+	 * time the snapshot has been taken while this map continues to be written. The snapshot saves a copy of each page of 
+	 * this map before it is written for the first time, so writes only pay for one page copy per page and the memory used by 
+	 * the snapshot grows with the no of pages written while the snapshot is alive. All the buckets are locked for the short 
+	 * moment the snapshot is taken. The snapshot can be read by multiple threads and must be disposed with dispose( false ) 
+	 * before this map is disposed. Values changed through a zero copy get are not captured
+	 * @return read only snapshot of the map
+	 */
+	public F1BinaryMap snapshot()
+	{
+		beginWritableAccess();
+		try
+		{
+			ensureNotShared( "Snapshot" );
+			lockAll();
+			try
+			{
+				return createSnapshot();
+			}
+			finally
+			{
+				unlockAll();
+			}
+		}
+		finally
+		{
+			endAccess();
+		}
+	}
+	
+	/**
+	 * create a point in time snapshot of the map. The entire map must be locked
+	 * @return read only snapshot of the map
+	 */
+	private F1BinaryMap createSnapshot()
+	{
+		long snapshotSize = recordRegion.getRecordMemoryAddress( mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_END ) );
+		SnapshotBackingStore snapshotBackingStore = new SnapshotBackingStore( this, mapBackingStore, snapshotSize, recordSize );
+		addWriteListener( snapshotBackingStore );
+		return new F1BinaryMap( snapshotBackingStore, keySize, valueSize, keyFunction );
+	}
+	
+	/**
+	 * enable the redo journal of the map, which keeps a memory mapped map recoverable from a crash at any time. Every put, 
+	 * remove, eviction and clear is appended to the journal while the affected bucket is locked. The journal is written in 
+	 * batches and forced to the storage device every given interval, and sync forces it at once. Checkpoint bounds the size 
+	 * of the journal and the time of a recovery.
+	 * Unless the map has been disposed without erasing it last time, it is reset and recovered from the journal when the 
+	 * journal is enabled. So the journal has to be enabled every time the map is opened, right after it has been opened and 
+	 * before the map is shared with other threads
+	 * @param aJournalFilenamePrefix file name prefix of the journal files
+	 * @param aSyncIntervalInMs max time in ms a mutation stays in the journal without being forced to the storage device
+	 * @return true if the map has been recovered from the journal
+	 * @throws IOException if the journal cannot be read or written
+	 */
+	public boolean enableJournal( final String aJournalFilenamePrefix, final long aSyncIntervalInMs ) throws IOException
+	{
+		beginWritableAccess();
+		try
+		{
+			ensureNotShared( "Journal" );
+			if ( journal != null )
+			{
+				throw new RuntimeException( "Journal is enabled already" );
+			}
+			F1BinaryMapJournal newJournal = new F1BinaryMapJournal( aJournalFilenamePrefix, keySize, valueSize, aSyncIntervalInMs );
+			boolean isRecovered = newJournal.recover( this );
+			journal = newJournal;
+			return isRecovered;
+		}
+		finally
+		{
+			endAccess();
+		}
+	}
+	
+	/**
+	 * write a checkpoint of the map into the journal and delete the journal of the mutations before it. All the buckets are 
+	 * locked for the moment a snapshot of the map is taken, and the records of the snapshot are written while the map 
+	 * continues to be written
+	 * @throws IOException if the checkpoint cannot be written
+	 */
+	public void checkpoint() throws IOException
+	{
+		beginWritableAccess();
+		try
+		{
+			if ( journal == null )
+			{
+				throw new RuntimeException( "Journal is not enabled" );
+			}
+			F1BinaryMap snapshot;
+			long generation;
+			lockAll();
+			try
+			{
+				generation = journal.rotate();
+				snapshot = createSnapshot();
+			}
+			finally
+			{
+				unlockAll();
+			}
+			try
+			{
+				journal.checkpoint( snapshot, generation );
+			}
+			finally
+			{
+				snapshot.dispose( false );
+			}
+		}
+		finally
+		{
+			endAccess();
+		}
+	}
+	
+	/**
+	 * export a compacted image of the map to the given channel, e.g., to clone the map into another directory or onto another 
+	 * host with importFrom. The image holds the buckets and the records in use only, packed in the order of the hash chains,
+	 * and ends with a checksum of the whole image, see F1BinaryMapImage. The image is taken from a snapshot of the map, so 
+	 * all the buckets are locked for a moment only and the map continues to be written while the image is exported. The 
+	 * channel is neither flushed nor closed
+	 * @param aChannel channel the image is written to
+	 * @return no of records exported
+	 * @throws IOException if the image cannot be written
+	 */
+	public long exportTo( final WritableByteChannel aChannel ) throws IOException
+	{
+		beginWritableAccess();
+		try
+		{
+			if ( mapBackingStore instanceof SnapshotBackingStore )
+			{
+				// a snapshot does not change any more
+				return exportImage( aChannel );
+			}
+			F1BinaryMap snapshot = snapshot();
+			try
+			{
+				return snapshot.exportImage( aChannel );
+			}
+			finally
+			{
+				snapshot.dispose( false );
+			}
+		}
+		finally
+		{
+			endAccess();
+		}
+	}
+	
+	/**
+	 * export the image of the map, which must not change meanwhile
+	 * @param aChannel channel the image is written to
+	 * @return no of records exported
+	 * @throws IOException if the image cannot be written
+	 */
+	private long exportImage( final WritableByteChannel aChannel ) throws IOException
+	{
+		long size = mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_SIZE );
+		F1BinaryMapImage image = new F1BinaryMapImage( recordSize );
+		image.putHeader( aChannel, keySize, valueSize, hashBucketRegion.noOfBuckets, size );
+		// the records of each chain follow each other in the image
+		long imageRecordPosition = 0;
+	    for ( long bucketIndex = 0; bucketIndex < hashBucketRegion.noOfBuckets; bucketIndex += 1 ) 
+	    {
+	    	long noOfRecords = 0;
+	    	for ( long recordPosition = hashBucketRegion.getTop( bucketIndex ); recordPosition != NULL; recordPosition = recordRegion.getLinkValue( recordPosition ) ) 
+	    	{
+	    		noOfRecords += 1;
+	    	} // for
+	    	image.putLong( aChannel, noOfRecords == 0 ? 0 : imageRecordPosition + 1 );
+	    	imageRecordPosition += noOfRecords;
+	    } // for
+	    if ( imageRecordPosition != size )
+	    {
+	    	throw new RuntimeException( "Fatal: Inconsistent state, " + imageRecordPosition + " records in the chains of a map of size " + size );
+	    }
+	    LongUnsafeBuffer buffer = image.getBuffer();
+	    imageRecordPosition = 0;
+	    for ( long bucketIndex = 0; bucketIndex < hashBucketRegion.noOfBuckets; bucketIndex += 1 ) 
+	    {
+	    	for ( long recordPosition = hashBucketRegion.getTop( bucketIndex ); recordPosition != NULL; ) 
+	    	{
+	    		long nextRecordPosition = recordRegion.getLinkValue( recordPosition );
+	    		int bufferPosition = image.reserve( aChannel, recordSize );
+	    		mapBackingStore.getBytesFromMemoryRegion( recordRegion.getRecordMemoryAddress( recordPosition ), recordSize, buffer, bufferPosition );
+	    		imageRecordPosition += 1;
+	    		buffer.putLong( bufferPosition, nextRecordPosition == NULL ? NULL : imageRecordPosition );
+	    		recordPosition = nextRecordPosition;
+	    	} // for
+	    } // for
+	    image.finish( aChannel );
+	    return size;
+	}
+	
+	/**
+	 * replace the content of the map by the image read from the given channel, which has been exported by a map of the same 
+	 * key and value size. The records are copied into the record region as they are read, so no record is put, and the 
+	 * buckets of the image are taken over if the map has the same no of buckets, otherwise the chains are rebuilt from the 
+	 * hash of the keys. The map expands as far as needed to hold the records of the image. All the buckets are locked while 
+	 * the image is imported and the map is left empty if the image turns out to be truncated or corrupted. Record positions 
+	 * and values retrieved with zero copy get before are invalid afterwards, and no snapshot may be alive
+	 * @param aChannel channel the image is read from
+	 * @return no of records imported
+	 * @throws IOException if the image cannot be read, is corrupted or is an image of another key or value size
+	 */
+	public long importFrom( final ReadableByteChannel aChannel ) throws IOException
+	{
+		beginWritableAccess();
+		try
+		{
+			ensureNotShared( "Import" );
+			if ( changeLog != null || journal != null )
+			{
+				throw new UnsupportedOperationException( "Import is not supported by a map with a change log or a journal" );
+			}
+			F1BinaryMapImage image = new F1BinaryMapImage( recordSize );
+			lockAll();
+			try
+			{
+				if ( isSnapshotAlive() )
+				{
+					throw new RuntimeException( "Cannot import into the map while a snapshot is alive" );
+				}
+				int headerPosition = image.readHeader( aChannel, keySize, valueSize );
+				long noOfBuckets = image.getNoOfBuckets( headerPosition );
+				long size = image.getSize( headerPosition );
+				expandToHold( size );
+				emptyMap();
+				try
+				{
+					boolean isSameNoOfBuckets = noOfBuckets == hashBucketRegion.noOfBuckets;
+					for ( long bucketIndex = 0; bucketIndex < noOfBuckets; bucketIndex += 1 ) 
+					{
+						long top = image.readLong( aChannel );
+						if ( isSameNoOfBuckets )
+						{
+							hashBucketRegion.updateTop( bucketIndex, top - 1 );
+						}
+					} // for
+					LongUnsafeBuffer buffer = image.getBuffer();
+					for ( long recordPosition = 0; recordPosition < size; recordPosition += 1 ) 
+					{
+						mapBackingStore.putBytesToMemoryRegion( recordRegion.getRecordMemoryAddress( recordPosition ), recordSize, buffer, 
+																image.read( aChannel, recordSize ) );
+					} // for
+					image.verify( aChannel );
+					if ( !isSameNoOfBuckets )
+					{
+						for ( long recordPosition = 0; recordPosition < size; recordPosition += 1 ) 
+						{
+							long bucketIndex = hashBucketRegion.getBucketIndex( recordRegion.hashKey( recordPosition ) );
+							recordRegion.updateLinkValue( recordPosition, hashBucketRegion.getTop( bucketIndex ) );
+							hashBucketRegion.updateTop( bucketIndex, recordPosition );
+						} // for
+					}
+					mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_END, size );
+					mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_SIZE, size );
+				}
+				catch( IOException | RuntimeException e )
+				{
+					emptyMap();
+					throw e;
+				}
+				return size;
+			}
+			finally
+			{
+				unlockAll();
+			}
+		}
+		finally
+		{
+			endAccess();
+		}
+	}
+	
+	/**
+	 * expand the map until it holds the given no of records. The map must be locked
+	 * @param aNoOfRecords no of records
+	 */
+	private void expandToHold( final long aNoOfRecords )
+	{
+		while( mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_SBRK ) < aNoOfRecords )
+		{
+	    	long expandedMapBackingStoreSize = mapBackingStore.expand( MAP_HEADER_FIELD_ADDRESS_NO_OF_MEMORY_PAGES );
+	    	if ( expandedMapBackingStoreSize == -1 ) 
+	    	{
+	    		throw new IllegalArgumentException( "Map cannot hold " + aNoOfRecords + " records" );
+	    	}
+	    	statisticsExpands += 1;
+	    	mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_SBRK, recordRegion.getNoOfRecords( expandedMapBackingStoreSize ) );
+		    if ( memoryLockMode == MEMORY_LOCK_MODE_ALL )
+		    {
+		    	lockMoreInMemory();
+		    }
+		} // while
+	}
+	
+	/**
+	 * write a full backup of the map to the given channel and start tracking the ranges of the map memory written from now
+	 * on, so backupIncremental copies the changed ranges only. A backup is a copy of the memory in use, taken from a snapshot
+	 * of the map, so all the buckets are locked for a moment only and the map continues to be written while the backup is 
+	 * written. Unlike an exported image, a backup keeps the memory layout of the map, so it is restored into a map of the 
+	 * same record size, no of buckets and record layout, see restore. The channel is neither flushed nor closed
+	 * @param aChannel channel the backup is written to
+	 * @return no of bytes of the map memory in the backup
+	 * @throws IOException if the backup cannot be written
+	 */
+	public long backup( final WritableByteChannel aChannel ) throws IOException
+	{
+		return backup( aChannel, false );
+	}
+	
+	/**
+	 * write an incremental backup of the map to the given channel, which holds the ranges of the map memory written since the
+	 * last backup only. Writes are tracked in ranges of 64KB from the first full backup on, see F1BinaryMapBackup, and values
+	 * changed through a zero copy get are not tracked. A failed backup leaves its ranges to the next backup
+	 * @param aChannel channel the backup is written to
+	 * @return no of bytes of the map memory in the backup
+	 * @throws IOException if the backup cannot be written
+	 */
+	public long backupIncremental( final WritableByteChannel aChannel ) throws IOException
+	{
+		return backup( aChannel, true );
+	}
+	
+	/**
+	 * write a full or incremental backup of the map to the given channel
+	 * @param aChannel channel the backup is written to
+	 * @param isIncremental true to write the ranges written since the last backup only
+	 * @return no of bytes of the map memory in the backup
+	 * @throws IOException if the backup cannot be written
+	 */
+	private long backup( final WritableByteChannel aChannel, final boolean isIncremental ) throws IOException
+	{
+		beginWritableAccess();
+		try
+		{
+			ensureNotShared( "Backup" );
+			synchronized( backupLock )
+			{
+				if ( isIncremental && mapBackup == null )
+				{
+					throw new RuntimeException( "Incremental backup requires a full backup first" );
+				}
+				AtomicLongArray dirtyRanges;
+				F1BinaryMap snapshot;
+				lockAll();
+				try
+				{
+					if ( mapBackup == null )
+					{
+						mapBackup = new F1BinaryMapBackup( maxMapSize );
+						addWriteListener( mapBackup );
+					}
+					dirtyRanges = mapBackup.swap();
+					snapshot = createSnapshot();
+				}
+				finally
+				{
+					unlockAll();
+				}
+				long sequence = mapBackup.getSequence() + 1;
+				try
+				{
+					long noOfBytes = snapshot.writeBackup( aChannel, sequence, isIncremental ? mapBackup.getSequence() : F1BinaryMapBackup.NO_BACKUP, 
+															isIncremental ? dirtyRanges : null );
+					mapBackup.setSequence( sequence );
+					return noOfBytes;
+				}
+				catch( IOException | RuntimeException e )
+				{
+					mapBackup.merge( dirtyRanges );
+					throw e;
+				}
+				finally
+				{
+					snapshot.dispose( false );
+				}
+			}
+		}
+		finally
+		{
+			endAccess();
+		}
+	}
+	
+	/**
+	 * write the backup of the map, which must not change meanwhile
+	 * @param aChannel channel the backup is written to
+	 * @param aSequence sequence of the backup
+	 * @param aBaseSequence sequence of the backup the ranges have changed since or NO_BACKUP for a full backup
+	 * @param aDirtyRanges ranges to be written or null to write all the ranges in use
+	 * @return no of bytes of the map memory in the backup
+	 * @throws IOException if the backup cannot be written
+	 */
+	private long writeBackup( final WritableByteChannel aChannel, final long aSequence, final long aBaseSequence, 
+								final AtomicLongArray aDirtyRanges ) throws IOException
+	{
+		long end = mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_END );
+		long usedSize = recordRegion.getRecordMemoryAddress( end );
+		long[] header = new long[F1BinaryMapBackup.HEADER_NO_OF_FIELDS];
+		header[F1BinaryMapBackup.HEADER_FIELD_RECORD_SIZE] = recordSize;
+		header[F1BinaryMapBackup.HEADER_FIELD_NO_OF_BUCKETS] = hashBucketRegion.noOfBuckets;
+		header[F1BinaryMapBackup.HEADER_FIELD_SEGMENT_BITS] = recordRegion.segmentBits;
+		header[F1BinaryMapBackup.HEADER_FIELD_RECORD_LAYOUT] = mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_RECORD_LAYOUT );
+		header[F1BinaryMapBackup.HEADER_FIELD_SEQUENCE] = aSequence;
+		header[F1BinaryMapBackup.HEADER_FIELD_BASE_SEQUENCE] = aBaseSequence;
+		header[F1BinaryMapBackup.HEADER_FIELD_END] = end;
+		header[F1BinaryMapBackup.HEADER_FIELD_FREE] = mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_FREE );
+		header[F1BinaryMapBackup.HEADER_FIELD_SIZE] = mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_SIZE );
+		header[F1BinaryMapBackup.HEADER_FIELD_GENERATION] = hashBucketRegion.generation;
+		header[F1BinaryMapBackup.HEADER_FIELD_USED_SIZE] = usedSize;
+		F1BinaryMapImage image = new F1BinaryMapImage( (int)F1BinaryMapBackup.RANGE_SIZE );
+		F1BinaryMapBackup.PutHeader( image, aChannel, header );
+		LongUnsafeBuffer buffer = image.getBuffer();
+		long noOfBytes = 0;
+		for ( long address = 0; address < usedSize; address += F1BinaryMapBackup.RANGE_SIZE )
+		{
+			if ( aDirtyRanges != null && !F1BinaryMapBackup.IsDirty( aDirtyRanges, address >>> F1BinaryMapBackup.RANGE_BITS ) )
+			{
+				continue;
+			}
+			int length = (int)Math.min( F1BinaryMapBackup.RANGE_SIZE, usedSize - address );
+			image.putLong( aChannel, address );
+			image.putLong( aChannel, length );
+			mapBackingStore.getBytesFromMemoryRegion( address, length, buffer, image.reserve( aChannel, length ) );
+			noOfBytes += length;
+		} // for
+		image.putLong( aChannel, F1BinaryMapBackup.END_OF_RANGES );
+		image.finish( aChannel );
+		return noOfBytes;
+	}
+	
+	/**
+	 * restore the map from the backup read from the given channel. A map is restored from a full backup followed by the 
+	 * incremental backups taken after it in order, and each incremental backup is checked to follow the backup restored 
+	 * last. The map must have the record size, no of buckets and record layout of the backed up map and must not be written
+	 * in between the restores. The ranges are copied into the map memory as they are read, the bucket locks and the header 
+	 * of this map are kept, and the map expands as far as needed. All the buckets are locked while the backup is restored 
+	 * and the map is left empty if the backup turns out to be truncated or corrupted, so it has to be restored from the full 
+	 * backup again
+	 * @param aChannel channel the backup is read from
+	 * @return no of bytes of the map memory restored
+	 * @throws IOException if the backup cannot be read, is corrupted, does not fit the map or does not follow the backup 
+	 * restored last
+	 */
+	public long restore( final ReadableByteChannel aChannel ) throws IOException
+	{
+		beginWritableAccess();
+		try
+		{
+			ensureNotShared( "Restore" );
+			if ( changeLog != null || journal != null )
+			{
+				throw new UnsupportedOperationException( "Restore is not supported by a map with a change log or a journal" );
+			}
+			F1BinaryMapImage image = new F1BinaryMapImage( (int)F1BinaryMapBackup.RANGE_SIZE );
+			lockAll();
+			try
+			{
+				if ( isSnapshotAlive() )
+				{
+					throw new RuntimeException( "Cannot restore the map while a snapshot is alive" );
+				}
+				long[] header = F1BinaryMapBackup.ReadHeader( image, aChannel );
+				long recordLayout = mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_RECORD_LAYOUT );
+				if ( header[F1BinaryMapBackup.HEADER_FIELD_RECORD_SIZE] != recordSize || 
+					 header[F1BinaryMapBackup.HEADER_FIELD_NO_OF_BUCKETS] != hashBucketRegion.noOfBuckets ||
+					 header[F1BinaryMapBackup.HEADER_FIELD_RECORD_LAYOUT] != recordLayout ||
+					 ( recordLayout == RECORD_LAYOUT_SEGMENT_ALIGNED && header[F1BinaryMapBackup.HEADER_FIELD_SEGMENT_BITS] != recordRegion.segmentBits ) )
+				{
+					throw new IOException( "Map backup is a backup of a map of another record size, no of buckets or record layout" );
+				}
+				long baseSequence = header[F1BinaryMapBackup.HEADER_FIELD_BASE_SEQUENCE];
+				if ( baseSequence != F1BinaryMapBackup.NO_BACKUP && baseSequence != restoredBackupSequence )
+				{
+					throw new IOException( "Map backup " + header[F1BinaryMapBackup.HEADER_FIELD_SEQUENCE] + " does not follow the backup restored last" );
+				}
+				long end = header[F1BinaryMapBackup.HEADER_FIELD_END];
+				long usedSize = header[F1BinaryMapBackup.HEADER_FIELD_USED_SIZE];
+				if ( end < 0 || usedSize != recordRegion.getRecordMemoryAddress( end ) )
+				{
+					throw new IOException( "Map backup is corrupted" );
+				}
+				expandToHold( end );
+				nextEpoch();
+				restoredBackupSequence = F1BinaryMapBackup.NO_BACKUP;
+				try
+				{
+					LongUnsafeBuffer buffer = image.getBuffer();
+					long noOfBytes = 0;
+					for ( long address = image.readLong( aChannel ); address != F1BinaryMapBackup.END_OF_RANGES; address = image.readLong( aChannel ) )
+					{
+						long length = image.readLong( aChannel );
+						if ( address < 0 || length <= 0 || length > F1BinaryMapBackup.RANGE_SIZE || address + length > usedSize )
+						{
+							throw new IOException( "Map backup is corrupted" );
+						}
+						restoreRange( address, (int)length, buffer, image.read( aChannel, (int)length ) );
+						noOfBytes += length;
+					} // for
+					image.verify( aChannel );
+					hashBucketRegion.generation = header[F1BinaryMapBackup.HEADER_FIELD_GENERATION];
+					mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_GENERATION, hashBucketRegion.generation );
+					mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_END, end );
+					mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_FREE, header[F1BinaryMapBackup.HEADER_FIELD_FREE] );
+					mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_SIZE, header[F1BinaryMapBackup.HEADER_FIELD_SIZE] );
+					if ( nearCache != null )
+					{
+						nearCache.invalidateAll();
+					}
+					restoredBackupSequence = header[F1BinaryMapBackup.HEADER_FIELD_SEQUENCE];
+					return noOfBytes;
+				}
+				catch( IOException | RuntimeException e )
+				{
+					// the buckets restored so far may carry the generation of the backup
+					hashBucketRegion.generation = Math.max( hashBucketRegion.generation, header[F1BinaryMapBackup.HEADER_FIELD_GENERATION] );
+					emptyMap();
+					throw e;
+				}
+			}
+			finally
+			{
+				unlockAll();
+			}
+		}
+		finally
+		{
+			endAccess();
+		}
+	}
+	
+	/**
+	 * restore the given range of the map memory from the given buffer. The map must be locked
+	 * @param anAddress starting address of the range
+	 * @param aLength length of the range
+	 * @param aBuffer buffer holding the content of the range
+	 * @param aBufferPosition position of the content in the buffer
+	 */
+	private void restoreRange( final long anAddress, final int aLength, final LongUnsafeBuffer aBuffer, final int aBufferPosition )
+	{
+		long endAddress = anAddress + aLength;
+		// the header is restored from the fields of the backup, and the bucket locks held by this map are kept
+		long address = anAddress;
+		long bucketsEndAddress = Math.min( endAddress, recordRegion.baseOffset );
+		if ( address < bucketsEndAddress )
+		{
+			// a range may start at any field of the buckets
+			long topAddress = anAddress <= HASH_BUCKETS_TOP_FIELD_OFFSET ? HASH_BUCKETS_TOP_FIELD_OFFSET : HASH_BUCKETS_TOP_FIELD_OFFSET + 
+							( anAddress - HASH_BUCKETS_TOP_FIELD_OFFSET + HASH_BUCKETS_STRIDE - 1 ) / HASH_BUCKETS_STRIDE * HASH_BUCKETS_STRIDE;
+			for ( ; topAddress < bucketsEndAddress; topAddress += HASH_BUCKETS_STRIDE )
+			{
+				mapBackingStore.putLongInMemoryRegion( topAddress, aBuffer.getLong( aBufferPosition + topAddress - anAddress ) );
+			}
+			address = bucketsEndAddress;
+		}
+		if ( address < endAddress )
+		{
+			mapBackingStore.putBytesToMemoryRegion( address, (int)( endAddress - address ), aBuffer, aBufferPosition + address - anAddress );
+		}
+	}
+	
+	/**
+	 * check if a snapshot of the map is alive. The entire map must be locked
+	 * @return true if a snapshot is alive
+	 */
+	private boolean isSnapshotAlive()
+	{
+		for( MapBackingStoreWriteListener writeListener : writeListeners )
+		{
+			if ( writeListener instanceof SnapshotBackingStore )
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * reset the map to be empty without taking any lock, which may have been left locked by a crash. The map must not be 
+	 * shared with other threads
+	 */
+	void reset()
+	{
+		mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_LOCK, VALUE_UNLOCKED );
+		hashBucketRegion.generation = 0;
+		mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_GENERATION, 0 );
+		hashBucketRegion.initializeHashBuckets();
+		mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_END, 0 );
+		mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_FREE, NULL );
+		mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_SIZE, 0 );
+		if ( nearCache != null )
+		{
+			nearCache.invalidateAll();
+		}
+	}
+	
+	/**
+	 * stop saving pages for the given snapshot
+	 * @param aSnapshotBackingStore backing store of the snapshot
+	 */
+	void releaseSnapshot( final SnapshotBackingStore aSnapshotBackingStore )
+	{
+		if ( !accessGuard.begin() )
+		{
+			return;
+		}
+		try
+		{
+			lockAll();
+			try
+			{
+				removeWriteListener( aSnapshotBackingStore );
+			}
+			finally
+			{
+				unlockAll();
+			}
+		}
+		finally
+		{
+			accessGuard.end();
+		}
+	}
+	
+	/**
+	 * add the given listener of the backing store writes. The entire map must be locked
+	 * @param aWriteListener write listener
+	 */
+	private void addWriteListener( final MapBackingStoreWriteListener aWriteListener )
+	{
+		MapBackingStoreWriteListener[] newWriteListeners = new MapBackingStoreWriteListener[writeListeners.length + 1];
+		System.arraycopy( writeListeners, 0, newWriteListeners, 0, writeListeners.length );
+		newWriteListeners[writeListeners.length] = aWriteListener;
+		setWriteListeners( newWriteListeners );
+	}
+	
+	/**
+	 * remove the given listener of the backing store writes. The entire map must be locked
+	 * @param aWriteListener write listener
+	 */
+	private void removeWriteListener( final MapBackingStoreWriteListener aWriteListener )
+	{
+		int noOfWriteListeners = 0;
+		MapBackingStoreWriteListener[] newWriteListeners = new MapBackingStoreWriteListener[writeListeners.length];
+		for( MapBackingStoreWriteListener writeListener : writeListeners )
+		{
+			if ( writeListener != aWriteListener )
+			{
+				newWriteListeners[noOfWriteListeners++] = writeListener;
+			}
+		}
+		MapBackingStoreWriteListener[] remainingWriteListeners = new MapBackingStoreWriteListener[noOfWriteListeners];
+		System.arraycopy( newWriteListeners, 0, remainingWriteListeners, 0, noOfWriteListeners );
+		setWriteListeners( remainingWriteListeners );
+	}
+	
+	/**
+	 * set the listeners of the backing store writes
+	 * @param aWriteListeners write listeners
+	 */
+	private void setWriteListeners( final MapBackingStoreWriteListener[] aWriteListeners )
+	{
+		writeListeners = aWriteListeners;
+		if ( aWriteListeners.length == 0 )
+		{
+			mapBackingStore.setWriteListener( null );
+		}
+		else if ( aWriteListeners.length == 1 )
+		{
+			mapBackingStore.setWriteListener( aWriteListeners[0] );
+		}
+		else
+		{
+			mapBackingStore.setWriteListener( ( anAddress, aLength ) ->
+			{
+				for( MapBackingStoreWriteListener writeListener : aWriteListeners )
+				{
+					writeListener.beforeWrite( anAddress, aLength );
+				}
+			} );
+		}
+	}
+	
+    /**
+     * initialize map header information
+     * @param aNoOfRecords no of recordRegion
+     * @param aRecordSize size of each record
+     * @param aNoOfMemoryPages no of memory pages
+     * @param aNoOfBuckets no of buckets 
+     * @param aMaxMapSize maximum map size
+     * @param aRecordLayout layout of the records
+     */
+	private void initializeMapHeaderInfo( final long aNoOfRecords, final long aRecordSize, final long aNoOfMemoryPages, final long aNoOfBuckets, final long aMaxMapSize,
+										final int aRecordLayout ) 
+	{
+		mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_FORMAT_VERSION, FORMAT_VERSION );
+		mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_LOCK, VALUE_UNLOCKED );
+		mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_SBRK, aNoOfRecords );
+		mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_END, 0 );
+		mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_FREE, NULL );
+		mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_RECORD_SIZE, aRecordSize );
+		mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_NO_OF_MEMORY_PAGES, aNoOfMemoryPages );
+		mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_NO_OF_BUCKETS, aNoOfBuckets );
+		mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_MAX_MAP_SIZE, aMaxMapSize );
+		mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_SIZE, 0 );
+		mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_GENERATION, 0 );
+		mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_SEGMENT_BITS, mapBackingStore.getSegmentBits() );
+		mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_RECORD_LAYOUT, aRecordLayout );
+	}
+	
+	/**
+	 * returns the number of records contained within the map
+	 * @return number of records contained within the map
+	 */
+	public final long getSize()
+	{ 
+		beginAccess();
+		try
+		{
+			if ( concurrentMap )
+			{
+				return mapBackingStore.getLongVolatileFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_SIZE );
+			}
+			else
+			{
+				return mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_SIZE );
+			}
+		}
+		finally
+		{
+			endAccess();
+		}
+	}
+	
+	/**
+	 * increment size of the map
+	 */
+	private void incrementSize()
+	{
+		if ( concurrentMap )
+		{
+	    	long oldSize = getSize();
+	    	while( !mapBackingStore.compareAndPutLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_SIZE, oldSize+1, oldSize ) )
+	    	{
+	    		oldSize = getSize();
+	    	}			
+		}
+		else
+		{
+			long size = getSize() + 1;
+			mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_SIZE, size );
+		}
+	}
+	
+	/**
+	 * decrement size of the map
+	 */
+	private void decrementSize()
+	{
+		if ( concurrentMap )
+		{
+	    	long oldSize = getSize();
+	    	while( !mapBackingStore.compareAndPutLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_SIZE, oldSize-1, oldSize ) )
+	    	{
+	    		oldSize = getSize();
+	    	}			
+		}
+		else
+		{
+			long size = getSize() - 1;
+			mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_SIZE, size );
+		}
+	}
+
+    /**
+     * HashBucketRegion is the second structure within the Map Backing Store to host the information
+     * for the hash buckets
+     */
+    private class HashBucketRegion
+    {
+    	private final long noOfBuckets;
+    	private final long modFactor;
+    	private long generation;		// generation of the buckets, kept in sync with the map header under all the locks
+    	
+    	/**
+    	 * create hash buckets
+    	 * @param aNoOfBuckets no of buckets 
+    	 */
+    	private HashBucketRegion( final long aNoOfBuckets )
+    	{
+    		noOfBuckets = aNoOfBuckets;
+    		modFactor = noOfBuckets - 1;
+    		generation = mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_GENERATION );
+    	}
+    	
+    	/**
+    	 * get top field address
+    	 * @param aBucketIndex bucket index
+    	 * @return top field address for the given bucket
     	 */
     	private long getTopFieldAddress( long aBucketIndex )
     	{
@@ -499,7 +2192,23 @@ public class F1BinaryMap
     	 */
     	private long getTop( final long aBucketIndex )
     	{
-    		return mapBackingStore.getLongFromMemoryRegion( getTopFieldAddress(aBucketIndex) );
+    		return getTop( aBucketIndex, generation );
+    	}
+    	
+    	/**
+    	 * get top value of the given bucket of the given generation
+    	 * @param aBucketIndex index of the bucket
+    	 * @param aGeneration current generation of the buckets
+    	 * @return top value of the given bucket
+    	 */
+    	private long getTop( final long aBucketIndex, final long aGeneration )
+    	{
+    		long top = mapBackingStore.getLongFromMemoryRegion( getTopFieldAddress(aBucketIndex) );
+    		if ( ( top >>> HASH_BUCKETS_TOP_POSITION_BITS ) != aGeneration )
+    		{
+    			return NULL;	// bucket has been cleared
+    		}
+    		return ( top & HASH_BUCKETS_TOP_POSITION_MASK ) - 1;
     	}
     	
     	/**
@@ -509,33 +2218,134 @@ public class F1BinaryMap
     	 */
     	private void updateTop( final long aBucketIndex, final long aValue )
     	{		
-    		mapBackingStore.putLongInMemoryRegion( getTopFieldAddress(aBucketIndex), aValue );
+    		mapBackingStore.putLongInMemoryRegion( getTopFieldAddress(aBucketIndex), 
+    				( generation << HASH_BUCKETS_TOP_POSITION_BITS ) | ( ( aValue + 1 ) & HASH_BUCKETS_TOP_POSITION_MASK ) );
+    	}
+    	
+    	/**
+    	 * start the next generation of the buckets, which empties all the buckets at once. The entire map must be locked
+    	 */
+    	private void nextGeneration()
+    	{
+    		if ( generation == HASH_BUCKETS_MAX_GENERATION )
+    		{
+    			// generation wraps around, so the buckets of the old generations have to be emptied one by one
+    			generation = 0;
+        		for( long bucketIndex=0; bucketIndex<noOfBuckets; bucketIndex++ )
+        		{
+        			updateTop( bucketIndex, NULL );
+        		}
+    		}
+    		else
+    		{
+    			generation += 1;
+    		}
+    		mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_GENERATION, generation );
     	}
     	
     	/**
-    	 * lock the given bucket
+    	 * lock the given bucket by making its version odd. A lock held by a process which has terminated is taken over
     	 * @param aBucketIndex index of the bucket
     	 */
     	private void lock( final long aBucketIndex )
     	{
     		if ( concurrentMap )
     		{
-    			mapBackingStore.putLongInMemoryRegion( getLockFieldAddress(aBucketIndex), VALUE_LOCKED, VALUE_UNLOCKED );
+    			for( int noOfSpins = 1; !tryLock( aBucketIndex ); noOfSpins++ )
+    			{
+    				if ( ( noOfSpins & ( STALE_LOCK_CHECK_SPINS - 1 ) ) == 0 && tryRecoverStaleLock( aBucketIndex ) )
+    				{
+    					refreshGeneration();
+    					return;
+    				}
+    			}
+    		}
+    	}
+    	
+       	/**
+    	 * lock the given bucket unless it is locked already
+    	 * @param aBucketIndex index of the bucket
+    	 * @return true if the bucket has been locked
+    	 */
+    	private boolean tryLock( final long aBucketIndex )
+    	{
+    		if ( !concurrentMap )
+    		{
+    			return true;
+    		}
+    		long lockFieldAddress = getLockFieldAddress(aBucketIndex);
+    		LongAtomicBuffer memoryRegion = mapBackingStore.getMemoryRegion( lockFieldAddress );
+    		long memoryBufferAddress = mapBackingStore.getMemoryBufferAddress( lockFieldAddress );
+    		long version = memoryRegion.getLongVolatile( memoryBufferAddress );
+    		if ( ( version & VALUE_LOCKED ) != VALUE_UNLOCKED || 
+    			 !memoryRegion.compareAndSetLong( memoryBufferAddress, version, GetBucketLockValue( version + 1 ) ) )
+    		{
+    			return false;
+    		}
+    		refreshGeneration();
+    		return true;
+    	}
+    	
+    	/**
+    	 * take over the lock of the given bucket if it is held by a process which has terminated. The version moves on, so 
+    	 * a read only map reads the bucket again
+    	 * @param aBucketIndex index of the bucket
+    	 * @return true if the lock has been taken over
+    	 */
+    	private boolean tryRecoverStaleLock( final long aBucketIndex )
+    	{
+    		long version = getVersion( aBucketIndex );
+    		if ( !IsLockedByTerminatedProcess( version ) )
+    		{
+    			return false;
+    		}
+    		long lockFieldAddress = getLockFieldAddress(aBucketIndex);
+    		if ( !mapBackingStore.getMemoryRegion( lockFieldAddress ).compareAndSetLong( mapBackingStore.getMemoryBufferAddress( lockFieldAddress ), 
+    																					version, GetBucketLockValue( version + 2 ) ) )
+    		{
+    			return false;
+    		}
+    		noOfStaleLocksRecovered.increment();
+    		return true;
+    	}
+    	
+    	/**
+    	 * read the generation of the buckets of a shared map from the header once a bucket is locked, since another process 
+    	 * may have cleared the map. The generation only changes while all the buckets are locked, so every thread reads the 
+    	 * same generation while it holds a bucket lock
+    	 */
+    	private void refreshGeneration()
+    	{
+    		if ( sharedMap )
+    		{
+    			generation = mapBackingStore.getLongVolatileFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_GENERATION );
     		}
     	}
     	
        	/**
-    	 * unlock the given bucket
+    	 * unlock the given bucket by making its version even again, after all the writes to the bucket
     	 * @param aBucketIndex index of the bucket
     	 */
     	private void unlock( final long aBucketIndex )
     	{
     		if ( concurrentMap )
-    		{			
-    			mapBackingStore.putLongInMemoryRegion( getLockFieldAddress(aBucketIndex), VALUE_UNLOCKED );
+    		{
+    			long lockFieldAddress = getLockFieldAddress(aBucketIndex);
+    			mapBackingStore.putLongOrderedInMemoryRegion( lockFieldAddress, ( mapBackingStore.getLongFromMemoryRegion( lockFieldAddress ) + 1 ) & BUCKET_VERSION_MASK );
     		}
     	}
     	
+    	/**
+    	 * get the version of the given bucket, which is odd while the bucket is locked
+    	 * @param aBucketIndex index of the bucket
+    	 * @return version of the bucket
+    	 */
+    	private long getVersion( final long aBucketIndex )
+    	{
+    		long lockFieldAddress = getLockFieldAddress(aBucketIndex);
+    		return mapBackingStore.getMemoryRegion( lockFieldAddress ).getLongVolatile( mapBackingStore.getMemoryBufferAddress( lockFieldAddress ) );
+    	}
+    	
     	/**
     	 * initialize hash buckets values
     	 */
@@ -543,7 +2353,7 @@ public class F1BinaryMap
     	{
     		for( long bucketIndex=0; bucketIndex<noOfBuckets; bucketIndex++ )
     		{
-    			mapBackingStore.putLongInMemoryRegion( getTopFieldAddress(bucketIndex), NULL );
+    			updateTop( bucketIndex, NULL );
     			mapBackingStore.putLongInMemoryRegion( getLockFieldAddress(bucketIndex), VALUE_UNLOCKED );
     		}
     	}
@@ -556,7 +2366,17 @@ public class F1BinaryMap
     	 */
     	private long hash( final LongDirectBuffer aKey, final long aStartIndex ) 
     	{ 
-    		return Math.abs( (int)keyFunction.hash(aKey, aStartIndex, keySize) & modFactor ); 
+    		return getBucketIndex( keyFunction.hash(aKey, aStartIndex, keySize) ); 
+    	}
+    	
+    	/**
+    	 * get the bucket index of the given key hash
+    	 * @param aKeyHash hash of the key calculated by the key function
+    	 * @return bucket index
+    	 */
+    	private long getBucketIndex( final long aKeyHash )
+    	{
+    		return Math.abs( (int)aKeyHash & modFactor );
     	} // convert signed int to unsigned long
     } // HashBucketRegion
 
@@ -566,10 +2386,17 @@ public class F1BinaryMap
      * 2) link to the next record(long), 
      * 3) the key , 
      * 4) and the value
+     * The flag and the link share the LINK field. The link of a record in a hash chain is either NULL or a record position 
+     * so its 2 top bits are equal, while the link of a free record is stored with FREE_RECORD_MARK flipped so that its 
+     * 2 top bits differ. This allows the record region to be scanned in record order without any extra space
      */
     private class RecordRegion
     {
     	private final long baseOffset;
+    	private final int segmentBits;
+    	private final long noOfRecordsInFirstSegment;	// no of records before the first segment boundary, unbounded for packed records
+    	private final long noOfRecordsPerSegment;
+    	private final long secondSegmentIndex;
     	
     	/**
     	 * create record region
@@ -577,6 +2404,29 @@ public class F1BinaryMap
     	private RecordRegion()
     	{
     		baseOffset = HASH_BUCKETS_BASE_OFFSET + HASH_BUCKETS_NO_OF_FIELDS * WORDSIZE * hashBucketRegion.noOfBuckets;
+    		segmentBits = (int)mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_SEGMENT_BITS );
+    		if ( mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_RECORD_LAYOUT ) == RECORD_LAYOUT_SEGMENT_ALIGNED )
+    		{
+    			long segmentSize = 1L << segmentBits;
+    			noOfRecordsInFirstSegment = ( segmentSize - ( baseOffset & ( segmentSize - 1 ) ) ) / recordSize;
+    			noOfRecordsPerSegment = segmentSize / recordSize;
+    			secondSegmentIndex = ( baseOffset >>> segmentBits ) + 1;
+    		}
+    		else
+    		{
+    			noOfRecordsInFirstSegment = Long.MAX_VALUE;
+    			noOfRecordsPerSegment = 0;
+    			secondSegmentIndex = 0;
+    		}
+    	}
+    	
+    	/**
+    	 * check if the records are aligned to the segments
+    	 * @return true if no record straddles 2 segments
+    	 */
+    	private boolean isSegmentAligned()
+    	{
+    		return noOfRecordsPerSegment != 0;
     	}
     	
     	/**
@@ -586,7 +2436,29 @@ public class F1BinaryMap
     	 */
     	private long getRecordMemoryAddress( final long aRecordPosition )
     	{
-    		return baseOffset + aRecordPosition * recordSize;
+    		if ( aRecordPosition < noOfRecordsInFirstSegment )
+    		{
+    			return baseOffset + aRecordPosition * recordSize;
+    		}
+    		long recordPosition = aRecordPosition - noOfRecordsInFirstSegment;
+    		return ( ( secondSegmentIndex + recordPosition / noOfRecordsPerSegment ) << segmentBits ) + ( recordPosition % noOfRecordsPerSegment ) * recordSize;
+    	}
+    	
+    	/**
+    	 * get no of records fitting into the given size of the backing store
+    	 * @param aMapBackingStoreSize size of the backing store
+    	 * @return no of records
+    	 */
+    	private long getNoOfRecords( final long aMapBackingStoreSize )
+    	{
+    		long firstSegmentEnd = secondSegmentIndex << segmentBits;
+    		if ( !isSegmentAligned() || aMapBackingStoreSize <= firstSegmentEnd )
+    		{
+    			return ( aMapBackingStoreSize - baseOffset ) / recordSize;
+    		}
+    		long noOfFullSegments = ( aMapBackingStoreSize - firstSegmentEnd ) >>> segmentBits;
+    		long noOfRecordsInLastSegment = ( ( aMapBackingStoreSize - firstSegmentEnd ) & ( ( 1L << segmentBits ) - 1 ) ) / recordSize;
+    		return noOfRecordsInFirstSegment + noOfFullSegments * noOfRecordsPerSegment + noOfRecordsInLastSegment;
     	}
     	
         /**
@@ -609,6 +2481,36 @@ public class F1BinaryMap
     		mapBackingStore.putLongInMemoryRegion( getRecordMemoryAddress( aRecordPosition ), aValue );
     	}
     	
+        /**
+         * get link value to the next free record from the free record of the given record number
+         * @param aRecordPosition record number of a free record
+         * @return record number of the next free record
+         */
+    	private long getFreeLinkValue( final long aRecordPosition )
+    	{
+    		return getLinkValue( aRecordPosition ) ^ FREE_RECORD_MARK;
+    	}
+    	
+    	/**
+    	 * mark the record of the given record number as free and link it to the given free record
+    	 * @param aRecordPosition record number
+    	 * @param aValue record number of the next free record
+    	 */
+    	private void updateFreeLinkValue( final long aRecordPosition, final long aValue )
+    	{
+    		updateLinkValue( aRecordPosition, aValue ^ FREE_RECORD_MARK );
+    	}
+    	
+    	/**
+    	 * check if the record of the given record number is free
+    	 * @param aRecordPosition record number
+    	 * @return true if the record is in the free list or false if it holds data
+    	 */
+    	private boolean isFree( final long aRecordPosition )
+    	{
+    		return IsFreeLinkValue( getLinkValue( aRecordPosition ) );
+    	}
+    	
     	/**
     	 * copy the key from given buffer into the record region
     	 * @param aRecordPosition record number of the target record to be copied in
@@ -661,19 +2563,24 @@ public class F1BinaryMap
     	 * @param aKey key of the new data record
     	 * @param aKeyStartIndex starting index where the key is located in the key buffer
     	 * @param aBucketIndex index of the bucket
-    	 * @return record number created
+    	 * @param anEpoch epoch of the record positions the record is allocated in
+    	 * @return record number created or NULL if the epoch has changed, i.e., the map has been cleared or compacted
     	 */
-    	private long newRecord( final LongDirectBuffer aKey, final long aKeyStartIndex, final long aBucketIndex )
+    	private long newRecord( final LongDirectBuffer aKey, final long aKeyStartIndex, final long aBucketIndex, final long anEpoch )
     	{
     	    lockMap();  	
     	    long availableRecordIndex = NULL;
     	    try 
     	    {
+    	    	if ( getEpoch() != anEpoch )
+    	    	{
+    	    		return NULL;
+    	    	}
     	    	availableRecordIndex = mapBackingStore.getLongFromMemoryRegion( MAP_HEADER_FIELD_ADDRESS_FREE );
     			// free nodes ?
     			if ( availableRecordIndex != NULL ) 
     			{	
-    				mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_FREE, recordRegion.getLinkValue( availableRecordIndex ) );		
+    				mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_FREE, recordRegion.getFreeLinkValue( availableRecordIndex ) );		
     			} 
     			else 
     			{					
@@ -719,6 +2626,18 @@ public class F1BinaryMap
     			    						} // for
     			    						recordRegion.updateLinkValue( previousRecord, NULL ); // remove last node
     			    					} // if
+    			    					if ( nearCache != null )
+    			    					{
+    			    						recordRegion.invalidateNearCache( recordPosition );
+    			    					}
+    			    					if ( changeLog != null )
+    			    					{
+    			    						recordRegion.appendToChangeLog( F1BinaryMapChangeLog.CHANGE_TYPE_EVICT, recordPosition );
+    			    					}
+    			    					if ( journal != null )
+    			    					{
+    			    						recordRegion.appendToJournal( F1BinaryMapJournal.ENTRY_TYPE_REMOVE, recordPosition );
+    			    					}
     			    					// record removed
     			    					break;
     			    				} // if
@@ -735,8 +2654,12 @@ public class F1BinaryMap
     	
     			    	// expand
     			    	statisticsExpands += 1;
-    			    	long maxNoOfRecords = (expandedMapBackingStoreSize - recordRegion.baseOffset) / recordSize;
+    			    	long maxNoOfRecords = recordRegion.getNoOfRecords( expandedMapBackingStoreSize );
     				    mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_SBRK, maxNoOfRecords );
+    				    if ( memoryLockMode == MEMORY_LOCK_MODE_ALL )
+    				    {
+    				    	lockMoreInMemory();
+    				    }
     			    } // if
     			    availableRecordIndex = mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_END );			// take next free record
     			    mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_END, availableRecordIndex + 1 );    			    
@@ -745,8 +2668,11 @@ public class F1BinaryMap
     	    } 
     	    finally 
     	    {
-    			updateLinkValue( availableRecordIndex, NULL );
-    			copyKeyToRecordRegion( availableRecordIndex, aKey, aKeyStartIndex );
+    	    	if ( availableRecordIndex != NULL )
+    	    	{
+    	    		updateLinkValue( availableRecordIndex, NULL );
+    	    		copyKeyToRecordRegion( availableRecordIndex, aKey, aKeyStartIndex );
+    	    	}
     	    	unlockMap();
     	    }
     	}
@@ -754,10 +2680,62 @@ public class F1BinaryMap
     	/**
     	 * delete data record identified by the record number
     	 * @param aRecordPosition record number of the record to be deleted
+    	 * @param anEpoch epoch of the record positions the record has been unlinked in
+    	 */
+    	private void deleteRecord( final long aRecordPosition, final long anEpoch )
+    	{
+		    free( aRecordPosition, anEpoch );    		
+    	}
+    	
+    	/**
+    	 * invalidate the near cache entry of the key stored in the given record position
+    	 * @param aRecordPosition record position
+    	 */
+    	private void invalidateNearCache( final long aRecordPosition )
+    	{
+    		long address = getRecordMemoryAddress( aRecordPosition ) + RECORD_KEY_OFFSET;
+    		long memoryBufferAddress =  mapBackingStore.getMemoryBufferAddress( address );
+    		LongDirectBuffer buffer =  mapBackingStore.getMemoryRegion( address );
+    		nearCache.invalidate( buffer, memoryBufferAddress, keyFunction.hash( buffer, memoryBufferAddress, keySize ) );
+    	}
+    	
+    	/**
+    	 * append the key and value stored in the given record position to the change log
+    	 * @param aChangeType type of the change
+    	 * @param aRecordPosition record position
+    	 */
+    	private void appendToChangeLog( final int aChangeType, final long aRecordPosition )
+    	{
+    		long address = getRecordMemoryAddress( aRecordPosition );
+    		long memoryBufferAddress =  mapBackingStore.getMemoryBufferAddress( address );
+    		LongDirectBuffer buffer =  mapBackingStore.getMemoryRegion( address );
+    		changeLog.append( aChangeType, buffer, memoryBufferAddress + RECORD_KEY_OFFSET, buffer, memoryBufferAddress + recordValueOffset );
+    	}
+    	
+    	/**
+    	 * calculate the hash of the key stored in the given record position
+    	 * @param aRecordPosition record position
+    	 * @return hash of the key
+    	 */
+    	private long hashKey( final long aRecordPosition )
+    	{
+    		long address = getRecordMemoryAddress( aRecordPosition ) + RECORD_KEY_OFFSET;
+    		long memoryBufferAddress =  mapBackingStore.getMemoryBufferAddress( address );
+    		LongDirectBuffer buffer =  mapBackingStore.getMemoryRegion( address );
+    		return keyFunction.hash( buffer, memoryBufferAddress, keySize );
+    	}
+    	
+    	/**
+    	 * append the key stored in the given record position to the journal
+    	 * @param anEntryType type of the journal entry
+    	 * @param aRecordPosition record position
     	 */
-    	private void deleteRecord( final long aRecordPosition )
+    	private void appendToJournal( final int anEntryType, final long aRecordPosition )
     	{
-		    free( aRecordPosition );    		
+    		long address = getRecordMemoryAddress( aRecordPosition );
+    		long memoryBufferAddress =  mapBackingStore.getMemoryBufferAddress( address );
+    		LongDirectBuffer buffer =  mapBackingStore.getMemoryRegion( address );
+    		journal.append( anEntryType, buffer, memoryBufferAddress + RECORD_KEY_OFFSET, null, 0 );
     	}
     	
     	/**
@@ -790,491 +2768,1975 @@ public class F1BinaryMap
     }
     
 	/**
-	 * lock the entire map
+	 * lock the entire map with the id of this process. A lock held by a process which has terminated is taken over. The lock 
+	 * word is written directly to the memory region, so it is neither reported to the write listeners nor marks the header dirty
+	 */
+	private void lockMap()
+	{
+		if ( concurrentMap )
+		{
+			long processId = NativeMemory.GetProcessId();
+			LongAtomicBuffer memoryRegion = mapBackingStore.getMemoryRegion( MAP_HEADER_FIELD_ADDRESS_LOCK );
+			long memoryBufferAddress = mapBackingStore.getMemoryBufferAddress( MAP_HEADER_FIELD_ADDRESS_LOCK );
+			for( int noOfSpins = 1; !memoryRegion.compareAndSetLong( memoryBufferAddress, VALUE_UNLOCKED, processId ); noOfSpins++ )
+	    	{
+				if ( ( noOfSpins & ( STALE_LOCK_CHECK_SPINS - 1 ) ) == 0 )
+				{
+					long lockingProcessId = memoryRegion.getLongVolatile( memoryBufferAddress );
+					// a lock taken before the process ids were kept holds 1, which is never taken for terminated
+					if ( lockingProcessId != VALUE_UNLOCKED && lockingProcessId != processId && !NativeMemory.IsProcessAlive( (int)lockingProcessId ) &&
+						 memoryRegion.compareAndSetLong( memoryBufferAddress, lockingProcessId, processId ) )
+					{
+						noOfStaleLocksRecovered.increment();
+						return;
+					}
+				}
+	    	}
+		}
+	}
+	
+   	/**
+	 * unlock the entire map
+	 */
+	private void unlockMap()
+	{
+		if ( concurrentMap )
+		{
+			mapBackingStore.getMemoryRegion( MAP_HEADER_FIELD_ADDRESS_LOCK ).putLongOrdered( 
+					mapBackingStore.getMemoryBufferAddress( MAP_HEADER_FIELD_ADDRESS_LOCK ), VALUE_UNLOCKED );
+		}
+	}
+	
+	/**
+	 * lock the entire map and all the buckets so that no other thread is in the middle of an access. The map is locked 
+	 * before the buckets like eviction does, and no bucket lock holder waits for the map lock. A put or a remove takes the
+	 * map lock to allocate or free a record after it has unlocked its bucket, so it may still be about to, which the epoch
+	 * of the record positions guards against
+	 */
+	private void lockAll()
+	{
+		lockMap();
+	    for ( long bucketIndex = 0; bucketIndex < hashBucketRegion.noOfBuckets; bucketIndex += 1 ) 
+	    {
+	    	hashBucketRegion.lock(bucketIndex);
+	    }
+	}
+	
+	/**
+	 * get the epoch of the record positions, which a thread holding the map lock or a bucket lock sees unchanged
+	 * @return epoch
+	 */
+	private long getEpoch()
+	{
+		return mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_EPOCH );
+	}
+	
+	/**
+	 * advance the epoch of the record positions, so a record allocated but not linked yet by a put is allocated again. The 
+	 * entire map must be locked
+	 */
+	private void nextEpoch()
+	{
+		mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_EPOCH, getEpoch() + 1 );
+	}
+	
+	/**
+	 * unlock all the buckets and the entire map
+	 */
+	private void unlockAll()
+	{
+	    for ( long bucketIndex = 0; bucketIndex < hashBucketRegion.noOfBuckets; bucketIndex += 1 ) 
+	    {
+	    	hashBucketRegion.unlock(bucketIndex);
+	    }
+		unlockMap();
+	}
+    
+    /**
+     * free the  record identified by the given record number
+     * @param aRecordPosition record number of the record to be free
+     * @param anEpoch epoch of the record positions the record has been unlinked in, the record is not freed if the map has
+     * been cleared or compacted since
+     */
+	private void free( final long aRecordPosition, final long anEpoch ) 
+	{
+		lockMap();
+		try 
+	    {
+	    	if ( getEpoch() != anEpoch )
+	    	{
+	    		return;
+	    	}
+	    	long nextFree = mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_FREE );
+	    	recordRegion.updateFreeLinkValue( aRecordPosition, nextFree); // chain to head of freelist
+	    	mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_FREE, aRecordPosition );			// set freelist head to freed node
+	    } 
+	    finally 
+	    {
+	    	unlockMap();
+	    } // try
+	} // free
+	
+    /**
+     * check if the given key is equivalent to the given record number
+     * @param aKey key 
+     * @param aKeyStartIndex start index of the key in the key buffer
+     * @param aRecordPosition record number
+     * @return true if the key is equivalent to the given record number or false if it is not
+     */
+	private boolean equals( final LongDirectBuffer aKey, final long aKeyStartIndex, final long aRecordPosition ) 
+	{
+		// TODO optimize it
+		long keyAddress = recordRegion.getRecordMemoryAddress( aRecordPosition ) + RECORD_KEY_OFFSET;
+		LongAtomicBuffer keyBuffer = mapBackingStore.getMemoryRegion( keyAddress );
+		long keyStartIndex =  mapBackingStore.getMemoryBufferAddress( keyAddress );
+		
+		return keyFunction.equals(aKey, aKeyStartIndex, keyBuffer, keyStartIndex, keySize);
+	} // equals
+	
+	/**
+	 * get record position based on the given key
+	 * @param aKey key
+	 * @param aKeyStartIndex start index of the key in the key buffer
+	 * @return record position
+	 */
+	public long getRecordPosition( final LongDirectBuffer aKey, final long aKeyStartIndex ) 
+	{			
+		beginAccess();
+		try
+		{
+			if ( readOnlyBackingStore != null )
+			{
+				return getRecordOptimistically( aKey, aKeyStartIndex, null, 0, false );
+			}
+		    long bucket = hashBucketRegion.hash( aKey, aKeyStartIndex );
+		    hashBucketRegion.lock( bucket );
+		    try 
+		    {
+		    	long recordPosition = hashBucketRegion.getTop( bucket );
+		    	if ( recordPosition != NULL ) 
+		    	{			// non-empty hash chain
+		    		for ( ;; recordPosition = recordRegion.getLinkValue( recordPosition ) ) 
+		    		{ // search hash chain
+		    			if ( equals( aKey, aKeyStartIndex, recordPosition ) ) 
+		    			{
+		    				break; // found ?
+		    			}
+		    			if ( recordRegion.getLinkValue( recordPosition ) == NULL ) 
+		    			{ 
+		    				recordPosition = NULL; 
+		    				break; 
+		    			} // not found ?
+		    		} // for
+		    	} // if
+		    	return recordPosition;
+		    } 
+		    finally 
+		    {
+		    	hashBucketRegion.unlock( bucket );
+		    } // try
+		}
+		finally
+		{
+			endAccess();
+		}
+	} // get
+
+	/**
+	 * get the record of the given key and copy into the given buffer
+	 * @param aKey key
+	 * @param aKeyStartIndex start index of the key in the key buffer
+	 * @param aValue value buffer
+	 * @param aValueStartIndex start index of the value should be copied to
+	 * @return record position
+	 */
+	public long getRecord( final LongDirectBuffer aKey, final long aKeyStartIndex, final LongMutableDirectBuffer aValue, final long aValueStartIndex ) 
+	{	
+		return getRecord( aKey, aKeyStartIndex, aValue, aValueStartIndex, null, null );
+	}
+	
+	/**
+	 * get the record of the given key and copy into the given buffer
+	 * @param aKey key
+	 * @param aKeyStartIndex start index of the key in the key buffer
+	 * @param aValue value buffer
+	 * @param aValueStartIndex start index of the value should be copied to
+	 * @return record position
+	 */
+	public long getRecord( final LongDirectBuffer aKey, final long aKeyStartIndex, final LongMutableDirectBuffer aValue, final long aValueStartIndex, 
+			final KeyValueVerifier aVerifier, final KeyValueToString aKeyValueToString ) 
+	{		
+		beginAccess();
+		try
+		{
+			if ( readOnlyBackingStore != null )
+			{
+				return getRecordOptimistically( aKey, aKeyStartIndex, aValue, aValueStartIndex, false );
+			}
+			long keyHash = keyFunction.hash( aKey, aKeyStartIndex, keySize );
+			if ( nearCache != null && aVerifier == null )
+			{
+				long cachedRecordPosition = nearCache.get( aKey, aKeyStartIndex, keyHash, aValue, aValueStartIndex );
+				if ( cachedRecordPosition != NULL )
+				{
+					return cachedRecordPosition;
+				}
+			}
+		    long bucket = hashBucketRegion.getBucketIndex( keyHash );
+		    hashBucketRegion.lock( bucket );
+		    try 
+		    {
+		    	long recordPosition = hashBucketRegion.getTop( bucket );
+		    	if ( recordPosition != NULL ) 
+		    	{			
+		    		// non-empty hash chain
+		    		for ( ;; recordPosition = recordRegion.getLinkValue( recordPosition ) ) 
+		    		{ // search hash chain
+		    			if ( equals( aKey, aKeyStartIndex, recordPosition ) ) 
+		    			{	// found ?
+		    				if ( tiering != null )
+		    				{
+		    					recordPosition = tier( bucket, recordPosition );
+		    				}
+		    				recordRegion.copyValueFromRecordRegion( recordPosition, aValue, aValueStartIndex);
+		    				if ( aVerifier != null && aKeyValueToString != null && !aVerifier.verify(aKey, aKeyStartIndex, aValue, aValueStartIndex))
+		    				{
+		    					System.err.println( "Failed key value verification Key: " + aKeyValueToString.convertKey(aKey, aKeyStartIndex, keySize)
+		    								+ " Value: " + aKeyValueToString.convertValue(aValue, aValueStartIndex, valueSize));
+		    					// prevent deadlock
+		    					hashBucketRegion.unlock( bucket );
+		    					// if verification fails then print out the whole memory map
+		    					dump( aKeyValueToString );
+		    					System.exit(-1);
+		    				}	
+		    				if ( nearCache != null )
+		    				{
+		    					// populate under the bucket lock so that it cannot race with the invalidation of the same key
+		    					nearCache.put( aKey, aKeyStartIndex, keyHash, aValue, aValueStartIndex, recordPosition );
+		    				}
+		    				break;
+		    			} // if
+		    			if ( recordRegion.getLinkValue( recordPosition ) == NULL ) 
+		    			{ 
+		    				recordPosition = NULL; 
+		    				break; 
+		    			} // not found
+		    		} // for
+		    	} // if
+		    	return recordPosition;
+		    } 
+		    finally 
+		    {
+		    	hashBucketRegion.unlock( bucket );
+		    } // try
+		}
+		finally
+		{
+			endAccess();
+		}
+	} // get
+	
+	/**
+	 * SwapBuffers holds the copies of the records swapped by a promotion of a thread
+	 */
+	private final static class SwapBuffers
+	{
+		private final LongUnsafeBuffer record;
+		private final LongUnsafeBuffer hotRecord;
+		
+		private SwapBuffers( final int aRecordSize )
+		{
+			record = new LongUnsafeBuffer( new byte[aRecordSize] );
+			hotRecord = new LongUnsafeBuffer( new byte[aRecordSize] );
+		}
+	}
+	
+	/**
+	 * keep track of a get of the record of the given position in the given bucket, which has to be locked. A sampled get of a 
+	 * cold record promotes the record by swapping it with a hot record. The promotion is skipped if the hot record is free or
+	 * its bucket is locked by another thread, since the map lock and another bucket lock cannot be waited for while holding 
+	 * a bucket lock
+	 * @param aBucketIndex bucket index of the record
+	 * @param aRecordPosition record position
+	 * @return record position of the record, which has changed if the record has been promoted
+	 */
+	private long tier( final long aBucketIndex, final long aRecordPosition )
+	{
+		if ( tiering.isHot( aRecordPosition ) )
+		{
+			tiering.reference( aRecordPosition );
+			return aRecordPosition;
+		}
+		if ( !tiering.shouldPromote() )
+		{
+			return aRecordPosition;
+		}
+		long hotRecordPosition = tiering.nextVictim( mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_END ) );
+		// the key of the hot record may be changing, its bucket is verified once it is locked
+		if ( recordRegion.isFree( hotRecordPosition ) )
+		{
+			return aRecordPosition;
+		}
+		long hotBucketIndex = hashBucketRegion.getBucketIndex( recordRegion.hashKey( hotRecordPosition ) );
+		if ( hotBucketIndex == aBucketIndex || !hashBucketRegion.tryLock( hotBucketIndex ) )
+		{
+			return aRecordPosition;
+		}
+		try
+		{
+			long previousHotRecordPosition = getPreviousRecordPosition( hotBucketIndex, hotRecordPosition );
+			if ( previousHotRecordPosition == NOT_IN_CHAIN )
+			{
+				return aRecordPosition;
+			}
+			long previousRecordPosition = getPreviousRecordPosition( aBucketIndex, aRecordPosition );
+			if ( nearCache != null )
+			{
+				recordRegion.invalidateNearCache( aRecordPosition );
+				recordRegion.invalidateNearCache( hotRecordPosition );
+			}
+			// the copies keep the links to the next records of the chains
+			SwapBuffers buffers = swapBuffers.get();
+			LongUnsafeBuffer record = buffers.record;
+			LongUnsafeBuffer hotRecord = buffers.hotRecord;
+			mapBackingStore.getBytesFromMemoryRegion( recordRegion.getRecordMemoryAddress( aRecordPosition ), recordSize, record, 0 );
+			mapBackingStore.getBytesFromMemoryRegion( recordRegion.getRecordMemoryAddress( hotRecordPosition ), recordSize, hotRecord, 0 );
+			mapBackingStore.putBytesToMemoryRegion( recordRegion.getRecordMemoryAddress( hotRecordPosition ), recordSize, record, 0 );
+			mapBackingStore.putBytesToMemoryRegion( recordRegion.getRecordMemoryAddress( aRecordPosition ), recordSize, hotRecord, 0 );
+			if ( previousRecordPosition == NULL )
+			{
+				hashBucketRegion.updateTop( aBucketIndex, hotRecordPosition );
+			}
+			else
+			{
+				recordRegion.updateLinkValue( previousRecordPosition, hotRecordPosition );
+			}
+			if ( previousHotRecordPosition == NULL )
+			{
+				hashBucketRegion.updateTop( hotBucketIndex, aRecordPosition );
+			}
+			else
+			{
+				recordRegion.updateLinkValue( previousHotRecordPosition, aRecordPosition );
+			}
+			tiering.reference( hotRecordPosition );
+			tiering.promoted();
+			return hotRecordPosition;
+		}
+		finally
+		{
+			hashBucketRegion.unlock( hotBucketIndex );
+		}
+	}
+	
+	/**
+	 * get the record position of the record in front of the record of the given position in the chain of the given bucket,
+	 * which has to be locked
+	 * @param aBucketIndex bucket index
+	 * @param aRecordPosition record position
+	 * @return record position of the previous record, NULL if the record is the top of the chain or NOT_IN_CHAIN if the 
+	 * record is not in the chain
+	 */
+	private long getPreviousRecordPosition( final long aBucketIndex, final long aRecordPosition )
+	{
+		long previousRecordPosition = NULL;
+		for ( long recordPosition = hashBucketRegion.getTop( aBucketIndex ); recordPosition != NULL; recordPosition = recordRegion.getLinkValue( recordPosition ) )
+		{
+			if ( recordPosition == aRecordPosition )
+			{
+				return previousRecordPosition;
+			}
+			previousRecordPosition = recordPosition;
+		}
+		return NOT_IN_CHAIN;
+	}
+	
+	/**
+	 * check if zero copy get is allowed. Zero Copy is only allowed in non-concurrent Direct Memory Backed F1BinaryMap or non-concurrent
+	 * or read only Memory Mapped File Backed F1BinaryMap with segment aligned records
+	 * @return true if zero copy get is allowed or false if it is not
+	 */
+	public boolean isZeroCopyGetAllowed()
+	{
+		return zeroCopyGetAllowed;
+	}
+	
+	/**
+	 * get the record of the given key and map the address location to the given buffer without copying the data. This method will throw RuntimeException if
+	 * F1BinaryMap is set to be a concurrent map. Extreme caution has to be in place when using this method since this method will position the given buffer
+	 * to the location of the value of the given key but if the record is changed after this method is called then the content in the given buffer will be undefined.
+	 * The value of a read only map is changed by its writer at any time, so it has to be read within tryOptimisticRead and validate
+	 * @param aKey key
+	 * @param aKeyStartIndex start index of the key in the key buffer
+	 * @param aValue value buffer
+	 * @param aValueStartIndex start index of the value should be copied to
+	 * @return record position
+	 */
+	public long getRecordZeroCopy( final LongDirectBuffer aKey, final long aKeyStartIndex, final LongMutableDirectBuffer aValue, final long aValueStartIndex ) 
+	{		
+		beginAccess();
+		try
+		{
+			if ( !zeroCopyGetAllowed )
+			{
+				throw new RuntimeException( "Zero Copy is not allowed for Memory Mapped File backed with packed records or Concurrent F1BinaryMap" );
+			}
+			if ( readOnlyBackingStore != null )
+			{
+				return getRecordOptimistically( aKey, aKeyStartIndex, aValue, aValueStartIndex, true );
+			}
+		    long bucket = hashBucketRegion.hash( aKey, aKeyStartIndex );
+		    hashBucketRegion.lock( bucket );
+		    try 
+		    {
+		    	long recordPosition = hashBucketRegion.getTop( bucket );
+		    	if ( recordPosition != NULL ) 
+		    	{			
+		    		// non-empty hash chain
+		    		for ( ;; recordPosition = recordRegion.getLinkValue( recordPosition ) ) 
+		    		{ // search hash chain
+		    			if ( equals( aKey, aKeyStartIndex, recordPosition ) ) 
+		    			{	// found ?
+		    				recordRegion.setMemoryAddressFromRecordRegion( recordPosition, aValue, aValueStartIndex);
+		    				break;
+		    			} // if
+		    			if ( recordRegion.getLinkValue( recordPosition ) == NULL ) 
+		    			{ 
+		    				recordPosition = NULL; 
+		    				break; 
+		    			} // not found
+		    		} // for
+		    	} // if
+		    	return recordPosition;
+		    } 
+		    finally 
+		    {
+		    	hashBucketRegion.unlock( bucket );
+		    } // try
+		}
+		finally
+		{
+			endAccess();
+		}
+	} // get
+
+	/**
+	 * get the record of the given key of a read only map without locking the bucket, which is locked by the writer of the map. 
+	 * The version of the bucket is read before and after the record is read, and the bucket is read again if the version is 
+	 * odd, since the writer holds the lock, or has changed. Whatever is read in between may be torn by the writer, so each
+	 * record position is checked before it is accessed and the chain is given up once the version has changed. The reader
+	 * yields between the reads of a bucket locked for long and gives up if the bucket is locked by a writer which has 
+	 * terminated, since a read only map cannot take the lock over
+	 * @param aKey key
+	 * @param aKeyStartIndex start index of the key in the key buffer
+	 * @param aValue value buffer or null if only the record position is needed
+	 * @param aValueStartIndex start index of the value should be copied to
+	 * @param isZeroCopy true to map the given buffer to the value instead of copying the value
+	 * @return record position
+	 * @throws IllegalStateException if the bucket is locked by a writer which has terminated
+	 */
+	private long getRecordOptimistically( final LongDirectBuffer aKey, final long aKeyStartIndex, final LongMutableDirectBuffer aValue, 
+										final long aValueStartIndex, final boolean isZeroCopy )
+	{
+		long bucket = hashBucketRegion.hash( aKey, aKeyStartIndex );
+		for( int noOfSpins = 1;; noOfSpins++ )
+		{
+			if ( noOfSpins > OPTIMISTIC_READ_SPINS )
+			{
+				Thread.yield();
+			}
+			long version = hashBucketRegion.getVersion( bucket );
+			if ( ( version & VALUE_LOCKED ) != VALUE_UNLOCKED )
+			{
+				if ( ( noOfSpins & ( STALE_LOCK_CHECK_SPINS - 1 ) ) == 0 && IsLockedByTerminatedProcess( version ) )
+				{
+					throw new IllegalStateException( "Bucket " + bucket + " is locked by process " + ( version >>> Integer.SIZE ) + 
+													 " which has terminated" );
+				}
+				continue;
+			}
+			long recordPosition = findRecordOptimistically( aKey, aKeyStartIndex, bucket, version );
+			if ( recordPosition == NOT_IN_CHAIN )
+			{
+				continue;
+			}
+			if ( recordPosition != NULL && aValue != null )
+			{
+				if ( isZeroCopy )
+				{
+					recordRegion.setMemoryAddressFromRecordRegion( recordPosition, aValue, aValueStartIndex );
+				}
+				else
+				{
+					recordRegion.copyValueFromRecordRegion( recordPosition, aValue, aValueStartIndex );
+				}
+			}
+			// the reads of the record complete before the version is read again
+			UnsafeAccess.UNSAFE.loadFence();
+			if ( hashBucketRegion.getVersion( bucket ) == version )
+			{
+				return recordPosition;
+			}
+		} // for
+	}
+	
+	/**
+	 * search the chain of the given bucket of a read only map for the given key while the bucket may be changed by the writer
+	 * @param aKey key
+	 * @param aKeyStartIndex start index of the key in the key buffer
+	 * @param aBucketIndex bucket index of the key
+	 * @param aVersion version of the bucket read before the search
+	 * @return record position, NULL if the key is not found or NOT_IN_CHAIN if the chain has been changed
+	 */
+	private long findRecordOptimistically( final LongDirectBuffer aKey, final long aKeyStartIndex, final long aBucketIndex, final long aVersion )
+	{
+		long generation = mapBackingStore.getLongVolatileFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_GENERATION );
+		long noOfSteps = 0;
+		for ( long recordPosition = hashBucketRegion.getTop( aBucketIndex, generation ); recordPosition != NULL; 
+			  recordPosition = recordRegion.getLinkValue( recordPosition ) )
+		{
+			// a torn link may point anywhere or into a loop
+			if ( !isReadable( recordPosition ) || ( ++noOfSteps & ( OPTIMISTIC_READ_STEPS - 1 ) ) == 0 && hashBucketRegion.getVersion( aBucketIndex ) != aVersion )
+			{
+				return NOT_IN_CHAIN;
+			}
+			if ( equals( aKey, aKeyStartIndex, recordPosition ) )
+			{
+				return recordPosition;
+			}
+		} // for
+		return NULL;
+	}
+	
+	/**
+	 * check if the record of the given position of a read only map is mapped, and map the files added by the writer if it 
+	 * is not mapped yet
+	 * @param aRecordPosition record position
+	 * @return true if the record can be accessed
+	 */
+	private boolean isReadable( final long aRecordPosition )
+	{
+		if ( aRecordPosition >= 0 && aRecordPosition < noOfReadableRecords )
+		{
+			return true;
+		}
+		return aRecordPosition >= 0 && aRecordPosition < recordRegion.getNoOfRecords( maxMapSize ) && followExpansion() > aRecordPosition;
+	}
+	
+	/**
+	 * map the files the writer of a read only map has added
+	 * @return no of records mapped
+	 */
+	private long followExpansion()
+	{
+		try
+		{
+			long mappedSize = readOnlyBackingStore.mapMemoryPages( 
+								mapBackingStore.getLongVolatileFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_NO_OF_MEMORY_PAGES ) );
+			noOfReadableRecords = recordRegion.getNoOfRecords( mappedSize );
+			return noOfReadableRecords;
+		}
+		catch( IOException e )
+		{
+			throw new RuntimeException( "Failed to map the files added to the map", e );
+		}
+	}
+	
+	/**
+	 * get a stamp of the bucket of the given key of a read only map to be validated after the value of a zero copy get has 
+	 * been read, like the optimistic read of a StampedLock
+	 * @param aKey key
+	 * @param aKeyStartIndex start index of the key in the key buffer
+	 * @return stamp of the bucket, which never validates while the writer holds the bucket lock
+	 */
+	public long tryOptimisticRead( final LongDirectBuffer aKey, final long aKeyStartIndex )
+	{
+		beginAccess();
+		try
+		{
+			if ( readOnlyBackingStore == null )
+			{
+				throw new UnsupportedOperationException( "Optimistic read is only supported by a read only map" );
+			}
+			return hashBucketRegion.getVersion( hashBucketRegion.hash( aKey, aKeyStartIndex ) );
+		}
+		finally
+		{
+			endAccess();
+		}
+	}
+	
+	/**
+	 * check if the bucket of the given key of a read only map has not been changed by the writer since the given stamp has been 
+	 * taken, so the values read since are consistent
+	 * @param aKey key
+	 * @param aKeyStartIndex start index of the key in the key buffer
+	 * @param aStamp stamp returned by tryOptimisticRead for the key
+	 * @return true if the values read since the stamp has been taken are consistent
+	 */
+	public boolean validate( final LongDirectBuffer aKey, final long aKeyStartIndex, final long aStamp )
+	{
+		beginAccess();
+		try
+		{
+			if ( readOnlyBackingStore == null )
+			{
+				throw new UnsupportedOperationException( "Optimistic read is only supported by a read only map" );
+			}
+			UnsafeAccess.UNSAFE.loadFence();
+			return ( aStamp & VALUE_LOCKED ) == VALUE_UNLOCKED && hashBucketRegion.getVersion( hashBucketRegion.hash( aKey, aKeyStartIndex ) ) == aStamp;
+		}
+		finally
+		{
+			endAccess();
+		}
+	}
+
+	/**
+	 * put the given record with the key into the map
+	 * @param aKey key
+	 * @param aKeyStartIndex start index of the key in the key buffer
+	 * @param aValue value buffer
+	 * @param aValueStartIndex start index of the value from the buffer
+	 * @return record position
+	 */
+	final long putRecord( final LongDirectBuffer aKey, final long aKeyStartIndex, final LongDirectBuffer aValue, final long aValueStartIndex ) 
+	{
+		beginWritableAccess();
+		try
+		{
+			long keyHash = keyFunction.hash( aKey, aKeyStartIndex, keySize );
+		    long bucket = hashBucketRegion.getBucketIndex( keyHash );  
+		    hashBucketRegion.lock( bucket );
+		    long recordPosition = NULL;
+		    // check for update versus add
+		    try 
+		    {
+		    	recordPosition = hashBucketRegion.getTop( bucket );
+		    	if ( recordPosition != NULL ) 
+		    	{			// non-empty hash chain
+		    		for ( ;; recordPosition = recordRegion.getLinkValue( recordPosition ) ) 
+		    		{ 
+		    			// search hash chain
+		    			if ( equals( aKey, aKeyStartIndex, recordPosition ) ) 
+		    			{	
+		    				// found ?
+		    				recordRegion.copyValueToRecordRegion( recordPosition, aValue, aValueStartIndex );
+		    				if ( nearCache != null )
+		    				{
+		    					nearCache.invalidate( aKey, aKeyStartIndex, keyHash );
+		    				}
+		    				if ( changeLog != null )
+		    				{
+		    					changeLog.append( F1BinaryMapChangeLog.CHANGE_TYPE_PUT, aKey, aKeyStartIndex, aValue, aValueStartIndex );
+		    				}
+		    				if ( journal != null )
+		    				{
+		    					journal.append( F1BinaryMapJournal.ENTRY_TYPE_PUT, aKey, aKeyStartIndex, aValue, aValueStartIndex );
+		    				}
+		    				return recordPosition;
+		    			} // if
+		    			if ( recordRegion.getLinkValue( recordPosition ) == NULL ) 
+		    			{ 
+		    				// not found
+		    				break;
+		    			} // if
+		    		} // for
+		    	} // if
+		    } 
+		    finally 
+		    {
+		    	hashBucketRegion.unlock( bucket );
+		    } // try
+
+		    // existing record not found. create a new record 
+		    boolean found = false;
+
+		    // speculatively get record to hold new data
+		    long newRecordPosition;
+		    long epoch;
+		    for ( ;; )
+		    {
+		    	epoch = getEpoch();
+		    	newRecordPosition = recordRegion.newRecord(aKey, aKeyStartIndex, bucket, epoch);	// create record and initialize
+		    	if ( newRecordPosition == NULL )
+		    	{
+		    		continue;
+		    	}
+		    	hashBucketRegion.lock( bucket );
+		    	if ( getEpoch() == epoch )
+		    	{
+		    		break;
+		    	}
+		    	// the map has been cleared or compacted since the record has been allocated, so the record may be in use again
+		    	hashBucketRegion.unlock( bucket );
+		    } // for
+
+		    // Race to add new record with given key, but could lose and becomes update.
+		    // Update => allocated record unused.
+		    try 
+		    {
+		    	long top = hashBucketRegion.getTop( bucket );
+		    	recordPosition = top;
+		    	if ( recordPosition == NULL ) 
+		    	{			
+		    		// empty hash chain
+		    		recordRegion.copyValueToRecordRegion( newRecordPosition, aValue, aValueStartIndex );   		
+		    		hashBucketRegion.updateTop( bucket, newRecordPosition ); // set bucket to new node
+		    		recordPosition = newRecordPosition;
+		    	} 
+		    	else 
+		    	{
+		    		for ( ;; recordPosition = recordRegion.getLinkValue( recordPosition ) ) 
+		    		{    			
+		    			// search hash chain
+		    			if ( equals( aKey, aKeyStartIndex, recordPosition ) ) 
+		    			{	
+		    				// found ?
+		    				recordRegion.copyValueToRecordRegion( recordPosition, aValue, aValueStartIndex );
+		    				if ( nearCache != null )
+		    				{
+		    					nearCache.invalidate( aKey, aKeyStartIndex, keyHash );
+		    				}
+		    				found = true;
+		    				break;
+		    			} // if
+		    			if ( recordRegion.getLinkValue( recordPosition ) == NULL ) 
+		    			{ 
+		    				// not found
+		    				recordRegion.copyValueToRecordRegion( newRecordPosition, aValue, aValueStartIndex );
+		    				recordRegion.updateLinkValue( newRecordPosition, top );
+		    				hashBucketRegion.updateTop( bucket, newRecordPosition);
+		    				recordPosition = newRecordPosition;
+		    				break;
+		    			} // if
+		    		} // for
+		    	} // if
+		    	if ( changeLog != null )
+		    	{
+		    		changeLog.append( F1BinaryMapChangeLog.CHANGE_TYPE_PUT, aKey, aKeyStartIndex, aValue, aValueStartIndex );
+		    	}
+		    	if ( journal != null )
+		    	{
+		    		journal.append( F1BinaryMapJournal.ENTRY_TYPE_PUT, aKey, aKeyStartIndex, aValue, aValueStartIndex );
+		    	}
+		    	return recordPosition;
+		    } 
+		    finally 
+		    {
+		    	if ( recordPosition != NULL )
+		    	{
+		    		incrementSize();
+		    	}
+		    	hashBucketRegion.unlock( bucket );
+		    	if ( found ) 
+		    	{
+		    		free( newRecordPosition, epoch );	// return unused record
+		    	} // if
+		    } // try
+		}
+		finally
+		{
+			endAccess();
+		}
+	} // put
+
+	/**
+	 * remove the record of the given key
+	 * @param aKey key
+	 * @param aKeyStartIndex start index of the key in the key buffer
+	 * @return true if the key existed and has been removed or false if the key does not exist
+	 */
+	final boolean remove( final LongDirectBuffer aKey, final long aKeyStartIndex ) 
+	{
+		beginWritableAccess();
+		try
+		{
+		    boolean found = false;
+		    long keyHash = keyFunction.hash( aKey, aKeyStartIndex, keySize );
+		    long bucket = hashBucketRegion.getBucketIndex( keyHash );
+		    long recordPosition = 0;
+		    long epoch = 0;
+
+		    hashBucketRegion.lock( bucket );
+		    try 
+		    {
+		    	epoch = getEpoch();
+		    	recordPosition = hashBucketRegion.getTop( bucket );
+		    	if ( recordPosition == NULL ) 
+		    	{
+		    		return false;	// non-existing key
+		    	}
+		    	if ( equals( aKey, aKeyStartIndex, recordPosition ) ) 
+		    	{		// found, remove first (head) node
+		    		long linkValue = recordRegion.getLinkValue( recordPosition );	    		
+		    		hashBucketRegion.updateTop( bucket, linkValue ); // set bucket to next node on freelist
+		    	} 
+		    	else 
+		    	{
+		    		long previousRecord = recordPosition;			// need previous node
+		    		for ( recordPosition = recordRegion.getLinkValue( recordPosition );; recordPosition = recordRegion.getLinkValue( recordPosition ) ) 
+		    		{ 
+		    			// search hash chain
+		    			if ( recordPosition == NULL ) 
+		    			{
+		    				return false; // non-existing key
+		    			}
+		    			if ( equals( aKey, aKeyStartIndex, recordPosition ) ) 
+		    			{	// found ?
+		    				long temp = recordRegion.getLinkValue( recordPosition ); // link around removed node
+		    				recordRegion.updateLinkValue( previousRecord, temp ); // link around removed node
+		    				break;
+		    			} // if
+		    			previousRecord = recordPosition;
+		    		} // for
+		    	} // if
+		    	// record is now removed
+		    	if ( nearCache != null )
+		    	{
+		    		nearCache.invalidate( aKey, aKeyStartIndex, keyHash );
+		    	}
+		    	if ( changeLog != null )
+		    	{
+		    		recordRegion.appendToChangeLog( F1BinaryMapChangeLog.CHANGE_TYPE_REMOVE, recordPosition );
+		    	}
+		    	if ( journal != null )
+		    	{
+		    		journal.append( F1BinaryMapJournal.ENTRY_TYPE_REMOVE, aKey, aKeyStartIndex, null, 0 );
+		    	}
+		    	found = true;
+		    	return true;
+		    } 
+		    finally 
+		    {
+		    	if ( found ) 
+		    	{
+		    		decrementSize();
+		    	} // if
+		    	hashBucketRegion.unlock( bucket );
+		    	// the map lock is never taken while holding a bucket lock, the record is not freed if the map has been cleared or 
+		    	// compacted meanwhile
+		    	if ( found ) 
+		    	{
+		    		recordRegion.deleteRecord( recordPosition, epoch );		// return unused record
+		    	} // if
+		    } // try
+		}
+		finally
+		{
+			endAccess();
+		}
+	} // remove
+
+	/**
+	 * close the map, i.e., dispose it without erasing the persisted memory
+	 */
+	@Override
+	public void close()
+	{
+		dispose( false );
+	}
+	
+	/**
+	 * check if the map has been disposed
+	 * @return true if the map has been disposed
+	 */
+	public boolean isClosed()
+	{
+		return accessGuard.isClosed();
+	}
+	
+	/**
+	 * make sure the map has not been disposed
+	 */
+	private void ensureOpen()
+	{
+		if ( accessGuard.isClosed() )
+		{
+			throw new IllegalStateException( "Map has been disposed" );
+		}
+	}
+	
+	/**
+	 * begin an access to the map, which dispose waits for until it is ended by endAccess
+	 * @throws IllegalStateException if the map has been disposed
+	 */
+	private void beginAccess()
+	{
+		if ( !accessGuard.begin() )
+		{
+			throw new IllegalStateException( "Map has been disposed" );
+		}
+	}
+	
+	/**
+	 * begin an access to the map which requires the map not to be read only, see beginAccess
+	 * @throws IllegalStateException if the map has been disposed
+	 * @throws UnsupportedOperationException if the map is read only
+	 */
+	private void beginWritableAccess()
+	{
+		beginAccess();
+		if ( readOnlyBackingStore != null )
+		{
+			accessGuard.end();
+			throw new UnsupportedOperationException( "Map is read only" );
+		}
+	}
+	
+	/**
+	 * end the access begun by beginAccess or beginWritableAccess
+	 */
+	private void endAccess()
+	{
+		accessGuard.end();
+	}
+	
+	/**
+	 * make sure the map has not been disposed and is not read only
+	 */
+	private void ensureWritable()
+	{
+		ensureOpen();
+		if ( readOnlyBackingStore != null )
+		{
+			throw new UnsupportedOperationException( "Map is read only" );
+		}
+	}
+	
+	/**
+	 * make sure the map is not shared with other writing processes for an operation which keeps state of a single process
+	 * @param anOperation name of the operation
+	 */
+	private void ensureNotShared( final String anOperation )
+	{
+		if ( sharedMap )
+		{
+			throw new UnsupportedOperationException( anOperation + " is not supported by a map shared by processes" );
+		}
+	}
+	
+	/**
+	 * check if the map has been opened read only, see OpenReadOnly
+	 * @return true if the map is read only
+	 */
+	public boolean isReadOnly()
+	{
+		return readOnlyBackingStore != null;
+	}
+	
+	/**
+	 * dispose the map and releases all the resources. A memory mapped map is flushed and every memory mapped file is unmapped
+	 * at once instead of when the garbage collector gets to it, so maps can be opened and closed repeatedly without running out 
+	 * of address space. Dispose waits until the accesses of other threads in progress have ended, and any access to the map 
+	 * after it has been disposed throws an IllegalStateException. The map must not be disposed from within an iterator of 
+	 * the map, which would wait for its own access. Disposing a disposed map again only erases the persisted memory if it 
+	 * is asked to
+	 * @param shouldEraseAllPersistedMemory true will remove all the existing persisted memory from the system
+	 */
+	public void dispose( boolean shouldEraseAllPersistedMemory )
+	{
+		if ( !accessGuard.close() )
+		{
+			if ( shouldEraseAllPersistedMemory )
+			{
+				if ( journal != null )
+				{
+					journal.erase();
+				}
+				mapBackingStore.dispose( true );
+			}
+			return;
+		}
+		shutdownParallelPool();
+		if ( tiering != null )
+		{
+			// the hot records are written back by the sync and dispose of the store while no thread is in the middle of an 
+			// access, and the locks are freed along with the hot tier, so they are never unlocked
+			lockAll();
+		}
+		if ( journal != null )
+		{
+			boolean isMapFlushed = false;
+			if ( !shouldEraseAllPersistedMemory )
+			{
+				try
+				{
+					mapBackingStore.sync();
+					isMapFlushed = true;
+				}
+				catch( IOException e )
+				{
+					// the map is recovered from the journal when it is opened next time
+				}
+			}
+			journal.close( isMapFlushed, shouldEraseAllPersistedMemory );
+		}
+		unlockInMemory( 0 );
+		mapBackingStore.dispose(shouldEraseAllPersistedMemory);
+		if ( changeLog != null )
+		{
+			changeLog.dispose();
+		}
+	}
+	
+	/**
+	 * iterate all the key and values by traversing the map. This method can be used by non-concurrent map
+	 * and memory access will be provided in no copy style. Access this method with concurrent map will get run time exception
+	 * @param anIterator iterator
+	 */
+	public void traverse( final F1BinaryMapIterator anIterator )
+	{
+		beginWritableAccess();
+		try
+		{
+			if ( concurrentMap )
+			{
+				throw new RuntimeException( "Cannot use this method to traverse concurrent map. Please use traverse( anIterator, aBuffer )" );
+			}
+			// iterate through
+		    for ( long bucketIndex = 0; bucketIndex < hashBucketRegion.noOfBuckets; bucketIndex += 1 ) 
+		    {
+		    	traverseBucket( bucketIndex, anIterator, null );
+		    } // for
+		}
+		finally
+		{
+			endAccess();
+		}
+	}
+	
+	/**
+	 * iterate all the key and values by traversing the map one bucket at a time. This method can be used by both concurrent 
+	 * and non-concurrent map. Each record is copied into the given buffer with the key at index 0 followed by the value, and 
+	 * the iterator is called with the given buffer while the lock of the bucket of the record is held. The whole map is never 
+	 * locked, so the traversal is weakly consistent: every record which stays in the map during the traversal is iterated 
+	 * exactly once, records put or removed during the traversal may or may not be iterated. The iterator must not access 
+	 * this map since the bucket lock is held
+	 * @param anIterator iterator
+	 * @param aBuffer buffer to copy each record into, needs to hold at least the key and the value
+	 */
+	public void traverse( final F1BinaryMapIterator anIterator, final LongMutableDirectBuffer aBuffer )
+	{
+		beginWritableAccess();
+		try
+		{
+			if ( aBuffer.capacity() < keySize + valueSize )
+			{
+				throw new IllegalArgumentException( "Buffer of capacity " + aBuffer.capacity() + " cannot hold a record of " + (keySize + valueSize) + " bytes" );
+			}
+		    for ( long bucketIndex = 0; bucketIndex < hashBucketRegion.noOfBuckets; bucketIndex += 1 ) 
+		    {
+		    	traverseBucket( bucketIndex, anIterator, aBuffer );
+		    } // for
+		}
+		finally
+		{
+			endAccess();
+		}
+	}
+	
+	/**
+	 * incrementally iterate the key and values of the map starting from the given cursor, so that a traversal can be 
+	 * split into small steps interleaved with other accesses. A scan starts with cursor 0 and continues with the cursor 
+	 * returned by the previous call until 0 is returned. The cursor is the index of the next bucket to be visited and 
+	 * every call visits whole buckets until at least the given no of records have been iterated, SCAN_BUCKETS_PER_RECORD times 
+	 * as many buckets have been visited or all the buckets have been visited, so a step over a sparse map may iterate fewer 
+	 * records. Since the no of buckets of the map never changes, every record which stays in the map for the whole scan is 
+	 * iterated exactly once, records put or removed during the scan may or may not be iterated. This method can be used by 
+	 * both concurrent and non-concurrent map and memory access will be provided in no copy style. For concurrent map each 
+	 * bucket is locked while its records are iterated, and the iterator must not access this map
+	 * @param aCursor cursor returned by the previous call or 0 to start a new scan
+	 * @param aMaxNoOfRecords no of records to iterate before returning, may be exceeded to complete the last bucket 
+	 * @param anIterator iterator
+	 * @return cursor for the next call or 0 if the scan is complete
+	 */
+	public long scan( final long aCursor, final long aMaxNoOfRecords, final F1BinaryMapIterator anIterator )
+	{
+		return scan( aCursor, aMaxNoOfRecords, anIterator, null );
+	}
+	
+	/**
+	 * incrementally iterate the key and values of the map starting from the given cursor, see scan( aCursor, aMaxNoOfRecords, anIterator ).
+	 * Each record is copied into the given buffer with the key at index 0 followed by the value
+	 * @param aCursor cursor returned by the previous call or 0 to start a new scan
+	 * @param aMaxNoOfRecords no of records to iterate before returning, may be exceeded to complete the last bucket 
+	 * @param anIterator iterator
+	 * @param aBuffer buffer to copy each record into, needs to hold at least the key and the value
+	 * @return cursor for the next call or 0 if the scan is complete
+	 */
+	public long scan( final long aCursor, final long aMaxNoOfRecords, final F1BinaryMapIterator anIterator, final LongMutableDirectBuffer aBuffer )
+	{
+		beginWritableAccess();
+		try
+		{
+			if ( aCursor < 0 || aCursor >= hashBucketRegion.noOfBuckets )
+			{
+				throw new IllegalArgumentException( "Invalid cursor " + aCursor );
+			}
+			if ( aBuffer != null && aBuffer.capacity() < keySize + valueSize )
+			{
+				throw new IllegalArgumentException( "Buffer of capacity " + aBuffer.capacity() + " cannot hold a record of " + (keySize + valueSize) + " bytes" );
+			}
+			long count = 0;
+			long bucketIndex = aCursor;
+			long endBucketIndex = aMaxNoOfRecords < ( hashBucketRegion.noOfBuckets - aCursor ) / SCAN_BUCKETS_PER_RECORD ? 
+									aCursor + Math.max( 1, aMaxNoOfRecords * SCAN_BUCKETS_PER_RECORD ) : hashBucketRegion.noOfBuckets;
+			while( count < aMaxNoOfRecords && bucketIndex < endBucketIndex )
+			{
+				count += traverseBucket( bucketIndex, anIterator, aBuffer );
+				bucketIndex += 1;
+			} // while
+			return bucketIndex < hashBucketRegion.noOfBuckets ? bucketIndex : 0;
+		}
+		finally
+		{
+			endAccess();
+		}
+	}
+	
+	/**
+	 * iterate all the records of the given bucket while the bucket is locked
+	 * @param aBucketIndex index of the bucket
+	 * @param anIterator iterator
+	 * @param aBuffer buffer to copy each record into or null to provide the records in no copy style
+	 * @return no of records iterated
+	 */
+	private long traverseBucket( final long aBucketIndex, final F1BinaryMapIterator anIterator, final LongMutableDirectBuffer aBuffer )
+	{
+		long count = 0;
+		hashBucketRegion.lock( aBucketIndex );
+		try
+		{
+    		for ( long recordPosition = hashBucketRegion.getTop( aBucketIndex ); recordPosition != NULL; recordPosition = recordRegion.getLinkValue( recordPosition ) ) 
+    		{
+        		long address = recordRegion.getRecordMemoryAddress( recordPosition );
+    			if ( aBuffer == null )
+    			{
+    				long memoryBufferAddress =  mapBackingStore.getMemoryBufferAddress( address );
+    				anIterator.iterate( mapBackingStore.getMemoryRegion( address ), memoryBufferAddress + RECORD_KEY_OFFSET, keySize, 
+    									memoryBufferAddress + recordValueOffset, valueSize );
+    			}
+    			else
+    			{
+    				mapBackingStore.getBytesFromMemoryRegion( address + RECORD_KEY_OFFSET, keySize + valueSize, aBuffer, 0 );
+    				anIterator.iterate( aBuffer, 0, keySize, keySize, valueSize );
+    			}
+    			count += 1;
+    		} // for
+		}
+		finally
+		{
+			hashBucketRegion.unlock( aBucketIndex );
+		}
+		return count;
+	}
+	
+	/**
+	 * iterate all long values of the given value offset by traversing the map. This method can be used by both concurrent
+	 * and non-concurrent map. For concurrent map, the map is traversed one bucket at a time with the bucket locked while 
+	 * its long values are read, so the whole map is never locked and the traversal is weakly consistent
+	 * @param anIterator iterator
+	 * @param aValueOffset address offset from the value position where the long value is located in each record
+	 */
+	public void traverse( final F1BinaryMapLongValueIterator anIterator, int aValueOffset )
+	{
+		beginWritableAccess();
+		try
+		{
+			// iterate through
+		    for ( long bucketIndex = 0; bucketIndex < hashBucketRegion.noOfBuckets; bucketIndex += 1 ) 
+		    {
+		    	traverseBucket( bucketIndex, anIterator, aValueOffset );
+		    } // for		
+		}
+		finally
+		{
+			endAccess();
+		}
+	}
+	
+	/**
+	 * iterate all long values of the given value offset of the given bucket while the bucket is locked
+	 * @param aBucketIndex index of the bucket
+	 * @param anIterator iterator
+	 * @param aValueOffset address offset from the value position where the long value is located in each record
+	 */
+	private void traverseBucket( final long aBucketIndex, final F1BinaryMapLongValueIterator anIterator, final int aValueOffset )
+	{
+		hashBucketRegion.lock( aBucketIndex );
+		try
+		{
+    		for ( long recordPosition = hashBucketRegion.getTop( aBucketIndex ); recordPosition != NULL; recordPosition = recordRegion.getLinkValue( recordPosition ) ) 
+    		{
+        		long address = recordRegion.getRecordMemoryAddress( recordPosition );
+        		long longValueStartIndex = mapBackingStore.getMemoryBufferAddress( address ) + recordValueOffset + aValueOffset;
+        		anIterator.iterate( mapBackingStore.getMemoryRegion( address ).getLong( longValueStartIndex ) );
+    		} // for
+		}
+		finally
+		{
+			hashBucketRegion.unlock( aBucketIndex );
+		}
+	}
+	
+	/**
+	 * iterate all the key and values by scanning the record region sequentially in record order and skipping the free records.
+	 * Unlike traverse which follows the hash chains and jumps randomly across the record region, the scan accesses the
+	 * backing memory sequentially, which suits cold memory mapped maps. The records are not provided in bucket order.
+	 * This method can be used by non-concurrent map and memory access will be provided in no copy style. 
+	 * Access this method with concurrent map will get run time exception
+	 * @param anIterator iterator
 	 */
-	private void lockMap()
+	public void traverseInRecordOrder( final F1BinaryMapIterator anIterator )
 	{
-		if ( concurrentMap )
+		beginWritableAccess();
+		try
 		{
-			while( !mapBackingStore.compareAndPutLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_LOCK, VALUE_LOCKED, VALUE_UNLOCKED ) )
-	    	{
-	    	}
+			if ( concurrentMap )
+			{
+				throw new RuntimeException( "Cannot use this method to traverse concurrent map. Please use traverse( anIterator, aBuffer )" );
+			}
+			long end = mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_END );
+			for ( long recordPosition = 0; recordPosition < end; recordPosition += 1 )
+			{
+				if ( !recordRegion.isFree( recordPosition ) )
+				{
+	        		long address = recordRegion.getRecordMemoryAddress( recordPosition );
+					long memoryBufferAddress =  mapBackingStore.getMemoryBufferAddress( address );
+					anIterator.iterate( mapBackingStore.getMemoryRegion( address ), memoryBufferAddress + RECORD_KEY_OFFSET, keySize, 
+										memoryBufferAddress + recordValueOffset, valueSize );
+				} // if
+			} // for
+		}
+		finally
+		{
+			endAccess();
 		}
 	}
 	
-   	/**
-	 * unlock the entire map
+	/**
+	 * iterate all long values of the given value offset by scanning the record region sequentially in record order and 
+	 * skipping the free records. This method can be used by non-concurrent map. Access this method with concurrent map 
+	 * will get run time exception
+	 * @param anIterator iterator
+	 * @param aValueOffset address offset from the value position where the long value is located in each record
 	 */
-	private void unlockMap()
+	public void traverseInRecordOrder( final F1BinaryMapLongValueIterator anIterator, final int aValueOffset )
+	{
+		beginWritableAccess();
+		try
+		{
+			if ( concurrentMap )
+			{
+				throw new RuntimeException( "Cannot use this method to traverse concurrent map. Please use traverse( anIterator, aValueOffset )" );
+			}
+			long end = mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_END );
+			for ( long recordPosition = 0; recordPosition < end; recordPosition += 1 )
+			{
+				if ( !recordRegion.isFree( recordPosition ) )
+				{
+	        		long address = recordRegion.getRecordMemoryAddress( recordPosition );
+	        		long longValueStartIndex = mapBackingStore.getMemoryBufferAddress( address ) + recordValueOffset + aValueOffset;
+	        		anIterator.iterate( mapBackingStore.getMemoryRegion( address ).getLong( longValueStartIndex ) );
+				} // if
+			} // for
+		}
+		finally
+		{
+			endAccess();
+		}
+	}
+	
+	/**
+	 * iterate all the key and values by traversing the map with the given no of threads. The bucket range of the map is
+	 * split into sub ranges which are traversed by the workers of a fork join pool. This method can be used by both concurrent
+	 * and non-concurrent map and memory access will be provided in no copy style. For concurrent map each bucket is locked
+	 * while its records are iterated, so the same weakly consistent semantics as traverse( anIterator, aBuffer ) apply.
+	 * The iterator is called from multiple threads and must be thread safe, and must not access this map
+	 * @param anIterator thread safe iterator
+	 * @param aParallelism no of threads used to traverse the map
+	 */
+	public void parallelTraverse( final F1BinaryMapIterator anIterator, final int aParallelism )
+	{
+		beginWritableAccess();
+		try
+		{
+			invoke( new ParallelTraverseTask( 0, hashBucketRegion.noOfBuckets, getParallelTraverseThreshold( aParallelism ), anIterator ), aParallelism );
+		}
+		finally
+		{
+			endAccess();
+		}
+	}
+	
+	/**
+	 * iterate all long values of the given value offset by traversing the map with the given no of threads. 
+	 * The iterator is called from multiple threads and must be thread safe
+	 * @param anIterator thread safe iterator
+	 * @param aValueOffset address offset from the value position where the long value is located in each record
+	 * @param aParallelism no of threads used to traverse the map
+	 */
+	public void parallelTraverse( final F1BinaryMapLongValueIterator anIterator, final int aValueOffset, final int aParallelism )
+	{
+		beginWritableAccess();
+		try
+		{
+			invoke( new ParallelLongValueTraverseTask( 0, hashBucketRegion.noOfBuckets, getParallelTraverseThreshold( aParallelism ), 
+										anIterator, aValueOffset ), aParallelism );
+		}
+		finally
+		{
+			endAccess();
+		}
+	}
+	
+	/**
+	 * reduce all long values of the given value offset with the given no of threads. Each worker reduces its own bucket
+	 * ranges and the partial results are combined with the same reducer, so the reducer must be associative
+	 * @param aValueOffset address offset from the value position where the long value is located in each record
+	 * @param anIdentity identity value of the reducer
+	 * @param aReducer associative reducer
+	 * @param aParallelism no of threads used to traverse the map
+	 * @return reduced value or the identity value if the map is empty
+	 */
+	public long parallelReduce( final int aValueOffset, final long anIdentity, final LongBinaryOperator aReducer, final int aParallelism )
+	{
+		beginWritableAccess();
+		try
+		{
+			return invoke( new ParallelReduceTask( 0, hashBucketRegion.noOfBuckets, getParallelTraverseThreshold( aParallelism ), 
+										aValueOffset, anIdentity, aReducer ), aParallelism );
+		}
+		finally
+		{
+			endAccess();
+		}
+	}
+	
+	/**
+	 * sum all long values of the given value offset with the given no of threads
+	 * @param aValueOffset address offset from the value position where the long value is located in each record
+	 * @param aParallelism no of threads used to traverse the map
+	 * @return sum of the long values
+	 */
+	public long parallelSum( final int aValueOffset, final int aParallelism )
+	{
+		return parallelReduce( aValueOffset, 0L, Long::sum, aParallelism );
+	}
+	
+	/**
+	 * get minimum of all long values of the given value offset with the given no of threads
+	 * @param aValueOffset address offset from the value position where the long value is located in each record
+	 * @param aParallelism no of threads used to traverse the map
+	 * @return minimum long value or Long.MAX_VALUE if the map is empty
+	 */
+	public long parallelMin( final int aValueOffset, final int aParallelism )
+	{
+		return parallelReduce( aValueOffset, Long.MAX_VALUE, Math::min, aParallelism );
+	}
+	
+	/**
+	 * get maximum of all long values of the given value offset with the given no of threads
+	 * @param aValueOffset address offset from the value position where the long value is located in each record
+	 * @param aParallelism no of threads used to traverse the map
+	 * @return maximum long value or Long.MIN_VALUE if the map is empty
+	 */
+	public long parallelMax( final int aValueOffset, final int aParallelism )
 	{
+		return parallelReduce( aValueOffset, Long.MIN_VALUE, Math::max, aParallelism );
+	}
+	
+	/**
+	 * get a stream of all the records of the map. The stream is sourced by a spliterator which splits the bucket range 
+	 * of the map, and every spliterator provides the records through its own zero copy record view, see F1BinaryMapRecord.
+	 * This method can only be used by non-concurrent map. Access this method with concurrent map will get run time exception
+	 * @param isParallel true to get a parallel stream
+	 * @return stream of records
+	 */
+	public Stream<F1BinaryMapRecord> stream( final boolean isParallel )
+	{
+		return StreamSupport.stream( spliterator(), isParallel );
+	}
+	
+	/**
+	 * get a spliterator of all the records of the map. This method can only be used by non-concurrent map. 
+	 * Access this method with concurrent map will get run time exception
+	 * @return spliterator of records
+	 */
+	public Spliterator<F1BinaryMapRecord> spliterator()
+	{
+		ensureWritable();
 		if ( concurrentMap )
 		{
-			mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_LOCK, VALUE_UNLOCKED );
+			throw new RuntimeException( "Cannot use this method to traverse concurrent map. Please use parallelTraverse( anIterator, aParallelism )" );
 		}
+		return new BucketRangeSpliterator( 0, hashBucketRegion.noOfBuckets );
 	}
-    
-    /**
-     * free the  record identified by the given record number
-     * @param aRecordPosition record number of the record to be free
-     */
-	private void free( final long aRecordPosition ) 
+	
+	/**
+	 * get the no of buckets a parallel traverse task handles without splitting further
+	 * @param aParallelism no of threads used to traverse the map
+	 * @return no of buckets
+	 */
+	private long getParallelTraverseThreshold( final int aParallelism )
 	{
-		lockMap();
-		try 
-	    {
-	    	long nextFree = mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_FREE );
-	    	recordRegion.updateLinkValue( aRecordPosition, nextFree); // chain to head of freelist
-	    	mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_FREE, aRecordPosition );			// set freelist head to freed node
-	    } 
-	    finally 
-	    {
-	    	unlockMap();
-	    } // try
-	} // free
+		if ( aParallelism < 1 )
+		{
+			throw new IllegalArgumentException( "Parallelism must be at least 1" );
+		}
+		return Math.max( PARALLEL_TRAVERSE_MIN_NO_OF_BUCKETS, hashBucketRegion.noOfBuckets / ( aParallelism * PARALLEL_TRAVERSE_TASKS_PER_THREAD ) );
+	}
 	
-    /**
-     * check if the given key is equivalent to the given record number
-     * @param aKey key 
-     * @param aKeyStartIndex start index of the key in the key buffer
-     * @param aRecordPosition record number
-     * @return true if the key is equivalent to the given record number or false if it is not
-     */
-	private boolean equals( final LongDirectBuffer aKey, final long aKeyStartIndex, final long aRecordPosition ) 
+	/**
+	 * run the given task in the fork join pool of this map of the given parallelism. The tasks hold bucket locks and call 
+	 * the iterators of the caller, so they never run in the common pool
+	 * @param aTask task
+	 * @param aParallelism no of threads
+	 * @return result of the task
+	 */
+	private <T> T invoke( final ForkJoinTask<T> aTask, final int aParallelism )
 	{
-		// TODO optimize it
-		long keyAddress = recordRegion.getRecordMemoryAddress( aRecordPosition ) + RECORD_KEY_OFFSET;
-		LongAtomicBuffer keyBuffer = mapBackingStore.getMemoryRegion( keyAddress );
-		long keyStartIndex =  mapBackingStore.getMemoryBufferAddress( keyAddress );
+		for ( ;; )
+		{
+			ForkJoinPool pool = getParallelPool( aParallelism );
+			try
+			{
+				return pool.invoke( aTask );
+			}
+			catch( RejectedExecutionException e )
+			{
+				// the pool has been replaced by a pool of another parallelism before the task got into it
+				if ( !pool.isShutdown() )
+				{
+					throw e;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * get the fork join pool of this map, which is created on first use and replaced if another parallelism is asked for.
+	 * A replaced pool finishes the tasks running in it before its threads terminate
+	 * @param aParallelism no of threads
+	 * @return pool
+	 */
+	private ForkJoinPool getParallelPool( final int aParallelism )
+	{
+		synchronized( parallelPoolLock )
+		{
+			ensureOpen();
+			if ( parallelPool == null || parallelPool.getParallelism() != aParallelism )
+			{
+				if ( parallelPool != null )
+				{
+					parallelPool.shutdown();
+				}
+				parallelPool = new ForkJoinPool( aParallelism );
+			}
+			return parallelPool;
+		}
+	}
+	
+	/**
+	 * shut down the fork join pool of this map, the tasks running in it are finished
+	 */
+	private void shutdownParallelPool()
+	{
+		synchronized( parallelPoolLock )
+		{
+			if ( parallelPool != null )
+			{
+				parallelPool.shutdown();
+				parallelPool = null;
+			}
+		}
+	}
+	
+	/**
+	 * ParallelTraverseTask traverses a range of buckets, splitting the range until it is below the threshold
+	 */
+	private final class ParallelTraverseTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		private final long fromBucketIndex;
+		private final long toBucketIndex;
+		private final long threshold;
+		private final F1BinaryMapIterator iterator;
 		
-		return keyFunction.equals(aKey, aKeyStartIndex, keyBuffer, keyStartIndex, keySize);
-	} // equals
+		private ParallelTraverseTask( final long aFromBucketIndex, final long aToBucketIndex, final long aThreshold, final F1BinaryMapIterator anIterator )
+		{
+			fromBucketIndex = aFromBucketIndex;
+			toBucketIndex = aToBucketIndex;
+			threshold = aThreshold;
+			iterator = anIterator;
+		}
+		
+		@Override
+		protected void compute()
+		{
+			if ( toBucketIndex - fromBucketIndex > threshold )
+			{
+				long middleBucketIndex = ( fromBucketIndex + toBucketIndex ) >>> 1;
+				invokeAll( new ParallelTraverseTask( fromBucketIndex, middleBucketIndex, threshold, iterator ),
+							new ParallelTraverseTask( middleBucketIndex, toBucketIndex, threshold, iterator ) );
+				return;
+			}
+			for ( long bucketIndex = fromBucketIndex; bucketIndex < toBucketIndex; bucketIndex += 1 ) 
+			{
+				traverseBucket( bucketIndex, iterator, null );
+			} // for
+		}
+	}
 	
 	/**
-	 * get record position based on the given key
-	 * @param aKey key
-	 * @param aKeyStartIndex start index of the key in the key buffer
-	 * @return record position
+	 * ParallelLongValueTraverseTask traverses the long values of a range of buckets, splitting the range until it is below the threshold
 	 */
-	public long getRecordPosition( final LongDirectBuffer aKey, final long aKeyStartIndex ) 
-	{			
-	    long bucket = hashBucketRegion.hash( aKey, aKeyStartIndex );
-	    hashBucketRegion.lock( bucket );
-	    try 
-	    {
-	    	long recordPosition = hashBucketRegion.getTop( bucket );
-	    	if ( recordPosition != NULL ) 
-	    	{			// non-empty hash chain
-	    		for ( ;; recordPosition = recordRegion.getLinkValue( recordPosition ) ) 
-	    		{ // search hash chain
-	    			if ( equals( aKey, aKeyStartIndex, recordPosition ) ) 
-	    			{
-	    				break; // found ?
-	    			}
-	    			if ( recordRegion.getLinkValue( recordPosition ) == NULL ) 
-	    			{ 
-	    				recordPosition = NULL; 
-	    				break; 
-	    			} // not found ?
-	    		} // for
-	    	} // if
-	    	return recordPosition;
-	    } 
-	    finally 
-	    {
-	    	hashBucketRegion.unlock( bucket );
-	    } // try
-	} // get
-
+	private final class ParallelLongValueTraverseTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		private final long fromBucketIndex;
+		private final long toBucketIndex;
+		private final long threshold;
+		private final F1BinaryMapLongValueIterator iterator;
+		private final int valueOffset;
+		
+		private ParallelLongValueTraverseTask( final long aFromBucketIndex, final long aToBucketIndex, final long aThreshold, 
+											final F1BinaryMapLongValueIterator anIterator, final int aValueOffset )
+		{
+			fromBucketIndex = aFromBucketIndex;
+			toBucketIndex = aToBucketIndex;
+			threshold = aThreshold;
+			iterator = anIterator;
+			valueOffset = aValueOffset;
+		}
+		
+		@Override
+		protected void compute()
+		{
+			if ( toBucketIndex - fromBucketIndex > threshold )
+			{
+				long middleBucketIndex = ( fromBucketIndex + toBucketIndex ) >>> 1;
+				invokeAll( new ParallelLongValueTraverseTask( fromBucketIndex, middleBucketIndex, threshold, iterator, valueOffset ),
+							new ParallelLongValueTraverseTask( middleBucketIndex, toBucketIndex, threshold, iterator, valueOffset ) );
+				return;
+			}
+			for ( long bucketIndex = fromBucketIndex; bucketIndex < toBucketIndex; bucketIndex += 1 ) 
+			{
+				traverseBucket( bucketIndex, iterator, valueOffset );
+			} // for
+		}
+	}
+	
 	/**
-	 * get the record of the given key and copy into the given buffer
-	 * @param aKey key
-	 * @param aKeyStartIndex start index of the key in the key buffer
-	 * @param aValue value buffer
-	 * @param aValueStartIndex start index of the value should be copied to
-	 * @return record position
+	 * ParallelReduceTask reduces the long values of a range of buckets, splitting the range until it is below the threshold
 	 */
-	public long getRecord( final LongDirectBuffer aKey, final long aKeyStartIndex, final LongMutableDirectBuffer aValue, final long aValueStartIndex ) 
-	{	
-		return getRecord( aKey, aKeyStartIndex, aValue, aValueStartIndex, null, null );
+	private final class ParallelReduceTask extends RecursiveTask<Long> implements F1BinaryMapLongValueIterator
+	{
+		private static final long serialVersionUID = 1L;
+		private final long fromBucketIndex;
+		private final long toBucketIndex;
+		private final long threshold;
+		private final int valueOffset;
+		private final long identity;
+		private final LongBinaryOperator reducer;
+		private long result;
+		
+		private ParallelReduceTask( final long aFromBucketIndex, final long aToBucketIndex, final long aThreshold, 
+									final int aValueOffset, final long anIdentity, final LongBinaryOperator aReducer )
+		{
+			fromBucketIndex = aFromBucketIndex;
+			toBucketIndex = aToBucketIndex;
+			threshold = aThreshold;
+			valueOffset = aValueOffset;
+			identity = anIdentity;
+			reducer = aReducer;
+		}
+		
+		@Override
+		protected Long compute()
+		{
+			if ( toBucketIndex - fromBucketIndex > threshold )
+			{
+				long middleBucketIndex = ( fromBucketIndex + toBucketIndex ) >>> 1;
+				ParallelReduceTask lowerHalf = new ParallelReduceTask( fromBucketIndex, middleBucketIndex, threshold, valueOffset, identity, reducer );
+				ParallelReduceTask upperHalf = new ParallelReduceTask( middleBucketIndex, toBucketIndex, threshold, valueOffset, identity, reducer );
+				lowerHalf.fork();
+				long upperResult = upperHalf.compute();
+				return reducer.applyAsLong( lowerHalf.join(), upperResult );
+			}
+			result = identity;
+			for ( long bucketIndex = fromBucketIndex; bucketIndex < toBucketIndex; bucketIndex += 1 ) 
+			{
+				traverseBucket( bucketIndex, this, valueOffset );
+			} // for
+			return result;
+		}
+		
+		@Override
+		public void iterate( final long aLongValue )
+		{
+			result = reducer.applyAsLong( result, aLongValue );
+		}
 	}
 	
 	/**
-	 * get the record of the given key and copy into the given buffer
-	 * @param aKey key
-	 * @param aKeyStartIndex start index of the key in the key buffer
-	 * @param aValue value buffer
-	 * @param aValueStartIndex start index of the value should be copied to
-	 * @return record position
+	 * ParallelVerifyTask verifies a range of buckets, splitting the range until it is below the threshold
 	 */
-	public long getRecord( final LongDirectBuffer aKey, final long aKeyStartIndex, final LongMutableDirectBuffer aValue, final long aValueStartIndex, 
-			final KeyValueVerifier aVerifier, final KeyValueToString aKeyValueToString ) 
-	{		
-	    long bucket = hashBucketRegion.hash( aKey, aKeyStartIndex );
-	    hashBucketRegion.lock( bucket );
-	    try 
-	    {
-	    	long recordPosition = hashBucketRegion.getTop( bucket );
-	    	if ( recordPosition != NULL ) 
-	    	{			
-	    		// non-empty hash chain
-	    		for ( ;; recordPosition = recordRegion.getLinkValue( recordPosition ) ) 
-	    		{ // search hash chain
-	    			if ( equals( aKey, aKeyStartIndex, recordPosition ) ) 
-	    			{	// found ?
-	    				recordRegion.copyValueFromRecordRegion( recordPosition, aValue, aValueStartIndex);
-	    				if ( aVerifier != null && aKeyValueToString != null && !aVerifier.verify(aKey, aKeyStartIndex, aValue, aValueStartIndex))
-	    				{
-	    					System.err.println( "Failed key value verification Key: " + aKeyValueToString.convertKey(aKey, aKeyStartIndex, keySize)
-	    								+ " Value: " + aKeyValueToString.convertValue(aValue, aValueStartIndex, valueSize));
-	    					// prevent deadlock
-	    					hashBucketRegion.unlock( bucket );
-	    					// if verification fails then print out the whole memory map
-	    					dump( aKeyValueToString );
-	    					System.exit(-1);
-	    				}	
-	    				break;
-	    			} // if
-	    			if ( recordRegion.getLinkValue( recordPosition ) == NULL ) 
-	    			{ 
-	    				recordPosition = NULL; 
-	    				break; 
-	    			} // not found
-	    		} // for
-	    	} // if
-	    	return recordPosition;
-	    } 
-	    finally 
-	    {
-	    	hashBucketRegion.unlock( bucket );
-	    } // try
-	} // get
+	private final class ParallelVerifyTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		private final long fromBucketIndex;
+		private final long toBucketIndex;
+		private final long threshold;
+		private final long end;
+		private final AtomicLongArray reachedRecords;
+		private final boolean shouldRepair;
+		private final F1BinaryMapVerification verification;
+		
+		private ParallelVerifyTask( final long aFromBucketIndex, final long aToBucketIndex, final long aThreshold, final long anEnd,
+									final AtomicLongArray aReachedRecords, final boolean shouldRepair, final F1BinaryMapVerification aVerification )
+		{
+			fromBucketIndex = aFromBucketIndex;
+			toBucketIndex = aToBucketIndex;
+			threshold = aThreshold;
+			end = anEnd;
+			reachedRecords = aReachedRecords;
+			this.shouldRepair = shouldRepair;
+			verification = aVerification;
+		}
+		
+		@Override
+		protected void compute()
+		{
+			if ( toBucketIndex - fromBucketIndex > threshold )
+			{
+				long middleBucketIndex = ( fromBucketIndex + toBucketIndex ) >>> 1;
+				invokeAll( new ParallelVerifyTask( fromBucketIndex, middleBucketIndex, threshold, end, reachedRecords, shouldRepair, verification ),
+							new ParallelVerifyTask( middleBucketIndex, toBucketIndex, threshold, end, reachedRecords, shouldRepair, verification ) );
+				return;
+			}
+			verifyBuckets( fromBucketIndex, toBucketIndex, end, reachedRecords, shouldRepair, verification );
+		}
+	}
 	
 	/**
-	 * check if zero copy get is allowed. Zero Copy is only allowed in non-concurrent Direct Memory Backed F1BinaryMap
-	 * @return true if zero copy get is allowed or false if it is not
+	 * BucketRangeSpliterator provides the records of a range of buckets through its own zero copy record view.
+	 * Splitting hands over the upper half of the buckets not yet visited
 	 */
-	public boolean isZeroCopyGetAllowed()
+	private final class BucketRangeSpliterator implements Spliterator<F1BinaryMapRecord>
 	{
-		return zeroCopyGetAllowed;
+		private final F1BinaryMapRecord record = new F1BinaryMapRecord();
+		private long bucketIndex;
+		private final long toBucketIndex;
+		private long nextRecordPosition = NULL;
+		
+		private BucketRangeSpliterator( final long aFromBucketIndex, final long aToBucketIndex )
+		{
+			bucketIndex = aFromBucketIndex;
+			toBucketIndex = aToBucketIndex;
+		}
+		
+		@Override
+		public boolean tryAdvance( final Consumer<? super F1BinaryMapRecord> anAction )
+		{
+			while ( nextRecordPosition == NULL )
+			{
+				if ( bucketIndex >= toBucketIndex )
+				{
+					return false;
+				}
+				nextRecordPosition = hashBucketRegion.getTop( bucketIndex++ );
+			}
+			long address = recordRegion.getRecordMemoryAddress( nextRecordPosition );
+			long memoryBufferAddress =  mapBackingStore.getMemoryBufferAddress( address );
+			record.wrap( mapBackingStore.getMemoryRegion( address ), memoryBufferAddress + RECORD_KEY_OFFSET, keySize, 
+						memoryBufferAddress + recordValueOffset, valueSize );
+			nextRecordPosition = recordRegion.getLinkValue( nextRecordPosition );
+			anAction.accept( record );
+			return true;
+		}
+		
+		@Override
+		public Spliterator<F1BinaryMapRecord> trySplit()
+		{
+			long remainingNoOfBuckets = toBucketIndex - bucketIndex;
+			if ( remainingNoOfBuckets <= PARALLEL_TRAVERSE_MIN_NO_OF_BUCKETS )
+			{
+				return null;
+			}
+			long middleBucketIndex = bucketIndex + ( remainingNoOfBuckets >>> 1 );
+			BucketRangeSpliterator lowerHalf = new BucketRangeSpliterator( bucketIndex, middleBucketIndex );
+			// the rest of the current chain stays with the lower half
+			lowerHalf.nextRecordPosition = nextRecordPosition;
+			nextRecordPosition = NULL;
+			bucketIndex = middleBucketIndex;
+			return lowerHalf;
+		}
+		
+		@Override
+		public long estimateSize()
+		{
+			return ( toBucketIndex - bucketIndex ) * getSize() / hashBucketRegion.noOfBuckets;
+		}
+		
+		@Override
+		public int characteristics()
+		{
+			return NONNULL | DISTINCT;
+		}
 	}
 	
 	/**
-	 * get the record of the given key and map the address location to the given buffer without copying the data. This method will throw RuntimeException if
-	 * F1BinaryMap is set to be a concurrent map. Extreme caution has to be in place when using this method since this method will position the given buffer
-	 * to the location of the value of the given key but if the record is changed after this method is called then the content in the given buffer will be undefined
-	 * @param aKey key
-	 * @param aKeyStartIndex start index of the key in the key buffer
-	 * @param aValue value buffer
-	 * @param aValueStartIndex start index of the value should be copied to
-	 * @return record position
+	 * clear all the values from the map. Clear starts the next generation of the buckets and resets the record region 
+	 * instead of walking every chain, so its time does not grow with the no of records. It still takes and releases every 
+	 * bucket lock, which fences the puts and removes in progress, so its time grows with the no of buckets
 	 */
-	public long getRecordZeroCopy( final LongDirectBuffer aKey, final long aKeyStartIndex, final LongMutableDirectBuffer aValue, final long aValueStartIndex ) 
-	{		
-		if ( !zeroCopyGetAllowed )
+	public void clear()
+	{
+		beginWritableAccess();
+		try
 		{
-			throw new RuntimeException( "Zero Copy is not allowed for Memory Mapped File backed or Concurrent F1BinaryMap" );
+			// lock everything first
+			lockAll();
+			try
+			{
+			    emptyMap();
+			    if ( changeLog != null )
+			    {
+			    	changeLog.append( F1BinaryMapChangeLog.CHANGE_TYPE_CLEAR, null, 0, null, 0 );
+			    }
+			    if ( journal != null )
+			    {
+			    	journal.append( F1BinaryMapJournal.ENTRY_TYPE_CLEAR, null, 0, null, 0 );
+			    }
+			}
+			finally
+			{		
+				unlockAll();
+			}
 		}
-	    long bucket = hashBucketRegion.hash( aKey, aKeyStartIndex );
-	    hashBucketRegion.lock( bucket );
-	    try 
-	    {
-	    	long recordPosition = hashBucketRegion.getTop( bucket );
-	    	if ( recordPosition != NULL ) 
-	    	{			
-	    		// non-empty hash chain
-	    		for ( ;; recordPosition = recordRegion.getLinkValue( recordPosition ) ) 
-	    		{ // search hash chain
-	    			if ( equals( aKey, aKeyStartIndex, recordPosition ) ) 
-	    			{	// found ?
-	    				recordRegion.setMemoryAddressFromRecordRegion( recordPosition, aValue, aValueStartIndex);
-	    				break;
-	    			} // if
-	    			if ( recordRegion.getLinkValue( recordPosition ) == NULL ) 
-	    			{ 
-	    				recordPosition = NULL; 
-	    				break; 
-	    			} // not found
-	    		} // for
-	    	} // if
-	    	return recordPosition;
-	    } 
-	    finally 
-	    {
-	    	hashBucketRegion.unlock( bucket );
-	    } // try
-	} // get
-
-	/**
-	 * put the given record with the key into the map
-	 * @param aKey key
-	 * @param aKeyStartIndex start index of the key in the key buffer
-	 * @param aValue value buffer
-	 * @param aValueStartIndex start index of the value from the buffer
-	 * @return record position
-	 */
-	final long putRecord( final LongDirectBuffer aKey, final long aKeyStartIndex, final LongDirectBuffer aValue, final long aValueStartIndex ) 
-	{
-	    long bucket = hashBucketRegion.hash( aKey, aKeyStartIndex );  
-	    hashBucketRegion.lock( bucket );
-	    long recordPosition = NULL;
-	    // check for update versus add
-	    try 
-	    {
-	    	recordPosition = hashBucketRegion.getTop( bucket );
-	    	if ( recordPosition != NULL ) 
-	    	{			// non-empty hash chain
-	    		for ( ;; recordPosition = recordRegion.getLinkValue( recordPosition ) ) 
-	    		{ 
-	    			// search hash chain
-	    			if ( equals( aKey, aKeyStartIndex, recordPosition ) ) 
-	    			{	
-	    				// found ?
-	    				recordRegion.copyValueToRecordRegion( recordPosition, aValue, aValueStartIndex );
-	    				return recordPosition;
-	    			} // if
-	    			if ( recordRegion.getLinkValue( recordPosition ) == NULL ) 
-	    			{ 
-	    				// not found
-	    				break;
-	    			} // if
-	    		} // for
-	    	} // if
-	    } 
-	    finally 
-	    {
-	    	hashBucketRegion.unlock( bucket );
-	    } // try
-
-	    // existing record not found. create a new record 
-	    boolean found = false;
-
-	    // speculatively get record to hold new data
-	    long newRecordPosition = recordRegion.newRecord(aKey, aKeyStartIndex, bucket);	// create record and initialize
-
-	    // Race to add new record with given key, but could lose and becomes update.
-	    // Update => allocated record unused.
-	    hashBucketRegion.lock( bucket );
-	    try 
-	    {
-	    	long top = hashBucketRegion.getTop( bucket );
-	    	recordPosition = top;
-	    	if ( recordPosition == NULL ) 
-	    	{			
-	    		// empty hash chain
-	    		recordRegion.copyValueToRecordRegion( newRecordPosition, aValue, aValueStartIndex );   		
-	    		hashBucketRegion.updateTop( bucket, newRecordPosition ); // set bucket to new node
-	    		recordPosition = newRecordPosition;
-	    	} 
-	    	else 
-	    	{
-	    		for ( ;; recordPosition = recordRegion.getLinkValue( recordPosition ) ) 
-	    		{    			
-	    			// search hash chain
-	    			if ( equals( aKey, aKeyStartIndex, recordPosition ) ) 
-	    			{	
-	    				// found ?
-	    				recordRegion.copyValueToRecordRegion( recordPosition, aValue, aValueStartIndex );
-	    				found = true;
-	    				break;
-	    			} // if
-	    			if ( recordRegion.getLinkValue( recordPosition ) == NULL ) 
-	    			{ 
-	    				// not found
-	    				recordRegion.copyValueToRecordRegion( newRecordPosition, aValue, aValueStartIndex );
-	    				recordRegion.updateLinkValue( newRecordPosition, top );
-	    				hashBucketRegion.updateTop( bucket, newRecordPosition);
-	    				recordPosition = newRecordPosition;
-	    				break;
-	    			} // if
-	    		} // for
-	    	} // if
-	    	return recordPosition;
-	    } 
-	    finally 
-	    {
-	    	if ( recordPosition != NULL )
-	    	{
-	    		incrementSize();
-	    	}
-	    	hashBucketRegion.unlock( bucket );
-	    	if ( found ) 
-	    	{
-	    		free( newRecordPosition );	// return unused record
-	    	} // if
-	    } // try
-	} // put
-
+		finally
+		{
+			endAccess();
+		}
+	} // clear
+	
 	/**
-	 * remove the record of the given key
-	 * @param aKey key
-	 * @param aKeyStartIndex start index of the key in the key buffer
-	 * @return true if the key existed and has been removed or false if the key does not exist
+	 * empty the map by starting the next generation of the buckets, so every bucket of the previous generation is empty and 
+	 * the whole record region is reused from the start. The entire map must be locked
 	 */
-	final boolean remove( final LongDirectBuffer aKey, final long aKeyStartIndex ) 
+	private void emptyMap()
 	{
-	    boolean found = false;
-	    long bucket = hashBucketRegion.hash( aKey, aKeyStartIndex );
-	    long recordPosition = 0;
-
-	    hashBucketRegion.lock( bucket );
-	    try 
-	    {
-	    	recordPosition = hashBucketRegion.getTop( bucket );
-	    	if ( recordPosition == NULL ) 
-	    	{
-	    		return false;	// non-existing key
-	    	}
-	    	if ( equals( aKey, aKeyStartIndex, recordPosition ) ) 
-	    	{		// found, remove first (head) node
-	    		long linkValue = recordRegion.getLinkValue( recordPosition );	    		
-	    		hashBucketRegion.updateTop( bucket, linkValue ); // set bucket to next node on freelist
-	    	} 
-	    	else 
-	    	{
-	    		long previousRecord = recordPosition;			// need previous node
-	    		for ( recordPosition = recordRegion.getLinkValue( recordPosition );; recordPosition = recordRegion.getLinkValue( recordPosition ) ) 
-	    		{ 
-	    			// search hash chain
-	    			if ( recordPosition == NULL ) 
-	    			{
-	    				return false; // non-existing key
-	    			}
-	    			if ( equals( aKey, aKeyStartIndex, recordPosition ) ) 
-	    			{	// found ?
-	    				long temp = recordRegion.getLinkValue( recordPosition ); // link around removed node
-	    				recordRegion.updateLinkValue( previousRecord, temp ); // link around removed node
-	    				break;
-	    			} // if
-	    			previousRecord = recordPosition;
-	    		} // for
-	    	} // if
-	    	// record is now removed
-	    	found = true;
-	    	return true;
-	    } 
-	    finally 
+	    nextEpoch();
+	    hashBucketRegion.nextGeneration();
+	    mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_END, 0 );
+	    mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_FREE, NULL );
+	    mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_SIZE, 0 );
+	    if ( nearCache != null )
 	    {
-	    	if ( found ) 
-	    	{
-	    		recordRegion.deleteRecord( recordPosition );		// return unused record
-	    		decrementSize();
-	    	} // if
-	    	hashBucketRegion.unlock( bucket );
-	    } // try
-	} // remove
-
+	    	nearCache.invalidateAll();
+	    }
+	}
+	
 	/**
-	 * dispose the map and releases all the resources
-	 * @param shouldEraseAllPersistedMemory true will remove all the existing persisted memory from the system
+	 * compact the map after mass removals. The records behind the first SIZE records of the record region are moved into
+	 * the free records in front of them, so the records in use are packed at the start of the record region, and the memory
+	 * pages behind the last record are released if the backing store supports it. All the buckets are locked while the map 
+	 * is compacted. Record positions and values retrieved with zero copy get before are invalid afterwards, and no snapshot
+	 * may be alive. The map is left unchanged if records being put or removed by other threads keep it from being compacted
+	 * @return no of memory pages released
 	 */
-	public void dispose( boolean shouldEraseAllPersistedMemory )
+	public long compact()
 	{
-		mapBackingStore.dispose(shouldEraseAllPersistedMemory);
+		beginWritableAccess();
+		try
+		{
+			ensureNotShared( "Compact" );
+			return compact( 0 );
+		}
+		finally
+		{
+			endAccess();
+		}
 	}
 	
 	/**
-	 * iterate all the key and values by traversing the map. This method can be used by non-concurrent map
-	 * and memory access will be provided in no copy style. Access this method with concurrent map will get run time exception
-	 * @param anIterator iterator
+	 * shrink the map after mass removals to the given no of memory pages, i.e., the memory mapped files or the chunks.
+	 * The map is compacted, so the records in use are packed below the given no of memory pages, and the memory pages 
+	 * beyond are released. A memory mapped map writes back all its files, and deletes the trailing files, which the map 
+	 * maps again once it expands. All the buckets are locked while the map is shrunk. Record positions and values retrieved 
+	 * with zero copy get before are invalid afterwards, and no snapshot may be alive
+	 * @param aNoOfMemoryPages no of memory pages to be kept, which is at least the no of memory pages of the records in use
+	 * @return no of memory pages released
 	 */
-	public void traverse( final F1BinaryMapIterator anIterator )
+	public long shrink( final long aNoOfMemoryPages )
 	{
-		if ( concurrentMap )
+		beginWritableAccess();
+		try
 		{
-			throw new RuntimeException( "Cannot use this method to traverse concurrent map. Please use traverse( anIterator, aBuffer )" );
+			ensureNotShared( "Shrink" );
+			long size = getSize();
+			long usedMapSize = size == 0 ? recordRegion.baseOffset : recordRegion.getRecordMemoryAddress( size - 1 ) + recordSize;
+			if ( aNoOfMemoryPages < mapBackingStore.calculateNoOfMemoryPages( usedMapSize ) )
+			{
+				throw new IllegalArgumentException( "Records in use do not fit into " + aNoOfMemoryPages + " memory pages" );
+			}
+			return compact( aNoOfMemoryPages );
+		}
+		finally
+		{
+			endAccess();
 		}
-		// iterate through
-	    for ( long bucketIndex = 0; bucketIndex < hashBucketRegion.noOfBuckets; bucketIndex += 1 ) 
-	    {
-	    	long bucketTop = hashBucketRegion.getTop( bucketIndex );
-	    	if ( bucketTop != NULL ) 
-	    	{
-	    		for ( long recordPosition = hashBucketRegion.getTop( bucketIndex  ); recordPosition != NULL; recordPosition = recordRegion.getLinkValue( recordPosition ) ) 
-	    		{
-	        		long address = recordRegion.getRecordMemoryAddress( recordPosition );
-	        		long memoryBufferAddress =  mapBackingStore.getMemoryBufferAddress( address );
-	        		long keyStartIndex = memoryBufferAddress + RECORD_KEY_OFFSET;
-	        		long valueStartIndex = memoryBufferAddress + recordValueOffset;
-	        		LongDirectBuffer buffer =  mapBackingStore.getMemoryRegion( address );
-	        		anIterator.iterate( buffer, keyStartIndex, keySize, valueStartIndex, valueSize );
-	    		} // for
-	    	} // if
-	    } // for
 	}
 	
 	/**
-	 * iterate all long values of the given value offset by traversing the map. This method can be used by non-concurrent map
-	 * and memory access will be provided in no copy style. Access this method with concurrent map will get run time exception
-	 * @param anIterator iterator
-	 * @param aValueOffset address offset from the value position where the long value is located in each record
+	 * compact the map and release the memory pages behind the last record beyond the given no of memory pages
+	 * @param aMinNoOfMemoryPages min no of memory pages to be kept
+	 * @return no of memory pages released
 	 */
-	public void traverse( final F1BinaryMapLongValueIterator anIterator, int aValueOffset )
+	private long compact( final long aMinNoOfMemoryPages )
 	{
-		// TODO how not to repeat the logic
-		if ( concurrentMap )
+		for ( int attempt = 1; ; attempt++ )
 		{
-			throw new RuntimeException( "Cannot use this method to traverse concurrent map. Please use traverse( anIterator, aBuffer )" );
+			long noOfReleasedMemoryPages = tryCompact( aMinNoOfMemoryPages );
+			if ( noOfReleasedMemoryPages != -1 )
+			{
+				return noOfReleasedMemoryPages;
+			}
+			if ( attempt == COMPACT_MAX_ATTEMPTS )
+			{
+				throw new RuntimeException( "Cannot compact the map while records are being put or removed" );
+			}
+			Thread.yield();
 		}
-		// iterate through
-	    for ( long bucketIndex = 0; bucketIndex < hashBucketRegion.noOfBuckets; bucketIndex += 1 ) 
-	    {
-	    	long bucketTop = hashBucketRegion.getTop( bucketIndex );
-	    	if ( bucketTop != NULL ) 
-	    	{
-	    		for ( long recordPosition = hashBucketRegion.getTop( bucketIndex  ); recordPosition != NULL; recordPosition = recordRegion.getLinkValue( recordPosition ) ) 
-	    		{
-	        		long address = recordRegion.getRecordMemoryAddress( recordPosition );
-	        		long memoryBufferAddress =  mapBackingStore.getMemoryBufferAddress( address );
-	        		long longValueStartIndex = memoryBufferAddress + recordValueOffset + aValueOffset;
-	        		LongDirectBuffer buffer =  mapBackingStore.getMemoryRegion( address );
-	        		anIterator.iterate( buffer.getLong( longValueStartIndex ) );
-	    		} // for
-	    	} // if
-	    } // for		
 	}
 	
 	/**
-	 * clear all the values from the map
+	 * compact the map and release the memory pages behind the last record beyond the given no of memory pages, unless there
+	 * are not enough free records in front of the new end to receive the records behind it. This happens if a record 
+	 * removed or allocated by a put, which has not taken the map lock or its bucket lock again yet, is in front of the new 
+	 * end, since such a record is neither chained nor free
+	 * @param aMinNoOfMemoryPages min no of memory pages to be kept
+	 * @return no of memory pages released or -1 if the map has been left unchanged
 	 */
-	public void clear()
+	private long tryCompact( final long aMinNoOfMemoryPages )
 	{
+		lockAll();
 		try
 		{
-			// lock everything first
-			lockMap();
+			if ( isSnapshotAlive() )
+			{
+				throw new RuntimeException( "Cannot compact the map while a snapshot is alive" );
+			}
+			long size = mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_SIZE );
+			long noOfFreeRecords = 0;
+			for ( long recordPosition = mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_FREE ); recordPosition != NULL; recordPosition = recordRegion.getFreeLinkValue( recordPosition ) ) 
+			{
+				if ( recordPosition < size )
+				{
+					noOfFreeRecords += 1;
+				}
+			} // for
+			long noOfMovedRecords = 0;
 		    for ( long bucketIndex = 0; bucketIndex < hashBucketRegion.noOfBuckets; bucketIndex += 1 ) 
 		    {
-		    	hashBucketRegion.lock(bucketIndex);
+		    	for ( long recordPosition = hashBucketRegion.getTop( bucketIndex ); recordPosition != NULL; recordPosition = recordRegion.getLinkValue( recordPosition ) )
+		    	{
+		    		if ( recordPosition >= size )
+		    		{
+		    			noOfMovedRecords += 1;
+		    		}
+		    	} // for
+		    } // for
+		    if ( noOfMovedRecords > noOfFreeRecords )
+		    {
+		    	return -1;
 		    }
+		    // the records removed or allocated meanwhile are behind the new end, and are neither freed nor linked once unlocked
+		    nextEpoch();
+			// keep the free records in front of the new end only, they receive the records behind it
+			long lastFreeRecordPosition = NULL;
+			for ( long recordPosition = mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_FREE ); recordPosition != NULL; ) 
+			{
+				long nextFreeRecordPosition = recordRegion.getFreeLinkValue( recordPosition );
+				if ( recordPosition < size )
+				{
+					if ( lastFreeRecordPosition == NULL )
+					{
+						mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_FREE, recordPosition );
+					}
+					else
+					{
+						recordRegion.updateFreeLinkValue( lastFreeRecordPosition, recordPosition );
+					}
+					lastFreeRecordPosition = recordPosition;
+				}
+				recordPosition = nextFreeRecordPosition;
+			} // for
+			if ( lastFreeRecordPosition == NULL )
+			{
+				mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_FREE, NULL );
+			}
+			else
+			{
+				recordRegion.updateFreeLinkValue( lastFreeRecordPosition, NULL );
+			}
+			LongUnsafeBuffer record = new LongUnsafeBuffer( new byte[recordSize] );
 		    for ( long bucketIndex = 0; bucketIndex < hashBucketRegion.noOfBuckets; bucketIndex += 1 ) 
 		    {
-		    	long bucketTop = hashBucketRegion.getTop( bucketIndex );
-		    	if ( bucketTop != NULL ) 
+		    	long previousRecordPosition = NULL;
+		    	for ( long recordPosition = hashBucketRegion.getTop( bucketIndex ); recordPosition != NULL; recordPosition = recordRegion.getLinkValue( recordPosition ) )
 		    	{
-		    		long recordPosition = hashBucketRegion.getTop( bucketIndex  );
-		    		while( recordPosition != NULL )
+		    		if ( recordPosition >= size )
 		    		{
-		    			long nextRecordPosition = recordRegion.getLinkValue( recordPosition );
-		    			long freeRecord =  mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_FREE );
-		    			recordRegion.updateLinkValue( recordPosition, freeRecord );
-		    			mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_FREE, recordPosition );
-		    			recordPosition = nextRecordPosition;
+		    			long freeRecordPosition = mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_FREE );
+		    			mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_FREE, recordRegion.getFreeLinkValue( freeRecordPosition ) );
+		    			// the copy keeps the link to the next record of the chain
+		    			mapBackingStore.getBytesFromMemoryRegion( recordRegion.getRecordMemoryAddress( recordPosition ), recordSize, record, 0 );
+		    			mapBackingStore.putBytesToMemoryRegion( recordRegion.getRecordMemoryAddress( freeRecordPosition ), recordSize, record, 0 );
+		    			if ( previousRecordPosition == NULL )
+		    			{
+		    				hashBucketRegion.updateTop( bucketIndex, freeRecordPosition );
+		    			}
+		    			else
+		    			{
+		    				recordRegion.updateLinkValue( previousRecordPosition, freeRecordPosition );
+		    			}
+		    			recordPosition = freeRecordPosition;
 		    		}
-		    		hashBucketRegion.updateTop( bucketIndex, NULL );
-		    	} // if
+		    		previousRecordPosition = recordPosition;
+		    	} // for
 		    } // for
-		    mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_SIZE, 0 );
+		    mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_END, size );
+		    if ( nearCache != null )
+		    {
+		    	nearCache.invalidateAll();
+		    }
+		    // release the memory pages behind the last record
+		    long noOfMemoryPages = mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_NO_OF_MEMORY_PAGES );
+		    long usedMapSize = size == 0 ? recordRegion.baseOffset : recordRegion.getRecordMemoryAddress( size - 1 ) + recordSize;
+		    // the memory released must not stay locked, the memory kept is locked again
+		    unlockInMemory( usedMapSize );
+		    // no record is allocated beyond the memory kept, even if the map is reopened before the memory pages are released
+		    long noOfAllocatedRecords = mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_SBRK );
+		    mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_SBRK, Math.min( size, noOfAllocatedRecords ) );
+		    long shrunkMapBackingStoreSize = mapBackingStore.shrink( MAP_HEADER_FIELD_ADDRESS_NO_OF_MEMORY_PAGES, 
+		    											Math.max( aMinNoOfMemoryPages, mapBackingStore.calculateNoOfMemoryPages( usedMapSize ) ) );
+		    mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_SBRK, shrunkMapBackingStoreSize == -1 ? noOfAllocatedRecords :
+		    											recordRegion.getNoOfRecords( shrunkMapBackingStoreSize ) );
+		    lockMoreInMemory();
+		    if ( shrunkMapBackingStoreSize == -1 )
+		    {
+		    	return 0;
+		    }
+		    return noOfMemoryPages - mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_NO_OF_MEMORY_PAGES );
 		}
 		finally
 		{		
-			// unlock everything
-		    for ( long bucketIndex = 0; bucketIndex < hashBucketRegion.noOfBuckets; bucketIndex += 1 ) 
-		    {
-		    	hashBucketRegion.unlock(bucketIndex);
-		    }
-			unlockMap();
+			unlockAll();
 		}
-	} // dump
+	} // tryCompact
 	
 	/**
 	 * dump the map backing store information to console
@@ -1291,113 +4753,318 @@ public class F1BinaryMap
 	 */
 	public void dump( KeyValueToString aKeyValueToString, boolean shouldLockMap ) 
 	{
-		if ( shouldLockMap )
-		{
-			lockMap();
-		}
+		beginWritableAccess();
 		try
 		{
-		    final int perLine = 10;			// nodes per line of output
-		    System.out.println( "----------------------- Map Header Regions Dump -----------------------" );
-		    System.out.println( "Lock: " + mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_LOCK ) );
-		    System.out.println( "Sbrk: " + mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_SBRK ) );
-		    System.out.println( "End: " + mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_END ) );
-		    System.out.println( "Free: " + mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_FREE ) );
-		    System.out.println( "Record Size: " + mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_RECORD_SIZE ) );
-		    System.out.println( "No of Memory Pages: " + mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_NO_OF_MEMORY_PAGES ) );
-		    System.out.println( "No of Buckets: " + mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_NO_OF_BUCKETS ) );
-		    System.out.println( "Max Map Size: " + mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_MAX_MAP_SIZE ) );
+			if ( shouldLockMap )
+			{
+				lockMap();
+			}
+			try
+			{
+			    final int perLine = 10;			// nodes per line of output
+			    System.out.println( "----------------------- Map Header Regions Dump -----------------------" );
+			    System.out.println( "Lock: " + mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_LOCK ) );
+			    System.out.println( "Sbrk: " + mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_SBRK ) );
+			    System.out.println( "End: " + mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_END ) );
+			    System.out.println( "Free: " + mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_FREE ) );
+			    System.out.println( "Record Size: " + mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_RECORD_SIZE ) );
+			    System.out.println( "No of Memory Pages: " + mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_NO_OF_MEMORY_PAGES ) );
+			    System.out.println( "No of Buckets: " + mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_NO_OF_BUCKETS ) );
+			    System.out.println( "Max Map Size: " + mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_MAX_MAP_SIZE ) );
 		    
-		    System.out.println( "----------------------- Start Hash Bucket Regions Dump -----------------------" );
-		    System.out.println( "Buckets: ");
-		    for ( long bucketIndex = 0; bucketIndex < hashBucketRegion.noOfBuckets; bucketIndex += 1 ) 
-		    {
-		    	long bucketTop = hashBucketRegion.getTop( bucketIndex );
-		    	if ( bucketTop != NULL ) 
-		    	{
-		    		System.out.print( "    [" + bucketIndex + "] with top " + bucketTop + " = " );
-		    		int count = 0;
-		    		for ( long recordPosition = hashBucketRegion.getTop( bucketIndex  ); recordPosition != NULL; recordPosition = recordRegion.getLinkValue( recordPosition ) ) 
-		    		{
-		    			System.out.print( "[position:" + recordPosition + " key:" + recordRegion.convertKey(recordPosition, aKeyValueToString) + " record:" 
-		    								+ recordRegion.convertValue(recordPosition, aKeyValueToString)  + "] -> ");
-		    			if ( count == perLine ) 
-		    			{
-		    				System.out.print( "\n        " );
-		    				count = 0;
-		    			} // if
-		    			count += 1;
-		    		} // for
-		    		System.out.println( "" );
-		    	} // if
-		    } // for
+			    System.out.println( "----------------------- Start Hash Bucket Regions Dump -----------------------" );
+			    System.out.println( "Buckets: ");
+			    for ( long bucketIndex = 0; bucketIndex < hashBucketRegion.noOfBuckets; bucketIndex += 1 ) 
+			    {
+			    	long bucketTop = hashBucketRegion.getTop( bucketIndex );
+			    	if ( bucketTop != NULL ) 
+			    	{
+			    		System.out.print( "    [" + bucketIndex + "] with top " + bucketTop + " = " );
+			    		int count = 0;
+			    		for ( long recordPosition = hashBucketRegion.getTop( bucketIndex  ); recordPosition != NULL; recordPosition = recordRegion.getLinkValue( recordPosition ) ) 
+			    		{
+			    			System.out.print( "[position:" + recordPosition + " key:" + recordRegion.convertKey(recordPosition, aKeyValueToString) + " record:" 
+			    								+ recordRegion.convertValue(recordPosition, aKeyValueToString)  + "] -> ");
+			    			if ( count == perLine ) 
+			    			{
+			    				System.out.print( "\n        " );
+			    				count = 0;
+			    			} // if
+			    			count += 1;
+			    		} // for
+			    		System.out.println( "" );
+			    	} // if
+			    } // for
 	
-		    System.out.print( "FREELIST:\n    " );
-		    int count = 0;
-		    for ( long recordPosition = mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_FREE ); recordPosition != NULL; recordPosition = recordRegion.getLinkValue( recordPosition) ) 
-		    {
-		    	System.out.print( "[" + recordPosition + "] -> " );
-		    	if ( count == perLine ) 
-		    	{
-		    		System.out.print( "\n    " );
-		    		count = 0;
-		    	} // if
-		    	count += 1;
-		    } // for
-		    System.out.println( "" );
-		    System.out.println( "----------------------- End Hash Table Dump -----------------------" );
+			    System.out.print( "FREELIST:\n    " );
+			    int count = 0;
+			    for ( long recordPosition = mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_FREE ); recordPosition != NULL; recordPosition = recordRegion.getFreeLinkValue( recordPosition) ) 
+			    {
+			    	System.out.print( "[" + recordPosition + "] -> " );
+			    	if ( count == perLine ) 
+			    	{
+			    		System.out.print( "\n    " );
+			    		count = 0;
+			    	} // if
+			    	count += 1;
+			    } // for
+			    System.out.println( "" );
+			    System.out.println( "----------------------- End Hash Table Dump -----------------------" );
+			}
+			finally
+			{
+				if ( shouldLockMap )
+				{
+					unlockMap();
+				}
+			}
 		}
 		finally
 		{
-			if ( shouldLockMap )
+			endAccess();
+		}
+	} // dump
+	
+	/**
+	 * verify the consistency of the map and optionally repair it. The verification finds the map lock and the bucket locks 
+	 * left locked by a process which died while accessing the map, chains and a free list leading to invalid records, which 
+	 * would send an access into a loop, records leaked by neither being in use nor free, and a wrong SIZE or END. The buckets 
+	 * are verified in parallel ranges, so the time taken is the time to visit every record divided by the parallelism.
+	 * The repair resets the stale locks, cuts the chains and the free list in front of the first invalid record, returns the 
+	 * leaked records to the free list and corrects SIZE and END, so records behind a broken link are lost. 
+	 * It has to be called right after the map is opened and before the map is shared with other threads
+	 * @param shouldRepair true to repair the inconsistencies found
+	 * @param aParallelism no of threads used to verify the map
+	 * @return verification report
+	 */
+	public F1BinaryMapVerification verify( final boolean shouldRepair, final int aParallelism )
+	{
+		beginWritableAccess();
+		try
+		{
+			F1BinaryMapVerification verification = new F1BinaryMapVerification( shouldRepair );
+			boolean isStaleMapLock = mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_LOCK ) != VALUE_UNLOCKED;
+			long noOfAllocatedRecords = mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_SBRK );
+			long end = mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_END );
+			boolean isEndValid = end >= 0 && end <= noOfAllocatedRecords;
+			end = Math.max( 0, Math.min( end, noOfAllocatedRecords ) );
+			verification.setHeaderInfo( isStaleMapLock, isEndValid, mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_SIZE ) );
+			if ( shouldRepair )
 			{
-				unlockMap();
+				mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_LOCK, VALUE_UNLOCKED );
+				mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_END, end );
+			}
+			// every record reachable from a bucket or the free list is marked, so a record reached twice breaks the link to it
+			AtomicLongArray reachedRecords = new AtomicLongArray( (int)( ( end + Long.SIZE - 1 ) >>> 6 ) );
+			invoke( new ParallelVerifyTask( 0, hashBucketRegion.noOfBuckets, getParallelTraverseThreshold( aParallelism ), 
+											end, reachedRecords, shouldRepair, verification ), aParallelism );
+			verifyFreeList( end, reachedRecords, shouldRepair, verification );
+			if ( shouldRepair )
+			{
+				mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_SIZE, verification.getNoOfRecords() );
+				if ( nearCache != null )
+				{
+					nearCache.invalidateAll();
+				}
 			}
+			return verification;
 		}
-	} // dump
+		finally
+		{
+			endAccess();
+		}
+	}
+	
+	/**
+	 * verify the buckets of the given range
+	 * @param aFromBucketIndex index of the first bucket
+	 * @param aToBucketIndex index after the last bucket
+	 * @param anEnd end of the used records
+	 * @param aReachedRecords marks of the records reached so far
+	 * @param shouldRepair true to repair the inconsistencies found
+	 * @param aVerification verification report
+	 */
+	private void verifyBuckets( final long aFromBucketIndex, final long aToBucketIndex, final long anEnd, final AtomicLongArray aReachedRecords, 
+								final boolean shouldRepair, final F1BinaryMapVerification aVerification )
+	{
+		long noOfStaleBucketLocks = 0, noOfRecords = 0, noOfBrokenChains = 0;
+		for ( long bucketIndex = aFromBucketIndex; bucketIndex < aToBucketIndex; bucketIndex += 1 ) 
+		{
+			long lockFieldAddress = hashBucketRegion.getLockFieldAddress( bucketIndex );
+			long version = mapBackingStore.getLongFromMemoryRegion( lockFieldAddress );
+			if ( ( version & VALUE_LOCKED ) != VALUE_UNLOCKED )
+			{
+				noOfStaleBucketLocks += 1;
+				if ( shouldRepair )
+				{
+					// the version moves on, so a read only map never takes the repaired bucket for unchanged
+					mapBackingStore.putLongOrderedInMemoryRegion( lockFieldAddress, ( version + 1 ) & BUCKET_VERSION_MASK );
+				}
+			}
+			long previousRecordPosition = NULL;
+			for ( long recordPosition = hashBucketRegion.getTop( bucketIndex ); recordPosition != NULL; recordPosition = recordRegion.getLinkValue( recordPosition ) ) 
+			{
+				if ( recordPosition < 0 || recordPosition >= anEnd || recordRegion.isFree( recordPosition ) || 
+					 hashBucketRegion.getBucketIndex( recordRegion.hashKey( recordPosition ) ) != bucketIndex ||
+					 !MarkReached( aReachedRecords, recordPosition ) )
+				{
+					noOfBrokenChains += 1;
+					if ( shouldRepair )
+					{
+						if ( previousRecordPosition == NULL )
+						{
+							hashBucketRegion.updateTop( bucketIndex, NULL );
+						}
+						else
+						{
+							recordRegion.updateLinkValue( previousRecordPosition, NULL );
+						}
+					}
+					break;
+				}
+				noOfRecords += 1;
+				previousRecordPosition = recordPosition;
+			} // for
+		} // for
+		aVerification.addBucketInfo( noOfStaleBucketLocks, noOfRecords, noOfBrokenChains );
+	}
+	
+	/**
+	 * verify the free list and find the leaked records. The buckets must have been verified
+	 * @param anEnd end of the used records
+	 * @param aReachedRecords marks of the records reached from the buckets
+	 * @param shouldRepair true to repair the inconsistencies found
+	 * @param aVerification verification report
+	 */
+	private void verifyFreeList( final long anEnd, final AtomicLongArray aReachedRecords, final boolean shouldRepair, 
+								final F1BinaryMapVerification aVerification )
+	{
+		long noOfFreeRecords = 0;
+		boolean isFreeListBroken = false;
+		long previousRecordPosition = NULL;
+		for ( long recordPosition = mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_FREE ); recordPosition != NULL; 
+			  recordPosition = recordRegion.getFreeLinkValue( recordPosition ) ) 
+		{
+			if ( recordPosition < 0 || recordPosition >= anEnd || !MarkReached( aReachedRecords, recordPosition ) )
+			{
+				isFreeListBroken = true;
+				if ( shouldRepair )
+				{
+					if ( previousRecordPosition == NULL )
+					{
+						mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_FREE, NULL );
+					}
+					else
+					{
+						recordRegion.updateFreeLinkValue( previousRecordPosition, NULL );
+					}
+				}
+				break;
+			}
+			noOfFreeRecords += 1;
+			previousRecordPosition = recordPosition;
+		} // for
+		long noOfLeakedRecords = 0;
+		for ( long recordPosition = 0; recordPosition < anEnd; recordPosition++ )
+		{
+			if ( ( aReachedRecords.get( (int)( recordPosition >>> 6 ) ) & ( 1L << recordPosition ) ) == 0 )
+			{
+				noOfLeakedRecords += 1;
+				if ( shouldRepair )
+				{
+					recordRegion.updateFreeLinkValue( recordPosition, mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_FREE ) );
+					mapBackingStore.putLongInHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_FREE, recordPosition );
+				}
+			}
+		} // for
+		aVerification.setFreeListInfo( noOfFreeRecords, isFreeListBroken, noOfLeakedRecords );
+	}
+	
+	/**
+	 * mark the given record as reached
+	 * @param aReachedRecords marks of the records
+	 * @param aRecordPosition record position
+	 * @return true if the record has not been reached before
+	 */
+	private final static boolean MarkReached( final AtomicLongArray aReachedRecords, final long aRecordPosition )
+	{
+		int index = (int)( aRecordPosition >>> 6 );
+		long mark = 1L << aRecordPosition;
+		for(;;)
+		{
+			long marks = aReachedRecords.get( index );
+			if ( ( marks & mark ) != 0 )
+			{
+				return false;
+			}
+			if ( aReachedRecords.compareAndSet( index, marks, marks | mark ) )
+			{
+				return true;
+			}
+		}
+	}
 	
 	/**
 	 * get statistics information
 	 */
 	public final F1BinaryMapStatistics statistics() 
 	{
-		lockMap();
+		beginWritableAccess();
 		try
 		{
-		    long usedBuckets = 0, maxHashChain = 0, equalMax = 0, size = getSize();
+			lockMap();
+			try
+			{
+			    long usedBuckets = 0, maxHashChain = 0, equalMax = 0, size = getSize();
 	
-		    for ( long bucketIndex = 0; bucketIndex < hashBucketRegion.noOfBuckets; bucketIndex += 1 ) 
-		    {
-				if ( hashBucketRegion.getTop( bucketIndex ) != NULL ) 
-				{
-				    usedBuckets += 1;
-				    long count = 0;
-				    for ( long recordPosition = hashBucketRegion.getTop( bucketIndex ); recordPosition != NULL; recordPosition = recordRegion.getLinkValue( recordPosition ) ) 
-				    {
-				    	count += 1;
-				    } // for
-				    if ( count > maxHashChain ) 
-				    { 
-				    	maxHashChain = count; 
-				    	equalMax = 0; 
-				    }
-				    if ( count == maxHashChain ) 
-				    {
-				    	equalMax += 1;
-				    }
-				} // if
-		    } // for
-		    int freeList = 0;
-		    for ( long index = mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_FREE ); index != NULL; index = recordRegion.getLinkValue( index ) ) 
-		    {
-		    	freeList += 1;
-		    } // for
-		    statistics.setStatisticalInfo( usedBuckets, maxHashChain, equalMax, statisticsExpands, statisticsEvicts, freeList, size );
-		    return statistics;
+			    for ( long bucketIndex = 0; bucketIndex < hashBucketRegion.noOfBuckets; bucketIndex += 1 ) 
+			    {
+					if ( hashBucketRegion.getTop( bucketIndex ) != NULL ) 
+					{
+					    usedBuckets += 1;
+					    long count = 0;
+					    for ( long recordPosition = hashBucketRegion.getTop( bucketIndex ); recordPosition != NULL; recordPosition = recordRegion.getLinkValue( recordPosition ) ) 
+					    {
+					    	count += 1;
+					    } // for
+					    if ( count > maxHashChain ) 
+					    { 
+					    	maxHashChain = count; 
+					    	equalMax = 0; 
+					    }
+					    if ( count == maxHashChain ) 
+					    {
+					    	equalMax += 1;
+					    }
+					} // if
+			    } // for
+			    int freeList = 0;
+			    for ( long index = mapBackingStore.getLongFromHeaderMemoryRegion( MAP_HEADER_FIELD_ADDRESS_FREE ); index != NULL; index = recordRegion.getFreeLinkValue( index ) ) 
+			    {
+			    	freeList += 1;
+			    } // for
+			    statistics.setStatisticalInfo( usedBuckets, maxHashChain, equalMax, statisticsExpands, statisticsEvicts, freeList, size );
+			    if ( tiering != null )
+			    {
+			    	statistics.setTieringInfo( tiering.getNoOfHotRecords(), tiering.getNoOfPromotions() );
+			    }
+			    statistics.setMemoryLockInfo( memoryLockMode, getNoOfBytesToLockInMemory(), noOfMemoryLockedBytes, NativeMemory.GetMemoryLockLimit() );
+			    statistics.setLockInfo( noOfStaleLocksRecovered.sum() );
+			    if ( nearCache != null )
+			    {
+			    	statistics.setNearCacheInfo( nearCache.getNoOfEntries(), nearCache.getNoOfHits(), nearCache.getNoOfMisses() );
+			    }
+			    return statistics;
+			}
+			finally
+			{
+				unlockMap();
+			}
 		}
 		finally
 		{
-			unlockMap();
+			endAccess();
 		}
 	} // statistics
 }
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2016 Smash.bi Inc.
+ * http://www.smash.bi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package smash.f1.collection;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * F1BinaryMapAccessGuard counts the accesses of a F1BinaryMap in progress, so the memory of the map is only released once
+ * no thread is in the middle of an access.
+ *
+ * The accesses are counted in stripes of their own cache line and a thread always counts in the same stripe, so the count
+ * of each stripe never drops below 0 and threads rarely contend on a stripe. An access counts itself before it checks if the
+ * map is closed, while close marks the map closed before it checks the counts, so either the access sees the map closed or
+ * close sees the access.
+ */
+final class F1BinaryMapAccessGuard
+{
+	private final static int STRIPE_PADDING = 16;	// longs of each stripe, so no 2 stripes share a cache line
+	private final static long HASH_SPREAD = 0x9E3779B97F4A7C15L;
+
+	private final int stripeMask;
+	private final AtomicLongArray noOfAccesses;		// accesses in progress of each stripe
+	private volatile boolean isClosed;
+
+	/**
+	 * create access guard with 2 stripes per processor
+	 */
+	F1BinaryMapAccessGuard()
+	{
+		int noOfStripes = (int)F1BinaryMap.GetClosestPowerOfTwo( 2 * Runtime.getRuntime().availableProcessors() );
+		stripeMask = noOfStripes - 1;
+		noOfAccesses = new AtomicLongArray( noOfStripes * STRIPE_PADDING );
+	}
+
+	/**
+	 * get the index of the count of the stripe of the current thread
+	 * @return index of the count
+	 */
+	private int getStripeIndex()
+	{
+		long threadId = Thread.currentThread().getId();
+		return (int)( ( ( threadId * HASH_SPREAD ) >>> Integer.SIZE ) & stripeMask ) * STRIPE_PADDING;
+	}
+
+	/**
+	 * begin an access unless the map is closed. Every access begun must be ended by end
+	 * @return true if the access has begun or false if the map is closed
+	 */
+	boolean begin()
+	{
+		int stripeIndex = getStripeIndex();
+		noOfAccesses.getAndIncrement( stripeIndex );
+		if ( isClosed )
+		{
+			noOfAccesses.getAndDecrement( stripeIndex );
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * end an access begun by the current thread
+	 */
+	void end()
+	{
+		noOfAccesses.getAndDecrement( getStripeIndex() );
+	}
+
+	/**
+	 * close the map and wait until the accesses in progress have ended. The current thread must not be in the middle of an
+	 * access, or it waits forever
+	 * @return true if the map has been closed or false if it has been closed already
+	 */
+	synchronized boolean close()
+	{
+		if ( isClosed )
+		{
+			return false;
+		}
+		isClosed = true;
+		for( int stripeIndex = 0; stripeIndex < noOfAccesses.length(); stripeIndex += STRIPE_PADDING )
+		{
+			while( noOfAccesses.get( stripeIndex ) != 0 )
+			{
+				Thread.yield();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * check if the map has been closed
+	 * @return true if the map has been closed
+	 */
+	boolean isClosed()
+	{
+		return isClosed;
+	}
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2016 Smash.bi Inc.
+ * http://www.smash.bi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package smash.f1.collection;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * F1BinaryMapBackup tracks the ranges of the map memory written since the last backup, so an incremental backup copies
+ * the changed ranges only, see F1BinaryMap.backup and F1BinaryMap.backupIncremental. The memory is divided into ranges
+ * of 64KB and the backup listens to the writes of the backing store and marks the range of each write in a bitmap. The
+ * bitmap is swapped for an empty one while the whole map is locked for the snapshot a backup is taken from, so every
+ * write lands either in the backup or in the bitmap of the next one.
+ *
+ * A backup is streamed through a F1BinaryMapImage and consists of
+ * HEADER MAGIC, RANGE BITS and the fields of HEADER_FIELD_*
+ * RANGES the ADDRESS, LENGTH and content of each range copied, ended by END_OF_RANGES
+ * CHECKSUM CRC32 of the header and the ranges
+ *
+ * A full backup holds all the ranges of the memory in use, an incremental backup the ranges changed since the backup
+ * identified by its BASE SEQUENCE, so a map is restored by a full backup followed by the incremental backups in order
+ */
+final class F1BinaryMapBackup implements MapBackingStoreWriteListener
+{
+	final static int RANGE_BITS = 16;
+	final static long RANGE_SIZE = 1L << RANGE_BITS;
+	final static long NO_BACKUP = -1;				// base sequence of a full backup
+	final static long END_OF_RANGES = -1;
+
+	final static int HEADER_FIELD_RECORD_SIZE = 0;
+	final static int HEADER_FIELD_NO_OF_BUCKETS = 1;
+	final static int HEADER_FIELD_SEGMENT_BITS = 2;
+	final static int HEADER_FIELD_RECORD_LAYOUT = 3;
+	final static int HEADER_FIELD_SEQUENCE = 4;			// sequence of the backup
+	final static int HEADER_FIELD_BASE_SEQUENCE = 5;	// sequence of the backup the ranges have changed since or NO_BACKUP
+	final static int HEADER_FIELD_END = 6;
+	final static int HEADER_FIELD_FREE = 7;
+	final static int HEADER_FIELD_SIZE = 8;
+	final static int HEADER_FIELD_GENERATION = 9;
+	final static int HEADER_FIELD_USED_SIZE = 10;		// size of the memory in use
+	final static int HEADER_NO_OF_FIELDS = 11;
+
+	private final static long MAGIC = 0x463142414B555030L;	// F1BAKUP0
+
+	private final long noOfRanges;
+	private volatile AtomicLongArray dirtyRanges;	// bit of each range written since the last backup
+	private long sequence;							// sequence of the last backup taken
+
+	/**
+	 * create backup tracking the writes of the given memory
+	 * @param aMaxMapSize max size of the map memory
+	 */
+	F1BinaryMapBackup( final long aMaxMapSize )
+	{
+		noOfRanges = ( aMaxMapSize + RANGE_SIZE - 1 ) >>> RANGE_BITS;
+		if ( ( noOfRanges + Long.SIZE - 1 ) / Long.SIZE > Integer.MAX_VALUE )
+		{
+			throw new IllegalArgumentException( "Map of " + aMaxMapSize + " bytes is too large to be backed up incrementally" );
+		}
+		dirtyRanges = createDirtyRanges();
+		sequence = ThreadLocalRandom.current().nextLong( Long.MAX_VALUE );
+	}
+
+	/**
+	 * create an empty bitmap of the ranges
+	 * @return bitmap
+	 */
+	private AtomicLongArray createDirtyRanges()
+	{
+		return new AtomicLongArray( (int)( ( noOfRanges + Long.SIZE - 1 ) / Long.SIZE ) );
+	}
+
+	@Override
+	public void beforeWrite( final long anAddress, final int aLength )
+	{
+		AtomicLongArray ranges = dirtyRanges;
+		long lastRangeIndex = Math.min( ( anAddress + aLength - 1 ) >>> RANGE_BITS, noOfRanges - 1 );
+		for( long rangeIndex = anAddress >>> RANGE_BITS; rangeIndex <= lastRangeIndex; rangeIndex++ )
+		{
+			int wordIndex = (int)( rangeIndex >>> 6 );
+			long bit = 1L << rangeIndex;
+			// most writes hit a range marked already
+			for( long word = ranges.get( wordIndex ); ( word & bit ) == 0; word = ranges.get( wordIndex ) )
+			{
+				if ( ranges.compareAndSet( wordIndex, word, word | bit ) )
+				{
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * get the ranges written since the last backup and start tracking the writes for the next backup. The whole map must
+	 * be locked
+	 * @return bitmap of the ranges written
+	 */
+	AtomicLongArray swap()
+	{
+		AtomicLongArray ranges = dirtyRanges;
+		dirtyRanges = createDirtyRanges();
+		return ranges;
+	}
+
+	/**
+	 * mark the given ranges as written again, since the backup which should have copied them has failed
+	 * @param aDirtyRanges bitmap of the ranges
+	 */
+	void merge( final AtomicLongArray aDirtyRanges )
+	{
+		AtomicLongArray ranges = dirtyRanges;
+		for( int wordIndex = 0; wordIndex < aDirtyRanges.length(); wordIndex++ )
+		{
+			long bits = aDirtyRanges.get( wordIndex );
+			for( long word = ranges.get( wordIndex ); ( word & bits ) != bits; word = ranges.get( wordIndex ) )
+			{
+				if ( ranges.compareAndSet( wordIndex, word, word | bits ) )
+				{
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * check if the given range is marked in the given bitmap
+	 * @param aDirtyRanges bitmap of the ranges
+	 * @param aRangeIndex index of the range
+	 * @return true if the range has been written
+	 */
+	static boolean IsDirty( final AtomicLongArray aDirtyRanges, final long aRangeIndex )
+	{
+		return ( aDirtyRanges.get( (int)( aRangeIndex >>> 6 ) ) & ( 1L << aRangeIndex ) ) != 0;
+	}
+
+	/**
+	 * get the sequence of the last backup taken
+	 * @return sequence
+	 */
+	long getSequence()
+	{
+		return sequence;
+	}
+
+	/**
+	 * set the sequence of the last backup taken, once it has been written completely
+	 * @param aSequence sequence
+	 */
+	void setSequence( final long aSequence )
+	{
+		sequence = aSequence;
+	}
+
+	/**
+	 * stage the header of a backup
+	 * @param anImage stream of the backup
+	 * @param aChannel channel the backup is written to
+	 * @param aHeader fields of the header
+	 * @throws IOException
+	 */
+	static void PutHeader( final F1BinaryMapImage anImage, final WritableByteChannel aChannel, final long[] aHeader ) throws IOException
+	{
+		anImage.putLong( aChannel, MAGIC );
+		anImage.putLong( aChannel, RANGE_BITS );
+		for( long field : aHeader )
+		{
+			anImage.putLong( aChannel, field );
+		}
+	}
+
+	/**
+	 * read the header of a backup
+	 * @param anImage stream of the backup
+	 * @param aChannel channel the backup is read from
+	 * @return fields of the header
+	 * @throws IOException if the backup cannot be read or is not a backup
+	 */
+	static long[] ReadHeader( final F1BinaryMapImage anImage, final ReadableByteChannel aChannel ) throws IOException
+	{
+		if ( anImage.readLong( aChannel ) != MAGIC )
+		{
+			throw new IOException( "Channel does not provide a map backup" );
+		}
+		if ( anImage.readLong( aChannel ) != RANGE_BITS )
+		{
+			throw new IOException( "Map backup is made of ranges of another size" );
+		}
+		long[] header = new long[HEADER_NO_OF_FIELDS];
+		for( int fieldIndex = 0; fieldIndex < HEADER_NO_OF_FIELDS; fieldIndex++ )
+		{
+			header[fieldIndex] = anImage.readLong( aChannel );
+		}
+		return header;
+	}
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2016 Smash.bi Inc.
+ * http://www.smash.bi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package smash.f1.collection;
+
+import smash.f1.core.agrona.LongDirectBuffer;
+
+/**
+ * F1BinaryMapChangeIterator provides iterator interface to iterate through the changes
+ * recorded in the change log of the map
+ */
+public interface F1BinaryMapChangeIterator
+{
+	/**
+	 * iterate with given change. The change buffer is a view of the change log and is only valid during this call
+	 * @param aSequence sequence of the change
+	 * @param aChangeType type of the change, see F1BinaryMapChangeLog
+	 * @param aChange change buffer
+	 * @param aKeyStartIndex key start index of the change, undefined for clear
+	 * @param aKeyLength length of the key
+	 * @param aValueStartIndex value start index of the change, undefined for clear
+	 * @param aValueLength length of the value
+	 */
+	public void iterate( long aSequence, int aChangeType, LongDirectBuffer aChange, long aKeyStartIndex, int aKeyLength, long aValueStartIndex, int aValueLength );
+
+	/**
+	 * notify that the changes of the given sequence range have been overwritten by the producer before or while they
+	 * were iterated. A lost change which has already been iterated must be discarded
+	 * @param aFromSequence first lost sequence
+	 * @param aToSequence sequence after the last lost sequence
+	 */
+	public void lost( long aFromSequence, long aToSequence );
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2016 Smash.bi Inc.
+ * http://www.smash.bi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package smash.f1.collection;
+
+import smash.f1.core.agrona.LongDirectBuffer;
+import smash.f1.core.agrona.LongUnsafeBuffer;
+import uk.co.real_logic.agrona.UnsafeAccess;
+
+/**
+ * F1BinaryMapChangeLog is a bounded off heap ring of the mutations of a F1BinaryMap. The map records every put, remove,
+ * eviction and clear while the affected bucket is locked, so the changes of a key are recorded in the order they are applied.
+ * Consumers tail the ring by sequence without ever blocking the producers. A consumer which falls behind by more than
+ * the capacity of the ring is notified about the lost changes and continues from the oldest change still available.
+ * The ring is released along with the map, which waits for the reads in progress, and is never read again.
+ *
+ * The ring consists of a header of 1 long field followed by the slots
+ * TAIL next sequence to be claimed by a producer
+ *
+ * Each slot consists of
+ * SEQUENCE sequence of the change held by the slot, EMPTY if the slot has never been written or -(sequence + 2)
+ * while the change of the sequence is being written
+ * TYPE type of the change
+ * KEY key of the change
+ * VALUE value of the change, the new value for put and the last value for remove and eviction
+ */
+public final class F1BinaryMapChangeLog
+{
+	public final static int CHANGE_TYPE_PUT = 1;
+	public final static int CHANGE_TYPE_REMOVE = 2;
+	public final static int CHANGE_TYPE_EVICT = 3;
+	public final static int CHANGE_TYPE_CLEAR = 4;
+
+	private final static int WORDSIZE = Long.SIZE / Byte.SIZE;
+	private final static long HEADER_FIELD_ADDRESS_TAIL = 0;
+	// keep the tail away from the cache line of the first slot
+	private final static long SLOTS_BASE_OFFSET = 64;
+	private final static long SLOT_SEQUENCE_OFFSET = 0;
+	private final static long SLOT_TYPE_OFFSET = WORDSIZE;
+	private final static long SLOT_KEY_OFFSET = 2 * WORDSIZE;
+	private final static long EMPTY = -1;
+
+	private final long noOfSlots;
+	private final long slotIndexMask;
+	private final int keySize;
+	private final int valueSize;
+	private final long slotValueOffset;
+	private final long slotSize;
+	private final long startingAddress;
+	private final LongUnsafeBuffer buffer;
+	private final F1BinaryMapAccessGuard accessGuard = new F1BinaryMapAccessGuard();	// reads in progress, which dispose waits for
+
+	/**
+	 * create change log
+	 * @param aNoOfChanges no of changes the ring can hold, rounded to the closest power of 2
+	 * @param aKeySize size of the key in bytes
+	 * @param aValueSize size of the value in bytes
+	 */
+	F1BinaryMapChangeLog( final long aNoOfChanges, final int aKeySize, final int aValueSize )
+	{
+		if ( aNoOfChanges < 1 )
+		{
+			throw new IllegalArgumentException( "Change log requires at least 1 change" );
+		}
+		noOfSlots = F1BinaryMap.GetClosestPowerOfTwo( aNoOfChanges );
+		slotIndexMask = noOfSlots - 1;
+		keySize = aKeySize;
+		valueSize = aValueSize;
+		slotValueOffset = SLOT_KEY_OFFSET + keySize;
+		// keep every sequence word aligned
+		slotSize = ( slotValueOffset + valueSize + WORDSIZE - 1 ) & ~(WORDSIZE - 1);
+		long totalSize = SLOTS_BASE_OFFSET + slotSize * noOfSlots;
+		startingAddress = UnsafeAccess.UNSAFE.allocateMemory( totalSize );
+		buffer = new LongUnsafeBuffer( startingAddress, totalSize );
+		buffer.putLong( HEADER_FIELD_ADDRESS_TAIL, 0 );
+		for( long slotIndex = 0; slotIndex < noOfSlots; slotIndex++ )
+		{
+			buffer.putLong( SLOTS_BASE_OFFSET + slotIndex * slotSize + SLOT_SEQUENCE_OFFSET, EMPTY );
+		}
+		UnsafeAccess.UNSAFE.storeFence();
+	}
+
+	/**
+	 * get the offset of the slot of the given sequence
+	 * @param aSequence sequence
+	 * @return offset of the slot
+	 */
+	private long getSlotOffset( final long aSequence )
+	{
+		return SLOTS_BASE_OFFSET + ( aSequence & slotIndexMask ) * slotSize;
+	}
+
+	/**
+	 * get the sequence the given sequence word of a slot belongs to
+	 * @param aSequenceWord sequence word of a slot
+	 * @return sequence written or being written into the slot or EMPTY
+	 */
+	private static long GetSequence( final long aSequenceWord )
+	{
+		return aSequenceWord < EMPTY ? -aSequenceWord - 2 : aSequenceWord;
+	}
+
+	/**
+	 * append a change to the ring. The slot of the change is claimed with one atomic increment of the tail and one
+	 * compare and set of its sequence word, and published with one ordered write
+	 * @param aChangeType type of the change
+	 * @param aKey key buffer or null for clear
+	 * @param aKeyStartIndex start index of the key in the key buffer
+	 * @param aValue value buffer or null for clear
+	 * @param aValueStartIndex start index of the value in the value buffer
+	 */
+	void append( final int aChangeType, final LongDirectBuffer aKey, final long aKeyStartIndex,
+				final LongDirectBuffer aValue, final long aValueStartIndex )
+	{
+		long sequence = buffer.getAndAddLong( HEADER_FIELD_ADDRESS_TAIL, 1 );
+		long slotOffset = getSlotOffset( sequence );
+		for(;;)
+		{
+			long sequenceWord = buffer.getLongVolatile( slotOffset + SLOT_SEQUENCE_OFFSET );
+			if ( GetSequence( sequenceWord ) > sequence )
+			{
+				// lapped by a producer of a later sequence, the change is lost for every consumer
+				return;
+			}
+			if ( sequenceWord < EMPTY )
+			{
+				// an older change is still being written into the slot
+				continue;
+			}
+			if ( buffer.compareAndSetLong( slotOffset + SLOT_SEQUENCE_OFFSET, sequenceWord, -sequence - 2 ) )
+			{
+				break;
+			}
+		}
+		buffer.putLong( slotOffset + SLOT_TYPE_OFFSET, aChangeType );
+		if ( aKey != null )
+		{
+			buffer.putBytes( slotOffset + SLOT_KEY_OFFSET, aKey, aKeyStartIndex, keySize );
+		}
+		if ( aValue != null )
+		{
+			buffer.putBytes( slotOffset + slotValueOffset, aValue, aValueStartIndex, valueSize );
+		}
+		buffer.putLongOrdered( slotOffset + SLOT_SEQUENCE_OFFSET, sequence );
+	}
+
+	/**
+	 * iterate the changes starting from the given sequence in batch. The changes are provided as zero copy views of the ring.
+	 * Iteration stops at the first change which has not been published yet
+	 * @param aSequence sequence of the first change to be iterated, i.e., the sequence returned by the previous call
+	 * @param aMaxNoOfChanges max no of changes to be iterated
+	 * @param anIterator iterator
+	 * @return sequence of the next change to be iterated
+	 * @throws IllegalStateException if the map has been disposed
+	 */
+	public long read( final long aSequence, final int aMaxNoOfChanges, final F1BinaryMapChangeIterator anIterator )
+	{
+		beginRead();
+		try
+		{
+			return readChanges( aSequence, aMaxNoOfChanges, anIterator );
+		}
+		finally
+		{
+			accessGuard.end();
+		}
+	}
+	
+	/**
+	 * iterate the changes starting from the given sequence in batch, see read
+	 * @param aSequence sequence of the first change to be iterated
+	 * @param aMaxNoOfChanges max no of changes to be iterated
+	 * @param anIterator iterator
+	 * @return sequence of the next change to be iterated
+	 */
+	private long readChanges( final long aSequence, final int aMaxNoOfChanges, final F1BinaryMapChangeIterator anIterator )
+	{
+		long sequence = aSequence;
+		long tail = getTail();
+		if ( tail - sequence > noOfSlots )
+		{
+			anIterator.lost( sequence, tail - noOfSlots );
+			sequence = tail - noOfSlots;
+		}
+		int count = 0;
+		while( count < aMaxNoOfChanges && sequence < tail )
+		{
+			long slotOffset = getSlotOffset( sequence );
+			long sequenceWord = buffer.getLongVolatile( slotOffset + SLOT_SEQUENCE_OFFSET );
+			if ( sequenceWord != sequence )
+			{
+				if ( GetSequence( sequenceWord ) <= sequence )
+				{
+					// not published yet
+					break;
+				}
+				// overwritten, continue from the oldest change still available
+				long nextSequence = Math.max( sequence + 1, getTail() - noOfSlots );
+				anIterator.lost( sequence, nextSequence );
+				sequence = nextSequence;
+				continue;
+			}
+			anIterator.iterate( sequence, (int)buffer.getLong( slotOffset + SLOT_TYPE_OFFSET ), buffer,
+								slotOffset + SLOT_KEY_OFFSET, keySize, slotOffset + slotValueOffset, valueSize );
+			// the change must have been read before the sequence is validated
+			UnsafeAccess.UNSAFE.loadFence();
+			if ( buffer.getLongVolatile( slotOffset + SLOT_SEQUENCE_OFFSET ) != sequence )
+			{
+				anIterator.lost( sequence, sequence + 1 );
+			}
+			sequence += 1;
+			count += 1;
+		} // while
+		return sequence;
+	}
+
+	/**
+	 * get tail sequence. A consumer which is only interested in the changes from now on starts from the tail sequence
+	 * @return sequence of the next change to be appended
+	 * @throws IllegalStateException if the map has been disposed
+	 */
+	public long getTailSequence()
+	{
+		beginRead();
+		try
+		{
+			return getTail();
+		}
+		finally
+		{
+			accessGuard.end();
+		}
+	}
+	
+	/**
+	 * get tail sequence
+	 * @return sequence of the next change to be appended
+	 */
+	private long getTail()
+	{
+		return buffer.getLongVolatile( HEADER_FIELD_ADDRESS_TAIL );
+	}
+	
+	/**
+	 * begin a read of the ring, which dispose waits for until it is ended
+	 * @throws IllegalStateException if the map has been disposed
+	 */
+	private void beginRead()
+	{
+		if ( !accessGuard.begin() )
+		{
+			throw new IllegalStateException( "Map has been disposed" );
+		}
+	}
+	
+	/**
+	 * check if the ring has been released along with the map
+	 * @return true if the map has been disposed
+	 */
+	public boolean isClosed()
+	{
+		return accessGuard.isClosed();
+	}
+
+	/**
+	 * get no of changes the ring can hold
+	 * @return capacity of the ring
+	 */
+	public long getNoOfChanges()
+	{
+		return noOfSlots;
+	}
+
+	/**
+	 * release the memory of the ring once the reads in progress have ended. It must not be called from within a change iterator
+	 */
+	void dispose()
+	{
+		if ( accessGuard.close() )
+		{
+			UnsafeAccess.UNSAFE.freeMemory( startingAddress );
+		}
+	}
+}
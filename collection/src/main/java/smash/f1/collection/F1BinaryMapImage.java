@@ -0,0 +1,282 @@
+/*
+ * Copyright 2016 Smash.bi Inc.
+ * http://www.smash.bi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package smash.f1.collection;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32;
+
+import smash.f1.core.agrona.LongUnsafeBuffer;
+
+/**
+ * F1BinaryMapImage streams the compacted image of a F1BinaryMap through a channel, see F1BinaryMap.exportTo and
+ * F1BinaryMap.importFrom. The image is staged in a direct buffer, so the records are copied from the map memory straight
+ * into the memory written to the channel and back, and every byte of the image is added to a CRC32 on the way. The backups
+ * of F1BinaryMapBackup are streamed the same way.
+ *
+ * The image consists of
+ * HEADER MAGIC, KEY SIZE, VALUE SIZE, NO OF BUCKETS and SIZE, i.e., the no of records
+ * BUCKETS the position + 1 of the top record of each bucket or 0 for an empty bucket
+ * RECORDS the records in use, link, key and value, packed in the order of the hash chains, so the link of a record is
+ * either the position of the next record or NULL
+ * CHECKSUM CRC32 of the header, buckets and records, which detects a truncated or corrupted image
+ *
+ * All the fields are stored in the native byte order, so an image of another byte order is not recognized as an image
+ */
+final class F1BinaryMapImage
+{
+	final static int HEADER_SIZE = 2 * Long.BYTES + 2 * Integer.BYTES + Long.BYTES;
+	final static int CHECKSUM_SIZE = Long.BYTES;
+
+	private final static long MAGIC = 0x46314D4150494D47L;	// F1MAPIMG
+	private final static int MIN_BUFFER_SIZE = 1 << 20;
+
+	private final ByteBuffer byteBuffer;
+	private final LongUnsafeBuffer buffer;		// staged bytes of the image
+	private final CRC32 checksum = new CRC32();
+	private int position;						// position of the next byte staged or read in the buffer
+	private int limit;							// no of bytes read into the buffer
+
+	/**
+	 * create image stream
+	 * @param aMaxFieldSize size of the largest field put or read at once
+	 */
+	F1BinaryMapImage( final int aMaxFieldSize )
+	{
+		byteBuffer = ByteBuffer.allocateDirect( Math.max( MIN_BUFFER_SIZE, aMaxFieldSize ) );
+		buffer = new LongUnsafeBuffer( byteBuffer );
+	}
+
+	/**
+	 * get the buffer staging the image
+	 * @return buffer
+	 */
+	LongUnsafeBuffer getBuffer()
+	{
+		return buffer;
+	}
+
+	/**
+	 * stage the header of an image
+	 * @param aChannel channel the image is written to
+	 * @param aKeySize size of the key
+	 * @param aValueSize size of the value
+	 * @param aNoOfBuckets no of buckets
+	 * @param aSize no of records
+	 * @throws IOException
+	 */
+	void putHeader( final WritableByteChannel aChannel, final int aKeySize, final int aValueSize, final long aNoOfBuckets,
+					final long aSize ) throws IOException
+	{
+		int headerPosition = reserve( aChannel, HEADER_SIZE );
+		buffer.putLong( headerPosition, MAGIC );
+		buffer.putInt( headerPosition + Long.BYTES, aKeySize );
+		buffer.putInt( headerPosition + Long.BYTES + Integer.BYTES, aValueSize );
+		buffer.putLong( headerPosition + Long.BYTES + 2 * Integer.BYTES, aNoOfBuckets );
+		buffer.putLong( headerPosition + 2 * Long.BYTES + 2 * Integer.BYTES, aSize );
+	}
+
+	/**
+	 * stage a long
+	 * @param aChannel channel the image is written to
+	 * @param aValue value
+	 * @throws IOException
+	 */
+	void putLong( final WritableByteChannel aChannel, final long aValue ) throws IOException
+	{
+		buffer.putLong( reserve( aChannel, Long.BYTES ), aValue );
+	}
+
+	/**
+	 * reserve the given no of bytes in the buffer, the bytes staged before are written to the channel if they do not fit
+	 * @param aChannel channel the image is written to
+	 * @param aLength no of bytes to be reserved
+	 * @return position of the reserved bytes in the buffer
+	 * @throws IOException
+	 */
+	int reserve( final WritableByteChannel aChannel, final int aLength ) throws IOException
+	{
+		if ( position + aLength > buffer.capacity() )
+		{
+			write( aChannel );
+		}
+		int reservedPosition = position;
+		position += aLength;
+		return reservedPosition;
+	}
+
+	/**
+	 * write the checksum and all the bytes staged to the channel
+	 * @param aChannel channel the image is written to
+	 * @throws IOException
+	 */
+	void finish( final WritableByteChannel aChannel ) throws IOException
+	{
+		write( aChannel );
+		buffer.putLong( 0, checksum.getValue() );
+		position = CHECKSUM_SIZE;
+		byteBuffer.clear().limit( position );
+		writeFully( aChannel );
+		position = 0;
+	}
+
+	/**
+	 * write all the bytes staged to the channel
+	 * @param aChannel channel the image is written to
+	 * @throws IOException
+	 */
+	private void write( final WritableByteChannel aChannel ) throws IOException
+	{
+		byteBuffer.clear().limit( position );
+		checksum.update( byteBuffer );
+		byteBuffer.flip();
+		writeFully( aChannel );
+		position = 0;
+	}
+
+	/**
+	 * write the remaining bytes of the byte buffer to the channel
+	 * @param aChannel channel the image is written to
+	 * @throws IOException
+	 */
+	private void writeFully( final WritableByteChannel aChannel ) throws IOException
+	{
+		while( byteBuffer.hasRemaining() )
+		{
+			aChannel.write( byteBuffer );
+		}
+	}
+
+	/**
+	 * read the header of an image and check that it is an image of a map of the given key and value size
+	 * @param aChannel channel the image is read from
+	 * @param aKeySize size of the key
+	 * @param aValueSize size of the value
+	 * @return position of the header in the buffer
+	 * @throws IOException if the image cannot be read or is not an image of a map of the given key and value size
+	 */
+	int readHeader( final ReadableByteChannel aChannel, final int aKeySize, final int aValueSize ) throws IOException
+	{
+		int headerPosition = read( aChannel, HEADER_SIZE );
+		if ( buffer.getLong( headerPosition ) != MAGIC )
+		{
+			throw new IOException( "Channel does not provide a map image" );
+		}
+		if ( buffer.getInt( headerPosition + Long.BYTES ) != aKeySize ||
+			 buffer.getInt( headerPosition + Long.BYTES + Integer.BYTES ) != aValueSize )
+		{
+			throw new IOException( "Map image is an image of another key or value size" );
+		}
+		return headerPosition;
+	}
+
+	/**
+	 * get the no of buckets of the header read
+	 * @param aHeaderPosition position of the header in the buffer
+	 * @return no of buckets
+	 */
+	long getNoOfBuckets( final int aHeaderPosition )
+	{
+		return buffer.getLong( aHeaderPosition + Long.BYTES + 2 * Integer.BYTES );
+	}
+
+	/**
+	 * get the no of records of the header read
+	 * @param aHeaderPosition position of the header in the buffer
+	 * @return no of records
+	 */
+	long getSize( final int aHeaderPosition )
+	{
+		return buffer.getLong( aHeaderPosition + 2 * Long.BYTES + 2 * Integer.BYTES );
+	}
+
+	/**
+	 * read a long
+	 * @param aChannel channel the image is read from
+	 * @return value
+	 * @throws IOException if the image is truncated
+	 */
+	long readLong( final ReadableByteChannel aChannel ) throws IOException
+	{
+		return buffer.getLong( read( aChannel, Long.BYTES ) );
+	}
+
+	/**
+	 * read the given no of bytes into the buffer, more bytes are read from the channel if they are not in the buffer yet
+	 * @param aChannel channel the image is read from
+	 * @param aLength no of bytes to be read
+	 * @return position of the bytes in the buffer
+	 * @throws IOException if the image is truncated
+	 */
+	int read( final ReadableByteChannel aChannel, final int aLength ) throws IOException
+	{
+		if ( position + aLength > limit )
+		{
+			// the bytes read so far are part of the checksum
+			byteBuffer.clear().limit( position );
+			checksum.update( byteBuffer );
+			fill( aChannel, aLength );
+		}
+		int readPosition = position;
+		position += aLength;
+		return readPosition;
+	}
+
+	/**
+	 * move the bytes not read yet to the front of the buffer and read more bytes from the channel behind them
+	 * @param aChannel channel the image is read from
+	 * @param aLength min no of bytes in the buffer
+	 * @throws IOException if the image is truncated
+	 */
+	private void fill( final ReadableByteChannel aChannel, final int aLength ) throws IOException
+	{
+		int noOfUnreadBytes = limit - position;
+		buffer.putBytes( 0, buffer, position, noOfUnreadBytes );
+		byteBuffer.clear().position( noOfUnreadBytes );
+		while( byteBuffer.position() < aLength )
+		{
+			if ( aChannel.read( byteBuffer ) < 0 )
+			{
+				throw new IOException( "Map image is truncated" );
+			}
+		}
+		position = 0;
+		limit = byteBuffer.position();
+	}
+
+	/**
+	 * read the checksum and check it against the checksum of the bytes read before
+	 * @param aChannel channel the image is read from
+	 * @throws IOException if the image is truncated or corrupted
+	 */
+	void verify( final ReadableByteChannel aChannel ) throws IOException
+	{
+		byteBuffer.clear().limit( position );
+		checksum.update( byteBuffer );
+		if ( position + CHECKSUM_SIZE > limit )
+		{
+			fill( aChannel, CHECKSUM_SIZE );
+		}
+		if ( buffer.getLong( position ) != checksum.getValue() )
+		{
+			throw new IOException( "Checksum of the map image does not match" );
+		}
+		position += CHECKSUM_SIZE;
+	}
+}
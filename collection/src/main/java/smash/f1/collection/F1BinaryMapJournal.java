@@ -0,0 +1,638 @@
+/*
+ * Copyright 2016 Smash.bi Inc.
+ * http://www.smash.bi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package smash.f1.collection;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+import smash.f1.core.agrona.LongDirectBuffer;
+import smash.f1.core.agrona.LongUnsafeBuffer;
+
+/**
+ * F1BinaryMapJournal is an append only redo journal of the mutations of a F1BinaryMap. The memory mapped files of a map are
+ * written back by the operating system in any order, so they are only consistent after the map has been disposed. The journal
+ * keeps the content of the map recoverable in between.
+ *
+ * The journal consists of
+ * IMAGE all the records of the map at the last checkpoint
+ * LOGS the mutations since the last checkpoint, one log per generation. The map records every put, remove, eviction and
+ * clear while the affected bucket is locked, so the mutations of a key are logged in the order they are applied
+ *
+ * The mutations are buffered and written in batches, and the log is forced to the storage device every sync interval or
+ * when sync is called. Concurrent syncs share a single force. A checkpoint writes the image of a snapshot of the map and
+ * deletes the logs older than the snapshot, which keeps the journal and the recovery time bounded.
+ *
+ * A map disposed without erasing it is flushed and its log is closed with a CLOSE entry, so it is reopened without recovery.
+ * Otherwise the map is recovered by resetting it and replaying the image and the logs up to the last complete entry.
+ *
+ * Each file consists of a header of
+ * MAGIC identifies a journal file
+ * GENERATION generation of the log or of the first log to be replayed after the image
+ * KEY SIZE size of the key
+ * VALUE SIZE size of the value
+ *
+ * Each entry consists of
+ * TYPE type of the entry
+ * KEY key of a put or remove
+ * VALUE value of a put
+ * CHECKSUM CRC32 of the type, key and value, which detects an entry torn by a crash
+ */
+final class F1BinaryMapJournal
+{
+	final static int ENTRY_TYPE_PUT = 1;
+	final static int ENTRY_TYPE_REMOVE = 2;
+	final static int ENTRY_TYPE_CLEAR = 3;
+	final static int ENTRY_TYPE_CLOSE = 4;
+
+	private final static long MAGIC = 0x46314A524E4C3031L;	// F1JRNL01
+	private final static int HEADER_SIZE = 2 * Long.BYTES + 2 * Integer.BYTES;
+	private final static int TYPE_SIZE = Integer.BYTES;
+	private final static int CHECKSUM_SIZE = Integer.BYTES;
+	private final static int MIN_BUFFER_SIZE = 1 << 16;
+	private final static String IMAGE_FILE_SUFFIX = ".image";
+	private final static String LOG_FILE_SUFFIX = ".log.";
+	private final static String TEMPORARY_FILE_SUFFIX = ".tmp";
+
+	private final String journalFilenamePrefix;
+	private final int keySize;
+	private final int valueSize;
+	private final int bufferSize;
+	private final byte[] bytes;
+	private final LongUnsafeBuffer buffer;		// entries not written to the log yet
+	private final CRC32 checksum = new CRC32();
+	private final Object syncLock = new Object();	// serializes the forces of the log, taken before the journal itself
+	private final long syncIntervalInNanos;
+
+	private long generation;					// generation of the current log
+	private FileChannel channel;				// channel of the current log
+	private int bufferPosition;
+	private volatile long writtenPosition;		// bytes ever written to the logs
+	private long syncedPosition;				// bytes ever forced to the storage device
+	private Thread syncer;
+	private volatile boolean isSyncerStopped;
+
+	/**
+	 * create journal. Recover must be called before the journal is used
+	 * @param aJournalFilenamePrefix file name prefix of the journal files
+	 * @param aKeySize size of the key in bytes
+	 * @param aValueSize size of the value in bytes
+	 * @param aSyncIntervalInMs max time in ms a logged mutation stays unforced
+	 */
+	F1BinaryMapJournal( final String aJournalFilenamePrefix, final int aKeySize, final int aValueSize, final long aSyncIntervalInMs )
+	{
+		if ( aSyncIntervalInMs <= 0 )
+		{
+			throw new IllegalArgumentException( "Sync interval " + aSyncIntervalInMs + " must be positive" );
+		}
+		journalFilenamePrefix = aJournalFilenamePrefix;
+		keySize = aKeySize;
+		valueSize = aValueSize;
+		bufferSize = Math.max( MIN_BUFFER_SIZE, getEntrySize( ENTRY_TYPE_PUT ) );
+		bytes = new byte[bufferSize];
+		buffer = new LongUnsafeBuffer( bytes );
+		syncIntervalInNanos = TimeUnit.MILLISECONDS.toNanos( aSyncIntervalInMs );
+	}
+
+	/**
+	 * get the size of an entry of the given type
+	 * @param anEntryType type of the entry
+	 * @return size of the entry in bytes
+	 */
+	private int getEntrySize( final int anEntryType )
+	{
+		switch( anEntryType )
+		{
+			case ENTRY_TYPE_PUT:
+				return TYPE_SIZE + keySize + valueSize + CHECKSUM_SIZE;
+			case ENTRY_TYPE_REMOVE:
+				return TYPE_SIZE + keySize + CHECKSUM_SIZE;
+			default:
+				return TYPE_SIZE + CHECKSUM_SIZE;
+		}
+	}
+
+	/**
+	 * recover the given map from the journal unless the map has been disposed properly, and start the log of the next
+	 * generation. The map must not be shared with other threads yet
+	 * @param aMap map of the journal
+	 * @return true if the map has been recovered
+	 * @throws IOException if the journal cannot be read or the log cannot be started
+	 */
+	boolean recover( final F1BinaryMap aMap ) throws IOException
+	{
+		File imageFile = new File( journalFilenamePrefix + IMAGE_FILE_SUFFIX );
+		long[] logGenerations = getLogGenerations();
+		boolean isRecovered = false;
+		long firstGeneration = imageFile.exists() ? readHeader( imageFile ) : 0;
+		if ( logGenerations.length > 0 && !isClosed( logGenerations[logGenerations.length-1] ) )
+		{
+			aMap.reset();
+			if ( imageFile.exists() )
+			{
+				replay( imageFile, aMap );
+			}
+			for( long logGeneration : logGenerations )
+			{
+				if ( logGeneration >= firstGeneration )
+				{
+					replay( getLogFile( logGeneration ), aMap );
+				}
+			}
+			isRecovered = true;
+		}
+		generation = logGenerations.length > 0 ? logGenerations[logGenerations.length-1] + 1 : firstGeneration;
+		channel = createLog( generation );
+		syncer = new Thread( this::runSyncer, "F1BinaryMapJournal" );
+		syncer.setDaemon( true );
+		syncer.start();
+		return isRecovered;
+	}
+
+	/**
+	 * get the generations of the existing logs
+	 * @return generations in ascending order
+	 */
+	private long[] getLogGenerations()
+	{
+		File prefixFile = new File( journalFilenamePrefix ).getAbsoluteFile();
+		String logFilenamePrefix = prefixFile.getName() + LOG_FILE_SUFFIX;
+		File[] logFiles = prefixFile.getParentFile().listFiles( ( aDirectory, aName ) -> aName.startsWith( logFilenamePrefix ) &&
+																	!aName.endsWith( TEMPORARY_FILE_SUFFIX ) );
+		if ( logFiles == null )
+		{
+			return new long[0];
+		}
+		long[] logGenerations = new long[logFiles.length];
+		for( int index = 0; index < logFiles.length; index++ )
+		{
+			logGenerations[index] = Long.parseLong( logFiles[index].getName().substring( logFilenamePrefix.length() ) );
+		}
+		Arrays.sort( logGenerations );
+		return logGenerations;
+	}
+
+	/**
+	 * get the log file of the given generation
+	 * @param aGeneration generation of the log
+	 * @return log file
+	 */
+	private File getLogFile( final long aGeneration )
+	{
+		return new File( journalFilenamePrefix + LOG_FILE_SUFFIX + aGeneration );
+	}
+
+	/**
+	 * create the log of the given generation
+	 * @param aGeneration generation of the log
+	 * @return channel of the log positioned after the header
+	 * @throws IOException
+	 */
+	private FileChannel createLog( final long aGeneration ) throws IOException
+	{
+		File logFile = getLogFile( aGeneration );
+		FileChannel logChannel = new RandomAccessFile( logFile, "rw" ).getChannel();
+		logChannel.truncate( 0 );
+		writeHeader( logChannel, aGeneration );
+		return logChannel;
+	}
+
+	/**
+	 * write the header of a journal file
+	 * @param aChannel channel of the file
+	 * @param aGeneration generation of the file
+	 * @throws IOException
+	 */
+	private void writeHeader( final FileChannel aChannel, final long aGeneration ) throws IOException
+	{
+		ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+		header.putLong( MAGIC ).putLong( aGeneration ).putInt( keySize ).putInt( valueSize ).flip();
+		while( header.hasRemaining() )
+		{
+			aChannel.write( header );
+		}
+	}
+
+	/**
+	 * read the header of a journal file
+	 * @param aFile journal file
+	 * @return generation of the file
+	 * @throws IOException if the file is not a journal of a map of this key and value size
+	 */
+	private long readHeader( final File aFile ) throws IOException
+	{
+		try( RandomAccessFile file = new RandomAccessFile( aFile, "r" ) )
+		{
+			return readHeader( aFile, file.getChannel() );
+		}
+	}
+
+	/**
+	 * read the header of a journal file
+	 * @param aFile journal file
+	 * @param aChannel channel of the file
+	 * @return generation of the file
+	 * @throws IOException if the file is not a journal of a map of this key and value size
+	 */
+	private long readHeader( final File aFile, final FileChannel aChannel ) throws IOException
+	{
+		ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+		while( header.hasRemaining() && aChannel.read( header ) >= 0 )
+		{
+		}
+		header.flip();
+		if ( header.remaining() < HEADER_SIZE || header.getLong() != MAGIC )
+		{
+			throw new IOException( aFile + " is not a journal" );
+		}
+		long fileGeneration = header.getLong();
+		if ( header.getInt() != keySize || header.getInt() != valueSize )
+		{
+			throw new IOException( aFile + " is a journal of another key or value size" );
+		}
+		return fileGeneration;
+	}
+
+	/**
+	 * check if the log of the given generation has been closed with the map
+	 * @param aGeneration generation of the log
+	 * @return true if the last complete entry of the log is a close
+	 * @throws IOException
+	 */
+	private boolean isClosed( final long aGeneration ) throws IOException
+	{
+		final int[] lastEntryType = { 0 };
+		read( getLogFile( aGeneration ), ( anEntryType, anEntry, anEntryStartIndex ) -> lastEntryType[0] = anEntryType );
+		return lastEntryType[0] == ENTRY_TYPE_CLOSE;
+	}
+
+	/**
+	 * apply the entries of the given journal file to the given map
+	 * @param aFile journal file
+	 * @param aMap map to be recovered
+	 * @throws IOException
+	 */
+	private void replay( final File aFile, final F1BinaryMap aMap ) throws IOException
+	{
+		read( aFile, ( anEntryType, anEntry, anEntryStartIndex ) ->
+		{
+			switch( anEntryType )
+			{
+				case ENTRY_TYPE_PUT:
+					aMap.put( anEntry, anEntryStartIndex + TYPE_SIZE, anEntry, anEntryStartIndex + TYPE_SIZE + keySize );
+					break;
+				case ENTRY_TYPE_REMOVE:
+					aMap.remove( anEntry, anEntryStartIndex + TYPE_SIZE );
+					break;
+				case ENTRY_TYPE_CLEAR:
+					aMap.clear();
+					break;
+				default:
+					// a close in the middle of the journal
+			}
+		} );
+	}
+
+	/**
+	 * EntryReader is called with each complete entry of a journal file
+	 */
+	private interface EntryReader
+	{
+		/**
+		 * read the given entry
+		 * @param anEntryType type of the entry
+		 * @param anEntry buffer holding the entry
+		 * @param anEntryStartIndex start index of the entry in the buffer, starting with the type
+		 */
+		public void read( final int anEntryType, final LongDirectBuffer anEntry, final long anEntryStartIndex );
+	}
+
+	/**
+	 * read the entries of the given journal file up to the first incomplete or corrupted entry
+	 * @param aFile journal file
+	 * @param anEntryReader reader of each entry
+	 * @throws IOException
+	 */
+	private void read( final File aFile, final EntryReader anEntryReader ) throws IOException
+	{
+		try( RandomAccessFile file = new RandomAccessFile( aFile, "r" ) )
+		{
+			FileChannel fileChannel = file.getChannel();
+			readHeader( aFile, fileChannel );
+			byte[] readBytes = new byte[bufferSize];
+			LongUnsafeBuffer readBuffer = new LongUnsafeBuffer( readBytes );
+			CRC32 readChecksum = new CRC32();
+			ByteBuffer readByteBuffer = ByteBuffer.wrap( readBytes );
+			int position = 0;
+			for(;;)
+			{
+				// keep the remaining partial entry at the start of the buffer and fill up the rest
+				int limit = readByteBuffer.position();
+				System.arraycopy( readBytes, position, readBytes, 0, limit - position );
+				readByteBuffer.position( limit - position );
+				boolean isEndOfFile = fileChannel.read( readByteBuffer ) < 0;
+				limit = readByteBuffer.position();
+				position = 0;
+				while( limit - position >= TYPE_SIZE )
+				{
+					int entryType = readBuffer.getInt( position );
+					if ( entryType < ENTRY_TYPE_PUT || entryType > ENTRY_TYPE_CLOSE )
+					{
+						return;
+					}
+					int entrySize = getEntrySize( entryType );
+					if ( limit - position < entrySize )
+					{
+						break;
+					}
+					readChecksum.reset();
+					readChecksum.update( readBytes, position, entrySize - CHECKSUM_SIZE );
+					if ( readBuffer.getInt( position + entrySize - CHECKSUM_SIZE ) != (int)readChecksum.getValue() )
+					{
+						return;
+					}
+					anEntryReader.read( entryType, readBuffer, position );
+					position += entrySize;
+				} // while
+				if ( isEndOfFile )
+				{
+					return;
+				}
+			} // for
+		}
+	}
+
+	/**
+	 * append the given mutation to the log
+	 * @param anEntryType type of the entry
+	 * @param aKey key buffer of a put or remove
+	 * @param aKeyStartIndex start index of the key in the key buffer
+	 * @param aValue value buffer of a put
+	 * @param aValueStartIndex start index of the value in the value buffer
+	 */
+	synchronized void append( final int anEntryType, final LongDirectBuffer aKey, final long aKeyStartIndex,
+							final LongDirectBuffer aValue, final long aValueStartIndex )
+	{
+		int entrySize = getEntrySize( anEntryType );
+		try
+		{
+			if ( bufferPosition + entrySize > bufferSize )
+			{
+				writeBuffer();
+			}
+		}
+		catch( IOException e )
+		{
+			throw new RuntimeException( "Failed to write " + getLogFile( generation ), e );
+		}
+		int entryStartPosition = bufferPosition;
+		buffer.putInt( bufferPosition, anEntryType );
+		bufferPosition += TYPE_SIZE;
+		if ( anEntryType == ENTRY_TYPE_PUT || anEntryType == ENTRY_TYPE_REMOVE )
+		{
+			aKey.getBytes( aKeyStartIndex, buffer, bufferPosition, keySize );
+			bufferPosition += keySize;
+		}
+		if ( anEntryType == ENTRY_TYPE_PUT )
+		{
+			aValue.getBytes( aValueStartIndex, buffer, bufferPosition, valueSize );
+			bufferPosition += valueSize;
+		}
+		checksum.reset();
+		checksum.update( bytes, entryStartPosition, bufferPosition - entryStartPosition );
+		buffer.putInt( bufferPosition, (int)checksum.getValue() );
+		bufferPosition += CHECKSUM_SIZE;
+	}
+
+	/**
+	 * write the buffered entries to the current log. The journal must be locked
+	 * @throws IOException
+	 */
+	private void writeBuffer() throws IOException
+	{
+		ByteBuffer byteBuffer = ByteBuffer.wrap( bytes, 0, bufferPosition );
+		while( byteBuffer.hasRemaining() )
+		{
+			channel.write( byteBuffer );
+		}
+		writtenPosition += bufferPosition;
+		bufferPosition = 0;
+	}
+
+	/**
+	 * force all the mutations appended so far to the storage device and wait until it is done. A sync returns without forcing
+	 * when a concurrent sync has forced its mutations already
+	 * @throws IOException if the log cannot be forced
+	 */
+	void sync() throws IOException
+	{
+		long position;
+		synchronized( this )
+		{
+			writeBuffer();
+			position = writtenPosition;
+		}
+		synchronized( syncLock )
+		{
+			if ( syncedPosition < position )
+			{
+				long newSyncedPosition = writtenPosition;
+				channel.force( false );
+				syncedPosition = newSyncedPosition;
+			}
+		}
+	}
+
+	/**
+	 * force the buffered mutations every sync interval until the syncer is stopped. A failed sync is retried by the next one
+	 */
+	private void runSyncer()
+	{
+		while( !isSyncerStopped )
+		{
+			LockSupport.parkNanos( this, syncIntervalInNanos );
+			try
+			{
+				sync();
+			}
+			catch( IOException e )
+			{
+				// retried by the next sync and reported by the sync of the map
+			}
+		}
+	}
+
+	/**
+	 * start the log of the next generation. The whole map must be locked, so the snapshot taken at the same time holds exactly
+	 * the mutations logged before
+	 * @return generation of the new log
+	 * @throws IOException if the current log cannot be forced or the new log cannot be created
+	 */
+	long rotate() throws IOException
+	{
+		synchronized( syncLock )
+		{
+			synchronized( this )
+			{
+				writeBuffer();
+				channel.force( false );
+				syncedPosition = writtenPosition;
+				channel.close();
+				generation += 1;
+				channel = createLog( generation );
+				return generation;
+			}
+		}
+	}
+
+	/**
+	 * write the image of the given snapshot and delete the logs which are older than the snapshot
+	 * @param aSnapshot snapshot taken when the log of the given generation has been started
+	 * @param aGeneration generation of the first log after the snapshot
+	 * @throws IOException if the image cannot be written
+	 */
+	void checkpoint( final F1BinaryMap aSnapshot, final long aGeneration ) throws IOException
+	{
+		File imageFile = new File( journalFilenamePrefix + IMAGE_FILE_SUFFIX );
+		File temporaryImageFile = new File( journalFilenamePrefix + IMAGE_FILE_SUFFIX + TEMPORARY_FILE_SUFFIX );
+		try( RandomAccessFile file = new RandomAccessFile( temporaryImageFile, "rw" ) )
+		{
+			FileChannel imageChannel = file.getChannel();
+			imageChannel.truncate( 0 );
+			writeHeader( imageChannel, aGeneration );
+			int putEntrySize = getEntrySize( ENTRY_TYPE_PUT );
+			byte[] imageBytes = new byte[bufferSize];
+			LongUnsafeBuffer imageBuffer = new LongUnsafeBuffer( imageBytes );
+			CRC32 imageChecksum = new CRC32();
+			LongUnsafeBuffer record = new LongUnsafeBuffer( new byte[keySize + valueSize] );
+			final int[] imagePosition = { 0 };
+			final IOException[] failure = { null };
+			aSnapshot.traverse( ( aRecord, aKeyStartIndex, aKeyLength, aValueStartIndex, aValueLength ) ->
+			{
+				if ( imagePosition[0] + putEntrySize > bufferSize )
+				{
+					try
+					{
+						write( imageChannel, imageBytes, imagePosition[0] );
+					}
+					catch( IOException e )
+					{
+						failure[0] = e;
+					}
+					imagePosition[0] = 0;
+				}
+				int position = imagePosition[0];
+				imageBuffer.putInt( position, ENTRY_TYPE_PUT );
+				imageBuffer.putBytes( position + TYPE_SIZE, aRecord, aKeyStartIndex, keySize + valueSize );
+				imageChecksum.reset();
+				imageChecksum.update( imageBytes, position, putEntrySize - CHECKSUM_SIZE );
+				imageBuffer.putInt( position + putEntrySize - CHECKSUM_SIZE, (int)imageChecksum.getValue() );
+				imagePosition[0] += putEntrySize;
+			}, record );
+			if ( failure[0] != null )
+			{
+				throw failure[0];
+			}
+			write( imageChannel, imageBytes, imagePosition[0] );
+			imageChannel.force( false );
+		}
+		Files.move( temporaryImageFile.toPath(), imageFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		for( long logGeneration : getLogGenerations() )
+		{
+			if ( logGeneration < aGeneration )
+			{
+				getLogFile( logGeneration ).delete();
+			}
+		}
+	}
+
+	/**
+	 * write the given bytes to the given channel
+	 * @param aChannel channel
+	 * @param aBytes bytes
+	 * @param aLength no of bytes to be written
+	 * @throws IOException
+	 */
+	private static void write( final FileChannel aChannel, final byte[] aBytes, final int aLength ) throws IOException
+	{
+		ByteBuffer byteBuffer = ByteBuffer.wrap( aBytes, 0, aLength );
+		while( byteBuffer.hasRemaining() )
+		{
+			aChannel.write( byteBuffer );
+		}
+	}
+
+	/**
+	 * close the journal. A journal of a map which has been flushed is closed with a close entry, so the map is reopened
+	 * without recovery
+	 * @param isMapFlushed true if the memory of the map has been flushed
+	 * @param shouldErase true if the journal files should be deleted
+	 */
+	void close( final boolean isMapFlushed, final boolean shouldErase )
+	{
+		isSyncerStopped = true;
+		LockSupport.unpark( syncer );
+		try
+		{
+			syncer.join();
+		}
+		catch( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+		try
+		{
+			if ( isMapFlushed )
+			{
+				append( ENTRY_TYPE_CLOSE, null, 0, null, 0 );
+				sync();
+			}
+			channel.close();
+		}
+		catch( IOException e )
+		{
+			throw new RuntimeException( "Failed to close " + getLogFile( generation ), e );
+		}
+		finally
+		{
+			if ( shouldErase )
+			{
+				erase();
+			}
+		}
+	}
+	
+	/**
+	 * delete the files of the journal. The journal must be closed
+	 */
+	void erase()
+	{
+		for( long logGeneration : getLogGenerations() )
+		{
+			getLogFile( logGeneration ).delete();
+		}
+		new File( journalFilenamePrefix + IMAGE_FILE_SUFFIX ).delete();
+	}
+}
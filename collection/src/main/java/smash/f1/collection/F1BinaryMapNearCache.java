@@ -0,0 +1,245 @@
+/*
+ * Copyright 2016 Smash.bi Inc.
+ * http://www.smash.bi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package smash.f1.collection;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import smash.f1.core.agrona.LongDirectBuffer;
+import smash.f1.core.agrona.LongMutableDirectBuffer;
+import smash.f1.core.agrona.LongUnsafeBuffer;
+import uk.co.real_logic.agrona.UnsafeAccess;
+
+/**
+ * F1BinaryMapNearCache is a bounded direct mapped on heap cache of the hottest entries of a F1BinaryMap.
+ * All the entries are preallocated in a single byte array so that no allocation happens after construction.
+ *
+ * Each entry consists of
+ * STAMP sequence lock of the entry, odd while the entry is being written
+ * POSITION record position of the cached record in the map or NULL if the entry is empty
+ * KEY key of the cached record
+ * VALUE value of the cached record
+ *
+ * Readers never lock. They validate the stamp before and after copying the value and treat any change as a miss.
+ * Writers (populate and invalidate) are expected to hold the lock of the bucket the key belongs to, so that
+ * populating an entry can never race with the invalidation of the same key.
+ */
+final class F1BinaryMapNearCache
+{
+	private final static int WORDSIZE = Long.SIZE / Byte.SIZE;
+	private final static long ENTRY_STAMP_OFFSET = 0;
+	private final static long ENTRY_POSITION_OFFSET = WORDSIZE;
+	private final static long ENTRY_KEY_OFFSET = 2 * WORDSIZE;
+	private final static long HASH_SPREAD = 0x9E3779B97F4A7C15L;
+
+	private final int noOfEntries;
+	private final long entryIndexMask;
+	private final int keySize;
+	private final int valueSize;
+	private final long entryValueOffset;
+	private final long entrySize;
+	private final KeyFunction keyFunction;
+	private final LongUnsafeBuffer entries;
+	// striped, so the gets of many threads neither contend on nor false share a single counter
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * create near cache
+	 * @param aNoOfEntries no of entries, rounded to the closest power of 2
+	 * @param aKeySize size of the key in bytes
+	 * @param aValueSize size of the value in bytes
+	 * @param aKeyFunction key function of the map
+	 */
+	F1BinaryMapNearCache( final int aNoOfEntries, final int aKeySize, final int aValueSize, final KeyFunction aKeyFunction )
+	{
+		if ( aNoOfEntries < 1 )
+		{
+			throw new IllegalArgumentException( "Near cache requires at least 1 entry" );
+		}
+		noOfEntries = (int)F1BinaryMap.GetClosestPowerOfTwo( aNoOfEntries );
+		entryIndexMask = noOfEntries - 1;
+		keySize = aKeySize;
+		valueSize = aValueSize;
+		keyFunction = aKeyFunction;
+		entryValueOffset = ENTRY_KEY_OFFSET + keySize;
+		// keep every stamp word aligned
+		entrySize = ( entryValueOffset + valueSize + WORDSIZE - 1 ) & ~(WORDSIZE - 1);
+		long totalSize = entrySize * noOfEntries;
+		if ( totalSize > Integer.MAX_VALUE - WORDSIZE )
+		{
+			throw new IllegalArgumentException( "Near cache of " + noOfEntries + " entries is too large" );
+		}
+		entries = new LongUnsafeBuffer( new byte[(int)totalSize] );
+		for( int entryIndex = 0; entryIndex < noOfEntries; entryIndex++ )
+		{
+			entries.putLong( entryIndex * entrySize + ENTRY_POSITION_OFFSET, F1BinaryMap.NULL );
+		}
+	}
+
+	/**
+	 * get the offset of the entry the given key hash maps to
+	 * @param aKeyHash hash of the key
+	 * @return offset of the entry
+	 */
+	private long getEntryOffset( final long aKeyHash )
+	{
+		// spread the hash so that keys sharing a bucket do not share an entry
+		long entryIndex = ( (aKeyHash * HASH_SPREAD) >>> Integer.SIZE ) & entryIndexMask;
+		return entryIndex * entrySize;
+	}
+
+	/**
+	 * get the value of the given key from the near cache
+	 * @param aKey key
+	 * @param aKeyStartIndex start index of the key in the key buffer
+	 * @param aKeyHash hash of the key
+	 * @param aValue value buffer
+	 * @param aValueStartIndex start index of the value should be copied to
+	 * @return record position of the cached record or NULL if the key is not cached
+	 */
+	long get( final LongDirectBuffer aKey, final long aKeyStartIndex, final long aKeyHash,
+			final LongMutableDirectBuffer aValue, final long aValueStartIndex )
+	{
+		long entryOffset = getEntryOffset( aKeyHash );
+		long stamp = entries.getLongVolatile( entryOffset + ENTRY_STAMP_OFFSET );
+		if ( (stamp & 1) == 0 )
+		{
+			long recordPosition = entries.getLong( entryOffset + ENTRY_POSITION_OFFSET );
+			if ( recordPosition != F1BinaryMap.NULL
+					&& keyFunction.equals( aKey, aKeyStartIndex, entries, entryOffset + ENTRY_KEY_OFFSET, keySize ) )
+			{
+				aValue.putBytes( aValueStartIndex, entries, entryOffset + entryValueOffset, valueSize );
+				// the copy must complete before the stamp is validated
+				UnsafeAccess.UNSAFE.loadFence();
+				if ( entries.getLongVolatile( entryOffset + ENTRY_STAMP_OFFSET ) == stamp )
+				{
+					hits.increment();
+					return recordPosition;
+				}
+			}
+		}
+		misses.increment();
+		return F1BinaryMap.NULL;
+	}
+
+	/**
+	 * populate the near cache with the given record. The entry is skipped if another writer is writing the same entry
+	 * @param aKey key
+	 * @param aKeyStartIndex start index of the key in the key buffer
+	 * @param aKeyHash hash of the key
+	 * @param aValue value buffer
+	 * @param aValueStartIndex start index of the value in the value buffer
+	 * @param aRecordPosition record position of the record in the map
+	 */
+	void put( final LongDirectBuffer aKey, final long aKeyStartIndex, final long aKeyHash,
+			final LongDirectBuffer aValue, final long aValueStartIndex, final long aRecordPosition )
+	{
+		long entryOffset = getEntryOffset( aKeyHash );
+		long stamp = entries.getLongVolatile( entryOffset + ENTRY_STAMP_OFFSET );
+		if ( (stamp & 1) != 0 || !entries.compareAndSetLong( entryOffset + ENTRY_STAMP_OFFSET, stamp, stamp + 1 ) )
+		{
+			return;
+		}
+		entries.putLong( entryOffset + ENTRY_POSITION_OFFSET, aRecordPosition );
+		entries.putBytes( entryOffset + ENTRY_KEY_OFFSET, aKey, aKeyStartIndex, keySize );
+		entries.putBytes( entryOffset + entryValueOffset, aValue, aValueStartIndex, valueSize );
+		entries.putLongOrdered( entryOffset + ENTRY_STAMP_OFFSET, stamp + 2 );
+	}
+
+	/**
+	 * invalidate the given key if it is cached
+	 * @param aKey key
+	 * @param aKeyStartIndex start index of the key in the key buffer
+	 * @param aKeyHash hash of the key
+	 */
+	void invalidate( final LongDirectBuffer aKey, final long aKeyStartIndex, final long aKeyHash )
+	{
+		long entryOffset = getEntryOffset( aKeyHash );
+		for(;;)
+		{
+			long stamp = entries.getLongVolatile( entryOffset + ENTRY_STAMP_OFFSET );
+			if ( (stamp & 1) != 0 )
+			{
+				// a different key is being populated into the entry
+				continue;
+			}
+			if ( entries.getLong( entryOffset + ENTRY_POSITION_OFFSET ) == F1BinaryMap.NULL
+					|| !keyFunction.equals( aKey, aKeyStartIndex, entries, entryOffset + ENTRY_KEY_OFFSET, keySize ) )
+			{
+				if ( entries.getLongVolatile( entryOffset + ENTRY_STAMP_OFFSET ) == stamp )
+				{
+					return;
+				}
+				continue;
+			}
+			if ( entries.compareAndSetLong( entryOffset + ENTRY_STAMP_OFFSET, stamp, stamp + 1 ) )
+			{
+				entries.putLong( entryOffset + ENTRY_POSITION_OFFSET, F1BinaryMap.NULL );
+				entries.putLongOrdered( entryOffset + ENTRY_STAMP_OFFSET, stamp + 2 );
+				return;
+			}
+		}
+	}
+
+	/**
+	 * invalidate every entry of the near cache
+	 */
+	void invalidateAll()
+	{
+		for( int entryIndex = 0; entryIndex < noOfEntries; entryIndex++ )
+		{
+			long entryOffset = entryIndex * entrySize;
+			for(;;)
+			{
+				long stamp = entries.getLongVolatile( entryOffset + ENTRY_STAMP_OFFSET );
+				if ( (stamp & 1) == 0 && entries.compareAndSetLong( entryOffset + ENTRY_STAMP_OFFSET, stamp, stamp + 1 ) )
+				{
+					entries.putLong( entryOffset + ENTRY_POSITION_OFFSET, F1BinaryMap.NULL );
+					entries.putLongOrdered( entryOffset + ENTRY_STAMP_OFFSET, stamp + 2 );
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * get no of entries
+	 * @return no of entries of the near cache
+	 */
+	int getNoOfEntries()
+	{
+		return noOfEntries;
+	}
+
+	/**
+	 * get no of hits
+	 * @return no of gets served by the near cache
+	 */
+	long getNoOfHits()
+	{
+		return hits.sum();
+	}
+
+	/**
+	 * get no of misses
+	 * @return no of gets not served by the near cache
+	 */
+	long getNoOfMisses()
+	{
+		return misses.sum();
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2016 Smash.bi Inc.
+ * http://www.smash.bi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package smash.f1.collection;
+
+import smash.f1.core.agrona.LongDirectBuffer;
+
+/**
+ * F1BinaryMapRecord is a zero copy view of a record in the map. The view is a flyweight that is
+ * repositioned on every record, so it is only valid until the next record is visited and must not be
+ * retained. Each spliterator owns its own view, so views are never shared between threads
+ */
+public final class F1BinaryMapRecord
+{
+	private LongDirectBuffer buffer;
+	private long keyStartIndex;
+	private int keyLength;
+	private long valueStartIndex;
+	private int valueLength;
+
+	/**
+	 * position the view on the given record
+	 * @param aBuffer record buffer
+	 * @param aKeyStartIndex key start index of the record
+	 * @param aKeyLength length of the key
+	 * @param aValueStartIndex value start index of the record
+	 * @param aValueLength length of the value
+	 */
+	void wrap( final LongDirectBuffer aBuffer, final long aKeyStartIndex, final int aKeyLength,
+			final long aValueStartIndex, final int aValueLength )
+	{
+		buffer = aBuffer;
+		keyStartIndex = aKeyStartIndex;
+		keyLength = aKeyLength;
+		valueStartIndex = aValueStartIndex;
+		valueLength = aValueLength;
+	}
+
+	/**
+	 * get record buffer
+	 * @return buffer holding the record
+	 */
+	public LongDirectBuffer getBuffer()
+	{
+		return buffer;
+	}
+
+	/**
+	 * get key start index
+	 * @return key start index of the record in the buffer
+	 */
+	public long getKeyStartIndex()
+	{
+		return keyStartIndex;
+	}
+
+	/**
+	 * get key length
+	 * @return length of the key
+	 */
+	public int getKeyLength()
+	{
+		return keyLength;
+	}
+
+	/**
+	 * get value start index
+	 * @return value start index of the record in the buffer
+	 */
+	public long getValueStartIndex()
+	{
+		return valueStartIndex;
+	}
+
+	/**
+	 * get value length
+	 * @return length of the value
+	 */
+	public int getValueLength()
+	{
+		return valueLength;
+	}
+
+	/**
+	 * get long value of the given value offset
+	 * @param aValueOffset address offset from the value position where the long value is located
+	 * @return long value
+	 */
+	public long getLongValue( final int aValueOffset )
+	{
+		return buffer.getLong( valueStartIndex + aValueOffset );
+	}
+}
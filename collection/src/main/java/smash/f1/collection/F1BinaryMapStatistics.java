@@ -28,6 +28,16 @@ public final class F1BinaryMapStatistics
 	private long noOfEvictions;
 	private long freeList;
 	private long size;
+	private long noOfNearCacheEntries;
+	private long noOfNearCacheHits;
+	private long noOfNearCacheMisses;
+	private int memoryLockMode;
+	private long noOfBytesToLockInMemory;
+	private long noOfBytesLockedInMemory;
+	private long memoryLockLimit;
+	private long noOfHotRecords;
+	private long noOfPromotions;
+	private long noOfStaleLocksRecovered;
 	
 	/**
 	 * set statistical information
@@ -51,6 +61,55 @@ public final class F1BinaryMapStatistics
 		size = aSize;
 	}
 	
+	/**
+	 * set near cache information
+	 * @param aNoOfNearCacheEntries no of entries of the near cache
+	 * @param aNoOfNearCacheHits no of gets served by the near cache
+	 * @param aNoOfNearCacheMisses no of gets not served by the near cache
+	 */
+	public void setNearCacheInfo( final long aNoOfNearCacheEntries, final long aNoOfNearCacheHits, final long aNoOfNearCacheMisses )
+	{
+		noOfNearCacheEntries = aNoOfNearCacheEntries;
+		noOfNearCacheHits = aNoOfNearCacheHits;
+		noOfNearCacheMisses = aNoOfNearCacheMisses;
+	}
+	
+	/**
+	 * set memory lock information
+	 * @param aMemoryLockMode memory lock mode of the map
+	 * @param aNoOfBytesToLockInMemory no of bytes of the map to be locked in physical memory according to the memory lock mode
+	 * @param aNoOfBytesLockedInMemory no of bytes of the map locked in physical memory
+	 * @param aMemoryLockLimit max no of bytes the process may lock in physical memory
+	 */
+	public void setMemoryLockInfo( final int aMemoryLockMode, final long aNoOfBytesToLockInMemory, final long aNoOfBytesLockedInMemory,
+									final long aMemoryLockLimit )
+	{
+		memoryLockMode = aMemoryLockMode;
+		noOfBytesToLockInMemory = aNoOfBytesToLockInMemory;
+		noOfBytesLockedInMemory = aNoOfBytesLockedInMemory;
+		memoryLockLimit = aMemoryLockLimit;
+	}
+	
+	/**
+	 * set tiering information
+	 * @param aNoOfHotRecords no of records in the hot tier
+	 * @param aNoOfPromotions no of records promoted from the cold tier so far
+	 */
+	public void setTieringInfo( final long aNoOfHotRecords, final long aNoOfPromotions )
+	{
+		noOfHotRecords = aNoOfHotRecords;
+		noOfPromotions = aNoOfPromotions;
+	}
+	
+	/**
+	 * set lock information
+	 * @param aNoOfStaleLocksRecovered no of locks taken over from processes which have terminated
+	 */
+	public void setLockInfo( final long aNoOfStaleLocksRecovered )
+	{
+		noOfStaleLocksRecovered = aNoOfStaleLocksRecovered;
+	}
+	
 	/**
 	 * get no of buckets are being used 
 	 * @return no of buckets in the map are being used
@@ -113,4 +172,105 @@ public final class F1BinaryMapStatistics
 	{
 		return size;
 	}
+	
+	/**
+	 * get no of near cache entries
+	 * @return no of entries of the near cache or 0 if the near cache is not enabled
+	 */
+	public long getNoOfNearCacheEntries()
+	{
+		return noOfNearCacheEntries;
+	}
+	
+	/**
+	 * get no of near cache hits
+	 * @return no of gets served by the near cache
+	 */
+	public long getNoOfNearCacheHits()
+	{
+		return noOfNearCacheHits;
+	}
+	
+	/**
+	 * get no of near cache misses
+	 * @return no of gets not served by the near cache
+	 */
+	public long getNoOfNearCacheMisses()
+	{
+		return noOfNearCacheMisses;
+	}
+	
+	/**
+	 * get memory lock mode
+	 * @return memory lock mode of the map, see F1BinaryMap.lockInMemory
+	 */
+	public int getMemoryLockMode()
+	{
+		return memoryLockMode;
+	}
+	
+	/**
+	 * get no of bytes to be locked in physical memory
+	 * @return no of bytes of the map to be locked in physical memory according to the memory lock mode
+	 */
+	public long getNoOfBytesToLockInMemory()
+	{
+		return noOfBytesToLockInMemory;
+	}
+	
+	/**
+	 * get no of bytes locked in physical memory
+	 * @return no of bytes of the map locked in physical memory, which falls short of the bytes to be locked when the lock 
+	 * budget has run out
+	 */
+	public long getNoOfBytesLockedInMemory()
+	{
+		return noOfBytesLockedInMemory;
+	}
+	
+	/**
+	 * check if all the memory to be locked is locked in physical memory
+	 * @return true if the memory of the memory lock mode is fully locked
+	 */
+	public boolean isFullyLockedInMemory()
+	{
+		return noOfBytesLockedInMemory >= noOfBytesToLockInMemory;
+	}
+	
+	/**
+	 * get max no of bytes the process may lock in physical memory, i.e., the soft limit of RLIMIT_MEMLOCK
+	 * @return memory lock limit, Long.MAX_VALUE if it is unlimited or 0 if memory cannot be locked
+	 */
+	public long getMemoryLockLimit()
+	{
+		return memoryLockLimit;
+	}
+	
+	/**
+	 * get no of hot records
+	 * @return no of records in the hot tier or 0 if the map is not tiered
+	 */
+	public long getNoOfHotRecords()
+	{
+		return noOfHotRecords;
+	}
+	
+	/**
+	 * get no of promotions
+	 * @return no of records promoted from the cold tier to the hot tier
+	 */
+	public long getNoOfPromotions()
+	{
+		return noOfPromotions;
+	}
+	
+	/**
+	 * get no of stale locks recovered. The records allocated by a process which has terminated while holding a lock
+	 * may have leaked, so the map should be verified with repair once no other process writes to it
+	 * @return no of locks taken over from processes which have terminated
+	 */
+	public long getNoOfStaleLocksRecovered()
+	{
+		return noOfStaleLocksRecovered;
+	}
 }
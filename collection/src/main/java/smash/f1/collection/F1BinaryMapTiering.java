@@ -0,0 +1,146 @@
+/*
+ * Copyright 2016 Smash.bi Inc.
+ * http://www.smash.bi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package smash.f1.collection;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * F1BinaryMapTiering decides which records of a F1BinaryMap move between the hot and the cold tier of a tiered backing store.
+ * The records of the record positions below the no of hot records are hot.
+ *
+ * A hit of a cold record is sampled, so the more often a cold record is hit the sooner it is promoted, while a record hit
+ * once stays cold. A promoted record swaps its position with a hot record which is demoted. The hot record is chosen by a
+ * clock over the hot records, which passes over the records referenced since the clock has passed them last, so the hot
+ * records hit least recently are demoted first.
+ *
+ * The reference bits are set and cleared without synchronization, so a concurrent reference may get lost, which only
+ * makes a hot record demoted a little early
+ */
+final class F1BinaryMapTiering
+{
+	private final static int MAX_CLOCK_STEPS = 64;		// max hot records passed over to find a record to be demoted
+
+	private final long noOfHotRecords;
+	private final int promotionSampleMask;
+	private final long[] referenceBits;
+	private final AtomicLong clockHand = new AtomicLong();
+	private final LongAdder promotions = new LongAdder();
+
+	/**
+	 * create tiering
+	 * @param aNoOfHotRecords no of records in the hot tier
+	 * @param aPromotionSampleBits a cold record is promoted by 1 out of 2^N of its hits
+	 */
+	F1BinaryMapTiering( final long aNoOfHotRecords, final int aPromotionSampleBits )
+	{
+		if ( aPromotionSampleBits < 0 || aPromotionSampleBits > 30 )
+		{
+			throw new IllegalArgumentException( "Promotion sample bits " + aPromotionSampleBits + " must be between 0 and 30" );
+		}
+		if ( ( aNoOfHotRecords + Long.SIZE - 1 ) / Long.SIZE > Integer.MAX_VALUE )
+		{
+			throw new IllegalArgumentException( "Too many hot records " + aNoOfHotRecords );
+		}
+		noOfHotRecords = aNoOfHotRecords;
+		promotionSampleMask = ( 1 << aPromotionSampleBits ) - 1;
+		referenceBits = new long[(int)( ( aNoOfHotRecords + Long.SIZE - 1 ) / Long.SIZE )];
+	}
+
+	/**
+	 * get no of records in the hot tier
+	 * @return no of hot records
+	 */
+	long getNoOfHotRecords()
+	{
+		return noOfHotRecords;
+	}
+
+	/**
+	 * check if the record of the given position is in the hot tier
+	 * @param aRecordPosition record position
+	 * @return true if the record is hot
+	 */
+	boolean isHot( final long aRecordPosition )
+	{
+		return aRecordPosition < noOfHotRecords;
+	}
+
+	/**
+	 * record a hit of the hot record of the given position
+	 * @param aRecordPosition record position of a hot record
+	 */
+	void reference( final long aRecordPosition )
+	{
+		int index = (int)( aRecordPosition >>> 6 );
+		long bit = 1L << aRecordPosition;
+		if ( ( referenceBits[index] & bit ) == 0 )
+		{
+			referenceBits[index] |= bit;
+		}
+	}
+
+	/**
+	 * sample a hit of a cold record
+	 * @return true if the record should be promoted
+	 */
+	boolean shouldPromote()
+	{
+		return ( ThreadLocalRandom.current().nextInt() & promotionSampleMask ) == 0;
+	}
+
+	/**
+	 * choose the hot record to be demoted among the given no of records in use
+	 * @param aNoOfRecordsInUse no of records in use from the first record position
+	 * @return record position of the hot record to be demoted
+	 */
+	long nextVictim( final long aNoOfRecordsInUse )
+	{
+		long noOfCandidates = Math.min( noOfHotRecords, aNoOfRecordsInUse );
+		long recordPosition = 0;
+		for( int step = 0; step < MAX_CLOCK_STEPS; step++ )
+		{
+			recordPosition = Long.remainderUnsigned( clockHand.getAndIncrement(), noOfCandidates );
+			int index = (int)( recordPosition >>> 6 );
+			long bit = 1L << recordPosition;
+			if ( ( referenceBits[index] & bit ) == 0 )
+			{
+				break;
+			}
+			referenceBits[index] &= ~bit;	// second chance
+		}
+		return recordPosition;
+	}
+
+	/**
+	 * count a promotion
+	 */
+	void promoted()
+	{
+		promotions.increment();
+	}
+
+	/**
+	 * get no of records promoted so far
+	 * @return no of promotions
+	 */
+	long getNoOfPromotions()
+	{
+		return promotions.sum();
+	}
+}
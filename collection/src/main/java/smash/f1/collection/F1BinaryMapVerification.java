@@ -0,0 +1,195 @@
+/*
+ * Copyright 2016 Smash.bi Inc.
+ * http://www.smash.bi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package smash.f1.collection;
+
+/**
+ * F1BinaryMapVerification reports the inconsistencies found by the verification of a F1BinaryMap, and whether they have
+ * been repaired
+ */
+public final class F1BinaryMapVerification
+{
+	private final boolean repaired;
+	private boolean staleMapLock;
+	private boolean endValid = true;
+	private long noOfStaleBucketLocks;
+	private long noOfRecords;
+	private long noOfBrokenChains;
+	private long noOfFreeRecords;
+	private boolean freeListBroken;
+	private long noOfLeakedRecords;
+	private long recordedSize;
+
+	/**
+	 * create verification
+	 * @param isRepaired true if the inconsistencies are repaired
+	 */
+	F1BinaryMapVerification( final boolean isRepaired )
+	{
+		repaired = isRepaired;
+	}
+
+	/**
+	 * set header information
+	 * @param isStaleMapLock true if the map lock has been left locked
+	 * @param isEndValid true if the end of the used records is within the allocated records
+	 * @param aRecordedSize size recorded in the map header
+	 */
+	void setHeaderInfo( final boolean isStaleMapLock, final boolean isEndValid, final long aRecordedSize )
+	{
+		staleMapLock = isStaleMapLock;
+		endValid = isEndValid;
+		recordedSize = aRecordedSize;
+	}
+
+	/**
+	 * add the information of a range of verified buckets
+	 * @param aNoOfStaleBucketLocks no of buckets left locked
+	 * @param aNoOfRecords no of records reachable from the buckets
+	 * @param aNoOfBrokenChains no of chains leading to an invalid record
+	 */
+	synchronized void addBucketInfo( final long aNoOfStaleBucketLocks, final long aNoOfRecords, final long aNoOfBrokenChains )
+	{
+		noOfStaleBucketLocks += aNoOfStaleBucketLocks;
+		noOfRecords += aNoOfRecords;
+		noOfBrokenChains += aNoOfBrokenChains;
+	}
+
+	/**
+	 * set free list information
+	 * @param aNoOfFreeRecords no of records reachable from the free list
+	 * @param isFreeListBroken true if the free list leads to an invalid record
+	 * @param aNoOfLeakedRecords no of used records neither reachable from a bucket nor from the free list
+	 */
+	void setFreeListInfo( final long aNoOfFreeRecords, final boolean isFreeListBroken, final long aNoOfLeakedRecords )
+	{
+		noOfFreeRecords = aNoOfFreeRecords;
+		freeListBroken = isFreeListBroken;
+		noOfLeakedRecords = aNoOfLeakedRecords;
+	}
+
+	/**
+	 * check if no inconsistency has been found
+	 * @return true if the map is consistent
+	 */
+	public boolean isConsistent()
+	{
+		return !staleMapLock && endValid && noOfStaleBucketLocks == 0 && noOfBrokenChains == 0 && !freeListBroken &&
+				noOfLeakedRecords == 0 && recordedSize == noOfRecords;
+	}
+
+	/**
+	 * check if the inconsistencies have been repaired
+	 * @return true if the map has been repaired
+	 */
+	public boolean isRepaired()
+	{
+		return repaired;
+	}
+
+	/**
+	 * check if the map lock has been left locked
+	 * @return true if the map lock has been left locked
+	 */
+	public boolean isStaleMapLock()
+	{
+		return staleMapLock;
+	}
+
+	/**
+	 * check if the end of the used records is within the allocated records. Records beyond the allocated records are dropped
+	 * by the repair
+	 * @return true if the end is valid
+	 */
+	public boolean isEndValid()
+	{
+		return endValid;
+	}
+
+	/**
+	 * get no of buckets left locked
+	 * @return no of stale bucket locks
+	 */
+	public long getNoOfStaleBucketLocks()
+	{
+		return noOfStaleBucketLocks;
+	}
+
+	/**
+	 * get no of records reachable from the buckets, which is the size of the map after the repair
+	 * @return no of records
+	 */
+	public long getNoOfRecords()
+	{
+		return noOfRecords;
+	}
+
+	/**
+	 * get no of chains leading to a record which is out of range, free, in another chain or of a key of another bucket.
+	 * The repair cuts the chain in front of that record
+	 * @return no of broken chains
+	 */
+	public long getNoOfBrokenChains()
+	{
+		return noOfBrokenChains;
+	}
+
+	/**
+	 * get no of records reachable from the free list
+	 * @return no of free records
+	 */
+	public long getNoOfFreeRecords()
+	{
+		return noOfFreeRecords;
+	}
+
+	/**
+	 * check if the free list leads to a record which is out of range or in use. The repair cuts the free list in front of
+	 * that record
+	 * @return true if the free list is broken
+	 */
+	public boolean isFreeListBroken()
+	{
+		return freeListBroken;
+	}
+
+	/**
+	 * get no of used records neither reachable from a bucket nor from the free list. The repair returns them to the free list
+	 * @return no of leaked records
+	 */
+	public long getNoOfLeakedRecords()
+	{
+		return noOfLeakedRecords;
+	}
+
+	/**
+	 * get size recorded in the map header before the verification. The repair corrects it to the no of records
+	 * @return recorded size
+	 */
+	public long getRecordedSize()
+	{
+		return recordedSize;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "consistent=" + isConsistent() + " repaired=" + repaired + " staleMapLock=" + staleMapLock + " endValid=" + endValid +
+				" staleBucketLocks=" + noOfStaleBucketLocks + " records=" + noOfRecords + " brokenChains=" + noOfBrokenChains +
+				" freeRecords=" + noOfFreeRecords + " freeListBroken=" + freeListBroken + " leakedRecords=" + noOfLeakedRecords +
+				" recordedSize=" + recordedSize;
+	}
+}
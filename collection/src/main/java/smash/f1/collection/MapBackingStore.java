@@ -16,6 +16,8 @@
  */
 package smash.f1.collection;
 
+import java.io.IOException;
+
 import smash.f1.core.agrona.LongAtomicBuffer;
 import smash.f1.core.agrona.LongDirectBuffer;
 import smash.f1.core.agrona.LongMutableDirectBuffer;
@@ -81,6 +83,14 @@ public interface MapBackingStore
      */
     public void putLongInMemoryRegion( final long anAddress, final long aNewValue, final long anOldValue );
     
+    /** 
+     * put long value at the given address in the memory region in ordered manner, i.e., all the previous writes are visible
+     * before this write. This write is not reported to the write listener, so it is only meant for transient fields such as locks
+     * @param anAddress address of the memory
+     * @param aNewValue value to be placed at the memory region
+     */
+    public void putLongOrderedInMemoryRegion( final long anAddress, final long aNewValue );
+    
     /**
      * get bytes of the given address from the memory region into given buffer
      * @param anAddress starting address of the memory
@@ -105,6 +115,15 @@ public interface MapBackingStore
      */
     public long expand( final long aMapHeaderFieldAddressNoOfMemoryPages );
     
+    /**
+     * shrink the map backing store to the given no of memory pages and release the memory pages beyond. No memory beyond 
+     * the given no of memory pages may be in use. Implementation is responsible for updating the new no of memory pages
+     * @param aMapHeaderFieldAddressNoOfMemoryPages address of the header that stores the no of memory pages
+     * @param aNoOfMemoryPages no of memory pages to be kept
+     * @return new size of the map backing store in bytes if the backing store has been shrunk or -1 if the map backing store cannot be shrunk
+     */
+    public long shrink( final long aMapHeaderFieldAddressNoOfMemoryPages, final long aNoOfMemoryPages );
+    
     /**
      * get memory region based on the given address
      * @param anAddress address of the memory 
@@ -127,8 +146,54 @@ public interface MapBackingStore
      */
     public long calculateNoOfMemoryPages( final long aMapSize );
     
+    /**
+     * get no of address bits covered by each memory page, i.e., a memory page holds 2^N bytes
+     * @return no of address bits of a memory page or 0 if the backing store is a single memory region
+     */
+    public int getSegmentBits();
+    
+    /**
+     * set the listener to be notified before each write of the map data. Locks are not reported. The listener must only 
+     * be changed while no other thread accesses the backing store
+     * @param aWriteListener write listener or null to stop notifying
+     */
+    public void setWriteListener( final MapBackingStoreWriteListener aWriteListener );
+    
+    /**
+     * start flushing the written memory to the persisted memory from a background thread. The memory written is flushed 
+     * every given interval or as soon as the given no of bytes have been written. It must be enabled while no other thread 
+     * accesses the backing store
+     * @param aFlushIntervalInMs max time in ms the written memory stays unflushed
+     * @param aMaxNoOfDirtyBytes no of written bytes triggering a flush before the interval has elapsed
+     */
+    public void enableAsyncFlush( final long aFlushIntervalInMs, final long aMaxNoOfDirtyBytes );
+    
+    /**
+     * lock the memory of the given address range in physical memory, so it is never paged out. The memory is locked page
+     * by page of the backing store until a memory page cannot be locked
+     * @param anAddress starting address of the memory
+     * @param aLength length of the memory in bytes
+     * @return no of bytes locked from the starting address, which falls short of the given length when the memory cannot 
+     * be locked any further
+     */
+    public long lockInMemory( final long anAddress, final long aLength );
+    
+    /**
+     * unlock the memory of the given address range locked by lockInMemory
+     * @param anAddress starting address of the memory
+     * @param aLength length of the memory in bytes
+     */
+    public void unlockInMemory( final long anAddress, final long aLength );
+    
+    /**
+     * flush all the memory written so far to the persisted memory and wait until it is done
+     * @throws IOException if the memory cannot be flushed
+     */
+    public void sync() throws IOException;
+    
 	/**
-	 * dispose the map and releases all the resources
+	 * dispose the map and releases all the resources at once. The memory must never be accessed again. Disposing a disposed 
+	 * store only erases the persisted memory if it is asked to
 	 * @param shouldEraseAllPersistedMemory true will remove all the existing persisted memory from the system
 	 */
 	public void dispose( boolean shouldEraseAllPersistedMemory );
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2016 Smash.bi Inc.
+ * http://www.smash.bi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package smash.f1.collection;
+
+/**
+ * MapBackingStoreWriteListener is notified by the map backing store before the map data is written
+ */
+interface MapBackingStoreWriteListener
+{
+	/**
+	 * notify that the given memory range is about to be written
+	 * @param anAddress starting address of the memory
+	 * @param aLength length of the data
+	 */
+	public void beforeWrite( final long anAddress, final int aLength );
+}
@@ -19,13 +19,24 @@ package smash.f1.collection;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import smash.f1.core.agrona.LongAtomicBuffer;
 import smash.f1.core.agrona.LongDirectBuffer;
 import smash.f1.core.agrona.LongMutableDirectBuffer;
 import smash.f1.core.agrona.LongUnsafeBuffer;
+import uk.co.real_logic.agrona.UnsafeAccess;
 
 /**
  * 
@@ -35,9 +46,56 @@ import smash.f1.core.agrona.LongUnsafeBuffer;
 final class MemoryMappedFileBackingStore implements MapBackingStore
 {
 	private final static String MAP_HEADER_FILE_SUFFIX = ".0";
-    private final static long MAX_FILE_BITS = 30;		// 2^N bytes in a file < 31
-    private final static long MAX_FILE_SIZE = 1 << MAX_FILE_BITS; // maximum size of each subfile (power of 2)
-    private final static long ONE_LEFT_SHIFT_MAX_FILE_BITS = 1 << MAX_FILE_BITS;
+    private final static long MAX_BYTE_BUFFER_SIZE = Integer.MAX_VALUE;	// largest file a MappedByteBuffer can map
+    private final static int MAP_READ_ONLY = 0;			// protection of a native mapping, see sun.nio.ch.FileChannelImpl
+    private final static int MAP_READ_WRITE = 1;
+    private final static long PREFAULT_CHUNK_SIZE = 1L << 26;	// memory prefaulted by each background task
+    private final static int DIRTY_REGION_BITS = 20;			// a file is flushed in regions of 2^N bytes
+    private final static long DIRTY_REGION_SIZE = 1L << DIRTY_REGION_BITS;
+    private final static long DIRTY_REGION_MASK = DIRTY_REGION_SIZE - 1;
+    private final static int REGION_CLEAN = 0;
+    private final static int REGION_DIRTY = 1;
+    private final static Method MAP0;					// native mapping of the file channel implementation or null
+    private final static Method UNMAP0;
+    private final static String NATIVE_MAPPING_UNSUPPORTED;	// why files larger than a MappedByteBuffer cannot be mapped or null
+    
+    static
+    {
+    	Method map0 = null;
+    	Method unmap0 = null;
+    	String unsupported = null;
+    	try
+    	{
+    		Class<?> fileChannelImpl = Class.forName( "sun.nio.ch.FileChannelImpl" );
+	    	for( Method method : fileChannelImpl.getDeclaredMethods() )
+	    	{
+	    		if ( method.getName().equals( "map0" ) && ( method.getParameterCount() == 3 || method.getParameterCount() == 4 ) )
+	    		{
+	    			map0 = method;
+	    		}
+	    	} // for
+	    	if ( map0 == null )
+	    	{
+	    		unsupported = "sun.nio.ch.FileChannelImpl.map0 does not exist in this JDK";
+	    	}
+	    	else
+	    	{
+	    		unmap0 = fileChannelImpl.getDeclaredMethod( "unmap0", long.class, long.class );
+	    		// java 9 and later refuse unless java.base/sun.nio.ch is opened to the map
+	    		map0.setAccessible( true );
+	    		unmap0.setAccessible( true );
+	    	}
+    	}
+    	catch( ReflectiveOperationException | RuntimeException e )
+    	{
+    		map0 = null;
+    		unmap0 = null;
+    		unsupported = e.toString();
+    	}
+    	MAP0 = map0;
+    	UNMAP0 = unmap0;
+    	NATIVE_MAPPING_UNSUPPORTED = unsupported;
+    }
     
 	/**
 	 * check if map persistent files exist
@@ -50,56 +108,172 @@ final class MemoryMappedFileBackingStore implements MapBackingStore
 		return memoryMappedFile.exists();
 	}
   
+    private final int segmentBits;			// 2^N bytes in a file segment
+    private final long segmentSize;			// size of each file segment (power of 2)
+    private final long segmentMask;
     private final long maxFileSize;          // maximum size of a mapped file segment
     private final long maxBuffers;			// maximum file partitions
+    private final boolean isSegmentAligned;	// true if no access straddles 2 files
     private final String memoryMappedFilenamePrefix;	// file prefix for each mapped file
+    private final int loadMode;				// how the mapped files are loaded into physical memory
+    private final ExecutorService prefaultExecutor;	// background prefault of parallel prefault load mode
+    private final boolean useHugePages;		// true if the files are backed by huge pages where possible
+    private final boolean isReadOnly;		// true if the files are mapped read only, while they are written by another process
+    private final long noOfMemoryPagesAddress;	// address of the header that stores the no of files in use
  
     private LongUnsafeBuffer headerMemoryRegion;
     private File headerMemoryMappedFileReference;
-    private StraddleAtomicBuffer[] memoryRegions;			// memory-mapped buffers of file
+    private LongAtomicBuffer[] memoryRegions;			// memory-mapped buffers of file, straddling into the next file unless segment aligned
+    private LongUnsafeBuffer[] memoryMappedFileBuffers;	// memory-mapped buffer of each file on its own
     private File[] memoryMappedFileReferences;
+    private MapBackingStoreWriteListener writeListener;
+    private int loadChecksum;				// keeps the page touches of loading from being optimized away
+    private AtomicIntegerArray[] dirtyRegions;	// state of each region of each file or null unless flushed asynchronously
+    private final AtomicLong noOfDirtyBytes = new AtomicLong();	// bytes of the regions dirtied since the last flush
+    private final AtomicInteger noOfPendingPrefaults = new AtomicInteger();	// background prefaults not done yet
+    private long maxNoOfDirtyBytes;			// bytes of dirty regions waking up the flusher
+    private Thread flusher;					// background thread flushing the dirty regions
+    private volatile boolean isFlusherStopped;
+    private boolean isDisposed;
     
     /**
      * create memory mapped file backing store based on existing memory mapped file
      * @param aMemoryMappedFilenamePrefix prefix for the underlying memory mapped files
      * @param aMaxMapSizeAddress address of the header that stores the max map size
+     * @param aSegmentBitsAddress address of the header that stores the no of address bits of a file segment
+     * @param aRecordLayoutAddress address of the header that stores the record layout
+     * @param aNoOfMemoryPagesAddress address of the header that stores the no of files in use
+     * @param aFormatVersionAddress address of the header that stores the format version of the map
+     * @param aLoadMode load mode of the files, see F1BinaryMap
+     * @param useHugePages true to back the files with huge pages where possible
+     * @param isReadOnly true to map the files read only, so the files added by the writer of the map have to be mapped by
+     * mapMemoryPages
      */
-    MemoryMappedFileBackingStore( final String aMemoryMappedFilenamePrefix, final long aMaxMapSizeAddress ) throws IOException
+    MemoryMappedFileBackingStore( final String aMemoryMappedFilenamePrefix, final long aMaxMapSizeAddress, final long aSegmentBitsAddress,
+    		final long aRecordLayoutAddress, final long aNoOfMemoryPagesAddress, final long aFormatVersionAddress, final int aLoadMode, 
+    		final boolean useHugePages, final boolean isReadOnly ) throws IOException
     {
     	memoryMappedFilenamePrefix = aMemoryMappedFilenamePrefix;
+    	noOfMemoryPagesAddress = aNoOfMemoryPagesAddress;
+    	loadMode = aLoadMode;
+    	this.useHugePages = useHugePages;
+    	this.isReadOnly = isReadOnly;
+    	// every file is as large as the header file
+    	maxFileSize = new File( memoryMappedFilenamePrefix + MAP_HEADER_FILE_SUFFIX ).length();
+    	CheckFileSize( maxFileSize );
+    	prefaultExecutor = CreatePrefaultExecutor( aLoadMode );
     	boolean headerMemoryRegionCreated = initializeHeaderMemoryRegion(false);
     	if ( !headerMemoryRegionCreated )
     	{
     		throw new IOException( "Memory Mapped file does not exist" );
     	}
+    	// the fields of a map of another layout are elsewhere
+    	if ( getLongFromHeaderMemoryRegion( aFormatVersionAddress ) != F1BinaryMap.FORMAT_VERSION )
+    	{
+    		throw new IOException( "Memory Mapped file " + memoryMappedFilenamePrefix + " has not been created by this version of F1BinaryMap" );
+    	}
+    	segmentBits = (int)getLongFromHeaderMemoryRegion( aSegmentBitsAddress );
+    	if ( segmentBits < F1BinaryMap.MIN_SEGMENT_BITS || segmentBits > F1BinaryMap.MAX_SEGMENT_BITS )
+    	{
+    		throw new IOException( "Memory Mapped file has invalid segment bits " + segmentBits );
+    	}
+    	segmentSize = 1L << segmentBits;
+    	segmentMask = segmentSize - 1;
     	long maxMapSize = getLongFromHeaderMemoryRegion( aMaxMapSizeAddress );
-    	maxFileSize = Math.min(maxMapSize, MAX_FILE_SIZE);
     	maxBuffers = calculateMaxNoOfBuffers(maxMapSize);		// number of files comprising hash table
-    	initializeNonHeaderMemoryRegions();
+    	isSegmentAligned = getLongFromHeaderMemoryRegion( aRecordLayoutAddress ) == F1BinaryMap.RECORD_LAYOUT_SEGMENT_ALIGNED;
+    	initializeNonHeaderMemoryRegions( getLongFromHeaderMemoryRegion( aNoOfMemoryPagesAddress ) );
     }
     
     /**
      * create memory mapped file backing store
      * @param aMaxMapSizeAddress address of the header that stores the max map size
+     * @param aSegmentBits no of address bits of a file segment, i.e., each file holds 2^N bytes
+     * @param isSegmentAligned true if the map never accesses data straddling 2 files
+     * @param anInitialMapSize initial size of the map in bytes
+     * @param aLoadMode load mode of the files, see F1BinaryMap
+     * @param useHugePages true to back the files with huge pages where possible. The files are sized in whole huge pages,
+     * so they can be placed on hugetlbfs as well
+     * @param aNoOfMemoryPagesAddress address of the header that stores the no of files in use
      */
     MemoryMappedFileBackingStore( final String aMemoryMappedFilenamePrefix, final long aMaxMapSize, final long anInitialNoOfRecords, 
-    		final int aKeySize, final int aValueSize, final long aNoOfBuckets, final long aMaxNoOfRecords ) throws IOException
+    		final int aKeySize, final int aValueSize, final long aNoOfBuckets, final long aMaxNoOfRecords, final int aSegmentBits,
+    		final boolean isSegmentAligned, final long anInitialMapSize, final int aLoadMode, final boolean useHugePages,
+    		final long aNoOfMemoryPagesAddress ) throws IOException
 	{
+    	if ( aSegmentBits < F1BinaryMap.MIN_SEGMENT_BITS || aSegmentBits > F1BinaryMap.MAX_SEGMENT_BITS )
+    	{
+    		throw new IllegalArgumentException( "Segment bits " + aSegmentBits + " must be between " + F1BinaryMap.MIN_SEGMENT_BITS + 
+    											" and " + F1BinaryMap.MAX_SEGMENT_BITS );
+    	}
     	memoryMappedFilenamePrefix = aMemoryMappedFilenamePrefix; // copy
-    	maxFileSize = Math.min(aMaxMapSize, MAX_FILE_SIZE);
+    	noOfMemoryPagesAddress = aNoOfMemoryPagesAddress;
+    	segmentBits = aSegmentBits;
+    	segmentSize = 1L << segmentBits;
+    	segmentMask = segmentSize - 1;
+    	// a segment is a whole no of huge pages already
+    	maxFileSize = useHugePages ? Math.min( NativeMemory.AlignToHugePage( aMaxMapSize ), segmentSize ) : Math.min( aMaxMapSize, segmentSize );
+    	CheckFileSize( maxFileSize );
     	maxBuffers = calculateMaxNoOfBuffers(aMaxMapSize);
+    	this.isSegmentAligned = isSegmentAligned;
+    	loadMode = aLoadMode;
+    	this.useHugePages = useHugePages;
+    	isReadOnly = false;
+    	prefaultExecutor = CreatePrefaultExecutor( aLoadMode );
     	boolean headerMemoryRegionCreated = initializeHeaderMemoryRegion(true);
     	if ( !headerMemoryRegionCreated )
     	{
     		throw new IOException( "Memory Mapped file exists already " + memoryMappedFilenamePrefix );
     	}
-    	initializeNonHeaderMemoryRegions();
+    	initializeNonHeaderMemoryRegions( calculateNoOfMemoryPages( anInitialMapSize ) );
 	}
     
+    /**
+     * check if files of the given size can be mapped by this runtime. A file larger than a MappedByteBuffer can map needs
+     * the native mapping of sun.nio.ch.FileChannelImpl, which exists up to the JDKs that moved map0 elsewhere and is
+     * accessible on java 9 and later only with --add-opens java.base/sun.nio.ch=ALL-UNNAMED
+     * @param aFileSize size of each memory mapped file
+     * @throws UnsupportedOperationException if the files cannot be mapped by this runtime
+     */
+    private static void CheckFileSize( final long aFileSize )
+    {
+    	if ( aFileSize > MAX_BYTE_BUFFER_SIZE && NATIVE_MAPPING_UNSUPPORTED != null )
+    	{
+    		throw new UnsupportedOperationException( "Memory mapped files of " + aFileSize + " bytes need the native mapping of " +
+    				"sun.nio.ch.FileChannelImpl, run with --add-opens java.base/sun.nio.ch=ALL-UNNAMED on java 9 and later, " +
+    				"use segment bits below 31 or the memory segment backing store on java 22 and later: " + NATIVE_MAPPING_UNSUPPORTED );
+    	}
+    }
+    
+    /**
+     * create the executor prefaulting the files in the background for the given load mode
+     * @param aLoadMode load mode of the files
+     * @return executor or null if the files are not prefaulted in the background
+     */
+    private static ExecutorService CreatePrefaultExecutor( final int aLoadMode )
+    {
+    	if ( aLoadMode != F1BinaryMap.LOAD_MODE_PARALLEL_PREFAULT )
+    	{
+    		return null;
+    	}
+    	return Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors(), aRunnable ->
+    	{
+    		Thread thread = new Thread( aRunnable, "F1BinaryMapPrefault" );
+    		thread.setDaemon( true );
+    		return thread;
+    	} );
+    }
+    
     @Override
     public long calculateNoOfMemoryPages( final long aMapSize )
     {
-    	return (aMapSize + MAX_FILE_SIZE - 1) / MAX_FILE_SIZE;
+    	return (aMapSize + segmentSize - 1) >>> segmentBits;
+    }
+    
+    @Override
+    public int getSegmentBits()
+    {
+    	return segmentBits;
     }
     
     /**
@@ -109,7 +283,7 @@ final class MemoryMappedFileBackingStore implements MapBackingStore
      */
     private long calculateMaxNoOfBuffers( long aMaxMapSize )
     {
-    	return (aMaxMapSize + MAX_FILE_SIZE - 1) / MAX_FILE_SIZE < 1 ? 1 : (aMaxMapSize + MAX_FILE_SIZE - 1) / MAX_FILE_SIZE;
+    	return (aMaxMapSize + segmentSize - 1) >>> segmentBits < 1 ? 1 : (aMaxMapSize + segmentSize - 1) >>> segmentBits;
     }
     
     /**
@@ -132,25 +306,46 @@ final class MemoryMappedFileBackingStore implements MapBackingStore
     }
     
     /**
-     * initialize the rest of the memory regions
+     * initialize the rest of the memory regions in use. The files beyond are mapped when the store expands
+     * @param aNoOfMemoryPages no of files in use
      */
-    private void initializeNonHeaderMemoryRegions() throws IOException
+    private void initializeNonHeaderMemoryRegions( final long aNoOfMemoryPages ) throws IOException
     {
-    	memoryRegions = new StraddleAtomicBuffer[(int)maxBuffers]; // memory-mapping buffers for each file in hash table
-    	memoryRegions[0] = new StraddleAtomicBuffer( headerMemoryRegion );				// use existing open buffer
+    	memoryRegions = new LongAtomicBuffer[(int)maxBuffers]; // memory-mapping buffers for each file in hash table
+    	memoryMappedFileBuffers = new LongUnsafeBuffer[(int)maxBuffers];
+    	setMemoryRegion( 0, headerMemoryRegion );				// use existing open buffer
     	memoryMappedFileReferences = new File[(int)maxBuffers];
     	memoryMappedFileReferences[0] = headerMemoryMappedFileReference;
     	
     	File memoryMappedFile = null;
-		for ( int memoryMappedFileIndex = 1; memoryMappedFileIndex < maxBuffers; memoryMappedFileIndex += 1 ) 
+		for ( int memoryMappedFileIndex = 1; memoryMappedFileIndex < Math.min( aNoOfMemoryPages, maxBuffers ); memoryMappedFileIndex += 1 ) 
 		{		// create remaining files
 		    memoryMappedFile = new File( memoryMappedFilenamePrefix + "." + memoryMappedFileIndex );	// record file
-		    memoryRegions[memoryMappedFileIndex] = new StraddleAtomicBuffer( createNewMemoryMappedFileUnsafeBuffer( memoryMappedFile, memoryMappedFileIndex ) );
-		    if( memoryMappedFileIndex > 0 )
+		    setMemoryRegion( memoryMappedFileIndex, createNewMemoryMappedFileUnsafeBuffer( memoryMappedFile, memoryMappedFileIndex ) );
+		} // for
+    }
+    
+    /**
+     * set the memory region of the given file. Unless the store is segment aligned, the memory region of the previous file 
+     * straddles into the given file
+     * @param anIndex buffer index of the memory mapped file
+     * @param aMemoryMappedFileBuffer buffer of the memory mapped file
+     */
+    private void setMemoryRegion( final int anIndex, final LongUnsafeBuffer aMemoryMappedFileBuffer )
+    {
+    	memoryMappedFileBuffers[anIndex] = aMemoryMappedFileBuffer;
+    	if ( isSegmentAligned )
+    	{
+    		memoryRegions[anIndex] = aMemoryMappedFileBuffer;
+    	}
+    	else
+    	{
+    		memoryRegions[anIndex] = new StraddleAtomicBuffer( aMemoryMappedFileBuffer );
+		    if( anIndex > 0 )
 		    {
-		    	memoryRegions[memoryMappedFileIndex-1].setSecondBuffer(memoryRegions[memoryMappedFileIndex].getFirstBuffer());
+		    	((StraddleAtomicBuffer)memoryRegions[anIndex-1]).setSecondBuffer( aMemoryMappedFileBuffer );
 		    }
-		} // for
+    	}
     }
     
     /**
@@ -161,52 +356,298 @@ final class MemoryMappedFileBackingStore implements MapBackingStore
      */
     private LongUnsafeBuffer createNewMemoryMappedFileUnsafeBuffer( final File aFile, final int anIndex ) throws IOException
     {
-    	RandomAccessFile memoryMappedRandomAccessFile = new RandomAccessFile( aFile, "rw" );
-	    memoryMappedRandomAccessFile.setLength( maxFileSize );
-	    MappedByteBuffer memoryMappedFileByteBuffer = memoryMappedRandomAccessFile.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, maxFileSize );
-	    memoryMappedFileByteBuffer.load();			// load storage into physical memory
-	    memoryMappedRandomAccessFile.close();
+    	RandomAccessFile memoryMappedRandomAccessFile;
+    	if ( isReadOnly )
+    	{
+    		// the file has been sized by the writer of the map
+    		memoryMappedRandomAccessFile = new RandomAccessFile( aFile, "r" );
+    	}
+    	else
+    	{
+    		memoryMappedRandomAccessFile = new RandomAccessFile( aFile, "rw" );
+	    	memoryMappedRandomAccessFile.setLength( maxFileSize );
+    	}
+	    LongUnsafeBuffer memoryMappedFileBuffer = null;
+	    try
+	    {
+	    	memoryMappedFileBuffer = map( memoryMappedRandomAccessFile.getChannel() );
+	    }
+	    finally
+	    {
+	    	memoryMappedRandomAccessFile.close();
+	    }
 	    if ( memoryMappedFileReferences != null )
 	    {
 	    	memoryMappedFileReferences[anIndex] = aFile;
 	    }
-	    return new LongUnsafeBuffer( memoryMappedFileByteBuffer );
+	    return memoryMappedFileBuffer;
+    }
+    
+    /**
+     * map the file of the given channel into memory and load it into physical memory according to the load mode. 
+     * A file larger than a MappedByteBuffer can map is mapped with a single native mapping
+     * @param aFileChannel channel of the file
+     * @return buffer of the mapped file
+     * @throws IOException
+     */
+    private LongUnsafeBuffer map( final FileChannel aFileChannel ) throws IOException
+    {
+    	LongUnsafeBuffer memoryMappedFileBuffer;
+    	if ( maxFileSize <= MAX_BYTE_BUFFER_SIZE )
+    	{
+		    MappedByteBuffer memoryMappedFileByteBuffer = aFileChannel.map( isReadOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE, 
+		    																0, maxFileSize );
+		    memoryMappedFileBuffer = new LongUnsafeBuffer( memoryMappedFileByteBuffer );
+    	}
+    	else
+    	{
+    		memoryMappedFileBuffer = new LongUnsafeBuffer( MapNative( aFileChannel, isReadOnly ? MAP_READ_ONLY : MAP_READ_WRITE, maxFileSize ), maxFileSize );
+    	}
+    	if ( useHugePages )
+    	{
+    		// advised before loading touches any page, while a file on hugetlbfs needs no advice
+    		NativeMemory.AdviseHugePages( memoryMappedFileBuffer.addressOffset(), maxFileSize );
+    	}
+    	load( memoryMappedFileBuffer.addressOffset(), maxFileSize );
+    	return memoryMappedFileBuffer;
+    }
+    
+    /**
+     * load the given mapped memory according to the load mode
+     * @param anAddress starting address of the mapped memory
+     * @param aLength length of the mapped memory
+     */
+    private void load( final long anAddress, final long aLength )
+    {
+    	if ( loadMode == F1BinaryMap.LOAD_MODE_LAZY )
+    	{
+    		// hash lookups gain nothing from reading ahead of a page fault
+    		NativeMemory.Advise( anAddress, aLength, NativeMemory.MADV_RANDOM );
+    		return;
+    	}
+    	NativeMemory.Advise( anAddress, aLength, NativeMemory.MADV_WILLNEED );
+    	if ( loadMode == F1BinaryMap.LOAD_MODE_EAGER )
+    	{
+    		prefault( anAddress, aLength );
+    		return;
+    	}
+    	for( long offset = 0; offset < aLength; offset += PREFAULT_CHUNK_SIZE )
+    	{
+    		long chunkAddress = anAddress + offset;
+    		long chunkLength = Math.min( PREFAULT_CHUNK_SIZE, aLength - offset );
+    		noOfPendingPrefaults.incrementAndGet();
+    		prefaultExecutor.execute( () -> 
+    		{
+    			try
+    			{
+    				prefault( chunkAddress, chunkLength );
+    			}
+    			finally
+    			{
+    				noOfPendingPrefaults.decrementAndGet();
+    			}
+    		} );
+    	}
+    }
+    
+    /**
+     * load the given mapped memory into physical memory by touching each page
+     * @param anAddress starting address of the mapped memory
+     * @param aLength length of the mapped memory
+     */
+    private void prefault( final long anAddress, final long aLength )
+    {
+    	int checksum = 0;
+    	long pageSize = UnsafeAccess.UNSAFE.pageSize();
+    	for( long offset = 0; offset < aLength; offset += pageSize )
+    	{
+    		checksum ^= UnsafeAccess.UNSAFE.getByte( anAddress + offset );
+    	}
+    	loadChecksum = checksum;
+    }
+    
+    /**
+     * map the given size of the file of the given channel with a single native mapping through the file channel 
+     * implementation of the JDK, which is not limited to the 2GB of a MappedByteBuffer, see CheckFileSize
+     * @param aFileChannel channel of the file
+     * @param aProtection MAP_READ_ONLY or MAP_READ_WRITE
+     * @param aSize size of the file to be mapped
+     * @return address of the mapping
+     * @throws IOException
+     */
+    private static long MapNative( final FileChannel aFileChannel, final int aProtection, final long aSize ) throws IOException
+    {
+    	if ( MAP0 == null )
+    	{
+    		throw new IOException( "Segments larger than " + MAX_BYTE_BUFFER_SIZE + " bytes are not supported by this JDK: " + 
+    								NATIVE_MAPPING_UNSUPPORTED );
+    	}
+    	try
+    	{
+    		if ( MAP0.getParameterCount() == 3 )
+    		{
+    			return (Long)MAP0.invoke( aFileChannel, aProtection, 0L, aSize );
+    		}
+    		return (Long)MAP0.invoke( aFileChannel, aProtection, 0L, aSize, false );
+    	}
+    	catch( InvocationTargetException e )
+    	{
+    		throw new IOException( "Failed to map " + aSize + " bytes", e.getCause() );
+    	}
+    	catch( ReflectiveOperationException | RuntimeException e )
+    	{
+    		throw new IOException( "Failed to map " + aSize + " bytes", e );
+    	}
+    }
+    
+    /**
+     * unmap the given memory mapped file at once instead of leaving it to the garbage collector. A MappedByteBuffer is
+     * released by its cleaner and a native mapping through the file channel implementation of the JDK. The buffer must never
+     * be accessed again
+     * @param aBuffer buffer of the mapped file
+     * @param aSize size of the mapped file
+     * @throws IOException
+     */
+    private static void Unmap( final LongUnsafeBuffer aBuffer, final long aSize ) throws IOException
+    {
+    	try
+    	{
+    		ByteBuffer byteBuffer = aBuffer.byteBuffer();
+    		if ( byteBuffer == null )
+    		{
+    			// only mapped natively if the native unmapping is accessible
+    			UNMAP0.invoke( null, aBuffer.addressOffset(), aSize );
+    			return;
+    		}
+    		try
+    		{
+    			// java 9 and later
+    			UnsafeAccess.UNSAFE.getClass().getMethod( "invokeCleaner", ByteBuffer.class ).invoke( UnsafeAccess.UNSAFE, byteBuffer );
+    		}
+    		catch( NoSuchMethodException e )
+    		{
+	    		Method cleaner = byteBuffer.getClass().getMethod( "cleaner" );
+	    		cleaner.setAccessible( true );
+	    		Object byteBufferCleaner = cleaner.invoke( byteBuffer );
+	    		byteBufferCleaner.getClass().getMethod( "clean" ).invoke( byteBufferCleaner );
+    		}
+    	}
+    	catch( InvocationTargetException e )
+    	{
+    		throw new IOException( "Failed to unmap " + aSize + " bytes", e.getCause() );
+    	}
+    	catch( ReflectiveOperationException | RuntimeException e )
+    	{
+    		throw new IOException( "Failed to unmap " + aSize + " bytes", e );
+    	}
+    }
+    
+    /**
+     * make sure the files have not been unmapped by dispose
+     */
+    private void ensureOpen()
+    {
+    	if ( isDisposed )
+    	{
+    		throw new IllegalStateException( "Map has been disposed" );
+    	}
     }
     
 	@Override
     public long getLongFromHeaderMemoryRegion( final long anAddress ) 
     {
+    	ensureOpen();
     	return headerMemoryRegion.getLong( anAddress ); 
     }
 	
 	@Override
     public long getLongVolatileFromHeaderMemoryRegion( final long anAddress )
     {
+		ensureOpen();
 		return headerMemoryRegion.getLongVolatile( anAddress );
     }
     
 	@Override
     public void putLongInHeaderMemoryRegion( final long anAddress, final long aNewValue ) 
     {
+    	ensureOpen();
+    	if ( writeListener != null )
+    	{
+    		writeListener.beforeWrite( anAddress, Long.BYTES );
+    	}
     	headerMemoryRegion.putLong( anAddress , aNewValue ); 
+    	if ( dirtyRegions != null )
+    	{
+    		markDirty( anAddress, Long.BYTES );
+    	}
     }
 	
 	@Override
     public boolean compareAndPutLongInHeaderMemoryRegion( final long anAddress, final long aNewValue, final long anOldValue ) 
     {
-    	return headerMemoryRegion.compareAndSetLong( anAddress, anOldValue, aNewValue );
+    	ensureOpen();
+    	if ( writeListener != null )
+    	{
+    		writeListener.beforeWrite( anAddress, Long.BYTES );
+    	}
+    	boolean isPut = headerMemoryRegion.compareAndSetLong( anAddress, anOldValue, aNewValue );
+    	if ( isPut && dirtyRegions != null )
+    	{
+    		markDirty( anAddress, Long.BYTES );
+    	}
+    	return isPut;
     }
 	
 	@Override
     public LongAtomicBuffer getMemoryRegion( final long anAddress )
     {
-    	return memoryRegions[(int)(anAddress >>> MAX_FILE_BITS)];
+    	LongAtomicBuffer memoryRegion = memoryRegions[(int)(anAddress >>> segmentBits)];
+    	if ( memoryRegion == null )
+    	{
+    		// the file has been added by another process writing to the map
+    		memoryRegion = mapMemoryRegion( (int)(anAddress >>> segmentBits) );
+    	}
+    	return memoryRegion;
+    }
+    
+    /**
+     * get memory region based on the given address if its file is mapped
+     * @param anAddress address of the memory
+     * @return memory region of the given address or null if its file is not mapped
+     */
+    LongAtomicBuffer getMappedMemoryRegion( final long anAddress )
+    {
+    	return memoryRegions[(int)(anAddress >>> segmentBits)];
+    }
+    
+    /**
+     * map the file of the given index and the files in front of it, which have been added by another process. A file beyond
+     * the files in use is not mapped, since mapping it would create it again once it has been deleted by shrink
+     * @param anIndex buffer index of the memory mapped file
+     * @return memory region of the file
+     */
+    private LongAtomicBuffer mapMemoryRegion( final int anIndex )
+    {
+    	ensureOpen();
+    	if ( anIndex >= getLongVolatileFromHeaderMemoryRegion( noOfMemoryPagesAddress ) )
+    	{
+    		throw new IllegalStateException( "Memory mapped file " + memoryMappedFilenamePrefix + "." + anIndex + " is not in use" );
+    	}
+    	try
+    	{
+    		mapMemoryPages( anIndex + 1 );
+    	}
+    	catch( IOException e )
+    	{
+    		throw new RuntimeException( "Failed to map " + memoryMappedFilenamePrefix + "." + anIndex, e );
+    	}
+    	return memoryRegions[anIndex];
     }
     
     @Override
     public long getMemoryBufferAddress( final long anAddress )
     {
-    	return (anAddress & ONE_LEFT_SHIFT_MAX_FILE_BITS - 1);
+    	return (anAddress & segmentMask);
     }
     
     @Override
@@ -218,7 +659,25 @@ final class MemoryMappedFileBackingStore implements MapBackingStore
     @Override
     public void putLongInMemoryRegion( final long anAddress, final long aNewValue ) 
     {
+    	if ( writeListener != null )
+    	{
+    		writeListener.beforeWrite( anAddress, Long.BYTES );
+    	}
     	getMemoryRegion( anAddress ).putLong( getMemoryBufferAddress( anAddress ) , aNewValue ); 
+    	if ( dirtyRegions != null )
+    	{
+    		markDirty( anAddress, Long.BYTES );
+    	}
+    }
+    
+    @Override
+    public void putLongOrderedInMemoryRegion( final long anAddress, final long aNewValue ) 
+    {
+    	getMemoryRegion( anAddress ).putLongOrdered( getMemoryBufferAddress( anAddress ) , aNewValue ); 
+    	if ( dirtyRegions != null )
+    	{
+    		markDirty( anAddress, Long.BYTES );
+    	}
     }
     
     @Override
@@ -229,6 +688,10 @@ final class MemoryMappedFileBackingStore implements MapBackingStore
     	while( !memoryRegion.compareAndSetLong( memoryBufferAddress, anOldValue, aNewValue ) )
     	{
     	}    	
+    	if ( dirtyRegions != null )
+    	{
+    		markDirty( anAddress, Long.BYTES );
+    	}
     }
     
     @Override
@@ -240,7 +703,15 @@ final class MemoryMappedFileBackingStore implements MapBackingStore
     @Override
     public void putBytesToMemoryRegion( final long anAddress, final int aLength, final LongDirectBuffer aSourceBuffer, final long aSourceBufferStartIndex )
     {
+    	if ( writeListener != null )
+    	{
+    		writeListener.beforeWrite( anAddress, aLength );
+    	}
     	aSourceBuffer.getBytes( aSourceBufferStartIndex, getMemoryRegion( anAddress ), getMemoryBufferAddress( anAddress ), aLength );
+    	if ( dirtyRegions != null )
+    	{
+    		markDirty( anAddress, aLength );
+    	}
     }
     
     @Override
@@ -256,14 +727,15 @@ final class MemoryMappedFileBackingStore implements MapBackingStore
     	File file = new File( memoryMappedFilenamePrefix + "." + noOfFiles ); // record file
     	try
     	{
-	    	memoryRegions[noOfFiles] = new StraddleAtomicBuffer( createNewMemoryMappedFileUnsafeBuffer( file, noOfFiles ) );
-		    if( noOfFiles > 0 )
-		    {
-		    	memoryRegions[noOfFiles-1].setSecondBuffer(memoryRegions[noOfFiles].getFirstBuffer());
-		    }
+    		synchronized( this )
+    		{
+	    		// catch up with the files added by the other processes writing to the map
+	    		mapMemoryPages( noOfFiles );
+		    	setMemoryRegion( noOfFiles, createNewMemoryMappedFileUnsafeBuffer( file, noOfFiles ) );
+    		}
 	    	noOfFiles += 1;
 	    	putLongInHeaderMemoryRegion( aMapHeaderFieldAddressNoOfMemoryPages, noOfFiles );
-	    	return noOfFiles * MAX_FILE_SIZE;
+	    	return noOfFiles * segmentSize;
     	}
     	catch( IOException e )
     	{
@@ -271,10 +743,432 @@ final class MemoryMappedFileBackingStore implements MapBackingStore
     	}
     }
     
+    @Override
+    public long shrink( final long aMapHeaderFieldAddressNoOfMemoryPages, final long aNoOfMemoryPages )
+    {
+    	if ( isReadOnly )
+    	{
+    		return -1;
+    	}
+    	int noOfFiles = (int)getLongFromHeaderMemoryRegion( aMapHeaderFieldAddressNoOfMemoryPages );
+    	int newNoOfFiles = (int)Math.max( 1, Math.min( noOfFiles, aNoOfMemoryPages ) );
+    	if ( newNoOfFiles < noOfFiles )
+    	{
+	    	putLongInHeaderMemoryRegion( aMapHeaderFieldAddressNoOfMemoryPages, newNoOfFiles );
+	    	try
+	    	{
+	    		// the files are written back before the trailing ones are deleted, so the files kept hold the whole map
+	    		sync();
+	    	}
+	    	catch( IOException e )
+	    	{
+	    		putLongInHeaderMemoryRegion( aMapHeaderFieldAddressNoOfMemoryPages, noOfFiles );
+	    		return -1;
+	    	}
+	    	releaseMemoryPages( newNoOfFiles );
+    	}
+    	return ( newNoOfFiles - 1 ) * segmentSize + maxFileSize;
+    }
+    
+    /**
+     * unmap and delete the files from the given no of files on. The flusher and the background prefaults are done with the 
+     * files before they are unmapped
+     * @param aNoOfMemoryPages no of files to be kept
+     */
+    private synchronized void releaseMemoryPages( final int aNoOfMemoryPages )
+    {
+    	while( noOfPendingPrefaults.get() != 0 )
+    	{
+    		LockSupport.parkNanos( this, TimeUnit.MILLISECONDS.toNanos( 1 ) );
+    	}
+    	IOException failure = null;
+    	for( int fileIndex = aNoOfMemoryPages; fileIndex < maxBuffers && memoryMappedFileBuffers[fileIndex] != null; fileIndex++ )
+    	{
+    		try
+    		{
+    			Unmap( memoryMappedFileBuffers[fileIndex], maxFileSize );
+    		}
+    		catch( IOException e )
+    		{
+    			failure = e;
+    		}
+    		memoryMappedFileBuffers[fileIndex] = null;
+    		memoryRegions[fileIndex] = null;
+    		if ( dirtyRegions != null )
+    		{
+    			// the flusher must not touch the file anymore
+    			dirtyRegions[fileIndex] = new AtomicIntegerArray( dirtyRegions[fileIndex].length() );
+    		}
+    		memoryMappedFileReferences[fileIndex].delete();
+    		memoryMappedFileReferences[fileIndex] = null;
+    	} // for
+    	if ( !isSegmentAligned )
+    	{
+    		((StraddleAtomicBuffer)memoryRegions[aNoOfMemoryPages - 1]).setSecondBuffer( null );
+    	}
+    	if ( failure != null )
+    	{
+    		throw new RuntimeException( "Failed to unmap " + memoryMappedFilenamePrefix, failure );
+    	}
+    }
+    
+    /**
+     * map the files up to the given no of files in use, which the writer of a read only store or the other processes writing
+     * to the map have added since the files have been mapped last
+     * @param aNoOfMemoryPages no of files in use
+     * @return size of the memory mapped in bytes
+     * @throws IOException if a file cannot be mapped
+     */
+    synchronized long mapMemoryPages( final long aNoOfMemoryPages ) throws IOException
+    {
+    	int noOfFiles = 1;
+    	while( noOfFiles < maxBuffers && memoryMappedFileBuffers[noOfFiles] != null )
+    	{
+    		noOfFiles += 1;
+    	}
+    	for( ; noOfFiles < Math.min( aNoOfMemoryPages, maxBuffers ); noOfFiles += 1 )
+    	{
+		    setMemoryRegion( noOfFiles, createNewMemoryMappedFileUnsafeBuffer( new File( memoryMappedFilenamePrefix + "." + noOfFiles ), noOfFiles ) );
+    	}
+    	return ( noOfFiles - 1 ) * segmentSize + maxFileSize;
+    }
+    
+    @Override
+    public void setWriteListener( final MapBackingStoreWriteListener aWriteListener )
+    {
+    	writeListener = aWriteListener;
+    }
+    
+    /**
+     * mark the regions of the given memory as dirty. It is called after the memory has been written, so a flush clearing the 
+     * state of a region concurrently either flushes the write or leaves the region dirty for the next flush
+     * @param anAddress starting address of the memory written
+     * @param aLength length of the data written
+     */
+    private void markDirty( final long anAddress, final long aLength )
+    {
+    	long lastAddress = anAddress + aLength - 1;
+    	for( long address = anAddress; address <= lastAddress; address = ( address | DIRTY_REGION_MASK ) + 1 )
+    	{
+    		AtomicIntegerArray fileDirtyRegions = dirtyRegions[(int)(address >>> segmentBits)];
+    		int regionIndex = (int)( ( address & segmentMask ) >>> DIRTY_REGION_BITS );
+    		boolean wasClean = fileDirtyRegions.get( regionIndex ) == REGION_CLEAN;
+    		fileDirtyRegions.lazySet( regionIndex, REGION_DIRTY );
+    		if ( wasClean )
+    		{
+    			long newNoOfDirtyBytes = noOfDirtyBytes.addAndGet( DIRTY_REGION_SIZE );
+    			if ( newNoOfDirtyBytes >= maxNoOfDirtyBytes && newNoOfDirtyBytes - DIRTY_REGION_SIZE < maxNoOfDirtyBytes )
+    			{
+    				LockSupport.unpark( flusher );
+    			}
+    		}
+    	} // for
+    }
+    
+    @Override
+    public void enableAsyncFlush( final long aFlushIntervalInMs, final long aMaxNoOfDirtyBytes )
+    {
+    	if ( aFlushIntervalInMs <= 0 || aMaxNoOfDirtyBytes <= 0 )
+    	{
+    		throw new IllegalArgumentException( "Flush interval " + aFlushIntervalInMs + " and max no of dirty bytes " + 
+    											aMaxNoOfDirtyBytes + " must be positive" );
+    	}
+    	if ( dirtyRegions != null )
+    	{
+    		throw new RuntimeException( "Async flush is enabled already" );
+    	}
+    	int noOfRegionsPerFile = (int)( ( maxFileSize + DIRTY_REGION_SIZE - 1 ) >>> DIRTY_REGION_BITS );
+    	AtomicIntegerArray[] newDirtyRegions = new AtomicIntegerArray[(int)maxBuffers];
+    	for( int fileIndex = 0; fileIndex < maxBuffers; fileIndex++ )
+    	{
+    		newDirtyRegions[fileIndex] = new AtomicIntegerArray( noOfRegionsPerFile );
+    		if ( memoryMappedFileBuffers[fileIndex] != null )
+    		{
+    			// the memory written before has not been tracked
+    			markDirty( newDirtyRegions[fileIndex], 0, noOfRegionsPerFile );
+    		}
+    	} // for
+    	maxNoOfDirtyBytes = aMaxNoOfDirtyBytes;
+    	dirtyRegions = newDirtyRegions;
+    	long flushIntervalInNanos = TimeUnit.MILLISECONDS.toNanos( aFlushIntervalInMs );
+    	flusher = new Thread( () -> runFlusher( flushIntervalInNanos ), "F1BinaryMapFlusher" );
+    	flusher.setDaemon( true );
+    	flusher.start();
+    }
+    
+    /**
+     * flush the dirty regions every given interval or when woken up by the writers until the flusher is stopped. A failed
+     * flush leaves the regions dirty, so they are flushed again by the next flush
+     * @param aFlushIntervalInNanos flush interval in ns
+     */
+    private void runFlusher( final long aFlushIntervalInNanos )
+    {
+    	while( !isFlusherStopped )
+    	{
+    		LockSupport.parkNanos( this, aFlushIntervalInNanos );
+    		try
+    		{
+    			flushDirtyRegions();
+    		}
+    		catch( IOException e )
+    		{
+    			// retried by the next flush and reported by sync
+    		}
+    	}
+    }
+    
+    @Override
+    public long lockInMemory( final long anAddress, final long aLength )
+    {
+    	long noOfLockedBytes = 0;
+    	while( noOfLockedBytes < aLength )
+    	{
+    		long address = anAddress + noOfLockedBytes;
+    		long length = Math.min( aLength - noOfLockedBytes, segmentSize - ( address & segmentMask ) );
+    		// the rest of a segment beyond the max file size is not mapped
+    		length = Math.min( length, maxFileSize - ( address & segmentMask ) );
+    		if ( length <= 0 || !NativeMemory.Lock( memoryMappedFileBuffers[(int)(address >>> segmentBits)].addressOffset() + 
+    																		( address & segmentMask ), length ) )
+    		{
+    			break;
+    		}
+    		noOfLockedBytes += length;
+    	} // while
+    	return noOfLockedBytes;
+    }
+    
+    @Override
+    public void unlockInMemory( final long anAddress, final long aLength )
+    {
+    	for( long noOfUnlockedBytes = 0; noOfUnlockedBytes < aLength; )
+    	{
+    		long address = anAddress + noOfUnlockedBytes;
+    		long length = Math.min( aLength - noOfUnlockedBytes, segmentSize - ( address & segmentMask ) );
+    		if ( ( address & segmentMask ) < maxFileSize )
+    		{
+    			NativeMemory.Unlock( memoryMappedFileBuffers[(int)(address >>> segmentBits)].addressOffset() + ( address & segmentMask ), 
+    									Math.min( length, maxFileSize - ( address & segmentMask ) ) );
+    		}
+    		noOfUnlockedBytes += length;
+    	} // for
+    }
+    
+    @Override
+    public void sync() throws IOException
+    {
+    	if ( isReadOnly )
+    	{
+    		// the files are flushed by their writer
+    		return;
+    	}
+    	if ( dirtyRegions != null )
+    	{
+    		flushDirtyRegions();
+    		return;
+    	}
+    	// nothing has been tracked, so every file in use is flushed
+    	for( int fileIndex = 0; fileIndex < maxBuffers && memoryMappedFileBuffers[fileIndex] != null; fileIndex++ )
+    	{
+    		if ( !NativeMemory.Sync( memoryMappedFileBuffers[fileIndex].addressOffset(), maxFileSize ) )
+    		{
+    			force( fileIndex );
+    		}
+    	}
+    }
+    
+    /**
+     * flush the dirty regions of all the files. The flushes are serialized, so a flush returns only after all the regions 
+     * dirtied before it has started have been flushed
+     * @throws IOException if the regions cannot be flushed
+     */
+    private synchronized void flushDirtyRegions() throws IOException
+    {
+    	noOfDirtyBytes.set( 0 );
+    	IOException failure = null;
+    	for( int fileIndex = 0; fileIndex < dirtyRegions.length; fileIndex++ )
+    	{
+    		try
+    		{
+    			flushDirtyRegions( fileIndex );
+    		}
+    		catch( IOException e )
+    		{
+    			failure = e;
+    		}
+    	} // for
+    	if ( failure != null )
+    	{
+    		throw failure;
+    	}
+    }
+    
+    /**
+     * flush the dirty regions of the given file. Consecutive dirty regions are flushed together, or the whole file is forced
+     * once all its dirty regions have been cleared when the mapped memory cannot be flushed natively
+     * @param aFileIndex index of the file
+     * @throws IOException if the regions cannot be flushed
+     */
+    private void flushDirtyRegions( final int aFileIndex ) throws IOException
+    {
+    	AtomicIntegerArray fileDirtyRegions = dirtyRegions[aFileIndex];
+    	boolean isSyncedNatively = NativeMemory.IsAvailable();
+    	boolean isDirty = false;
+    	int regionIndex = 0;
+    	while( regionIndex < fileDirtyRegions.length() )
+    	{
+    		int firstRegionIndex = regionIndex;
+    		while( regionIndex < fileDirtyRegions.length() && fileDirtyRegions.get( regionIndex ) == REGION_DIRTY && 
+    			   fileDirtyRegions.getAndSet( regionIndex, REGION_CLEAN ) == REGION_DIRTY )
+    		{
+    			regionIndex++;
+    		}
+    		if ( regionIndex == firstRegionIndex )
+    		{
+    			regionIndex++;
+    			continue;
+    		}
+    		isDirty = true;
+    		if ( isSyncedNatively )
+    		{
+	    		long offset = (long)firstRegionIndex << DIRTY_REGION_BITS;
+	    		long length = Math.min( (long)( regionIndex - firstRegionIndex ) << DIRTY_REGION_BITS, maxFileSize - offset );
+	    		try
+	    		{
+	    			NativeMemory.Sync( memoryMappedFileBuffers[aFileIndex].addressOffset() + offset, length );
+	    		}
+	    		catch( IOException e )
+	    		{
+	    			markDirty( fileDirtyRegions, firstRegionIndex, regionIndex );
+	    			throw e;
+	    		}
+    		}
+    	} // while
+    	if ( isDirty && !isSyncedNatively )
+    	{
+    		try
+    		{
+    			force( aFileIndex );
+    		}
+    		catch( IOException e )
+    		{
+    			markDirty( fileDirtyRegions, 0, fileDirtyRegions.length() );
+    			throw e;
+    		}
+    	}
+    }
+    
+    /**
+     * mark the given regions of a file as dirty again
+     * @param aFileDirtyRegions state of the regions of the file
+     * @param aFromRegionIndex index of the first region
+     * @param aToRegionIndex index after the last region
+     */
+    private static void markDirty( final AtomicIntegerArray aFileDirtyRegions, final int aFromRegionIndex, final int aToRegionIndex )
+    {
+    	for( int regionIndex = aFromRegionIndex; regionIndex < aToRegionIndex; regionIndex++ )
+    	{
+    		aFileDirtyRegions.set( regionIndex, REGION_DIRTY );
+    	}
+    }
+    
+    /**
+     * force all the changes of the given file to the storage device
+     * @param aFileIndex index of the file
+     * @throws IOException if the file cannot be forced
+     */
+    private void force( final int aFileIndex ) throws IOException
+    {
+    	ByteBuffer byteBuffer = memoryMappedFileBuffers[aFileIndex].byteBuffer();
+    	if ( byteBuffer instanceof MappedByteBuffer )
+    	{
+    		((MappedByteBuffer)byteBuffer).force();
+    		return;
+    	}
+    	try( RandomAccessFile memoryMappedRandomAccessFile = new RandomAccessFile( memoryMappedFileReferences[aFileIndex], "rw" ) )
+    	{
+    		memoryMappedRandomAccessFile.getChannel().force( false );
+    	}
+    }
+    
+    /**
+     * unmap every memory mapped file and drop the buffers. The files are still unmapped when one of them fails to be unmapped
+     */
+    private void unmap()
+    {
+    	IOException failure = null;
+    	for( int fileIndex = 0; fileIndex < memoryMappedFileBuffers.length; fileIndex++ )
+    	{
+    		if ( memoryMappedFileBuffers[fileIndex] != null )
+    		{
+    			try
+    			{
+    				Unmap( memoryMappedFileBuffers[fileIndex], maxFileSize );
+    			}
+    			catch( IOException e )
+    			{
+    				failure = e;
+    			}
+    			memoryMappedFileBuffers[fileIndex] = null;
+    			memoryRegions[fileIndex] = null;
+    		}
+    	} // for
+    	headerMemoryRegion = null;
+    	if ( failure != null )
+    	{
+    		throw new RuntimeException( "Failed to unmap " + memoryMappedFilenamePrefix, failure );
+    	}
+    }
+    
     @Override
     public void dispose( boolean shouldEraseAllPersistedMemory )
     {
-		if ( shouldEraseAllPersistedMemory )
+    	if ( !isDisposed )
+    	{
+	    	if ( flusher != null )
+	    	{
+	    		isFlusherStopped = true;
+	    		LockSupport.unpark( flusher );
+	    		try
+	    		{
+	    			flusher.join();
+	    		}
+	    		catch( InterruptedException e )
+	    		{
+	    			Thread.currentThread().interrupt();
+	    		}
+	    	}
+	    	if ( prefaultExecutor != null )
+	    	{
+	    		// no page may be touched once the files are gone
+	    		prefaultExecutor.shutdownNow();
+	    		try
+	    		{
+	    			prefaultExecutor.awaitTermination( Long.MAX_VALUE, TimeUnit.NANOSECONDS );
+	    		}
+	    		catch( InterruptedException e )
+	    		{
+	    			Thread.currentThread().interrupt();
+	    		}
+	    	}
+	    	try
+	    	{
+	    		if ( !shouldEraseAllPersistedMemory )
+	    		{
+	    			sync();
+	    		}
+	    	}
+	    	catch( IOException e )
+	    	{
+	    		throw new RuntimeException( "Failed to flush " + memoryMappedFilenamePrefix, e );
+	    	}
+	    	finally
+	    	{
+	    		// the pages not written back are still written back by the operating system after they are unmapped
+	    		isDisposed = true;
+	    		unmap();
+	    	}
+    	}
+		if ( shouldEraseAllPersistedMemory && !isReadOnly )
 		{
 			for( File file: memoryMappedFileReferences )
 			{
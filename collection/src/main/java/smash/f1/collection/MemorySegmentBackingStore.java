@@ -0,0 +1,73 @@
+/*
+ * Copyright 2016 Smash.bi Inc.
+ * http://www.smash.bi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package smash.f1.collection;
+
+import java.io.IOException;
+
+/**
+ * MemorySegmentBackingStore serves the map memory from a single memory segment of the foreign function and memory API
+ * instead of sun.misc.Unsafe. The API is final as of Java 22, so the backing store is built from src/main/java22 into the
+ * multi release jar. This is the version for the older runtimes, where the backing store is not available
+ */
+final class MemorySegmentBackingStore
+{
+	private MemorySegmentBackingStore()
+	{
+	}
+
+	/**
+	 * check if the memory segment backing store is available in this runtime
+	 * @return true if the backing store can be created
+	 */
+	final static boolean IsAvailable()
+	{
+		return false;
+	}
+
+	/**
+	 * create the backing store in direct memory allocated at once
+	 * @param aMaxMapSize size of the memory
+	 * @return backing store
+	 */
+	final static MapBackingStore Allocate( final long aMaxMapSize )
+	{
+		throw new UnsupportedOperationException( "Memory segment backing store requires Java 22" );
+	}
+
+	/**
+	 * create the backing store in a single memory mapped file of the given size
+	 * @param aMemoryMappedFilename name of the memory mapped file
+	 * @param aMaxMapSize size of the file
+	 * @return backing store
+	 * @throws IOException if the file cannot be mapped
+	 */
+	final static MapBackingStore Map( final String aMemoryMappedFilename, final long aMaxMapSize ) throws IOException
+	{
+		throw new UnsupportedOperationException( "Memory segment backing store requires Java 22" );
+	}
+
+	/**
+	 * open the backing store of an existing memory mapped file
+	 * @param aMemoryMappedFilename name of the memory mapped file
+	 * @return backing store
+	 * @throws IOException if the file cannot be mapped
+	 */
+	final static MapBackingStore Open( final String aMemoryMappedFilename ) throws IOException
+	{
+		throw new UnsupportedOperationException( "Memory segment backing store requires Java 22" );
+	}
+}
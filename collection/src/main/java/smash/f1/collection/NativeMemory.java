@@ -0,0 +1,293 @@
+/*
+ * Copyright 2016 Smash.bi Inc.
+ * http://www.smash.bi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package smash.f1.collection;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.jna.LastErrorException;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Platform;
+import com.sun.jna.Pointer;
+
+import uk.co.real_logic.agrona.UnsafeAccess;
+
+/**
+ * NativeMemory gives access to the memory hints of the operating system through the optional JNA dependency.
+ * When JNA or the C library is not available, the hints are silently skipped
+ */
+final class NativeMemory
+{
+	final static int MADV_NORMAL = 0;		// no special treatment
+	final static int MADV_RANDOM = 1;		// expect random page references, i.e., no read ahead
+	final static int MADV_SEQUENTIAL = 2;	// expect sequential page references
+	final static int MADV_WILLNEED = 3;		// expect access in the near future, i.e., start reading ahead
+	final static long HUGE_PAGE_SIZE = 1L << 21;	// size of a huge page on x86-64 and the default on arm64
+
+	private final static boolean AVAILABLE = IsLibCAvailable();
+	private final static AtomicLong NO_OF_LOCKED_BYTES = new AtomicLong();	// memory locked by all the maps of the process
+	private final static int PROCESS_ID = GetProcessIdOfThisProcess();
+
+	/**
+	 * LibC binds the native functions of the C library. It is only loaded when JNA is available
+	 */
+	private final static class LibC
+	{
+		static
+		{
+			Native.register( "c" );
+		}
+
+		private final static int MS_SYNC = Platform.isMac() ? 0x10 : 4;	// write back and wait until it is done
+		private final static int MADV_HUGEPAGE = 14;	// back with transparent huge pages, linux only
+		private final static boolean IS_LINUX = Platform.isLinux();
+		private final static int RLIMIT_MEMLOCK = Platform.isMac() || Platform.isFreeBSD() ? 6 : 8;	// max bytes locked in memory
+		private final static int ESRCH = 3;				// no such process
+
+		private static native int madvise( Pointer anAddress, NativeLong aLength, int anAdvice );
+
+		private static native int msync( Pointer anAddress, NativeLong aLength, int aFlags );
+
+		private static native int mlock( Pointer anAddress, NativeLong aLength );
+
+		private static native int munlock( Pointer anAddress, NativeLong aLength );
+
+		private static native int getrlimit( int aResource, long[] aLimit );
+
+		private static native int getpid();
+
+		private static native int kill( int aProcessId, int aSignal ) throws LastErrorException;
+	}
+
+	/**
+	 * check if JNA and the C library can be loaded
+	 * @return true if the native functions are available
+	 */
+	private final static boolean IsLibCAvailable()
+	{
+		try
+		{
+			Class.forName( "com.sun.jna.Native" );
+			Class.forName( LibC.class.getName() );
+			return true;
+		}
+		catch( ClassNotFoundException | LinkageError e )
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * check if the memory hints are passed on to the operating system
+	 * @return true if the native functions are available
+	 */
+	final static boolean IsAvailable()
+	{
+		return AVAILABLE;
+	}
+
+	/**
+	 * advise the operating system about the expected use of the given memory
+	 * @param anAddress page aligned starting address of the memory
+	 * @param aLength length of the memory in bytes
+	 * @param anAdvice one of the MADV constants
+	 * @return true if the advice has been accepted
+	 */
+	final static boolean Advise( final long anAddress, final long aLength, final int anAdvice )
+	{
+		if ( !AVAILABLE )
+		{
+			return false;
+		}
+		return LibC.madvise( new Pointer( anAddress ), new NativeLong( aLength ), anAdvice ) == 0;
+	}
+
+	/**
+	 * advise the operating system to back the given memory with transparent huge pages. Only the huge page aligned part 
+	 * of the memory can be backed by huge pages
+	 * @param anAddress page aligned starting address of the memory
+	 * @param aLength length of the memory in bytes
+	 * @return true if the advice has been accepted or false if the native functions or transparent huge pages are not available
+	 */
+	final static boolean AdviseHugePages( final long anAddress, final long aLength )
+	{
+		if ( !AVAILABLE || !LibC.IS_LINUX )
+		{
+			return false;
+		}
+		return LibC.madvise( new Pointer( anAddress ), new NativeLong( aLength ), LibC.MADV_HUGEPAGE ) == 0;
+	}
+
+	/**
+	 * allocate direct memory of the given size backed by huge pages where possible. The memory is allocated with a huge page
+	 * to spare so that the memory can start at a huge page boundary, see AlignToHugePage
+	 * @param aSize size of the memory in bytes
+	 * @return address of the allocated memory to be freed
+	 */
+	final static long AllocateHugePageMemory( final long aSize )
+	{
+		long address = UnsafeAccess.UNSAFE.allocateMemory( aSize + HUGE_PAGE_SIZE );
+		AdviseHugePages( AlignToHugePage( address ), aSize );
+		return address;
+	}
+
+	/**
+	 * align the given address to the next huge page boundary
+	 * @param anAddress address
+	 * @return huge page aligned address
+	 */
+	final static long AlignToHugePage( final long anAddress )
+	{
+		return ( anAddress + HUGE_PAGE_SIZE - 1 ) & -HUGE_PAGE_SIZE;
+	}
+
+	/**
+	 * get max no of bytes the process may lock in memory, i.e., the soft limit of RLIMIT_MEMLOCK
+	 * @return max no of bytes to be locked, Long.MAX_VALUE if it is unlimited or 0 if the native functions are not available
+	 */
+	final static long GetMemoryLockLimit()
+	{
+		if ( !AVAILABLE )
+		{
+			return 0;
+		}
+		long[] limit = new long[2];		// soft and hard limit
+		if ( LibC.getrlimit( LibC.RLIMIT_MEMLOCK, limit ) != 0 )
+		{
+			return 0;
+		}
+		// RLIM_INFINITY is all bits set on linux and 2^63-1 elsewhere
+		return limit[0] < 0 ? Long.MAX_VALUE : limit[0];
+	}
+
+	/**
+	 * get no of bytes still to be locked in memory within the limit of the process, see GetMemoryLockLimit. Memory locked
+	 * outside of the maps is not known and the lock of such memory fails once the limit is reached
+	 * @return no of bytes still to be locked
+	 */
+	final static long GetMemoryLockBudget()
+	{
+		long limit = GetMemoryLockLimit();
+		return limit == Long.MAX_VALUE ? limit : Math.max( 0, limit - NO_OF_LOCKED_BYTES.get() );
+	}
+
+	/**
+	 * lock the given memory in physical memory, so its pages are loaded and never paged out until they are unlocked
+	 * @param anAddress starting address of the memory
+	 * @param aLength length of the memory in bytes
+	 * @return true if the memory has been locked or false if it exceeds the limit or the native functions are not available
+	 */
+	final static boolean Lock( final long anAddress, final long aLength )
+	{
+		if ( !AVAILABLE || LibC.mlock( new Pointer( anAddress ), new NativeLong( aLength ) ) != 0 )
+		{
+			return false;
+		}
+		NO_OF_LOCKED_BYTES.addAndGet( aLength );
+		return true;
+	}
+
+	/**
+	 * unlock the given memory locked by Lock
+	 * @param anAddress starting address of the memory
+	 * @param aLength length of the memory in bytes
+	 */
+	final static void Unlock( final long anAddress, final long aLength )
+	{
+		if ( AVAILABLE && LibC.munlock( new Pointer( anAddress ), new NativeLong( aLength ) ) == 0 )
+		{
+			NO_OF_LOCKED_BYTES.addAndGet( -aLength );
+		}
+	}
+
+	/**
+	 * get the id of this process from the C library or else from the name of the runtime, which is pid@host on HotSpot
+	 * @return process id or 1 if it is not known
+	 */
+	private final static int GetProcessIdOfThisProcess()
+	{
+		if ( AVAILABLE )
+		{
+			return LibC.getpid();
+		}
+		String name = ManagementFactory.getRuntimeMXBean().getName();
+		try
+		{
+			return Integer.parseInt( name.substring( 0, name.indexOf( '@' ) ) );
+		}
+		catch( RuntimeException e )
+		{
+			return 1;
+		}
+	}
+
+	/**
+	 * get the id of this process
+	 * @return process id, which is never 0
+	 */
+	final static int GetProcessId()
+	{
+		return PROCESS_ID;
+	}
+
+	/**
+	 * check if the process of the given id is still running. A process is taken for running unless the operating system 
+	 * reports that there is no such process, so it is always taken for running if the native functions are not available
+	 * @param aProcessId process id
+	 * @return false if the process has terminated
+	 */
+	final static boolean IsProcessAlive( final int aProcessId )
+	{
+		// 0 and below would address process groups
+		if ( !AVAILABLE || aProcessId <= 0 )
+		{
+			return true;
+		}
+		try
+		{
+			// signal 0 only checks whether the process exists
+			LibC.kill( aProcessId, 0 );
+			return true;
+		}
+		catch( LastErrorException e )
+		{
+			return e.getErrorCode() != LibC.ESRCH;
+		}
+	}
+
+	/**
+	 * write the modified pages of the given mapped memory back to the mapped file and wait until it is done
+	 * @param anAddress page aligned starting address of the mapped memory
+	 * @param aLength length of the mapped memory in bytes
+	 * @return true if the memory has been written back or false if the native functions are not available
+	 * @throws IOException if the memory cannot be written back
+	 */
+	final static boolean Sync( final long anAddress, final long aLength ) throws IOException
+	{
+		if ( !AVAILABLE )
+		{
+			return false;
+		}
+		if ( LibC.msync( new Pointer( anAddress ), new NativeLong( aLength ), LibC.MS_SYNC ) != 0 )
+		{
+			throw new IOException( "Failed to sync " + aLength + " bytes of mapped memory" );
+		}
+		return true;
+	}
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright 2016 Smash.bi Inc.
+ * http://www.smash.bi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package smash.f1.collection;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import smash.f1.core.agrona.LongAtomicBuffer;
+import smash.f1.core.agrona.LongDirectBuffer;
+import smash.f1.core.agrona.LongMutableDirectBuffer;
+import smash.f1.core.agrona.LongUnsafeBuffer;
+import uk.co.real_logic.agrona.UnsafeAccess;
+
+/**
+ * SnapshotBackingStore is a read only backing store holding the content of another backing store at a point in time.
+ *
+ * The memory of the live backing store is divided into pages. The snapshot listens to the writes of the live backing store
+ * and saves a copy of each page into direct memory before the page is written for the first time, so the live map keeps
+ * writing in place and only pays for one page copy per page written during the life time of the snapshot.
+ * The snapshot reads a page from its saved copy if there is one, or from the live backing store otherwise. Reads from the
+ * live backing store are validated against the page state afterwards and retried from the saved copy when the page has been
+ * saved meanwhile.
+ *
+ * Each page is in one of the states
+ * NOT SAVED the page has not been written since the snapshot has been taken
+ * SAVING the page is being saved by a writer
+ * address of the saved copy of the page
+ *
+ * Memory regions are served as per thread copies of one record, so the zero copy accesses of the map are stable
+ * even while the live backing store is written
+ */
+final class SnapshotBackingStore implements MapBackingStore, MapBackingStoreWriteListener
+{
+	private final static int PAGE_BITS = 16;
+	private final static long PAGE_SIZE = 1L << PAGE_BITS;
+	private final static long PAGE_MASK = PAGE_SIZE - 1;
+	private final static long PAGE_NOT_SAVED = 0;
+	private final static long PAGE_SAVING = 1;
+
+	private final F1BinaryMap map;
+	private final MapBackingStore liveMapBackingStore;
+	private final long snapshotSize;
+	private final AtomicLongArray pages;
+	private final ThreadLocal<ReadBuffers> readBuffers;
+	private boolean disposed = false;
+
+	/**
+	 * ReadBuffers holds the buffers of a reading thread
+	 */
+	private final static class ReadBuffers
+	{
+		private final LongUnsafeBuffer record;
+		private final LongUnsafeBuffer word = new LongUnsafeBuffer( new byte[Long.BYTES] );
+		private final LongUnsafeBuffer savedPage = new LongUnsafeBuffer( new byte[Long.BYTES] );
+
+		private ReadBuffers( final int aRecordSize )
+		{
+			record = new LongUnsafeBuffer( new byte[aRecordSize] );
+		}
+	}
+
+	/**
+	 * create snapshot backing store. It has to be created while no other thread writes the live backing store
+	 * @param aMap live map the snapshot is taken from
+	 * @param aLiveMapBackingStore backing store of the live map
+	 * @param aSnapshotSize size of the memory in bytes which is part of the snapshot
+	 * @param aRecordSize size of each record
+	 */
+	SnapshotBackingStore( final F1BinaryMap aMap, final MapBackingStore aLiveMapBackingStore, final long aSnapshotSize, final int aRecordSize )
+	{
+		map = aMap;
+		liveMapBackingStore = aLiveMapBackingStore;
+		snapshotSize = aSnapshotSize;
+		long noOfPages = ( aSnapshotSize + PAGE_SIZE - 1 ) >>> PAGE_BITS;
+		if ( noOfPages > Integer.MAX_VALUE )
+		{
+			throw new IllegalArgumentException( "Snapshot of " + aSnapshotSize + " bytes is too large" );
+		}
+		pages = new AtomicLongArray( (int)noOfPages );
+		readBuffers = ThreadLocal.withInitial( () -> new ReadBuffers( aRecordSize ) );
+	}
+
+	@Override
+	public void beforeWrite( final long anAddress, final int aLength )
+	{
+		if ( anAddress >= snapshotSize )
+		{
+			return;
+		}
+		long lastPageIndex = Math.min( ( anAddress + aLength - 1 ) >>> PAGE_BITS, pages.length() - 1 );
+		for( long pageIndex = anAddress >>> PAGE_BITS; pageIndex <= lastPageIndex; pageIndex++ )
+		{
+			savePage( (int)pageIndex );
+		}
+	}
+
+	/**
+	 * save the given page unless it has been saved already
+	 * @param aPageIndex index of the page
+	 */
+	private void savePage( final int aPageIndex )
+	{
+		for(;;)
+		{
+			long page = pages.get( aPageIndex );
+			if ( page > PAGE_SAVING )
+			{
+				return;
+			}
+			if ( page == PAGE_NOT_SAVED && pages.compareAndSet( aPageIndex, PAGE_NOT_SAVED, PAGE_SAVING ) )
+			{
+				long pageStartAddress = (long)aPageIndex << PAGE_BITS;
+				long savedPageAddress = UnsafeAccess.UNSAFE.allocateMemory( PAGE_SIZE );
+				liveMapBackingStore.getBytesFromMemoryRegion( pageStartAddress, (int)Math.min( PAGE_SIZE, snapshotSize - pageStartAddress ),
+												new LongUnsafeBuffer( savedPageAddress, PAGE_SIZE ), 0 );
+				pages.set( aPageIndex, savedPageAddress );
+				return;
+			}
+			// another writer is saving the page
+		}
+	}
+
+	/**
+	 * read the snapshot content of the given address range into the given buffer
+	 * @param anAddress starting address of the memory
+	 * @param aLength length of the data
+	 * @param aReceivingBuffer buffer to be written the data into
+	 * @param aReceivingBufferStartIndex start index for the receiving buffer
+	 */
+	private void read( final long anAddress, final int aLength, final LongMutableDirectBuffer aReceivingBuffer, final long aReceivingBufferStartIndex )
+	{
+		long address = anAddress;
+		long receivingBufferIndex = aReceivingBufferStartIndex;
+		int remainingLength = aLength;
+		while( remainingLength > 0 )
+		{
+			long pageIndex = address >>> PAGE_BITS;
+			int length = (int)Math.min( remainingLength, PAGE_SIZE - ( address & PAGE_MASK ) );
+			if ( pageIndex >= pages.length() )
+			{
+				// beyond the snapshot
+				liveMapBackingStore.getBytesFromMemoryRegion( address, length, aReceivingBuffer, receivingBufferIndex );
+			}
+			else
+			{
+				for(;;)
+				{
+					long page = pages.get( (int)pageIndex );
+					if ( page > PAGE_SAVING )
+					{
+						LongUnsafeBuffer savedPage = readBuffers.get().savedPage;
+						savedPage.wrap( page, PAGE_SIZE );
+						aReceivingBuffer.putBytes( receivingBufferIndex, savedPage, address & PAGE_MASK, length );
+						break;
+					}
+					if ( page == PAGE_NOT_SAVED )
+					{
+						liveMapBackingStore.getBytesFromMemoryRegion( address, length, aReceivingBuffer, receivingBufferIndex );
+						// the copy must complete before the page state is validated
+						UnsafeAccess.UNSAFE.loadFence();
+						if ( pages.get( (int)pageIndex ) == PAGE_NOT_SAVED )
+						{
+							break;
+						}
+					}
+					// the page is being saved or has been saved while it was read
+				}
+			}
+			address += length;
+			receivingBufferIndex += length;
+			remainingLength -= length;
+		}
+	}
+
+	/**
+	 * read the snapshot long value of the given address
+	 * @param anAddress address of the memory
+	 * @return long value
+	 */
+	private long readLong( final long anAddress )
+	{
+		long pageIndex = anAddress >>> PAGE_BITS;
+		if ( ( anAddress & PAGE_MASK ) > PAGE_SIZE - Long.BYTES || pageIndex >= pages.length() )
+		{
+			LongUnsafeBuffer word = readBuffers.get().word;
+			read( anAddress, Long.BYTES, word, 0 );
+			return word.getLong( 0 );
+		}
+		for(;;)
+		{
+			long page = pages.get( (int)pageIndex );
+			if ( page > PAGE_SAVING )
+			{
+				return UnsafeAccess.UNSAFE.getLong( page + ( anAddress & PAGE_MASK ) );
+			}
+			if ( page == PAGE_NOT_SAVED )
+			{
+				long value = liveMapBackingStore.getLongFromMemoryRegion( anAddress );
+				UnsafeAccess.UNSAFE.loadFence();
+				if ( pages.get( (int)pageIndex ) == PAGE_NOT_SAVED )
+				{
+					return value;
+				}
+			}
+		}
+	}
+
+	@Override
+	public long getLongFromHeaderMemoryRegion( final long anAddress )
+	{
+		return readLong( anAddress );
+	}
+
+	@Override
+	public long getLongVolatileFromHeaderMemoryRegion( final long anAddress )
+	{
+		return readLong( anAddress );
+	}
+
+	@Override
+	public void putLongInHeaderMemoryRegion( final long anAddress, final long aNewValue )
+	{
+		throw new RuntimeException( "Snapshot is read only" );
+	}
+
+	@Override
+	public boolean compareAndPutLongInHeaderMemoryRegion( final long anAddress, final long aNewValue, final long anOldValue )
+	{
+		throw new RuntimeException( "Snapshot is read only" );
+	}
+
+	@Override
+	public long getLongFromMemoryRegion( final long anAddress )
+	{
+		return readLong( anAddress );
+	}
+
+	@Override
+	public void putLongInMemoryRegion( final long anAddress, final long aNewValue )
+	{
+		throw new RuntimeException( "Snapshot is read only" );
+	}
+
+	@Override
+	public void putLongInMemoryRegion( final long anAddress, final long aNewValue, final long anOldValue )
+	{
+		throw new RuntimeException( "Snapshot is read only" );
+	}
+
+	@Override
+	public void putLongOrderedInMemoryRegion( final long anAddress, final long aNewValue )
+	{
+		throw new RuntimeException( "Snapshot is read only" );
+	}
+
+	@Override
+	public void getBytesFromMemoryRegion( final long anAddress, final int aLength, final LongMutableDirectBuffer aReceivingBuffer, final long aReceivingBufferStartIndex )
+	{
+		read( anAddress, aLength, aReceivingBuffer, aReceivingBufferStartIndex );
+	}
+
+	@Override
+	public void putBytesToMemoryRegion( final long anAddress, final int aLength, final LongDirectBuffer aSourceBuffer, final long aSourceBufferStartIndex )
+	{
+		throw new RuntimeException( "Snapshot is read only" );
+	}
+
+	@Override
+	public long expand( final long aMapHeaderFieldAddressNoOfMemoryPages )
+	{
+		return -1;
+	}
+
+	@Override
+	public long shrink( final long aMapHeaderFieldAddressNoOfMemoryPages, final long aNoOfMemoryPages )
+	{
+		return -1;
+	}
+
+	@Override
+	public LongAtomicBuffer getMemoryRegion( final long anAddress )
+	{
+		// the map accesses a record or a key at a time through the memory region
+		LongUnsafeBuffer record = readBuffers.get().record;
+		read( anAddress, (int)Math.min( record.capacity(), snapshotSize - anAddress ), record, 0 );
+		return record;
+	}
+
+	@Override
+	public long getMemoryBufferAddress( final long anAddress )
+	{
+		return 0;
+	}
+
+	@Override
+	public long calculateNoOfMemoryPages( final long aMapSize )
+	{
+		return liveMapBackingStore.calculateNoOfMemoryPages( aMapSize );
+	}
+
+	@Override
+	public int getSegmentBits()
+	{
+		return liveMapBackingStore.getSegmentBits();
+	}
+
+	@Override
+	public void setWriteListener( final MapBackingStoreWriteListener aWriteListener )
+	{
+		throw new RuntimeException( "Snapshot is read only" );
+	}
+
+	@Override
+	public void enableAsyncFlush( final long aFlushIntervalInMs, final long aMaxNoOfDirtyBytes )
+	{
+		throw new RuntimeException( "Snapshot is read only" );
+	}
+
+	@Override
+	public long lockInMemory( final long anAddress, final long aLength )
+	{
+		// the pages of a snapshot are only saved on demand
+		return 0;
+	}
+
+	@Override
+	public void unlockInMemory( final long anAddress, final long aLength )
+	{
+	}
+
+	@Override
+	public void sync()
+	{
+		// a snapshot is never written
+	}
+
+	@Override
+	public void dispose( boolean shouldEraseAllPersistedMemory )
+	{
+		if ( disposed )
+		{
+			return;
+		}
+		disposed = true;
+		map.releaseSnapshot( this );
+		for( int pageIndex = 0; pageIndex < pages.length(); pageIndex++ )
+		{
+			long page = pages.get( pageIndex );
+			if ( page > PAGE_SAVING )
+			{
+				UnsafeAccess.UNSAFE.freeMemory( page );
+			}
+		}
+	}
+}
@@ -189,7 +189,7 @@ final class StraddleAtomicBuffer implements LongStraddleBuffer
 	public void putBytes(final long index, final byte[] src, final long offset, final int length) 
 	{
     	// if it is not straddling between 2 memory regions
-    	int overflow = (int)(0 - ( firstBuffer.capacity() - index - length ));
+    	int overflow = (int)Math.max( 0, index + length - firstBuffer.capacity() ); // never exceeds length, even for buffers over 2GB
     	if ( overflow <= 0 )
     	{
     		firstBuffer.putBytes(index,src,offset,length);
@@ -215,7 +215,7 @@ final class StraddleAtomicBuffer implements LongStraddleBuffer
 			int length) 
 	{
     	// if it is not straddling between 2 memory regions
-    	int overflow = (int)(0 - ( firstBuffer.capacity() - index - length ));
+    	int overflow = (int)Math.max( 0, index + length - firstBuffer.capacity() ); // never exceeds length, even for buffers over 2GB
     	if ( overflow <= 0 )
     	{
     		firstBuffer.putBytes(index,srcBuffer,srcIndex,length);
@@ -235,7 +235,7 @@ final class StraddleAtomicBuffer implements LongStraddleBuffer
 			final int length) 
 	{
     	// if it is not straddling between 2 memory regions
-    	int overflow = (int)(0 - ( firstBuffer.capacity() - index - length ));
+    	int overflow = (int)Math.max( 0, index + length - firstBuffer.capacity() ); // never exceeds length, even for buffers over 2GB
     	if ( overflow <= 0 )
     	{
     		firstBuffer.putBytes(index,srcBuffer,srcIndex,length);
@@ -439,7 +439,7 @@ final class StraddleAtomicBuffer implements LongStraddleBuffer
 	public void getBytes(final long index, final byte[] dst, final long offset, final int length) 
 	{
     	// if it is not straddling between 2 memory regions
-    	int overflow = (int)(0 - ( firstBuffer.capacity() - index - length ));
+    	int overflow = (int)Math.max( 0, index + length - firstBuffer.capacity() ); // never exceeds length, even for buffers over 2GB
     	if ( overflow <= 0 )
     	{
     		firstBuffer.getBytes(index, dst, offset, length);
@@ -459,7 +459,7 @@ final class StraddleAtomicBuffer implements LongStraddleBuffer
 			final long dstIndex, final int length) 
 	{
     	// if it is not straddling between 2 memory regions
-    	int overflow = (int)(0 - ( firstBuffer.capacity() - index - length ));
+    	int overflow = (int)Math.max( 0, index + length - firstBuffer.capacity() ); // never exceeds length, even for buffers over 2GB
     	if ( overflow <= 0 )
     	{
     		firstBuffer.getBytes(index, dstBuffer, dstIndex, length);
@@ -478,7 +478,7 @@ final class StraddleAtomicBuffer implements LongStraddleBuffer
 	public void getBytes(final long index, final ByteBuffer dstBuffer, final int length) 
 	{
     	// if it is not straddling between 2 memory regions
-    	int overflow = (int)(0 - ( firstBuffer.capacity() - index - length ));
+    	int overflow = (int)Math.max( 0, index + length - firstBuffer.capacity() ); // never exceeds length, even for buffers over 2GB
     	if ( overflow <= 0 )
     	{
     		firstBuffer.getBytes(index, dstBuffer, length);
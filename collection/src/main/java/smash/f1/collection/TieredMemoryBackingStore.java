@@ -0,0 +1,363 @@
+/*
+ * Copyright 2016 Smash.bi Inc.
+ * http://www.smash.bi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package smash.f1.collection;
+
+import java.io.IOException;
+
+import smash.f1.core.agrona.LongAtomicBuffer;
+import smash.f1.core.agrona.LongDirectBuffer;
+import smash.f1.core.agrona.LongMutableDirectBuffer;
+import smash.f1.core.agrona.LongUnsafeBuffer;
+import uk.co.real_logic.agrona.UnsafeAccess;
+
+/**
+ * TieredMemoryBackingStore serves the F1 Binary Map from 2 tiers of memory. The first segments of the map, which hold the
+ * header, the bucket region and the records of the lowest record positions, are the hot tier kept in direct memory. The rest
+ * of the segments are the cold tier kept in memory mapped files. Every segment has a memory mapped file, so the files make up
+ * a complete memory mapped map once the hot tier has been written back to them by sync or dispose. The map has to lay out
+ * its records segment aligned, so no access straddles the 2 tiers
+ */
+final class TieredMemoryBackingStore implements MapBackingStore
+{
+	private final MemoryMappedFileBackingStore coldStore;
+	private final int segmentBits;
+	private final long segmentSize;
+	private final long segmentMask;
+	private final int noOfHotSegments;
+	private final long hotSegmentSize;				// size of each hot segment, which is the size of a memory mapped file
+	private final long hotMemoryAddress;			// address of the direct memory of all the hot segments
+	private final LongUnsafeBuffer[] hotSegments;
+	private final LongAtomicBuffer[] memoryRegions;	// hot segments followed by the memory mapped files in use
+	private MapBackingStoreWriteListener writeListener;
+	private boolean disposed;
+
+	/**
+	 * create tiered memory backing store
+	 * @param aColdStore memory mapped file backing store of segment aligned records serving the cold tier
+	 * @param aMaxMapSize max size of the map in bytes
+	 * @param aHotMapSize size of the start of the map in bytes to be kept in direct memory, rounded up to whole segments
+	 */
+	TieredMemoryBackingStore( final MemoryMappedFileBackingStore aColdStore, final long aMaxMapSize, final long aHotMapSize )
+	{
+		coldStore = aColdStore;
+		segmentBits = coldStore.getSegmentBits();
+		segmentSize = 1L << segmentBits;
+		segmentMask = segmentSize - 1;
+		long maxNoOfSegments = Math.max( 1, coldStore.calculateNoOfMemoryPages( aMaxMapSize ) );
+		noOfHotSegments = (int)Math.max( 1, Math.min( maxNoOfSegments, coldStore.calculateNoOfMemoryPages( aHotMapSize ) ) );
+		hotSegmentSize = Math.min( aMaxMapSize, segmentSize );
+		hotMemoryAddress = UnsafeAccess.UNSAFE.allocateMemory( noOfHotSegments * hotSegmentSize );
+		// the hot segments beyond the files in use start as empty as a new file
+		UnsafeAccess.UNSAFE.setMemory( hotMemoryAddress, noOfHotSegments * hotSegmentSize, (byte)0 );
+		hotSegments = new LongUnsafeBuffer[noOfHotSegments];
+		memoryRegions = new LongAtomicBuffer[(int)maxNoOfSegments];
+		for( int segmentIndex = 0; segmentIndex < noOfHotSegments; segmentIndex++ )
+		{
+			hotSegments[segmentIndex] = new LongUnsafeBuffer( hotMemoryAddress + segmentIndex * hotSegmentSize, hotSegmentSize );
+			memoryRegions[segmentIndex] = hotSegments[segmentIndex];
+		}
+		for( int segmentIndex = 0; segmentIndex < memoryRegions.length; segmentIndex++ )
+		{
+			LongAtomicBuffer coldSegment = coldStore.getMappedMemoryRegion( (long)segmentIndex << segmentBits );
+			if ( coldSegment == null )
+			{
+				break;
+			}
+			if ( segmentIndex < noOfHotSegments )
+			{
+				// the hot tier starts with the content of the files
+				UnsafeAccess.UNSAFE.copyMemory( coldSegment.addressOffset(), hotSegments[segmentIndex].addressOffset(), hotSegmentSize );
+			}
+			else
+			{
+				memoryRegions[segmentIndex] = coldSegment;
+			}
+		}
+	}
+
+	/**
+	 * get size of the start of the map kept in direct memory
+	 * @return size of the hot tier in bytes
+	 */
+	long getHotMapSize()
+	{
+		return ( (long)( noOfHotSegments - 1 ) << segmentBits ) + hotSegmentSize;
+	}
+
+	@Override
+	public long getLongFromHeaderMemoryRegion( final long anAddress )
+	{
+		return hotSegments[0].getLong( anAddress );
+	}
+
+	@Override
+	public long getLongVolatileFromHeaderMemoryRegion( final long anAddress )
+	{
+		return hotSegments[0].getLongVolatile( anAddress );
+	}
+
+	@Override
+	public void putLongInHeaderMemoryRegion( final long anAddress, final long aNewValue )
+	{
+		if ( writeListener != null )
+		{
+			writeListener.beforeWrite( anAddress, Long.BYTES );
+		}
+		hotSegments[0].putLong( anAddress, aNewValue );
+	}
+
+	@Override
+	public boolean compareAndPutLongInHeaderMemoryRegion( final long anAddress, final long aNewValue, final long anOldValue )
+	{
+		if ( writeListener != null )
+		{
+			writeListener.beforeWrite( anAddress, Long.BYTES );
+		}
+		return hotSegments[0].compareAndSetLong( anAddress, anOldValue, aNewValue );
+	}
+
+	@Override
+	public long getLongFromMemoryRegion( final long anAddress )
+	{
+		return getMemoryRegion( anAddress ).getLong( getMemoryBufferAddress( anAddress ) );
+	}
+
+	@Override
+	public void putLongInMemoryRegion( final long anAddress, final long aNewValue )
+	{
+		if ( writeListener != null )
+		{
+			writeListener.beforeWrite( anAddress, Long.BYTES );
+		}
+		getMemoryRegion( anAddress ).putLong( getMemoryBufferAddress( anAddress ), aNewValue );
+	}
+
+	@Override
+	public void putLongOrderedInMemoryRegion( final long anAddress, final long aNewValue )
+	{
+		getMemoryRegion( anAddress ).putLongOrdered( getMemoryBufferAddress( anAddress ), aNewValue );
+	}
+
+	@Override
+	public void putLongInMemoryRegion( final long anAddress, final long aNewValue, final long anOldValue )
+	{
+		long memoryBufferAddress = getMemoryBufferAddress( anAddress );
+		LongAtomicBuffer memoryRegion = getMemoryRegion( anAddress );
+		while( !memoryRegion.compareAndSetLong( memoryBufferAddress, anOldValue, aNewValue ) )
+		{
+		}
+	}
+
+	@Override
+	public void getBytesFromMemoryRegion( final long anAddress, final int aLength, final LongMutableDirectBuffer aReceivingBuffer,
+										final long aReceivingBufferStartIndex )
+	{
+		aReceivingBuffer.putBytes( aReceivingBufferStartIndex, getMemoryRegion( anAddress ), getMemoryBufferAddress( anAddress ), aLength );
+	}
+
+	@Override
+	public void putBytesToMemoryRegion( final long anAddress, final int aLength, final LongDirectBuffer aSourceBuffer,
+										final long aSourceBufferStartIndex )
+	{
+		if ( writeListener != null )
+		{
+			writeListener.beforeWrite( anAddress, aLength );
+		}
+		aSourceBuffer.getBytes( aSourceBufferStartIndex, getMemoryRegion( anAddress ), getMemoryBufferAddress( anAddress ), aLength );
+	}
+
+	@Override
+	public long expand( final long aMapHeaderFieldAddressNoOfMemoryPages )
+	{
+		long noOfSegments = getLongFromHeaderMemoryRegion( aMapHeaderFieldAddressNoOfMemoryPages );
+		// the header of the files is only written back by sync, so the files in use are passed on
+		coldStore.putLongInHeaderMemoryRegion( aMapHeaderFieldAddressNoOfMemoryPages, noOfSegments );
+		long expandedMapSize = coldStore.expand( aMapHeaderFieldAddressNoOfMemoryPages );
+		if ( expandedMapSize == -1 )
+		{
+			return -1;
+		}
+		if ( noOfSegments >= noOfHotSegments )
+		{
+			memoryRegions[(int)noOfSegments] = coldStore.getMemoryRegion( noOfSegments << segmentBits );
+		}
+		putLongInHeaderMemoryRegion( aMapHeaderFieldAddressNoOfMemoryPages, noOfSegments + 1 );
+		return expandedMapSize;
+	}
+
+	@Override
+	public long shrink( final long aMapHeaderFieldAddressNoOfMemoryPages, final long aNoOfMemoryPages )
+	{
+		long noOfSegments = getLongFromHeaderMemoryRegion( aMapHeaderFieldAddressNoOfMemoryPages );
+		try
+		{
+			// the files kept have to hold the whole map, including its header, before the trailing ones are deleted
+			sync();
+		}
+		catch( IOException e )
+		{
+			return -1;
+		}
+		long shrunkMapSize = coldStore.shrink( aMapHeaderFieldAddressNoOfMemoryPages, aNoOfMemoryPages );
+		if ( shrunkMapSize == -1 )
+		{
+			return -1;
+		}
+		long newNoOfSegments = coldStore.getLongFromHeaderMemoryRegion( aMapHeaderFieldAddressNoOfMemoryPages );
+		// the hot segments stay allocated, while the records in them are beyond the map in use
+		for( long segmentIndex = Math.max( newNoOfSegments, noOfHotSegments ); segmentIndex < noOfSegments; segmentIndex++ )
+		{
+			memoryRegions[(int)segmentIndex] = null;
+		}
+		putLongInHeaderMemoryRegion( aMapHeaderFieldAddressNoOfMemoryPages, newNoOfSegments );
+		return shrunkMapSize;
+	}
+
+	@Override
+	public LongAtomicBuffer getMemoryRegion( final long anAddress )
+	{
+		return memoryRegions[(int)(anAddress >>> segmentBits)];
+	}
+
+	@Override
+	public long getMemoryBufferAddress( final long anAddress )
+	{
+		return anAddress & segmentMask;
+	}
+
+	@Override
+	public long calculateNoOfMemoryPages( final long aMapSize )
+	{
+		return coldStore.calculateNoOfMemoryPages( aMapSize );
+	}
+
+	@Override
+	public int getSegmentBits()
+	{
+		return segmentBits;
+	}
+
+	@Override
+	public void setWriteListener( final MapBackingStoreWriteListener aWriteListener )
+	{
+		writeListener = aWriteListener;
+	}
+
+	@Override
+	public void enableAsyncFlush( final long aFlushIntervalInMs, final long aMaxNoOfDirtyBytes )
+	{
+		throw new RuntimeException( "Hot tier is only written back by sync" );
+	}
+
+	@Override
+	public long lockInMemory( final long anAddress, final long aLength )
+	{
+		long noOfLockedBytes = 0;
+		while( noOfLockedBytes < aLength )
+		{
+			long address = anAddress + noOfLockedBytes;
+			int segmentIndex = (int)(address >>> segmentBits);
+			long length = Math.min( aLength - noOfLockedBytes, segmentSize - ( address & segmentMask ) );
+			long lockedLength;
+			if ( segmentIndex < noOfHotSegments )
+			{
+				length = Math.min( length, hotSegmentSize - ( address & segmentMask ) );
+				lockedLength = length > 0 && NativeMemory.Lock( hotSegments[segmentIndex].addressOffset() + ( address & segmentMask ), length ) ?
+								length : 0;
+			}
+			else
+			{
+				lockedLength = coldStore.lockInMemory( address, length );
+			}
+			noOfLockedBytes += lockedLength;
+			if ( lockedLength == 0 || lockedLength != length )
+			{
+				break;
+			}
+		}
+		return noOfLockedBytes;
+	}
+
+	@Override
+	public void unlockInMemory( final long anAddress, final long aLength )
+	{
+		for( long noOfUnlockedBytes = 0; noOfUnlockedBytes < aLength; )
+		{
+			long address = anAddress + noOfUnlockedBytes;
+			int segmentIndex = (int)(address >>> segmentBits);
+			long length = Math.min( aLength - noOfUnlockedBytes, segmentSize - ( address & segmentMask ) );
+			if ( segmentIndex < noOfHotSegments )
+			{
+				if ( ( address & segmentMask ) < hotSegmentSize )
+				{
+					NativeMemory.Unlock( hotSegments[segmentIndex].addressOffset() + ( address & segmentMask ),
+											Math.min( length, hotSegmentSize - ( address & segmentMask ) ) );
+				}
+			}
+			else
+			{
+				coldStore.unlockInMemory( address, length );
+			}
+			noOfUnlockedBytes += length;
+		}
+	}
+
+	/**
+	 * write the hot segments back to their memory mapped files. The entire map must be locked, so no record is copied in the
+	 * middle of a write, see F1BinaryMap.sync
+	 */
+	private void writeBack()
+	{
+		for( int segmentIndex = 0; segmentIndex < noOfHotSegments; segmentIndex++ )
+		{
+			LongAtomicBuffer coldSegment = coldStore.getMappedMemoryRegion( (long)segmentIndex << segmentBits );
+			if ( coldSegment == null )
+			{
+				break;
+			}
+			UnsafeAccess.UNSAFE.copyMemory( hotSegments[segmentIndex].addressOffset(), coldSegment.addressOffset(), hotSegmentSize );
+		}
+	}
+
+	@Override
+	public void sync() throws IOException
+	{
+		writeBack();
+		coldStore.sync();
+	}
+
+	@Override
+	public void dispose( final boolean shouldEraseAllPersistedMemory )
+	{
+		if ( !disposed )
+		{
+			disposed = true;
+			try
+			{
+				if ( !shouldEraseAllPersistedMemory )
+				{
+					writeBack();
+				}
+			}
+			finally
+			{
+				UnsafeAccess.UNSAFE.freeMemory( hotMemoryAddress );
+			}
+		}
+		coldStore.dispose( shouldEraseAllPersistedMemory );
+	}
+}
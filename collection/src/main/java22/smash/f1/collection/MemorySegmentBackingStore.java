@@ -0,0 +1,315 @@
+/*
+ * Copyright 2016 Smash.bi Inc.
+ * http://www.smash.bi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package smash.f1.collection;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.channels.FileChannel;
+
+import smash.f1.core.agrona.LongAtomicBuffer;
+import smash.f1.core.agrona.LongDirectBuffer;
+import smash.f1.core.agrona.LongMutableDirectBuffer;
+import smash.f1.core.agrona.LongSegmentBuffer;
+
+/**
+ * MemorySegmentBackingStore serves the map memory from a single memory segment of the foreign function and memory API
+ * instead of sun.misc.Unsafe. The segment is either allocated in direct memory or maps a single file of the max map size,
+ * as a memory segment is not limited to 2GB like a mapped byte buffer, so the map needs no segmenting at all. The memory
+ * is allocated or mapped at once, so the backing store never expands, while a sparse file only takes the disk space of
+ * the pages written. The segment belongs to a shared arena, which releases the memory on dispose, and every access is
+ * bounds checked by the segment
+ */
+final class MemorySegmentBackingStore implements MapBackingStore
+{
+	private final Arena arena;
+	private final MemorySegment segment;
+	private final LongSegmentBuffer buffer;
+	private final String filename;		// memory mapped file or null for direct memory
+	private MapBackingStoreWriteListener writeListener;
+	private boolean disposed;
+
+	/**
+	 * create memory segment backing store
+	 * @param anArena arena owning the segment
+	 * @param aSegment segment of the map memory
+	 * @param aFilename name of the memory mapped file or null for direct memory
+	 */
+	private MemorySegmentBackingStore( final Arena anArena, final MemorySegment aSegment, final String aFilename )
+	{
+		arena = anArena;
+		segment = aSegment;
+		buffer = new LongSegmentBuffer( aSegment );
+		filename = aFilename;
+	}
+
+	/**
+	 * check if the memory segment backing store is available in this runtime
+	 * @return true if the backing store can be created
+	 */
+	final static boolean IsAvailable()
+	{
+		return true;
+	}
+
+	/**
+	 * create the backing store in direct memory allocated at once
+	 * @param aMaxMapSize size of the memory
+	 * @return backing store
+	 */
+	final static MapBackingStore Allocate( final long aMaxMapSize )
+	{
+		Arena arena = Arena.ofShared();
+		try
+		{
+			return new MemorySegmentBackingStore( arena, arena.allocate( aMaxMapSize, Long.BYTES ), null );
+		}
+		catch( RuntimeException | OutOfMemoryError e )
+		{
+			arena.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * create the backing store in a single memory mapped file of the given size
+	 * @param aMemoryMappedFilename name of the memory mapped file
+	 * @param aMaxMapSize size of the file
+	 * @return backing store
+	 * @throws IOException if the file cannot be mapped
+	 */
+	final static MapBackingStore Map( final String aMemoryMappedFilename, final long aMaxMapSize ) throws IOException
+	{
+		return Map( aMemoryMappedFilename, aMaxMapSize, true );
+	}
+
+	/**
+	 * open the backing store of an existing memory mapped file
+	 * @param aMemoryMappedFilename name of the memory mapped file
+	 * @return backing store
+	 * @throws IOException if the file cannot be mapped
+	 */
+	final static MapBackingStore Open( final String aMemoryMappedFilename ) throws IOException
+	{
+		File file = new File( aMemoryMappedFilename );
+		if ( !file.isFile() )
+		{
+			throw new IOException( "Memory mapped file " + aMemoryMappedFilename + " does not exist" );
+		}
+		return Map( aMemoryMappedFilename, file.length(), false );
+	}
+
+	/**
+	 * map the given file into a memory segment
+	 * @param aMemoryMappedFilename name of the memory mapped file
+	 * @param aSize size of the file
+	 * @param shouldCreate true to create the file of the given size or false to map the existing file
+	 * @return backing store
+	 * @throws IOException if the file cannot be mapped
+	 */
+	private final static MapBackingStore Map( final String aMemoryMappedFilename, final long aSize, final boolean shouldCreate )
+			throws IOException
+	{
+		Arena arena = Arena.ofShared();
+		try( RandomAccessFile file = new RandomAccessFile( aMemoryMappedFilename, "rw" ) )
+		{
+			if ( shouldCreate )
+			{
+				file.setLength( aSize );
+			}
+			// the mapping stays valid once the channel is closed
+			MemorySegment segment = file.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, aSize, arena );
+			return new MemorySegmentBackingStore( arena, segment, aMemoryMappedFilename );
+		}
+		catch( IOException | RuntimeException e )
+		{
+			arena.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public long getLongFromHeaderMemoryRegion( final long anAddress )
+	{
+		return buffer.getLong( anAddress );
+	}
+
+	@Override
+	public long getLongVolatileFromHeaderMemoryRegion( final long anAddress )
+	{
+		return buffer.getLongVolatile( anAddress );
+	}
+
+	@Override
+	public void putLongInHeaderMemoryRegion( final long anAddress, final long aNewValue )
+	{
+		if ( writeListener != null )
+		{
+			writeListener.beforeWrite( anAddress, Long.BYTES );
+		}
+		buffer.putLong( anAddress, aNewValue );
+	}
+
+	@Override
+	public boolean compareAndPutLongInHeaderMemoryRegion( final long anAddress, final long aNewValue, final long anOldValue )
+	{
+		if ( writeListener != null )
+		{
+			writeListener.beforeWrite( anAddress, Long.BYTES );
+		}
+		return buffer.compareAndSetLong( anAddress, anOldValue, aNewValue );
+	}
+
+	@Override
+	public long getLongFromMemoryRegion( final long anAddress )
+	{
+		return buffer.getLong( anAddress );
+	}
+
+	@Override
+	public void putLongInMemoryRegion( final long anAddress, final long aNewValue )
+	{
+		if ( writeListener != null )
+		{
+			writeListener.beforeWrite( anAddress, Long.BYTES );
+		}
+		buffer.putLong( anAddress, aNewValue );
+	}
+
+	@Override
+	public void putLongOrderedInMemoryRegion( final long anAddress, final long aNewValue )
+	{
+		buffer.putLongOrdered( anAddress, aNewValue );
+	}
+
+	@Override
+	public void putLongInMemoryRegion( final long anAddress, final long aNewValue, final long anOldValue )
+	{
+		while( !buffer.compareAndSetLong( anAddress, anOldValue, aNewValue ) )
+		{
+		}
+	}
+
+	@Override
+	public void getBytesFromMemoryRegion( final long anAddress, final int aLength,
+			final LongMutableDirectBuffer aReceivingBuffer, final long aReceivingBufferStartIndex )
+	{
+		aReceivingBuffer.putBytes( aReceivingBufferStartIndex, buffer, anAddress, aLength );
+	}
+
+	@Override
+	public void putBytesToMemoryRegion( final long anAddress, final int aLength,
+			final LongDirectBuffer aSourceBuffer, final long aSourceBufferStartIndex )
+	{
+		if ( writeListener != null )
+		{
+			writeListener.beforeWrite( anAddress, aLength );
+		}
+		buffer.putBytes( anAddress, aSourceBuffer, aSourceBufferStartIndex, aLength );
+	}
+
+	@Override
+	public long expand( final long aMapHeaderFieldAddressNoOfMemoryPages )
+	{
+		// the whole segment is allocated or mapped at once
+		return -1;
+	}
+
+	@Override
+	public long shrink( final long aMapHeaderFieldAddressNoOfMemoryPages, final long aNoOfMemoryPages )
+	{
+		// the whole segment is allocated or mapped at once
+		return -1;
+	}
+
+	@Override
+	public LongAtomicBuffer getMemoryRegion( final long anAddress )
+	{
+		return buffer;
+	}
+
+	@Override
+	public long getMemoryBufferAddress( final long anAddress )
+	{
+		return anAddress;
+	}
+
+	@Override
+	public long calculateNoOfMemoryPages( final long aMapSize )
+	{
+		return 1;
+	}
+
+	@Override
+	public int getSegmentBits()
+	{
+		return 0;
+	}
+
+	@Override
+	public void setWriteListener( final MapBackingStoreWriteListener aWriteListener )
+	{
+		writeListener = aWriteListener;
+	}
+
+	@Override
+	public void enableAsyncFlush( final long aFlushIntervalInMs, final long aMaxNoOfDirtyBytes )
+	{
+		throw new UnsupportedOperationException( "Async flush is not supported by a memory segment backing store" );
+	}
+
+	@Override
+	public long lockInMemory( final long anAddress, final long aLength )
+	{
+		return NativeMemory.Lock( segment.address() + anAddress, aLength ) ? aLength : 0;
+	}
+
+	@Override
+	public void unlockInMemory( final long anAddress, final long aLength )
+	{
+		NativeMemory.Unlock( segment.address() + anAddress, aLength );
+	}
+
+	@Override
+	public void sync()
+	{
+		if ( filename != null && !disposed )
+		{
+			segment.force();
+		}
+	}
+
+	@Override
+	public void dispose( final boolean shouldEraseAllPersistedMemory )
+	{
+		if ( !disposed )
+		{
+			disposed = true;
+			if ( filename != null )
+			{
+				segment.force();
+			}
+			arena.close();
+		}
+		if ( shouldEraseAllPersistedMemory && filename != null )
+		{
+			new File( filename ).delete();
+		}
+	}
+}
@@ -0,0 +1,673 @@
+/*
+ * Copyright 2016 Smash.bi Inc.
+ * http://www.smash.bi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package smash.f1.core.agrona;
+
+import static uk.co.real_logic.agrona.BitUtil.SIZE_OF_INT;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Supports regular, byte ordered, and atomic (memory ordered) access to an underlying {@link MemorySegment}, so the
+ * memory is accessed through the foreign function and memory API instead of sun.misc.Unsafe. Every access is bounds
+ * checked by the segment, whatever agrona.disable.bounds.checks says, and a segment of an arena closed already cannot
+ * be accessed at all.
+ *
+ * The buffer exposes the address of a native segment or the array of a heap segment, so it copies to and from a
+ * {@link LongUnsafeBuffer} as any other buffer. The atomic accesses have to be aligned to their size.
+ */
+public class LongSegmentBuffer implements LongAtomicBuffer
+{
+    private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED;
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED;
+    private static final ValueLayout.OfDouble DOUBLE = ValueLayout.JAVA_DOUBLE_UNALIGNED;
+    private static final ValueLayout.OfFloat FLOAT = ValueLayout.JAVA_FLOAT_UNALIGNED;
+    private static final ValueLayout.OfShort SHORT = ValueLayout.JAVA_SHORT_UNALIGNED;
+    private static final ValueLayout.OfChar CHAR = ValueLayout.JAVA_CHAR_UNALIGNED;
+    private static final ValueLayout.OfByte BYTE = ValueLayout.JAVA_BYTE;
+
+    private static final ValueLayout.OfLong SWAPPED_LONG = LONG.withOrder(Swap(LONG.order()));
+    private static final ValueLayout.OfInt SWAPPED_INT = INT.withOrder(Swap(INT.order()));
+    private static final ValueLayout.OfDouble SWAPPED_DOUBLE = DOUBLE.withOrder(Swap(DOUBLE.order()));
+    private static final ValueLayout.OfFloat SWAPPED_FLOAT = FLOAT.withOrder(Swap(FLOAT.order()));
+    private static final ValueLayout.OfShort SWAPPED_SHORT = SHORT.withOrder(Swap(SHORT.order()));
+    private static final ValueLayout.OfChar SWAPPED_CHAR = CHAR.withOrder(Swap(CHAR.order()));
+
+    // coordinates are the segment and the byte offset in the segment
+    private static final VarHandle LONG_HANDLE = ValueLayout.JAVA_LONG.varHandle();
+    private static final VarHandle INT_HANDLE = ValueLayout.JAVA_INT.varHandle();
+    private static final VarHandle SHORT_HANDLE = ValueLayout.JAVA_SHORT.varHandle();
+    private static final VarHandle CHAR_HANDLE = ValueLayout.JAVA_CHAR.varHandle();
+    private static final VarHandle BYTE_HANDLE = ValueLayout.JAVA_BYTE.varHandle();
+
+    private MemorySegment segment;
+    private byte[] byteArray;
+    private ByteBuffer byteBuffer;
+    private long addressOffset;
+
+    /**
+     * Attach a view to a memory segment for providing direct access.
+     *
+     * @param segment to which the view is attached.
+     */
+    public LongSegmentBuffer(final MemorySegment segment)
+    {
+        wrap(segment);
+    }
+
+    /**
+     * Attach a view to a byte[] for providing direct access.
+     *
+     * @param buffer to which the view is attached.
+     */
+    public LongSegmentBuffer(final byte[] buffer)
+    {
+        wrap(buffer);
+    }
+
+    /**
+     * Attach a view to a {@link ByteBuffer} for providing direct access, the {@link ByteBuffer} can be
+     * heap based or direct.
+     *
+     * @param buffer to which the view is attached.
+     */
+    public LongSegmentBuffer(final ByteBuffer buffer)
+    {
+        wrap(buffer);
+    }
+
+    /**
+     * Attach a view to an off-heap memory region by address.
+     *
+     * @param address where the memory begins off-heap
+     * @param length  of the buffer from the given address
+     */
+    public LongSegmentBuffer(final long address, final long length)
+    {
+        wrap(address, length);
+    }
+
+    private static ByteOrder Swap(final ByteOrder byteOrder)
+    {
+        return byteOrder == ByteOrder.BIG_ENDIAN ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+    }
+
+    /**
+     * Attach a view to a memory segment for providing direct access.
+     *
+     * @param segment to which the view is attached.
+     */
+    public void wrap(final MemorySegment segment)
+    {
+        this.segment = segment;
+        byteBuffer = null;
+        final Object base = segment.heapBase().orElse(null);
+        if (base instanceof byte[])
+        {
+            // the address of a heap segment is the offset in the array
+            byteArray = (byte[])base;
+            addressOffset = LongUnsafeBuffer.ARRAY_BASE_OFFSET + segment.address();
+        }
+        else if (base == null)
+        {
+            byteArray = null;
+            addressOffset = segment.address();
+        }
+        else
+        {
+            throw new IllegalArgumentException("Segment of " + base.getClass().getSimpleName() + " is not supported");
+        }
+    }
+
+    public void wrap(final byte[] buffer)
+    {
+        wrap(MemorySegment.ofArray(buffer));
+    }
+
+    public void wrap(final byte[] buffer, final long offset, final int length)
+    {
+        wrap(MemorySegment.ofArray(buffer).asSlice(offset, length));
+    }
+
+    public void wrap(final ByteBuffer buffer)
+    {
+        wrap(buffer, 0, buffer.capacity());
+    }
+
+    public void wrap(final ByteBuffer buffer, final long offset, final int length)
+    {
+        // a segment of a buffer starts at its position
+        wrap(MemorySegment.ofBuffer(buffer.duplicate().clear()).asSlice(offset, length));
+        byteBuffer = buffer;
+    }
+
+    public void wrap(final LongDirectBuffer buffer)
+    {
+        wrap(buffer, 0, buffer.capacity());
+    }
+
+    public void wrap(final LongDirectBuffer buffer, final long offset, final long length)
+    {
+        if (buffer instanceof LongSegmentBuffer)
+        {
+            wrap(((LongSegmentBuffer)buffer).segment().asSlice(offset, length));
+        }
+        else if (buffer.byteArray() != null)
+        {
+            wrap(MemorySegment.ofArray(buffer.byteArray())
+                .asSlice(buffer.addressOffset() - LongUnsafeBuffer.ARRAY_BASE_OFFSET + offset, length));
+        }
+        else
+        {
+            wrap(buffer.addressOffset() + offset, length);
+        }
+    }
+
+    public void wrap(final long address, final long length)
+    {
+        wrap(MemorySegment.ofAddress(address).reinterpret(length));
+    }
+
+    /**
+     * Get the underlying memory segment.
+     *
+     * @return the underlying memory segment.
+     */
+    public MemorySegment segment()
+    {
+        return segment;
+    }
+
+    public long addressOffset()
+    {
+        return addressOffset;
+    }
+
+    public byte[] byteArray()
+    {
+        return byteArray;
+    }
+
+    public ByteBuffer byteBuffer()
+    {
+        return byteBuffer;
+    }
+
+    public void setMemory(final long index, final int length, final byte value)
+    {
+        segment.asSlice(index, length).fill(value);
+    }
+
+    public long capacity()
+    {
+        return segment.byteSize();
+    }
+
+    public void checkLimit(final long limit)
+    {
+        if (limit > capacity())
+        {
+            final String msg = String.format("limit=%d is beyond capacity=%d", limit, capacity());
+            throw new IndexOutOfBoundsException(msg);
+        }
+    }
+
+    public void verifyAlignment()
+    {
+        if (0 != (addressOffset & (LongUnsafeBuffer.ALIGNMENT - 1)))
+        {
+            throw new IllegalStateException(String.format(
+                "AtomicBuffer is not correctly aligned: addressOffset=%d in not divisible by %d",
+                addressOffset,
+                LongUnsafeBuffer.ALIGNMENT));
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    public long getLong(final long index, final ByteOrder byteOrder)
+    {
+        return segment.get(byteOrder == LONG.order() ? LONG : SWAPPED_LONG, index);
+    }
+
+    public void putLong(final long index, final long value, final ByteOrder byteOrder)
+    {
+        segment.set(byteOrder == LONG.order() ? LONG : SWAPPED_LONG, index, value);
+    }
+
+    public long getLong(final long index)
+    {
+        return segment.get(LONG, index);
+    }
+
+    public void putLong(final long index, final long value)
+    {
+        segment.set(LONG, index, value);
+    }
+
+    public long getLongVolatile(final long index)
+    {
+        return (long)LONG_HANDLE.getVolatile(segment, index);
+    }
+
+    public void putLongVolatile(final long index, final long value)
+    {
+        LONG_HANDLE.setVolatile(segment, index, value);
+    }
+
+    public void putLongOrdered(final long index, final long value)
+    {
+        LONG_HANDLE.setRelease(segment, index, value);
+    }
+
+    public long addLongOrdered(final long index, final long increment)
+    {
+        final long value = getLong(index);
+        putLongOrdered(index, value + increment);
+
+        return value;
+    }
+
+    public boolean compareAndSetLong(final long index, final long expectedValue, final long updateValue)
+    {
+        return LONG_HANDLE.compareAndSet(segment, index, expectedValue, updateValue);
+    }
+
+    public long getAndSetLong(final long index, final long value)
+    {
+        return (long)LONG_HANDLE.getAndSet(segment, index, value);
+    }
+
+    public long getAndAddLong(final long index, final long delta)
+    {
+        return (long)LONG_HANDLE.getAndAdd(segment, index, delta);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    public int getInt(final long index, final ByteOrder byteOrder)
+    {
+        return segment.get(byteOrder == INT.order() ? INT : SWAPPED_INT, index);
+    }
+
+    public void putInt(final long index, final int value, final ByteOrder byteOrder)
+    {
+        segment.set(byteOrder == INT.order() ? INT : SWAPPED_INT, index, value);
+    }
+
+    public int getInt(final long index)
+    {
+        return segment.get(INT, index);
+    }
+
+    public void putInt(final long index, final int value)
+    {
+        segment.set(INT, index, value);
+    }
+
+    public int getIntVolatile(final long index)
+    {
+        return (int)INT_HANDLE.getVolatile(segment, index);
+    }
+
+    public void putIntVolatile(final long index, final int value)
+    {
+        INT_HANDLE.setVolatile(segment, index, value);
+    }
+
+    public void putIntOrdered(final long index, final int value)
+    {
+        INT_HANDLE.setRelease(segment, index, value);
+    }
+
+    public int addIntOrdered(final long index, final int increment)
+    {
+        final int value = getInt(index);
+        putIntOrdered(index, value + increment);
+
+        return value;
+    }
+
+    public boolean compareAndSetInt(final long index, final int expectedValue, final int updateValue)
+    {
+        return INT_HANDLE.compareAndSet(segment, index, expectedValue, updateValue);
+    }
+
+    public int getAndSetInt(final long index, final int value)
+    {
+        return (int)INT_HANDLE.getAndSet(segment, index, value);
+    }
+
+    public int getAndAddInt(final long index, final int delta)
+    {
+        return (int)INT_HANDLE.getAndAdd(segment, index, delta);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    public double getDouble(final long index, final ByteOrder byteOrder)
+    {
+        return segment.get(byteOrder == DOUBLE.order() ? DOUBLE : SWAPPED_DOUBLE, index);
+    }
+
+    public void putDouble(final long index, final double value, final ByteOrder byteOrder)
+    {
+        segment.set(byteOrder == DOUBLE.order() ? DOUBLE : SWAPPED_DOUBLE, index, value);
+    }
+
+    public double getDouble(final long index)
+    {
+        return segment.get(DOUBLE, index);
+    }
+
+    public void putDouble(final long index, final double value)
+    {
+        segment.set(DOUBLE, index, value);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    public float getFloat(final long index, final ByteOrder byteOrder)
+    {
+        return segment.get(byteOrder == FLOAT.order() ? FLOAT : SWAPPED_FLOAT, index);
+    }
+
+    public void putFloat(final long index, final float value, final ByteOrder byteOrder)
+    {
+        segment.set(byteOrder == FLOAT.order() ? FLOAT : SWAPPED_FLOAT, index, value);
+    }
+
+    public float getFloat(final long index)
+    {
+        return segment.get(FLOAT, index);
+    }
+
+    public void putFloat(final long index, final float value)
+    {
+        segment.set(FLOAT, index, value);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    public short getShort(final long index, final ByteOrder byteOrder)
+    {
+        return segment.get(byteOrder == SHORT.order() ? SHORT : SWAPPED_SHORT, index);
+    }
+
+    public void putShort(final long index, final short value, final ByteOrder byteOrder)
+    {
+        segment.set(byteOrder == SHORT.order() ? SHORT : SWAPPED_SHORT, index, value);
+    }
+
+    public short getShort(final long index)
+    {
+        return segment.get(SHORT, index);
+    }
+
+    public void putShort(final long index, final short value)
+    {
+        segment.set(SHORT, index, value);
+    }
+
+    public short getShortVolatile(final long index)
+    {
+        return (short)SHORT_HANDLE.getVolatile(segment, index);
+    }
+
+    public void putShortVolatile(final long index, final short value)
+    {
+        SHORT_HANDLE.setVolatile(segment, index, value);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    public byte getByte(final long index)
+    {
+        return segment.get(BYTE, index);
+    }
+
+    public void putByte(final long index, final byte value)
+    {
+        segment.set(BYTE, index, value);
+    }
+
+    public byte getByteVolatile(final long index)
+    {
+        return (byte)BYTE_HANDLE.getVolatile(segment, index);
+    }
+
+    public void putByteVolatile(final long index, final byte value)
+    {
+        BYTE_HANDLE.setVolatile(segment, index, value);
+    }
+
+    public void getBytes(final long index, final byte[] dst)
+    {
+        getBytes(index, dst, 0, dst.length);
+    }
+
+    public void getBytes(final long index, final byte[] dst, final long offset, final int length)
+    {
+        MemorySegment.copy(segment, BYTE, index, dst, (int)offset, length);
+    }
+
+    public void getBytes(final long index, final LongMutableDirectBuffer dstBuffer, final long dstIndex, final int length)
+    {
+        dstBuffer.putBytes(dstIndex, this, index, length);
+    }
+
+    public void getBytes(final long index, final ByteBuffer dstBuffer, final int length)
+    {
+        final int dstOffset = dstBuffer.position();
+        MemorySegment.copy(segment, index, MemorySegment.ofBuffer(dstBuffer), 0, length);
+        dstBuffer.position(dstOffset + length);
+    }
+
+    public void putBytes(final long index, final byte[] src)
+    {
+        putBytes(index, src, 0, src.length);
+    }
+
+    public void putBytes(final long index, final byte[] src, final long offset, final int length)
+    {
+        MemorySegment.copy(src, (int)offset, segment, BYTE, index, length);
+    }
+
+    public void putBytes(final long index, final ByteBuffer srcBuffer, final int length)
+    {
+        final int srcIndex = srcBuffer.position();
+        putBytes(index, srcBuffer, srcIndex, length);
+        srcBuffer.position(srcIndex + length);
+    }
+
+    public void putBytes(final long index, final ByteBuffer srcBuffer, final long srcIndex, final int length)
+    {
+        MemorySegment.copy(MemorySegment.ofBuffer(srcBuffer.duplicate().clear()), srcIndex, segment, index, length);
+    }
+
+    public void putBytes(final long index, final LongDirectBuffer srcBuffer, final long srcIndex, final int length)
+    {
+        if (srcBuffer instanceof LongStraddleBuffer)
+        {
+            srcBuffer.getBytes(srcIndex, this, index, length);
+        }
+        else
+        {
+            srcBuffer.boundsCheck(srcIndex, length);
+            MemorySegment.copy(SegmentOf(srcBuffer), srcIndex, segment, index, length);
+        }
+    }
+
+    /**
+     * get the memory segment of the given buffer
+     * @param aBuffer buffer of a memory segment, an array or an off-heap memory region
+     * @return memory segment of the buffer
+     */
+    private static MemorySegment SegmentOf(final LongDirectBuffer aBuffer)
+    {
+        if (aBuffer instanceof LongSegmentBuffer)
+        {
+            return ((LongSegmentBuffer)aBuffer).segment();
+        }
+        if (aBuffer.byteArray() != null)
+        {
+            return MemorySegment.ofArray(aBuffer.byteArray())
+                .asSlice(aBuffer.addressOffset() - LongUnsafeBuffer.ARRAY_BASE_OFFSET, aBuffer.capacity());
+        }
+        return MemorySegment.ofAddress(aBuffer.addressOffset()).reinterpret(aBuffer.capacity());
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    public char getChar(final long index, final ByteOrder byteOrder)
+    {
+        return segment.get(byteOrder == CHAR.order() ? CHAR : SWAPPED_CHAR, index);
+    }
+
+    public void putChar(final long index, final char value, final ByteOrder byteOrder)
+    {
+        segment.set(byteOrder == CHAR.order() ? CHAR : SWAPPED_CHAR, index, value);
+    }
+
+    public char getChar(final long index)
+    {
+        return segment.get(CHAR, index);
+    }
+
+    public void putChar(final long index, final char value)
+    {
+        segment.set(CHAR, index, value);
+    }
+
+    public char getCharVolatile(final long index)
+    {
+        return (char)CHAR_HANDLE.getVolatile(segment, index);
+    }
+
+    public void putCharVolatile(final long index, final char value)
+    {
+        CHAR_HANDLE.setVolatile(segment, index, value);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    public String getStringUtf8(final long index, final ByteOrder byteOrder)
+    {
+        final int length = getInt(index, byteOrder);
+
+        return getStringUtf8(index, length);
+    }
+
+    public String getStringUtf8(final long index, final int length)
+    {
+        final byte[] stringInBytes = new byte[length];
+        getBytes(index + SIZE_OF_INT, stringInBytes);
+
+        return new String(stringInBytes, StandardCharsets.UTF_8);
+    }
+
+    public int putStringUtf8(final long index, final String value, final ByteOrder byteOrder)
+    {
+        return putStringUtf8(index, value, byteOrder, Integer.MAX_VALUE);
+    }
+
+    public int putStringUtf8(final long index, final String value, final ByteOrder byteOrder, final int maxEncodedSize)
+    {
+        final byte[] bytes = value != null ? value.getBytes(StandardCharsets.UTF_8) : LongUnsafeBuffer.NULL_BYTES;
+        if (bytes.length > maxEncodedSize)
+        {
+            throw new IllegalArgumentException("Encoded string larger than maximum size: " + maxEncodedSize);
+        }
+
+        putInt(index, bytes.length, byteOrder);
+        putBytes(index + SIZE_OF_INT, bytes);
+
+        return SIZE_OF_INT + bytes.length;
+    }
+
+    public String getStringWithoutLengthUtf8(final long index, final int length)
+    {
+        final byte[] stringInBytes = new byte[length];
+        getBytes(index, stringInBytes);
+
+        return new String(stringInBytes, StandardCharsets.UTF_8);
+    }
+
+    public int putStringWithoutLengthUtf8(final long index, final String value)
+    {
+        final byte[] bytes = value != null ? value.getBytes(StandardCharsets.UTF_8) : LongUnsafeBuffer.NULL_BYTES;
+        putBytes(index, bytes);
+
+        return bytes.length;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    public void boundsCheck(final long index, final int length)
+    {
+        final long resultingPosition = index + (long)length;
+        if (index < 0 || resultingPosition > capacity())
+        {
+            throw new IndexOutOfBoundsException(String.format("index=%d, length=%d, capacity=%d", index, length, capacity()));
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    public boolean equals(final Object obj)
+    {
+        if (this == obj)
+        {
+            return true;
+        }
+
+        if (obj == null || getClass() != obj.getClass())
+        {
+            return false;
+        }
+
+        final LongSegmentBuffer that = (LongSegmentBuffer)obj;
+
+        return capacity() == that.capacity() && segment.mismatch(that.segment) == -1;
+    }
+
+    public int hashCode()
+    {
+        int hashCode = 1;
+
+        for (long i = 0, length = capacity(); i < length; i++)
+        {
+            hashCode = 31 * hashCode + getByte(i);
+        }
+
+        return hashCode;
+    }
+
+    public String toString()
+    {
+        return "LongSegmentBuffer{" +
+            "addressOffset=" + addressOffset +
+            ", capacity=" + capacity() +
+            ", byteArray=" + byteArray +
+            ", byteBuffer=" + byteBuffer +
+            '}';
+    }
+}
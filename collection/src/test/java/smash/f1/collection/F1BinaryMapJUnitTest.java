@@ -16,7 +16,22 @@
  */
 package smash.f1.collection;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
 import smash.f1.core.agrona.LongDirectBuffer;
+import smash.f1.core.agrona.LongUnsafeBuffer;
 import junit.framework.TestCase;
 
 public class F1BinaryMapJUnitTest extends TestCase implements F1BinaryMapIterator, F1BinaryMapLongValueIterator
@@ -204,6 +219,1682 @@ public class F1BinaryMapJUnitTest extends TestCase implements F1BinaryMapIterato
 		assertEquals( "Clear did not clear all items with evictions " + statistics.getNoOfEvictions(), 0, statistics.getNoOfEvictions() );
 	}
 	
+	public void testClearGeneration()
+	{
+		for( int generation = 0; generation < 3; generation++ )
+		{
+			for( long key = 0L; key < noOfItems; key++ )
+			{
+				data.setData(key, key+noOfItems);
+				map.put( data ); 
+			}
+			long noOfExpansions = map.statistics().getNoOfExpansions();
+			map.clear();
+			assertEquals( "Size is wrong " + map.getSize(), 0, map.getSize() );
+			data.setKey(1L, 1L+noOfItems);
+			assertEquals( "Cleared data still exists", true, map.get( data ) == null );
+			iterationCount = 0L;
+			map.traverse( this );
+			assertEquals( "Cleared data traversed " + iterationCount, 0, iterationCount );
+			map.traverseInRecordOrder( this );
+			assertEquals( "Cleared data traversed in record order " + iterationCount, 0, iterationCount );
+			F1BinaryMapStatistics statistics = map.statistics();
+			assertEquals( "Cleared records pushed onto free list", 0, statistics.getNoOfFreeLists() );
+			// the record region is reused from the start
+			for( long key = 0L; key < noOfItems; key += 2 )
+			{
+				data.setData(key, key+noOfItems);
+				map.put( data ); 
+			}
+			assertEquals( "Record region not reused", noOfExpansions, map.statistics().getNoOfExpansions() );
+			assertEquals( "Size is wrong " + map.getSize(), noOfItems / 2, map.getSize() );
+			for( long key = 0L; key < noOfItems; key++ )
+			{
+				data.setKey(key, key+noOfItems);
+				TestData retrievedData = map.get( data );
+				assertEquals( "Data " + key + " is wrong", (key & 1) == 0, retrievedData != null && retrievedData.isCorrect() );
+			}
+			iterationCount = 0L;
+			map.traverseInRecordOrder( this );
+			assertEquals( "Wrong record order iteration count", noOfItems / 2, iterationCount );
+			map.clear();
+		}
+	}
+	
+	public void testConcurrentClear() throws Exception
+	{
+		// few buckets, so a clear sweeps all the bucket locks while a put is between allocating and linking its record
+		final long noOfBuckets = 64;
+		final long noOfWriterItems = 1024;
+		final TestDataMapForF1BinaryMap concurrentMap = new TestDataMapForF1BinaryMap( noOfItems, noOfBuckets, noOfItems, true );
+		try
+		{
+			Thread[] writers = new Thread[4];
+			for( int writerIndex = 0; writerIndex < writers.length; writerIndex++ )
+			{
+				final long firstKey = writerIndex * noOfWriterItems;
+				writers[writerIndex] = new Thread( () ->
+				{
+					TestDataForF1BinaryMap writerData = new TestDataForF1BinaryMap();
+					for( int pass = 0; pass < 100; pass++ )
+					{
+						for( long key = firstKey; key < firstKey + noOfWriterItems; key++ )
+						{
+							writerData.setData(key, key+noOfItems);
+							concurrentMap.put( writerData );
+							if ( ( ( key + pass ) & 1 ) == 0 )
+							{
+								concurrentMap.remove( writerData );
+							}
+						}
+					}
+				} );
+				writers[writerIndex].start();
+			}
+			// clear the map while records are being allocated and linked or unlinked and freed
+			for( Thread writer : writers )
+			{
+				while( writer.isAlive() )
+				{
+					concurrentMap.clear();
+					Thread.yield();
+				}
+				writer.join();
+			}
+			F1BinaryMapVerification verification = concurrentMap.verify( false, 4 );
+			assertEquals( "Map is inconsistent " + verification, true, verification.isConsistent() );
+			// a record shared by two keys leaves one of them unreachable, so it is added once more
+			long noOfKeys = writers.length * noOfWriterItems;
+			for( long key = 0L; key < noOfKeys; key++ )
+			{
+				data.setData(key, key+noOfItems);
+				concurrentMap.put( data ); 
+			}
+			assertEquals( "Size is wrong " + concurrentMap.getSize(), noOfKeys, concurrentMap.getSize() );
+			for( long key = 0L; key < noOfKeys; key++ )
+			{
+				data.setKey(key, key+noOfItems);
+				TestData retrievedData = concurrentMap.get( data );
+				assertEquals( "Data " + key + " does not exist", true, retrievedData != null );
+				assertEquals( "Data " + key + " does not contain the right data", true, retrievedData.isCorrect() );
+			}
+			verification = concurrentMap.verify( false, 4 );
+			assertEquals( "Map is inconsistent " + verification, true, verification.isConsistent() );
+		}
+		finally
+		{
+			concurrentMap.dispose( true );
+		}
+	}
+	
+	public void testSegmentBits() throws Exception
+	{
+		String memoryMappedFilenamePrefix = new File( System.getProperty( "java.io.tmpdir" ), "F1BinaryMapSegmentBitsTest" ).getPath();
+		// 1M records need 2 files of the smallest segment size
+		TestDataMapForF1BinaryMap segmentedMap = new TestDataMapForF1BinaryMap( memoryMappedFilenamePrefix, noOfItems / 4, noOfItems, noOfItems, 
+															F1BinaryMap.MIN_SEGMENT_BITS, false );
+		try
+		{
+			for( long key = 0L; key < noOfItems; key++ )
+			{
+				data.setData(key, key+noOfItems);
+				segmentedMap.put( data ); 
+			}
+			assertEquals( "Map did not expand into the next segment", true, segmentedMap.statistics().getNoOfExpansions() > 0 );
+			segmentedMap.dispose( false );
+			// segment size is read back from the header
+			segmentedMap = new TestDataMapForF1BinaryMap( memoryMappedFilenamePrefix, noOfItems, false );
+			assertEquals( "Size is wrong " + segmentedMap.getSize(), noOfItems, segmentedMap.getSize() );
+			for( long key = 0L; key < noOfItems; key++ )
+			{
+				data.setKey(key, key+noOfItems);
+				TestData retrievedData = segmentedMap.get( data );
+				assertEquals( "Data " + key + " does not exist", true, retrievedData != null );
+				assertEquals( "Data " + key + " does not contain the right data", true, retrievedData.isCorrect() );
+			}
+		}
+		finally
+		{
+			segmentedMap.dispose( true );
+		}
+		try
+		{
+			new TestDataMapForF1BinaryMap( memoryMappedFilenamePrefix, noOfItems, noOfItems, noOfItems, F1BinaryMap.MIN_SEGMENT_BITS - 1, false );
+			fail( "Segment bits below minimum accepted" );
+		}
+		catch( IllegalArgumentException e )
+		{
+		}
+	}
+	
+	public void testSegmentAlignedRecordLayout() throws Exception
+	{
+		String memoryMappedFilenamePrefix = new File( System.getProperty( "java.io.tmpdir" ), "F1BinaryMapSegmentAlignedTest" ).getPath();
+		// records cross the boundary of the first file, whose size is not a multiple of the record size
+		TestDataMapForF1BinaryMap alignedMap = new TestDataMapForF1BinaryMap( memoryMappedFilenamePrefix, noOfItems / 4, noOfItems, noOfItems, 
+															F1BinaryMap.MIN_SEGMENT_BITS, F1BinaryMap.RECORD_LAYOUT_SEGMENT_ALIGNED, false );
+		try
+		{
+			assertEquals( "Zero copy get not allowed", true, alignedMap.isZeroCopyGetAllowed() );
+			for( long key = 0L; key < noOfItems; key++ )
+			{
+				data.setData(key, key+noOfItems);
+				alignedMap.put( data ); 
+				sumForthField += data.getBuffer().getLong(40);
+			}
+			for( long key = 0L; key < noOfItems; key++ )
+			{
+				dataForZeroCopy.setKey(key, key+noOfItems);
+				assertEquals( "Data with zero copy " + key + " does not exist", true, alignedMap.getZeroCopy( dataForZeroCopy ) );
+				assertEquals( "Data with zero copy " + key + " does not contain the right data", true, dataForZeroCopy.isCorrect() );
+			}
+			alignedMap.dispose( false );
+			// record layout is read back from the header
+			alignedMap = new TestDataMapForF1BinaryMap( memoryMappedFilenamePrefix, noOfItems, false );
+			assertEquals( "Zero copy get not allowed after reopen", true, alignedMap.isZeroCopyGetAllowed() );
+			totalLongValue = 0;
+			alignedMap.traverse( (F1BinaryMapLongValueIterator)this, 24 );
+			assertEquals( "Wrong iteration sum forth field got " + totalLongValue + " expected " + sumForthField, sumForthField, totalLongValue );
+			for( long key = 0L; key < noOfItems; key++ )
+			{
+				data.setKey(key, key+noOfItems);
+				TestData retrievedData = alignedMap.get( data );
+				assertEquals( "Data " + key + " does not exist", true, retrievedData != null );
+				assertEquals( "Data " + key + " does not contain the right data", true, retrievedData.isCorrect() );
+			}
+		}
+		finally
+		{
+			alignedMap.dispose( true );
+		}
+	}
+	
+	public void testLoadMode() throws Exception
+	{
+		String memoryMappedFilenamePrefix = new File( System.getProperty( "java.io.tmpdir" ), "F1BinaryMapLoadModeTest" ).getPath();
+		TestDataMapForF1BinaryMap loadedMap = new TestDataMapForF1BinaryMap( memoryMappedFilenamePrefix, noOfItems / 4, noOfItems, noOfItems, 
+															F1BinaryMap.MIN_SEGMENT_BITS, F1BinaryMap.RECORD_LAYOUT_PACKED, 
+															F1BinaryMap.LOAD_MODE_LAZY, false );
+		try
+		{
+			for( long key = 0L; key < noOfItems; key++ )
+			{
+				data.setData(key, key+noOfItems);
+				loadedMap.put( data ); 
+			}
+			for( int loadMode : new int[] { F1BinaryMap.LOAD_MODE_PARALLEL_PREFAULT, F1BinaryMap.LOAD_MODE_LAZY, F1BinaryMap.LOAD_MODE_EAGER } )
+			{
+				loadedMap.dispose( false );
+				loadedMap = new TestDataMapForF1BinaryMap( memoryMappedFilenamePrefix, noOfItems, loadMode, false );
+				assertEquals( "Size is wrong " + loadedMap.getSize(), noOfItems, loadedMap.getSize() );
+				for( long key = 0L; key < noOfItems; key++ )
+				{
+					data.setKey(key, key+noOfItems);
+					TestData retrievedData = loadedMap.get( data );
+					assertEquals( "Data " + key + " does not exist with load mode " + loadMode, true, retrievedData != null );
+					assertEquals( "Data " + key + " does not contain the right data", true, retrievedData.isCorrect() );
+				}
+			}
+		}
+		finally
+		{
+			loadedMap.dispose( true );
+		}
+		try
+		{
+			new TestDataMapForF1BinaryMap( memoryMappedFilenamePrefix, noOfItems, -1, false );
+			fail( "Unknown load mode accepted" );
+		}
+		catch( IllegalArgumentException e )
+		{
+		}
+	}
+	
+	/**
+	 * get the virtual memory size of this process
+	 * @return virtual memory size in KB or -1 if it is not known
+	 */
+	private static long GetVirtualMemorySize() throws Exception
+	{
+		File status = new File( "/proc/self/status" );
+		if ( !status.exists() )
+		{
+			return -1;
+		}
+		for( String line : Files.readAllLines( Paths.get( status.getPath() ), StandardCharsets.US_ASCII ) )
+		{
+			if ( line.startsWith( "VmSize:" ) )
+			{
+				return Long.parseLong( line.replaceAll( "[^0-9]", "" ) );
+			}
+		}
+		return -1;
+	}
+	
+	public void testClose() throws Exception
+	{
+		String memoryMappedFilenamePrefix = new File( System.getProperty( "java.io.tmpdir" ), "F1BinaryMapCloseTest" ).getPath();
+		long mappedSize = 0;
+		long virtualMemorySize = 0;
+		for( int count = 0; count < 16; count++ )
+		{
+			// the memory mapped files are 1GB each, so they run out of address space fast unless unmapped
+			long virtualMemorySizeBeforeOpen = GetVirtualMemorySize();
+			TestDataMapForF1BinaryMap closedMap = new TestDataMapForF1BinaryMap( memoryMappedFilenamePrefix, noOfItems, noOfItems, 1L << 26, 
+														30, F1BinaryMap.RECORD_LAYOUT_PACKED, F1BinaryMap.LOAD_MODE_LAZY, false );
+			if ( count == 0 )
+			{
+				mappedSize = GetVirtualMemorySize() - virtualMemorySizeBeforeOpen;
+				virtualMemorySize = virtualMemorySizeBeforeOpen;
+			}
+			for( long key = 0L; key < noOfItems; key++ )
+			{
+				data.setData(key, key+noOfItems);
+				closedMap.put( data ); 
+			}
+			closedMap.close();
+			try
+			{
+				closedMap.get( data );
+				fail( "Closed map accessed" );
+			}
+			catch( IllegalStateException e )
+			{
+			}
+			// closing a closed map has no effect
+			closedMap.close();
+			if ( count % 2 == 0 )
+			{
+				closedMap = new TestDataMapForF1BinaryMap( memoryMappedFilenamePrefix, noOfItems, F1BinaryMap.LOAD_MODE_LAZY, false );
+				assertEquals( "Size is wrong " + closedMap.getSize(), noOfItems, closedMap.getSize() );
+				data.setKey(noOfItems-1, noOfItems-1+noOfItems);
+				TestData retrievedData = closedMap.get( data );
+				assertEquals( "Data does not exist", true, retrievedData != null );
+				assertEquals( "Data does not contain the right data", true, retrievedData.isCorrect() );
+				closedMap.close();
+			}
+			closedMap.dispose( true );
+			assertEquals( "Files of the closed map are not erased", false, F1BinaryMap.DoesMapExist( memoryMappedFilenamePrefix ) );
+		}
+		if ( virtualMemorySize > 0 )
+		{
+			long virtualMemorySizeGrowth = GetVirtualMemorySize() - virtualMemorySize;
+			assertEquals( "Memory mapped files are not unmapped, grown " + virtualMemorySizeGrowth + "KB for mapped " + mappedSize + "KB", 
+							true, virtualMemorySizeGrowth < 4 * mappedSize );
+		}
+		// close waits for the traversal of another thread in progress instead of unmapping the files under it
+		TestDataMapForF1BinaryMap traversedMap = new TestDataMapForF1BinaryMap( memoryMappedFilenamePrefix, noOfItems, noOfItems, noOfItems, 
+													F1BinaryMap.MIN_SEGMENT_BITS, F1BinaryMap.RECORD_LAYOUT_PACKED, F1BinaryMap.LOAD_MODE_LAZY, true );
+		for( long key = 0L; key < noOfItems; key++ )
+		{
+			data.setData(key, key+noOfItems);
+			traversedMap.put( data ); 
+		}
+		CountDownLatch traversalStarted = new CountDownLatch( 1 );
+		LongAdder noOfTraversed = new LongAdder();
+		Thread traverser = new Thread( () -> traversedMap.traverse( aLongValue ->
+		{
+			if ( noOfTraversed.sum() == 0 )
+			{
+				traversalStarted.countDown();
+				try
+				{
+					Thread.sleep( 100 );
+				}
+				catch( InterruptedException e )
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+			noOfTraversed.increment();
+		}, 0 ) );
+		traverser.start();
+		traversalStarted.await();
+		traversedMap.dispose( true );
+		assertEquals( "Traversal has not completed before the map is closed", noOfItems, noOfTraversed.sum() );
+		traverser.join();
+		TestDataMapForF1BinaryMap directMap = new TestDataMapForF1BinaryMap( noOfItems, noOfItems, noOfItems, false );
+		directMap.close();
+		directMap.dispose( true );
+		try
+		{
+			directMap.put( data );
+			fail( "Disposed map accessed" );
+		}
+		catch( IllegalStateException e )
+		{
+		}
+	}
+	
+	public void testFormatVersion() throws Exception
+	{
+		String memoryMappedFilenamePrefix = new File( System.getProperty( "java.io.tmpdir" ), "F1BinaryMapFormatVersionTest" ).getPath();
+		TestDataMapForF1BinaryMap versionedMap = new TestDataMapForF1BinaryMap( memoryMappedFilenamePrefix, 1000, noOfItems, noOfItems, 
+												F1BinaryMap.MIN_SEGMENT_BITS, F1BinaryMap.RECORD_LAYOUT_SEGMENT_ALIGNED, false );
+		data.setData(1L, 1L+noOfItems);
+		versionedMap.put( data );
+		versionedMap.dispose( false );
+		versionedMap = new TestDataMapForF1BinaryMap( memoryMappedFilenamePrefix, noOfItems, false );
+		data.setKey(1L, 1L+noOfItems);
+		assertEquals( "Reopened data does not exist", true, versionedMap.get( data ) != null );
+		versionedMap.dispose( false );
+		// the format version of a map of the layout of 9 header fields is the lock of its third bucket
+		try ( RandomAccessFile file = new RandomAccessFile( memoryMappedFilenamePrefix + ".0", "rw" ) )
+		{
+			MappedByteBuffer header = file.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, 14 * Long.BYTES );
+			header.order( ByteOrder.nativeOrder() );
+			header.putLong( 13 * Long.BYTES, 0 );
+			header.force();
+		}
+		try
+		{
+			versionedMap = new TestDataMapForF1BinaryMap( memoryMappedFilenamePrefix, noOfItems, false );
+			versionedMap.dispose( false );
+			fail( "Map of an older layout opened" );
+		}
+		catch( IOException e )
+		{
+			assertEquals( "Wrong failure " + e.getMessage(), true, e.getMessage().contains( "version" ) );
+		}
+		finally
+		{
+			new File( memoryMappedFilenamePrefix + ".0" ).delete();
+		}
+	}
+	
+	public void testChunkedDirectMemory()
+	{
+		TestDataMapForF1BinaryMap chunkedMap = new TestDataMapForF1BinaryMap( 1000, noOfItems, noOfItems, 20, false );
+		try
+		{
+			for( long key = 0L; key < noOfItems; key++ )
+			{
+				data.setData(key, key+noOfItems);
+				chunkedMap.put( data ); 
+			}
+			assertEquals( "Size is wrong " + chunkedMap.getSize(), noOfItems, chunkedMap.getSize() );
+			for( long key = 0L; key < noOfItems; key++ )
+			{
+				data.setKey(key, key+noOfItems);
+				TestData retrievedData = chunkedMap.get( data );
+				assertEquals( "Data " + key + " does not exist", true, retrievedData != null );
+				assertEquals( "Data " + key + " does not contain the right data", true, retrievedData.isCorrect() );
+			}
+			for( long key = 0L; key < noOfItems; key++ )
+			{
+				if ( key % 4 != 0 )
+				{
+					data.setKey(key, key+noOfItems);
+					chunkedMap.remove( data );
+				}
+			}
+			assertEquals( "No chunk released", true, chunkedMap.compact() > 0 );
+			F1BinaryMapVerification verification = chunkedMap.verify( false, 4 );
+			assertEquals( "Map is inconsistent after compaction " + verification, true, verification.isConsistent() );
+			assertEquals( "Size is wrong " + chunkedMap.getSize(), noOfItems / 4, chunkedMap.getSize() );
+			for( long key = 0L; key < noOfItems; key++ )
+			{
+				data.setKey(key, key+noOfItems);
+				TestData retrievedData = chunkedMap.get( data );
+				if ( key % 4 != 0 )
+				{
+					assertEquals( "Data " + key + " has not been removed", true, retrievedData == null );
+				}
+				else
+				{
+					assertEquals( "Data " + key + " does not exist", true, retrievedData != null );
+					assertEquals( "Data " + key + " does not contain the right data", true, retrievedData.isCorrect() );
+				}
+			}
+			// the released chunks are allocated again
+			for( long key = 0L; key < noOfItems; key++ )
+			{
+				data.setData(key, key+noOfItems);
+				chunkedMap.put( data ); 
+			}
+			verification = chunkedMap.verify( false, 4 );
+			assertEquals( "Map is inconsistent " + verification, true, verification.isConsistent() );
+			for( long key = 0L; key < noOfItems; key++ )
+			{
+				data.setKey(key, key+noOfItems);
+				TestData retrievedData = chunkedMap.get( data );
+				assertEquals( "Data " + key + " does not exist", true, retrievedData != null );
+				assertEquals( "Data " + key + " does not contain the right data", true, retrievedData.isCorrect() );
+			}
+		}
+		finally
+		{
+			chunkedMap.dispose( true );
+		}
+		// the memory of a direct map is allocated at once
+		assertEquals( "Direct memory released", 0, map.compact() );
+	}
+	
+	/**
+	 * put and get all the items with the given map
+	 * @param aMap map
+	 */
+	private void putAndGet( final TestDataMapForF1BinaryMap aMap )
+	{
+		for( long key = 0L; key < noOfItems; key++ )
+		{
+			data.setData(key, key+noOfItems);
+			aMap.put( data ); 
+		}
+		assertEquals( "Size is wrong " + aMap.getSize(), noOfItems, aMap.getSize() );
+		for( long key = 0L; key < noOfItems; key++ )
+		{
+			data.setKey(key, key+noOfItems);
+			TestData retrievedData = aMap.get( data );
+			assertEquals( "Data " + key + " does not exist", true, retrievedData != null );
+			assertEquals( "Data " + key + " does not contain the right data", true, retrievedData.isCorrect() );
+		}
+	}
+	
+	public void testShrink() throws Exception
+	{
+		String memoryMappedFilenamePrefix = new File( System.getProperty( "java.io.tmpdir" ), "F1BinaryMapShrinkTest" ).getPath();
+		long noOfKeys = noOfItems * 3;
+		TestDataMapForF1BinaryMap shrunkMap = new TestDataMapForF1BinaryMap( memoryMappedFilenamePrefix, 1000, noOfItems, noOfKeys, 
+														F1BinaryMap.MIN_SEGMENT_BITS, false );
+		try
+		{
+			putAndRemove( shrunkMap, noOfKeys );
+			assertEquals( "Files are missing", 3, countFiles( memoryMappedFilenamePrefix ) );
+			try
+			{
+				shrunkMap.shrink( 0 );
+				fail( "Records in use have been released" );
+			}
+			catch( IllegalArgumentException e )
+			{
+			}
+			assertEquals( "No file released", 1, shrunkMap.shrink( 2 ) );
+			assertEquals( "File is not deleted", 2, countFiles( memoryMappedFilenamePrefix ) );
+			assertEquals( "No file released by compact", 1, shrunkMap.compact() );
+			assertEquals( "File is not deleted by compact", 1, countFiles( memoryMappedFilenamePrefix ) );
+			assertRemovedOnly( shrunkMap, noOfKeys );
+			shrunkMap.dispose( false );
+			shrunkMap = new TestDataMapForF1BinaryMap( memoryMappedFilenamePrefix, noOfItems, false );
+			assertRemovedOnly( shrunkMap, noOfKeys );
+			// the released files are added again
+			for( long key = 0L; key < noOfKeys; key++ )
+			{
+				data.setData(key, key+noOfItems);
+				shrunkMap.put( data ); 
+			}
+			assertEquals( "Files are not added again", 3, countFiles( memoryMappedFilenamePrefix ) );
+			F1BinaryMapVerification verification = shrunkMap.verify( false, 4 );
+			assertEquals( "Map is inconsistent after expansion " + verification, true, verification.isConsistent() );
+		}
+		finally
+		{
+			shrunkMap.dispose( true );
+		}
+		shrunkMap = new TestDataMapForF1BinaryMap( memoryMappedFilenamePrefix, 1000, noOfItems, noOfKeys, F1BinaryMap.MIN_SEGMENT_BITS, 
+														false, 1000, F1BinaryMap.DEFAULT_PROMOTION_SAMPLE_BITS );
+		try
+		{
+			putAndRemove( shrunkMap, noOfKeys );
+			assertEquals( "No tiered file released", 2, shrunkMap.compact() );
+			assertEquals( "Tiered file is not deleted", 1, countFiles( memoryMappedFilenamePrefix ) );
+			assertRemovedOnly( shrunkMap, noOfKeys );
+			shrunkMap.dispose( false );
+			shrunkMap = new TestDataMapForF1BinaryMap( memoryMappedFilenamePrefix, noOfItems, false );
+			assertRemovedOnly( shrunkMap, noOfKeys );
+		}
+		finally
+		{
+			shrunkMap.dispose( true );
+		}
+	}
+	
+	/**
+	 * put the given no of keys and remove 3 out of 4 of them
+	 */
+	private void putAndRemove( final TestDataMapForF1BinaryMap aMap, final long aNoOfKeys )
+	{
+		for( long key = 0L; key < aNoOfKeys; key++ )
+		{
+			data.setData(key, key+noOfItems);
+			aMap.put( data ); 
+		}
+		for( long key = 0L; key < aNoOfKeys; key++ )
+		{
+			if ( key % 4 != 0 )
+			{
+				data.setKey(key, key+noOfItems);
+				aMap.remove( data );
+			}
+		}
+	}
+	
+	/**
+	 * check that only the keys removed by putAndRemove are missing
+	 */
+	private void assertRemovedOnly( final TestDataMapForF1BinaryMap aMap, final long aNoOfKeys )
+	{
+		assertEquals( "Size is wrong " + aMap.getSize(), aNoOfKeys / 4, aMap.getSize() );
+		for( long key = 0L; key < aNoOfKeys; key++ )
+		{
+			data.setKey(key, key+noOfItems);
+			TestData retrievedData = aMap.get( data );
+			if ( key % 4 != 0 )
+			{
+				assertEquals( "Data " + key + " has not been removed", true, retrievedData == null );
+			}
+			else
+			{
+				assertEquals( "Data " + key + " does not contain the right data", true, retrievedData != null && retrievedData.isCorrect() );
+			}
+		}
+	}
+	
+	/**
+	 * count the memory mapped files of the given prefix
+	 */
+	private static int countFiles( final String aMemoryMappedFilenamePrefix )
+	{
+		int noOfFiles = 0;
+		while( new File( aMemoryMappedFilenamePrefix + "." + noOfFiles ).exists() )
+		{
+			noOfFiles++;
+		}
+		return noOfFiles;
+	}
+	
+	public void testLockInMemory()
+	{
+		long memoryLockBudget = F1BinaryMap.GetMemoryLockBudget();
+		TestDataMapForF1BinaryMap lockedMap = new TestDataMapForF1BinaryMap( 1000, noOfItems, noOfItems, 20, false );
+		try
+		{
+			long noOfLockedBytes = lockedMap.lockInMemory( F1BinaryMap.MEMORY_LOCK_MODE_INDEX );
+			F1BinaryMapStatistics statistics = lockedMap.statistics();
+			assertEquals( "Lock mode is wrong", F1BinaryMap.MEMORY_LOCK_MODE_INDEX, statistics.getMemoryLockMode() );
+			assertEquals( "Locked bytes are wrong", noOfLockedBytes, statistics.getNoOfBytesLockedInMemory() );
+			if ( NativeMemory.IsAvailable() && memoryLockBudget >= statistics.getNoOfBytesToLockInMemory() )
+			{
+				assertEquals( "Index is not locked " + noOfLockedBytes, true, statistics.isFullyLockedInMemory() );
+			}
+			lockedMap.lockInMemory( F1BinaryMap.MEMORY_LOCK_MODE_ALL );
+			// the records expanded are locked within the budget left, a low limit leaves the rest unlocked
+			putAndGet( lockedMap );
+			statistics = lockedMap.statistics();
+			assertEquals( "Locked more than the map " + statistics.getNoOfBytesLockedInMemory(), true, 
+							statistics.getNoOfBytesLockedInMemory() <= statistics.getNoOfBytesToLockInMemory() );
+			assertEquals( "Locked more than the budget " + statistics.getNoOfBytesLockedInMemory(), true, 
+							statistics.getNoOfBytesLockedInMemory() <= memoryLockBudget );
+			if ( memoryLockBudget == Long.MAX_VALUE && NativeMemory.IsAvailable() )
+			{
+				assertEquals( "Map is not locked", true, statistics.isFullyLockedInMemory() );
+			}
+			for( long key = 0L; key < noOfItems; key++ )
+			{
+				if ( key % 2 != 0 )
+				{
+					data.setKey(key, key+noOfItems);
+					lockedMap.remove( data );
+				}
+			}
+			lockedMap.compact();
+			statistics = lockedMap.statistics();
+			assertEquals( "Locked more than the compacted map " + statistics.getNoOfBytesLockedInMemory(), true, 
+							statistics.getNoOfBytesLockedInMemory() <= statistics.getNoOfBytesToLockInMemory() );
+			assertEquals( "Memory is still locked", 0, lockedMap.lockInMemory( F1BinaryMap.MEMORY_LOCK_MODE_NONE ) );
+			assertEquals( "Lock budget is not given back", memoryLockBudget, F1BinaryMap.GetMemoryLockBudget() );
+			try
+			{
+				lockedMap.lockInMemory( -1 );
+				fail( "Unknown memory lock mode accepted" );
+			}
+			catch( IllegalArgumentException e )
+			{
+			}
+		}
+		finally
+		{
+			lockedMap.dispose( true );
+		}
+	}
+	
+	public void testTieredMemory() throws Exception
+	{
+		String memoryMappedFilenamePrefix = new File( System.getProperty( "java.io.tmpdir" ), "F1BinaryMapTieredTest" ).getPath();
+		TestDataMapForF1BinaryMap tieredMap = new TestDataMapForF1BinaryMap( memoryMappedFilenamePrefix, 1000, noOfItems, noOfItems * 2, 
+															F1BinaryMap.MIN_SEGMENT_BITS, true, 1, F1BinaryMap.DEFAULT_PROMOTION_SAMPLE_BITS );
+		try
+		{
+			putAndGet( tieredMap );
+			long noOfHotRecords = tieredMap.statistics().getNoOfHotRecords();
+			assertEquals( "No cold records " + noOfHotRecords, true, noOfHotRecords > 0 && noOfHotRecords < noOfItems );
+			// the keys put last are the cold records
+			for( int round = 0; round < 100; round++ )
+			{
+				for( long key = noOfItems - 1000; key < noOfItems; key++ )
+				{
+					data.setKey(key, key+noOfItems);
+					TestData retrievedData = tieredMap.get( data );
+					assertEquals( "Data " + key + " does not contain the right data", true, retrievedData != null && retrievedData.isCorrect() );
+				}
+			}
+			assertEquals( "No record promoted", true, tieredMap.statistics().getNoOfPromotions() > 0 );
+			F1BinaryMapVerification verification = tieredMap.verify( false, 4 );
+			assertEquals( "Map is inconsistent after promotions " + verification, true, verification.isConsistent() );
+			tieredMap.dispose( false );
+			// the files make up a memory mapped map with the hot records written back
+			tieredMap = new TestDataMapForF1BinaryMap( memoryMappedFilenamePrefix, noOfItems, false );
+			assertEquals( "Size is wrong " + tieredMap.getSize(), noOfItems, tieredMap.getSize() );
+			for( long key = 0L; key < noOfItems; key++ )
+			{
+				data.setKey(key, key+noOfItems);
+				TestData retrievedData = tieredMap.get( data );
+				assertEquals( "Data " + key + " does not contain the right data", true, retrievedData != null && retrievedData.isCorrect() );
+			}
+		}
+		finally
+		{
+			tieredMap.dispose( true );
+		}
+	}
+	
+	public void testReadOnlyMap() throws Exception
+	{
+		String memoryMappedFilenamePrefix = new File( System.getProperty( "java.io.tmpdir" ), "F1BinaryMapReadOnlyTest" ).getPath();
+		TestDataMapForF1BinaryMap writerMap = new TestDataMapForF1BinaryMap( memoryMappedFilenamePrefix, 1000, noOfItems, noOfItems * 2, 
+												F1BinaryMap.MIN_SEGMENT_BITS, F1BinaryMap.RECORD_LAYOUT_SEGMENT_ALIGNED, true );
+		TestDataMapForF1BinaryMap readOnlyMap = null;
+		try
+		{
+			for( long key = 0L; key < noOfItems / 2; key++ )
+			{
+				data.setData(key, key+noOfItems);
+				writerMap.put( data );
+			}
+			readOnlyMap = TestDataMapForF1BinaryMap.OpenReadOnly( memoryMappedFilenamePrefix, noOfItems );
+			assertEquals( "Zero copy get not allowed", true, readOnlyMap.isZeroCopyGetAllowed() );
+			for( long key = 0L; key < noOfItems / 2; key++ )
+			{
+				dataForZeroCopy.setKey(key, key+noOfItems);
+				long stamp = readOnlyMap.tryOptimisticRead( dataForZeroCopy );
+				assertEquals( "Data with zero copy " + key + " does not exist", true, readOnlyMap.getZeroCopy( dataForZeroCopy ) );
+				assertEquals( "Data with zero copy " + key + " does not contain the right data", true, dataForZeroCopy.isCorrect() );
+				assertEquals( "Stamp of " + key + " is not valid", true, readOnlyMap.validate( dataForZeroCopy, stamp ) );
+			}
+			// the writer expands the map into new files while the keys are read
+			Thread writer = new Thread( () ->
+			{
+				TestDataForF1BinaryMap writerData = new TestDataForF1BinaryMap();
+				for( long key = noOfItems / 2; key < noOfItems; key++ )
+				{
+					writerData.setData(key, key+noOfItems);
+					writerMap.put( writerData );
+				}
+			} );
+			writer.start();
+			long noOfFound = 0;
+			while( writer.isAlive() )
+			{
+				for( long key = noOfItems / 2; key < noOfItems; key += 97 )
+				{
+					data.setKey(key, key+noOfItems);
+					TestData retrievedData = readOnlyMap.get( data );
+					if ( retrievedData != null )
+					{
+						assertEquals( "Data " + key + " does not contain the right data", true, retrievedData.isCorrect() );
+						noOfFound += 1;
+					}
+				}
+			}
+			writer.join();
+			assertEquals( "Size is wrong " + readOnlyMap.getSize(), noOfItems, readOnlyMap.getSize() );
+			for( long key = 0L; key < noOfItems; key++ )
+			{
+				data.setKey(key, key+noOfItems);
+				TestData retrievedData = readOnlyMap.get( data );
+				assertEquals( "Data " + key + " does not exist after " + noOfFound + " found", true, retrievedData != null && retrievedData.isCorrect() );
+			}
+			data.setKey(0, noOfItems);
+			writerMap.remove( data );
+			assertEquals( "Removed data still exists", false, readOnlyMap.contains( data ) );
+			try
+			{
+				readOnlyMap.put( data );
+				fail( "Read only map has been written" );
+			}
+			catch( UnsupportedOperationException e )
+			{
+			}
+			if ( NativeMemory.IsAvailable() )
+			{
+				// lock every bucket as a writer would have when it terminated while holding the locks
+				long noOfBuckets = F1BinaryMap.GetClosestPowerOfTwo( noOfItems );
+				long terminatedProcessId = Integer.MAX_VALUE;
+				try ( RandomAccessFile file = new RandomAccessFile( memoryMappedFilenamePrefix + ".0", "rw" ) )
+				{
+					MappedByteBuffer header = file.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, ( 14 + 2 * noOfBuckets ) * Long.BYTES );
+					header.order( ByteOrder.nativeOrder() );
+					long[] versions = new long[(int)noOfBuckets];
+					for( int bucketIndex = 0; bucketIndex < noOfBuckets; bucketIndex++ )
+					{
+						versions[bucketIndex] = header.getLong( ( 14 + 2 * bucketIndex + 1 ) * Long.BYTES );
+						header.putLong( ( 14 + 2 * bucketIndex + 1 ) * Long.BYTES, ( terminatedProcessId << Integer.SIZE ) | 1 );
+					}
+					data.setKey(1, 1+noOfItems);
+					try
+					{
+						readOnlyMap.get( data );
+						fail( "Bucket locked by a terminated writer has been read" );
+					}
+					catch( IllegalStateException e )
+					{
+					}
+					for( int bucketIndex = 0; bucketIndex < noOfBuckets; bucketIndex++ )
+					{
+						header.putLong( ( 14 + 2 * bucketIndex + 1 ) * Long.BYTES, versions[bucketIndex] );
+					}
+				}
+			}
+			readOnlyMap.dispose( true );
+			assertEquals( "Files of the writer have been erased", true, F1BinaryMap.DoesMapExist( memoryMappedFilenamePrefix ) );
+			F1BinaryMapVerification verification = writerMap.verify( false, 4 );
+			assertEquals( "Map is inconsistent " + verification, true, verification.isConsistent() );
+		}
+		finally
+		{
+			if ( readOnlyMap != null )
+			{
+				readOnlyMap.dispose( false );
+			}
+			writerMap.dispose( true );
+		}
+	}
+	
+	public void testSharedMap() throws Exception
+	{
+		String memoryMappedFilenamePrefix = new File( System.getProperty( "java.io.tmpdir" ), "F1BinaryMapSharedTest" ).getPath();
+		TestDataMapForF1BinaryMap sharedMap = new TestDataMapForF1BinaryMap( memoryMappedFilenamePrefix, 1000, noOfItems, noOfItems * 2, 
+												F1BinaryMap.MIN_SEGMENT_BITS, F1BinaryMap.RECORD_LAYOUT_SEGMENT_ALIGNED, true );
+		sharedMap.dispose( false );
+		// each map maps the files on its own like a process of its own, and both expand the map
+		sharedMap = TestDataMapForF1BinaryMap.OpenShared( memoryMappedFilenamePrefix, noOfItems );
+		TestDataMapForF1BinaryMap otherSharedMap = TestDataMapForF1BinaryMap.OpenShared( memoryMappedFilenamePrefix, noOfItems );
+		try
+		{
+			Thread[] writers = new Thread[2];
+			for( int writerIndex = 0; writerIndex < writers.length; writerIndex++ )
+			{
+				TestDataMapForF1BinaryMap writerMap = writerIndex == 0 ? sharedMap : otherSharedMap;
+				long firstKey = writerIndex;
+				writers[writerIndex] = new Thread( () ->
+				{
+					TestDataForF1BinaryMap writerData = new TestDataForF1BinaryMap();
+					for( long key = firstKey; key < noOfItems; key += 2 )
+					{
+						writerData.setData(key, key+noOfItems);
+						writerMap.put( writerData );
+					}
+				} );
+				writers[writerIndex].start();
+			}
+			for( Thread writer : writers )
+			{
+				writer.join();
+			}
+			assertEquals( "Size is wrong " + sharedMap.getSize(), noOfItems, sharedMap.getSize() );
+			for( long key = 0L; key < noOfItems; key++ )
+			{
+				data.setKey(key, key+noOfItems);
+				TestData retrievedData = sharedMap.get( data );
+				assertEquals( "Data " + key + " does not contain the right data", true, retrievedData != null && retrievedData.isCorrect() );
+				retrievedData = otherSharedMap.get( data );
+				assertEquals( "Other data " + key + " does not contain the right data", true, retrievedData != null && retrievedData.isCorrect() );
+			}
+			F1BinaryMapVerification verification = sharedMap.verify( false, 4 );
+			assertEquals( "Map is inconsistent " + verification, true, verification.isConsistent() );
+			try
+			{
+				sharedMap.enableNearCache( 1024 );
+				fail( "Near cache enabled for a shared map" );
+			}
+			catch( UnsupportedOperationException e )
+			{
+			}
+			sharedMap.dispose( false );
+			otherSharedMap.dispose( false );
+			if ( NativeMemory.IsAvailable() )
+			{
+				// leave the locks as a process would have when it terminated while holding them
+				long noOfBuckets = F1BinaryMap.GetClosestPowerOfTwo( noOfItems );
+				long terminatedProcessId = Integer.MAX_VALUE;
+				try ( RandomAccessFile file = new RandomAccessFile( memoryMappedFilenamePrefix + ".0", "rw" ) )
+				{
+					MappedByteBuffer header = file.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, ( 14 + 2 * noOfBuckets ) * Long.BYTES );
+					header.order( ByteOrder.nativeOrder() );
+					header.putLong( 0, terminatedProcessId );
+					for( long bucketIndex = 0; bucketIndex < noOfBuckets; bucketIndex++ )
+					{
+						header.putLong( (int)( ( 14 + 2 * bucketIndex + 1 ) * Long.BYTES ), ( terminatedProcessId << Integer.SIZE ) | 1 );
+					}
+					header.force();
+				}
+				sharedMap = TestDataMapForF1BinaryMap.OpenShared( memoryMappedFilenamePrefix, noOfItems );
+				data.setData(noOfItems, noOfItems*2);
+				sharedMap.put( data );
+				assertEquals( "Wrong no of stale locks recovered", 2, sharedMap.statistics().getNoOfStaleLocksRecovered() );
+				verification = sharedMap.verify( true, 4 );
+				verification = sharedMap.verify( false, 4 );
+				assertEquals( "Map is inconsistent after repair " + verification, true, verification.isConsistent() );
+				for( long key = 0L; key <= noOfItems; key++ )
+				{
+					data.setKey(key, key+noOfItems);
+					TestData retrievedData = sharedMap.get( data );
+					assertEquals( "Data " + key + " does not contain the right data", true, retrievedData != null && retrievedData.isCorrect() );
+				}
+			}
+		}
+		finally
+		{
+			otherSharedMap.dispose( false );
+			sharedMap.dispose( true );
+		}
+	}
+	
+	public void testHugePages() throws Exception
+	{
+		TestDataMapForF1BinaryMap hugePageMap = new TestDataMapForF1BinaryMap( noOfItems, noOfItems, noOfItems, false, F1BinaryMap.PAGE_MODE_HUGE );
+		try
+		{
+			putAndGet( hugePageMap );
+		}
+		finally
+		{
+			hugePageMap.dispose( true );
+		}
+		hugePageMap = new TestDataMapForF1BinaryMap( 1000, noOfItems, noOfItems, 21, F1BinaryMap.PAGE_MODE_HUGE, false );
+		try
+		{
+			putAndGet( hugePageMap );
+		}
+		finally
+		{
+			hugePageMap.dispose( true );
+		}
+		String memoryMappedFilenamePrefix = new File( System.getProperty( "java.io.tmpdir" ), "F1BinaryMapHugePagesTest" ).getPath();
+		hugePageMap = new TestDataMapForF1BinaryMap( memoryMappedFilenamePrefix, noOfItems / 4, noOfItems, noOfItems, F1BinaryMap.MIN_SEGMENT_BITS, 
+								F1BinaryMap.RECORD_LAYOUT_SEGMENT_ALIGNED, F1BinaryMap.LOAD_MODE_EAGER, F1BinaryMap.PAGE_MODE_HUGE, false );
+		try
+		{
+			putAndGet( hugePageMap );
+			assertEquals( "File is not sized in whole huge pages", 0, new File( memoryMappedFilenamePrefix + ".0" ).length() % ( 1L << 21 ) );
+		}
+		finally
+		{
+			hugePageMap.dispose( true );
+		}
+		try
+		{
+			new TestDataMapForF1BinaryMap( noOfItems, noOfItems, noOfItems, false, -1 );
+			fail( "Unknown page mode accepted" );
+		}
+		catch( IllegalArgumentException e )
+		{
+		}
+	}
+	
+	public void testMemorySegment() throws Exception
+	{
+		String memoryMappedFilename = new File( System.getProperty( "java.io.tmpdir" ), "F1BinaryMapMemorySegmentTest" ).getPath();
+		if ( !F1BinaryMap.IsMemorySegmentAvailable() )
+		{
+			try
+			{
+				TestDataMapForF1BinaryMap.CreateOnMemorySegment( noOfItems, noOfItems, noOfItems, false );
+				fail( "Memory segment accepted before Java 22" );
+			}
+			catch( UnsupportedOperationException e )
+			{
+			}
+			return;
+		}
+		TestDataMapForF1BinaryMap segmentMap = TestDataMapForF1BinaryMap.CreateOnMemorySegment( noOfItems, noOfItems, noOfItems, false );
+		try
+		{
+			putAndGet( segmentMap );
+			for( long key = 0L; key < noOfItems; key += 2 )
+			{
+				data.setKey(key, key+noOfItems);
+				assertEquals( "Data " + key + " is not removed", true, segmentMap.remove( data ) );
+			}
+			assertEquals( "Size is wrong after remove", noOfItems / 2, segmentMap.getSize() );
+			for( long key = 1L; key < noOfItems; key += 2 )
+			{
+				dataForZeroCopy.setKey(key, key+noOfItems);
+				assertEquals( "Data " + key + " does not exist by zero copy", true, segmentMap.getZeroCopy( dataForZeroCopy ) );
+				assertEquals( "Data " + key + " is wrong by zero copy", true, dataForZeroCopy.isCorrect() );
+			}
+		}
+		finally
+		{
+			segmentMap.dispose( true );
+		}
+		segmentMap = TestDataMapForF1BinaryMap.CreateOnMemorySegment( memoryMappedFilename, noOfItems, noOfItems, noOfItems, true );
+		try
+		{
+			putAndGet( segmentMap );
+			segmentMap.sync();
+		}
+		finally
+		{
+			segmentMap.dispose( false );
+		}
+		segmentMap = TestDataMapForF1BinaryMap.OpenOnMemorySegment( memoryMappedFilename, noOfItems, false );
+		try
+		{
+			assertEquals( "Size is wrong after reopen", noOfItems, segmentMap.getSize() );
+			for( long key = 0L; key < noOfItems; key++ )
+			{
+				data.setKey(key, key+noOfItems);
+				TestData retrievedData = segmentMap.get( data );
+				assertEquals( "Data " + key + " does not exist after reopen", true, retrievedData != null && retrievedData.isCorrect() );
+			}
+		}
+		finally
+		{
+			segmentMap.dispose( true );
+		}
+		assertEquals( "File is not erased", false, new File( memoryMappedFilename ).exists() );
+	}
+	
+	public void testAsyncFlush() throws Exception
+	{
+		String memoryMappedFilenamePrefix = new File( System.getProperty( "java.io.tmpdir" ), "F1BinaryMapAsyncFlushTest" ).getPath();
+		TestDataMapForF1BinaryMap flushedMap = new TestDataMapForF1BinaryMap( memoryMappedFilenamePrefix, noOfItems / 4, noOfItems, noOfItems, 
+															F1BinaryMap.MIN_SEGMENT_BITS, false );
+		try
+		{
+			flushedMap.enableAsyncFlush( 10, 1L << 20 );
+			for( long key = 0L; key < noOfItems; key++ )
+			{
+				data.setData(key, key+noOfItems);
+				flushedMap.put( data ); 
+				if ( key % 1000 == 0 )
+				{
+					flushedMap.sync();
+				}
+			}
+			flushedMap.sync();
+			flushedMap.dispose( false );
+			flushedMap = new TestDataMapForF1BinaryMap( memoryMappedFilenamePrefix, noOfItems, false );
+			assertEquals( "Size is wrong " + flushedMap.getSize(), noOfItems, flushedMap.getSize() );
+			for( long key = 0L; key < noOfItems; key++ )
+			{
+				data.setKey(key, key+noOfItems);
+				TestData retrievedData = flushedMap.get( data );
+				assertEquals( "Data " + key + " does not exist", true, retrievedData != null );
+				assertEquals( "Data " + key + " does not contain the right data", true, retrievedData.isCorrect() );
+			}
+			// sync without async flush flushes the whole map
+			flushedMap.sync();
+		}
+		finally
+		{
+			flushedMap.dispose( true );
+		}
+		try
+		{
+			map.enableAsyncFlush( 10, 1L << 20 );
+			fail( "Async flush enabled for direct memory" );
+		}
+		catch( RuntimeException e )
+		{
+		}
+	}
+	
+	public void testJournal() throws Exception
+	{
+		File directory = new File( System.getProperty( "java.io.tmpdir" ) );
+		String memoryMappedFilenamePrefix = new File( directory, "F1BinaryMapJournalTest" ).getPath();
+		String journalFilenamePrefix = new File( directory, "F1BinaryMapJournalTestJournal" ).getPath();
+		File crashDirectory = new File( directory, "F1BinaryMapJournalTestCrash" );
+		crashDirectory.mkdirs();
+		TestDataMapForF1BinaryMap journaledMap = new TestDataMapForF1BinaryMap( memoryMappedFilenamePrefix, noOfItems / 4, noOfItems, noOfItems, 
+															F1BinaryMap.MIN_SEGMENT_BITS, false );
+		try
+		{
+			assertEquals( "New map recovered", false, journaledMap.enableJournal( journalFilenamePrefix, 10 ) );
+			for( long key = 0L; key < noOfItems; key++ )
+			{
+				data.setData(key, key+noOfItems);
+				journaledMap.put( data ); 
+				if ( key == noOfItems / 2 )
+				{
+					journaledMap.checkpoint();
+				}
+			}
+			for( long key = 0L; key < noOfItems; key += 2 )
+			{
+				data.setKey(key, key+noOfItems);
+				journaledMap.remove( data ); 
+			}
+			journaledMap.sync();
+			// keep the journal as it is at the time of a crash
+			for( File journalFile : directory.listFiles( ( aDirectory, aName ) -> aName.startsWith( "F1BinaryMapJournalTestJournal." ) ) )
+			{
+				Files.copy( journalFile.toPath(), new File( crashDirectory, journalFile.getName() ).toPath(), StandardCopyOption.REPLACE_EXISTING );
+			}
+			journaledMap.dispose( false );
+			journaledMap = new TestDataMapForF1BinaryMap( memoryMappedFilenamePrefix, noOfItems, false );
+			assertEquals( "Closed map recovered", false, journaledMap.enableJournal( journalFilenamePrefix, 10 ) );
+			assertEquals( "Size is wrong " + journaledMap.getSize(), noOfItems / 2, journaledMap.getSize() );
+			// lose the memory of the map written since the crash
+			journaledMap.clear();
+			data.setData(noOfItems, noOfItems+noOfItems);
+			journaledMap.put( data );
+			journaledMap.dispose( false );
+			for( File journalFile : directory.listFiles( ( aDirectory, aName ) -> aName.startsWith( "F1BinaryMapJournalTestJournal." ) ) )
+			{
+				journalFile.delete();
+			}
+			for( File journalFile : crashDirectory.listFiles() )
+			{
+				Files.move( journalFile.toPath(), new File( directory, journalFile.getName() ).toPath() );
+			}
+			journaledMap = new TestDataMapForF1BinaryMap( memoryMappedFilenamePrefix, noOfItems, false );
+			assertEquals( "Crashed map not recovered", true, journaledMap.enableJournal( journalFilenamePrefix, 10 ) );
+			assertEquals( "Size is wrong " + journaledMap.getSize(), noOfItems / 2, journaledMap.getSize() );
+			for( long key = 0L; key <= noOfItems; key++ )
+			{
+				data.setKey(key, key+noOfItems);
+				TestData retrievedData = journaledMap.get( data );
+				if ( key % 2 == 0 )
+				{
+					assertEquals( "Data " + key + " has not been removed", true, retrievedData == null );
+				}
+				else
+				{
+					assertEquals( "Data " + key + " does not exist", true, retrievedData != null );
+					assertEquals( "Data " + key + " does not contain the right data", true, retrievedData.isCorrect() );
+				}
+			}
+		}
+		finally
+		{
+			journaledMap.dispose( true );
+			crashDirectory.delete();
+		}
+	}
+	
+	public void testVerify() throws Exception
+	{
+		for( long key = 0L; key < noOfItems; key++ )
+		{
+			data.setData(key, key+noOfItems);
+			map.put( data ); 
+		}
+		F1BinaryMapVerification verification = map.verify( false, 4 );
+		assertEquals( "Map is inconsistent " + verification, true, verification.isConsistent() );
+		assertEquals( "Wrong no of records", noOfItems, verification.getNoOfRecords() );
+		String memoryMappedFilenamePrefix = new File( System.getProperty( "java.io.tmpdir" ), "F1BinaryMapVerifyTest" ).getPath();
+		TestDataMapForF1BinaryMap verifiedMap = new TestDataMapForF1BinaryMap( memoryMappedFilenamePrefix, noOfItems, noOfItems, noOfItems, false );
+		try
+		{
+			for( long key = 0L; key < noOfItems; key++ )
+			{
+				data.setData(key, key+noOfItems);
+				verifiedMap.put( data ); 
+			}
+			for( long key = 0L; key < noOfItems; key += 2 )
+			{
+				data.setKey(key, key+noOfItems);
+				verifiedMap.remove( data ); 
+			}
+			verifiedMap.dispose( false );
+			// leave the map as a crashed process would, locked, with the size not updated and the free list lost
+			try ( RandomAccessFile file = new RandomAccessFile( memoryMappedFilenamePrefix + ".0", "rw" ) )
+			{
+				MappedByteBuffer header = file.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, 12 * Long.BYTES );
+				header.order( ByteOrder.nativeOrder() );
+				header.putLong( 0, 1 );
+				header.putLong( 3 * Long.BYTES, F1BinaryMap.NULL );
+				header.putLong( 8 * Long.BYTES, noOfItems / 2 + 1 );
+				header.force();
+			}
+			verifiedMap = new TestDataMapForF1BinaryMap( memoryMappedFilenamePrefix, noOfItems, false );
+			verification = verifiedMap.verify( false, 4 );
+			assertEquals( "Map is consistent " + verification, false, verification.isConsistent() );
+			assertEquals( "Stale map lock not found", true, verification.isStaleMapLock() );
+			assertEquals( "Wrong no of leaked records", noOfItems / 2, verification.getNoOfLeakedRecords() );
+			assertEquals( "Wrong recorded size", noOfItems / 2 + 1, verification.getRecordedSize() );
+			verification = verifiedMap.verify( true, 4 );
+			assertEquals( "Map is not repaired", true, verification.isRepaired() );
+			verification = verifiedMap.verify( false, 1 );
+			assertEquals( "Map is inconsistent after repair " + verification, true, verification.isConsistent() );
+			assertEquals( "Wrong no of free records", noOfItems / 2, verification.getNoOfFreeRecords() );
+			assertEquals( "Size is wrong " + verifiedMap.getSize(), noOfItems / 2, verifiedMap.getSize() );
+			// the leaked records are reused
+			for( long key = 0L; key < noOfItems; key += 2 )
+			{
+				data.setData(key, key+noOfItems);
+				verifiedMap.put( data ); 
+			}
+			verification = verifiedMap.verify( false, 4 );
+			assertEquals( "Map is inconsistent " + verification, true, verification.isConsistent() );
+			assertEquals( "Wrong no of free records", 0, verification.getNoOfFreeRecords() );
+			for( long key = 0L; key < noOfItems; key++ )
+			{
+				data.setKey(key, key+noOfItems);
+				TestData retrievedData = verifiedMap.get( data );
+				assertEquals( "Data " + key + " does not exist", true, retrievedData != null );
+				assertEquals( "Data " + key + " does not contain the right data", true, retrievedData.isCorrect() );
+			}
+		}
+		finally
+		{
+			verifiedMap.dispose( true );
+		}
+	}
+	
+	public void testNearCache()
+	{
+		map.enableNearCache( 1024 );
+		TestData retrievedData = null;
+		for( long key = 0L; key < noOfItems; key++ )
+		{
+			data.setData(key, key+noOfItems);
+			map.put( data ); 
+		}
+		// hot keys
+		for( int count = 0; count < 3; count++ )
+		{
+			for( long key = 0L; key < 100; key++ )
+			{
+				data.setKey(key, key+noOfItems);
+				retrievedData = map.get( data );
+				assertEquals( "Data " + key + " does not exist", true, retrievedData != null );
+				assertEquals( "Data " + key + " does not contain the right data", true, retrievedData.isCorrect() );
+			}
+		}
+		F1BinaryMapStatistics statistics = map.statistics();
+		assertEquals( "Wrong no of near cache entries", 1024, statistics.getNoOfNearCacheEntries() );
+		assertEquals( "Near cache was not hit", true, statistics.getNoOfNearCacheHits() > 0 );
+		// update must not be served from the stale cached value
+		data.setData(1L, 1L+noOfItems);
+		data.getBuffer().putLong(24, 7L);
+		map.put( data );
+		data.setKey(1L, 1L+noOfItems);
+		map.get( data );
+		assertEquals( "Stale value served from near cache", 7L, data.getBuffer().getLong(24) );
+		data.setKey(2L, 2L+noOfItems);
+		map.remove( data );
+		assertEquals( "Removed data served from near cache", true, map.get( data ) == null );
+		map.clear();
+		data.setKey(3L, 3L+noOfItems);
+		assertEquals( "Cleared data served from near cache", true, map.get( data ) == null );
+	}
+	
+	public void testConcurrentTraverse() throws Exception
+	{
+		final TestDataMapForF1BinaryMap concurrentMap = new TestDataMapForF1BinaryMap( noOfItems, noOfItems, noOfItems, true );
+		try
+		{
+			final long noOfStableItems = noOfItems / 2;
+			for( long key = 0L; key < noOfStableItems; key++ )
+			{
+				data.setData(key, key+noOfItems);
+				concurrentMap.put( data ); 
+				sumForthField += data.getBuffer().getLong(40);
+			}
+			// keep modifying the other half of the key space during the traversal
+			Thread writer = new Thread()
+			{
+				public void run()
+				{
+					TestDataForF1BinaryMap writerData = new TestDataForF1BinaryMap();
+					for( long key = noOfStableItems; key < noOfItems; key++ )
+					{
+						writerData.setData(key, key+noOfItems);
+						concurrentMap.put( writerData );
+						if ( (key & 1) == 0 )
+						{
+							concurrentMap.remove( writerData );
+						}
+					}
+				}
+			};
+			writer.start();
+			iterationCount = 0L;
+			concurrentMap.traverse( this, new LongUnsafeBuffer( new byte[TestDataForF1BinaryMap.KEY_SIZE + TestDataForF1BinaryMap.VALUE_SIZE] ) );
+			writer.join();
+			assertEquals( "Stable records missed by traversal, got " + iterationCount, true, iterationCount >= noOfStableItems );
+			assertEquals( "Too many records traversed, got " + iterationCount, true, iterationCount <= noOfItems );
+			// remove the records of the writer and sum the stable ones
+			for( long key = noOfStableItems + 1; key < noOfItems; key += 2 )
+			{
+				data.setKey(key, key+noOfItems);
+				concurrentMap.remove( data );
+			}
+			totalLongValue = 0;
+			concurrentMap.traverse( (F1BinaryMapLongValueIterator)this, 24 );
+			assertEquals( "Wrong iteration sum forth field got " + totalLongValue + " expected " + sumForthField, sumForthField, totalLongValue );
+		}
+		finally
+		{
+			concurrentMap.dispose( true );
+		}
+	}
+	
+	public void testTraverseInRecordOrder()
+	{
+		for( long key = 0L; key < noOfItems; key++ )
+		{
+			data.setData(key, key+noOfItems);
+			map.put( data ); 
+		}
+		// leave holes in the record region
+		for( long key = 0L; key < noOfItems; key += 3 )
+		{
+			data.setKey(key, key+noOfItems);
+			map.remove( data );
+		}
+		for( long key = 0L; key < noOfItems; key++ )
+		{
+			if ( key % 3 != 0 )
+			{
+				data.setData(key, key+noOfItems);
+				sumForthField += data.getBuffer().getLong(40);
+				size++;
+			}
+		}
+		iterationCount = 0L;
+		map.traverseInRecordOrder( this );
+		assertEquals( "Wrong record order iteration count got " + iterationCount + " expected " + size, size, iterationCount );
+		totalLongValue = 0;
+		map.traverseInRecordOrder( this, 24 );
+		assertEquals( "Wrong record order sum forth field got " + totalLongValue + " expected " + sumForthField, sumForthField, totalLongValue );
+		// reused free records are live again
+		data.setData(0L, noOfItems);
+		map.put( data );
+		iterationCount = 0L;
+		map.traverseInRecordOrder( this );
+		assertEquals( "Reused record not iterated", size + 1, iterationCount );
+	}
+	
+	public void testScan()
+	{
+		for( long key = 0L; key < noOfItems; key++ )
+		{
+			data.setData(key, key+noOfItems);
+			map.put( data ); 
+			size++;
+		}
+		LongUnsafeBuffer buffer = new LongUnsafeBuffer( new byte[TestDataForF1BinaryMap.KEY_SIZE + TestDataForF1BinaryMap.VALUE_SIZE] );
+		iterationCount = 0L;
+		long noOfCalls = 0L;
+		long cursor = 0L;
+		do
+		{
+			long previousIterationCount = iterationCount;
+			long previousCursor = cursor;
+			cursor = map.scan( cursor, 1000, this, buffer );
+			noOfCalls++;
+			// remove keys ahead of and behind the cursor between the steps
+			if ( noOfCalls == 10 )
+			{
+				data.setKey(0L, noOfItems);
+				map.remove( data );
+				data.setKey(noOfItems-1, 2*noOfItems-1);
+				map.remove( data );
+			}
+			// the buckets behind the keys are empty, and a step over them stops after 10 buckets per record
+			assertEquals( "Scan step iterated no records", true, cursor == 0 || iterationCount > previousIterationCount || 
+							cursor - previousCursor == 10 * 1000 );
+		}
+		while( cursor != 0 );
+		assertEquals( "Scan was not incremental", true, noOfCalls > 1 );
+		assertEquals( "Stable records missed by scan, got " + iterationCount, true, iterationCount >= size - 2 && iterationCount <= size );
+		// a step over a sparse map visits a bounded no of buckets
+		map.clear();
+		data.setData(noOfItems-1, 2*noOfItems-1);
+		map.put( data );
+		cursor = map.scan( 0, 1, this, buffer );
+		assertEquals( "Scan step visited too many buckets " + cursor, true, cursor > 0 && cursor <= 10 );
+	}
+	
+	public void testChangeLog() throws Exception
+	{
+		F1BinaryMapChangeLog changeLog = map.enableChangeLog( 16 );
+		final StringBuilder changes = new StringBuilder();
+		final long[] noOfLostChanges = new long[1];
+		F1BinaryMapChangeIterator changeIterator = new F1BinaryMapChangeIterator()
+		{
+			@Override
+			public void iterate( long aSequence, int aChangeType, LongDirectBuffer aChange, long aKeyStartIndex, 
+								int aKeyLength, long aValueStartIndex, int aValueLength )
+			{
+				changes.append( aChangeType );
+				if ( aChangeType != F1BinaryMapChangeLog.CHANGE_TYPE_CLEAR )
+				{
+					changes.append( ':' ).append( aChange.getLong( aKeyStartIndex ) ).append( ':' ).append( aChange.getLong( aValueStartIndex + 24 ) );
+				}
+				changes.append( ' ' );
+			}
+			
+			@Override
+			public void lost( long aFromSequence, long aToSequence )
+			{
+				noOfLostChanges[0] += aToSequence - aFromSequence;
+			}
+		};
+		for( long key = 0L; key < 3; key++ )
+		{
+			data.setData(key, key+noOfItems);
+			map.put( data ); 
+		}
+		data.setData(1L, 1L+noOfItems);
+		data.getBuffer().putLong(40, 7L);
+		map.put( data );
+		data.setKey(2L, 2L+noOfItems);
+		map.remove( data );
+		map.clear();
+		// batched reads
+		long sequence = 0;
+		sequence = changeLog.read( sequence, 4, changeIterator );
+		assertEquals( "Wrong batch size", 4, sequence );
+		sequence = changeLog.read( sequence, 4, changeIterator );
+		assertEquals( "Wrong tail sequence", changeLog.getTailSequence(), sequence );
+		assertEquals( "Wrong changes", "1:0:0 1:1:1 1:2:2 1:1:7 2:2:2 4 ", changes.toString() );
+		assertEquals( "No change should be lost", 0, noOfLostChanges[0] );
+		// lapped consumer
+		for( long key = 0L; key < 20; key++ )
+		{
+			data.setData(key, key+noOfItems);
+			map.put( data ); 
+		}
+		changes.setLength( 0 );
+		sequence = changeLog.read( sequence, 100, changeIterator );
+		assertEquals( "Wrong no of lost changes", 4, noOfLostChanges[0] );
+		assertEquals( "Wrong tail sequence after lapping", changeLog.getTailSequence(), sequence );
+		assertEquals( "Oldest available change is wrong", true, changes.toString().startsWith( "1:4:4 " ) );
+		// the change log is released along with its map
+		TestDataMapForF1BinaryMap disposedMap = new TestDataMapForF1BinaryMap( 1000, 1024, 1000, false );
+		F1BinaryMapChangeLog disposedChangeLog = disposedMap.enableChangeLog( 16 );
+		disposedMap.put( data );
+		disposedMap.dispose( true );
+		assertEquals( "Change log is not closed", true, disposedChangeLog.isClosed() );
+		try
+		{
+			disposedChangeLog.read( 0, 16, changeIterator );
+			fail( "Released change log read" );
+		}
+		catch( IllegalStateException e )
+		{
+		}
+	}
+	
+	public void testExportImport() throws Exception
+	{
+		File imageFile = File.createTempFile( "F1BinaryMapImage", ".image" );
+		String memoryMappedFilenamePrefix = new File( System.getProperty( "java.io.tmpdir" ), "F1BinaryMapImportTest" ).getPath();
+		TestDataMapForF1BinaryMap importedMap = null;
+		TestDataMapForF1BinaryMap rehashedMap = null;
+		try
+		{
+			putAndRemove( map, noOfItems );
+			try( FileChannel channel = new RandomAccessFile( imageFile, "rw" ).getChannel() )
+			{
+				assertEquals( "Wrong no of records exported", noOfItems / 4, map.exportTo( channel ) );
+			}
+			// the map is not held up by the export
+			data.setData(1L, 1L+noOfItems);
+			map.put( data );
+			assertEquals( "Map does not work after the export", true, map.get( data ) != null );
+			// the map expands to hold the image
+			importedMap = new TestDataMapForF1BinaryMap( memoryMappedFilenamePrefix, 1000, noOfItems, noOfItems, 
+													F1BinaryMap.MIN_SEGMENT_BITS, true );
+			try( FileChannel channel = new RandomAccessFile( imageFile, "r" ).getChannel() )
+			{
+				assertEquals( "Wrong no of records imported", noOfItems / 4, importedMap.importFrom( channel ) );
+			}
+			assertRemovedOnly( importedMap, noOfItems );
+			F1BinaryMapVerification verification = importedMap.verify( false, 4 );
+			assertEquals( "Imported map is inconsistent " + verification, true, verification.isConsistent() );
+			data.setData(1L, 1L+noOfItems);
+			importedMap.put( data );
+			assertEquals( "Imported map does not take new records", noOfItems / 4 + 1, importedMap.getSize() );
+			// the chains are rebuilt for another no of buckets
+			rehashedMap = new TestDataMapForF1BinaryMap( noOfItems, 1024, noOfItems, false );
+			try( FileChannel channel = new RandomAccessFile( imageFile, "r" ).getChannel() )
+			{
+				rehashedMap.importFrom( channel );
+			}
+			assertRemovedOnly( rehashedMap, noOfItems );
+			verification = rehashedMap.verify( false, 4 );
+			assertEquals( "Rehashed map is inconsistent " + verification, true, verification.isConsistent() );
+			// a corrupted image leaves the map empty
+			try( FileChannel channel = new RandomAccessFile( imageFile, "rw" ).getChannel() )
+			{
+				ByteBuffer corruptedByte = ByteBuffer.allocate( 1 );
+				channel.read( corruptedByte, channel.size() / 2 );
+				corruptedByte.put( 0, (byte)~corruptedByte.get( 0 ) ).rewind();
+				channel.write( corruptedByte, channel.size() / 2 );
+			}
+			try( FileChannel channel = new RandomAccessFile( imageFile, "r" ).getChannel() )
+			{
+				rehashedMap.importFrom( channel );
+				fail( "Corrupted image has been imported" );
+			}
+			catch( IOException e )
+			{
+			}
+			assertEquals( "Map with a corrupted image is not empty", 0, rehashedMap.getSize() );
+			data.setKey(0L, noOfItems);
+			assertEquals( "Map with a corrupted image has records", true, rehashedMap.get( data ) == null );
+		}
+		finally
+		{
+			if ( importedMap != null )
+			{
+				importedMap.dispose( true );
+			}
+			if ( rehashedMap != null )
+			{
+				rehashedMap.dispose( true );
+			}
+			imageFile.delete();
+		}
+	}
+	
+	public void testIncrementalBackup() throws Exception
+	{
+		String memoryMappedFilenamePrefix = new File( System.getProperty( "java.io.tmpdir" ), "F1BinaryMapBackupTest" ).getPath();
+		File[] backupFiles = new File[3];
+		for( int backupIndex = 0; backupIndex < backupFiles.length; backupIndex++ )
+		{
+			backupFiles[backupIndex] = File.createTempFile( "F1BinaryMapBackup", "." + backupIndex );
+		}
+		TestDataMapForF1BinaryMap backedUpMap = new TestDataMapForF1BinaryMap( memoryMappedFilenamePrefix, noOfItems, noOfItems, 
+														noOfItems, F1BinaryMap.MIN_SEGMENT_BITS, true );
+		TestDataMapForF1BinaryMap restoredMap = null;
+		try
+		{
+			try( FileChannel channel = new RandomAccessFile( backupFiles[0], "rw" ).getChannel() )
+			{
+				backedUpMap.backupIncremental( channel );
+				fail( "Incremental backup without a full backup" );
+			}
+			catch( RuntimeException e )
+			{
+			}
+			for( long key = 0L; key < noOfItems / 2; key++ )
+			{
+				data.setData(key, key+noOfItems);
+				backedUpMap.put( data ); 
+			}
+			long noOfFullBackupBytes;
+			try( FileChannel channel = new RandomAccessFile( backupFiles[0], "rw" ).getChannel() )
+			{
+				noOfFullBackupBytes = backedUpMap.backup( channel );
+			}
+			// a few changes since the full backup
+			for( long key = noOfItems / 2; key < noOfItems / 2 + 1000; key++ )
+			{
+				data.setData(key, key+noOfItems);
+				backedUpMap.put( data ); 
+			}
+			try( FileChannel channel = new RandomAccessFile( backupFiles[1], "rw" ).getChannel() )
+			{
+				long noOfIncrementalBackupBytes = backedUpMap.backupIncremental( channel );
+				assertEquals( "Incremental backup copies unchanged memory " + noOfIncrementalBackupBytes, true, 
+								noOfIncrementalBackupBytes * 10 < noOfFullBackupBytes );
+			}
+			for( long key = 0L; key < noOfItems / 2; key += 3 )
+			{
+				data.setKey(key, key+noOfItems);
+				backedUpMap.remove( data );
+			}
+			try( FileChannel channel = new RandomAccessFile( backupFiles[2], "rw" ).getChannel() )
+			{
+				backedUpMap.backupIncremental( channel );
+			}
+			// a map is restored from the full backup followed by the incremental backups in order
+			restoredMap = new TestDataMapForF1BinaryMap( noOfItems, noOfItems, noOfItems, true );
+			try( FileChannel channel = new RandomAccessFile( backupFiles[1], "r" ).getChannel() )
+			{
+				restoredMap.restore( channel );
+				fail( "Incremental backup has been restored without the full backup" );
+			}
+			catch( IOException e )
+			{
+			}
+			for( File backupFile : backupFiles )
+			{
+				try( FileChannel channel = new RandomAccessFile( backupFile, "r" ).getChannel() )
+				{
+					restoredMap.restore( channel );
+				}
+			}
+			assertEquals( "Restored map has the wrong size", backedUpMap.getSize(), restoredMap.getSize() );
+			for( long key = 0L; key < noOfItems / 2 + 1000; key++ )
+			{
+				data.setKey(key, key+noOfItems);
+				TestData retrievedData = restoredMap.get( data );
+				if ( key < noOfItems / 2 && key % 3 == 0 )
+				{
+					assertEquals( "Data " + key + " has not been removed", true, retrievedData == null );
+				}
+				else
+				{
+					assertEquals( "Data " + key + " does not contain the right data", true, retrievedData != null && retrievedData.isCorrect() );
+				}
+			}
+			F1BinaryMapVerification verification = restoredMap.verify( false, 4 );
+			assertEquals( "Restored map is inconsistent " + verification, true, verification.isConsistent() );
+			// the restored map is not locked by the backup
+			data.setData(0L, noOfItems);
+			restoredMap.put( data );
+			assertEquals( "Restored map does not take new records", true, restoredMap.get( data ) != null );
+		}
+		finally
+		{
+			backedUpMap.dispose( true );
+			if ( restoredMap != null )
+			{
+				restoredMap.dispose( true );
+			}
+			for( File backupFile : backupFiles )
+			{
+				backupFile.delete();
+			}
+		}
+	}
+	
+	public void testSnapshot()
+	{
+		TestData retrievedData = null;
+		for( long key = 0L; key < noOfItems; key++ )
+		{
+			data.setData(key, key+noOfItems);
+			map.put( data ); 
+			sumForthField += data.getBuffer().getLong(40);
+			size++;
+		}
+		TestDataMapForF1BinaryMap snapshot = map.snapshot();
+		try
+		{
+			// change the live map after the snapshot has been taken
+			for( long key = 0L; key < noOfItems; key += 2 )
+			{
+				data.setData(key, key+noOfItems);
+				data.getBuffer().putLong(40, -key);
+				map.put( data );
+			}
+			data.setKey(1L, 1L+noOfItems);
+			map.remove( data );
+			data.setData(noOfItems, 2*noOfItems);
+			map.put( data );
+			assertEquals( "Live map does not have the latest value", true, map.get( data ) != null );
+			data.setKey(noOfItems, 2*noOfItems);
+			assertEquals( "Snapshot sees a record put after the snapshot", true, snapshot.get( data ) == null );
+			for( long key = 0L; key < noOfItems; key++ )
+			{
+				data.setKey(key, key+noOfItems);
+				retrievedData = snapshot.get( data );
+				assertEquals( "Data " + key + " does not exist in snapshot", true, retrievedData != null );
+				assertEquals( "Data " + key + " is not frozen in snapshot", true, retrievedData.isCorrect() );
+			}
+			map.clear();
+			assertEquals( "Snapshot size changed", size, snapshot.getSize() );
+			iterationCount = 0L;
+			snapshot.traverse( this );
+			assertEquals( "Wrong snapshot iteration count", size, iterationCount );
+			totalLongValue = 0;
+			snapshot.traverse( this, 24 );
+			assertEquals( "Wrong snapshot sum forth field", sumForthField, totalLongValue );
+		}
+		finally
+		{
+			snapshot.dispose( false );
+		}
+		// the live map keeps working without the snapshot
+		data.setData(3L, 3L+noOfItems);
+		map.put( data );
+		assertEquals( "Wrong live size after snapshot disposal", 1, map.getSize() );
+	}
+	
+	public void testParallelTraverse()
+	{
+		long minForthField = Long.MAX_VALUE;
+		long maxForthField = Long.MIN_VALUE;
+		for( long key = 0L; key < noOfItems; key++ )
+		{
+			data.setData(key, key+noOfItems);
+			map.put( data ); 
+			long forthField = data.getBuffer().getLong(40);
+			sumForthField += forthField;
+			minForthField = Math.min( minForthField, forthField );
+			maxForthField = Math.max( maxForthField, forthField );
+			size++;
+		}
+		final LongAdder parallelIterationCount = new LongAdder();
+		map.parallelTraverse( new F1BinaryMapIterator()
+		{
+			@Override
+			public void iterate(LongDirectBuffer aRecord, long aKeyStartIndex,
+					int aKeyLength, long aValueStartIndex, int aValueLength) 
+			{
+				parallelIterationCount.increment();
+			}
+		}, 4 );
+		assertEquals( "Wrong parallel iteration count", size, parallelIterationCount.sum() );
+		assertEquals( "Wrong parallel sum forth field", sumForthField, map.parallelSum( 24, 4 ) );
+		assertEquals( "Wrong parallel min forth field", minForthField, map.parallelMin( 24, 4 ) );
+		assertEquals( "Wrong parallel max forth field", maxForthField, map.parallelMax( 24, 4 ) );
+		assertEquals( "Wrong stream count", size, map.stream( false ).count() );
+		assertEquals( "Wrong parallel stream sum forth field", sumForthField, 
+				map.stream( true ).mapToLong( record -> record.getLongValue( 24 ) ).sum() );
+	}
+	
 	@Override
 	public void iterate(LongDirectBuffer aRecord, long aKeyStartIndex,
 			int aKeyLength, long aValueStartIndex, int aValueLength) 
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016 Smash.bi Inc.
+ * http://www.smash.bi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package smash.f1.collection;
+
+import java.util.Random;
+
+/**
+ * HugePagePerformanceTest measures random gets over a direct memory F1BinaryMap backed by normal pages against one backed
+ * by huge pages. Random gets over a map much larger than the TLB reach spend most of their time in page walks, which huge
+ * pages cut down. On Linux, transparent huge pages have to be enabled for madvise, e.g.,
+ * echo madvise > /sys/kernel/mm/transparent_hugepage/enabled
+ *
+ * Usage: HugePagePerformanceTest noOfData noOfGets [noOfRuns]
+ */
+public final class HugePagePerformanceTest
+{
+	/**
+	 * test gets of random keys
+	 * @param aMap map to be used
+	 * @param aNoOfData no of data in the map
+	 * @param aNoOfGets no of gets
+	 * @return time taken in ms
+	 */
+	public final static long TestRandomGet( final TestDataMap aMap, final long aNoOfData, final long aNoOfGets )
+	{
+		Random random = new Random( 0 );
+		TestData data = aMap.createTestData();
+		long time = System.currentTimeMillis();
+		for( long count=0; count<aNoOfGets; count++ )
+		{
+			long key = ( random.nextLong() & Long.MAX_VALUE ) % aNoOfData;
+			data.setKey(key, key+aNoOfData);
+			TestData retrievedData = aMap.get(data);
+			if ( retrievedData == null || !retrievedData.isCorrect() )
+			{
+				throw new RuntimeException( "Data is incorrect " + key );
+			}
+		}
+		return System.currentTimeMillis() - time;
+	}
+
+	/**
+	 * fill the map with the given no of data
+	 * @param aMap map to be filled
+	 * @param aNoOfData no of data
+	 * @return time taken in ms
+	 */
+	public final static long Fill( final TestDataMap aMap, final long aNoOfData )
+	{
+		long time = System.currentTimeMillis();
+		TestData data = aMap.createTestData();
+		for( long count=0; count<aNoOfData; count++ )
+		{
+			data.setData( count, count+aNoOfData);
+			aMap.put(data);
+		}
+		return System.currentTimeMillis() - time;
+	}
+
+	public static void main(String[] args )
+	{
+		try
+		{
+			long noOfData = Long.parseLong( args[0] );
+			long noOfGets = Long.parseLong( args[1] );
+			int noOfRuns = args.length > 2 ? Integer.parseInt( args[2] ) : 3;
+			int[] pageModes = { F1BinaryMap.PAGE_MODE_DEFAULT, F1BinaryMap.PAGE_MODE_HUGE };
+			String[] pageModeNames = { "DEFAULT", "HUGE" };
+			for( int pageModeIndex = 0; pageModeIndex < pageModes.length; pageModeIndex++ )
+			{
+				TestDataMapForF1BinaryMap map = new TestDataMapForF1BinaryMap( noOfData, noOfData, noOfData, false,
+												pageModes[pageModeIndex] );
+				long putTime = Fill( map, noOfData );
+				for( int run = 0; run < noOfRuns; run++ )
+				{
+					System.out.println( "Page Mode " + pageModeNames[pageModeIndex] + " Put Took " + putTime + " Run " + run +
+										" " + noOfGets + " Random Gets Took " + TestRandomGet( map, noOfData, noOfGets ) );
+				}
+				map.dispose( true );
+			}
+		}
+		catch( Exception e )
+		{
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2016 Smash.bi Inc.
+ * http://www.smash.bi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package smash.f1.collection;
+
+/**
+ * MemorySegmentPerformanceTest measures puts and random gets over a direct memory F1BinaryMap accessed through 
+ * sun.misc.Unsafe against one accessed through a memory segment, which bounds checks every access. The memory segment 
+ * map requires Java 22 and the multi release jar, and the Unsafe map is measured with and without bounds checks by 
+ * running it once more with -Dagrona.disable.bounds.checks=true
+ *
+ * Usage: MemorySegmentPerformanceTest noOfData noOfGets [noOfRuns]
+ */
+public final class MemorySegmentPerformanceTest
+{
+	public static void main(String[] args )
+	{
+		try
+		{
+			long noOfData = Long.parseLong( args[0] );
+			long noOfGets = Long.parseLong( args[1] );
+			int noOfRuns = args.length > 2 ? Integer.parseInt( args[2] ) : 3;
+			String[] accessNames = { "UNSAFE", "MEMORY_SEGMENT" };
+			for( int accessIndex = 0; accessIndex < accessNames.length; accessIndex++ )
+			{
+				if ( accessIndex == 1 && !F1BinaryMap.IsMemorySegmentAvailable() )
+				{
+					System.out.println( "Memory segment requires Java 22" );
+					break;
+				}
+				TestDataMapForF1BinaryMap map = accessIndex == 0 ? new TestDataMapForF1BinaryMap( noOfData, noOfData, noOfData, false ) :
+												TestDataMapForF1BinaryMap.CreateOnMemorySegment( noOfData, noOfData, noOfData, false );
+				long putTime = HugePagePerformanceTest.Fill( map, noOfData );
+				for( int run = 0; run < noOfRuns; run++ )
+				{
+					System.out.println( "Access " + accessNames[accessIndex] + " Put Took " + putTime + " Run " + run + " " + noOfGets + 
+										" Random Gets Took " + HugePagePerformanceTest.TestRandomGet( map, noOfData, noOfGets ) );
+				}
+				map.dispose( true );
+			}
+		}
+		catch( Exception e )
+		{
+			e.printStackTrace();
+		}
+	}
+}
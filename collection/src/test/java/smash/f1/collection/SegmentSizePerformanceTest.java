@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016 Smash.bi Inc.
+ * http://www.smash.bi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package smash.f1.collection;
+
+import java.io.File;
+
+/**
+ * SegmentSizePerformanceTest measures the lookup cost of a memory mapped F1BinaryMap for each of the given segment sizes
+ *
+ * Usage: SegmentSizePerformanceTest noOfData mapFileDirectory [segmentBits ...]
+ */
+public final class SegmentSizePerformanceTest
+{
+	private final static int NO_OF_ROUNDS = 5;
+
+	/**
+	 * test random gets
+	 * @param aMap map to be used
+	 * @param aNoOfData no of data to be used for testing
+	 * @return time taken in ns
+	 */
+	public final static long TestRandomGet( final TestDataMap aMap, final long aNoOfData )
+	{
+		TestData data = aMap.createTestData();
+		long time = System.nanoTime();
+		// visit every key once in an order spreading the accesses over all the segments
+		long stride = aNoOfData / 2 + 1;
+		while( GreatestCommonDivisor( stride, aNoOfData ) != 1 )
+		{
+			stride++;
+		}
+		long key = 0;
+		for( long count=0; count<aNoOfData; count++ )
+		{
+			key = ( key + stride ) % aNoOfData;
+			data.setKey(key, key+aNoOfData);
+			TestData retrievedData = aMap.get(data);
+			if ( retrievedData == null || !retrievedData.isCorrect() )
+			{
+				throw new RuntimeException( "Data is incorrect " + key );
+			}
+		}
+		return System.nanoTime() - time;
+	}
+
+	/**
+	 * calculate the greatest common divisor of the given values
+	 */
+	private final static long GreatestCommonDivisor( final long aValue1, final long aValue2 )
+	{
+		return aValue2 == 0 ? aValue1 : GreatestCommonDivisor( aValue2, aValue1 % aValue2 );
+	}
+
+	public static void main(String[] args )
+	{
+		try
+		{
+			long noOfData = Long.parseLong( args[0] );
+			String mapFileDirectory = args[1];
+			int[] segmentBitsList = { 26, 28, 30, 32, 34 };
+			if ( args.length > 2 )
+			{
+				segmentBitsList = new int[args.length-2];
+				for( int index=2; index<args.length; index++ )
+				{
+					segmentBitsList[index-2] = Integer.parseInt( args[index] );
+				}
+			}
+			for( int segmentBits : segmentBitsList )
+			{
+				String memoryMappedFilenamePrefix = new File( mapFileDirectory, "SegmentSizePerformanceTest" + segmentBits ).getPath();
+				long time = System.currentTimeMillis();
+				TestDataMapForF1BinaryMap map = new TestDataMapForF1BinaryMap( memoryMappedFilenamePrefix, noOfData,
+												noOfData, noOfData, segmentBits, false );
+				System.out.println( "Segment Bits " + segmentBits + " Max Size " + map.getMaxSize() +
+									" Open Took " + ( System.currentTimeMillis() - time ) );
+				try
+				{
+					TestData data = map.createTestData();
+					for( long count=0; count<noOfData; count++ )
+					{
+						data.setData( count, count+noOfData);
+						map.put(data);
+					}
+					for( int round=0; round<NO_OF_ROUNDS; round++ )
+					{
+						long nanos = TestRandomGet( map, noOfData );
+						System.out.println( "Segment Bits " + segmentBits + " Round " + round + " Get Took " +
+											nanos / 1_000_000 + "ms " + ( (double)nanos / noOfData ) + "ns per get" );
+					}
+				}
+				finally
+				{
+					map.dispose( true );
+				}
+			}
+		}
+		catch( Exception e )
+		{
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2016 Smash.bi Inc.
+ * http://www.smash.bi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package smash.f1.collection;
+
+import java.io.File;
+
+/**
+ * StartupPerformanceTest measures the time to reopen an existing memory mapped F1BinaryMap and to serve the first lookups
+ * for each of the given load modes. The map is created on the first run and kept, so the page cache can be dropped between
+ * runs to measure a cold start, e.g., sync; echo 3 > /proc/sys/vm/drop_caches on Linux
+ *
+ * Usage: StartupPerformanceTest noOfData mapFileDirectory [loadMode ...]
+ * loadMode is EAGER, LAZY or PARALLEL_PREFAULT
+ */
+public final class StartupPerformanceTest
+{
+	private final static long NO_OF_FIRST_GETS = 10_000;
+
+	/**
+	 * get the load mode of the given name
+	 * @param aLoadModeName name of the load mode
+	 * @return load mode
+	 */
+	private final static int GetLoadMode( final String aLoadModeName )
+	{
+		switch( aLoadModeName )
+		{
+			case "EAGER":
+				return F1BinaryMap.LOAD_MODE_EAGER;
+			case "LAZY":
+				return F1BinaryMap.LOAD_MODE_LAZY;
+			case "PARALLEL_PREFAULT":
+				return F1BinaryMap.LOAD_MODE_PARALLEL_PREFAULT;
+			default:
+				throw new IllegalArgumentException( "Unknown load mode " + aLoadModeName );
+		}
+	}
+
+	/**
+	 * test gets of keys spread over the whole map
+	 * @param aMap map to be used
+	 * @param aNoOfData no of data in the map
+	 * @param aNoOfGets no of gets
+	 * @return time taken in ms
+	 */
+	public final static long TestSpreadGet( final TestDataMap aMap, final long aNoOfData, final long aNoOfGets )
+	{
+		long time = System.currentTimeMillis();
+		TestData data = aMap.createTestData();
+		long step = Math.max( 1, aNoOfData / aNoOfGets );
+		for( long key=0; key<aNoOfData; key+=step )
+		{
+			data.setKey(key, key+aNoOfData);
+			TestData retrievedData = aMap.get(data);
+			if ( retrievedData == null || !retrievedData.isCorrect() )
+			{
+				throw new RuntimeException( "Data is incorrect " + key );
+			}
+		}
+		return System.currentTimeMillis() - time;
+	}
+
+	public static void main(String[] args )
+	{
+		try
+		{
+			long noOfData = Long.parseLong( args[0] );
+			String memoryMappedFilenamePrefix = new File( args[1], "StartupPerformanceTest" ).getPath();
+			String[] loadModeNames = { "EAGER", "LAZY", "PARALLEL_PREFAULT" };
+			if ( args.length > 2 )
+			{
+				loadModeNames = new String[args.length-2];
+				System.arraycopy( args, 2, loadModeNames, 0, loadModeNames.length );
+			}
+			if ( !F1BinaryMap.DoesMapExist( memoryMappedFilenamePrefix ) )
+			{
+				long time = System.currentTimeMillis();
+				TestDataMapForF1BinaryMap map = new TestDataMapForF1BinaryMap( memoryMappedFilenamePrefix, noOfData,
+												noOfData, noOfData, false );
+				TestData data = map.createTestData();
+				for( long count=0; count<noOfData; count++ )
+				{
+					data.setData( count, count+noOfData);
+					map.put(data);
+				}
+				map.dispose( false );
+				System.out.println( "Create Took " + ( System.currentTimeMillis() - time ) + " Files " + memoryMappedFilenamePrefix + ".*" );
+			}
+			for( String loadModeName : loadModeNames )
+			{
+				long time = System.currentTimeMillis();
+				TestDataMapForF1BinaryMap map = new TestDataMapForF1BinaryMap( memoryMappedFilenamePrefix, noOfData,
+												GetLoadMode( loadModeName ), false );
+				long openTime = System.currentTimeMillis() - time;
+				long firstGetTime = TestSpreadGet( map, noOfData, NO_OF_FIRST_GETS );
+				long allGetTime = TestSpreadGet( map, noOfData, noOfData );
+				System.out.println( "Load Mode " + loadModeName + " Open Took " + openTime + " First " + NO_OF_FIRST_GETS +
+									" Gets Took " + firstGetTime + " All Gets Took " + allGetTime +
+									" Ready After " + ( System.currentTimeMillis() - time ) );
+				map.dispose( false );
+			}
+		}
+		catch( Exception e )
+		{
+			e.printStackTrace();
+		}
+	}
+}
@@ -17,7 +17,11 @@
 package smash.f1.collection;
 
 import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.stream.Stream;
 
+import smash.f1.core.agrona.LongMutableDirectBuffer;
 import smash.f1.core.agrona.LongUnsafeBuffer;
 
 public final class TestDataMapForF1BinaryMap implements TestDataMap
@@ -35,6 +39,31 @@ public final class TestDataMapForF1BinaryMap implements TestDataMap
     		isConcurrentMap, new TestDataKeyFunction( aNoOfBuckets ) );
     }
 	
+	public TestDataMapForF1BinaryMap( final long anInitialNoOfRecords, 
+    		long aNoOfBuckets, long aMaxNoOfRecords,
+    		boolean isConcurrentMap, int aPageMode ) throws IOException
+    {
+		binaryMap = new F1BinaryMap( anInitialNoOfRecords, 
+    		TestDataForF1BinaryMap.KEY_SIZE, TestDataForF1BinaryMap.VALUE_SIZE, aNoOfBuckets, aMaxNoOfRecords,
+    		isConcurrentMap, aPageMode, new TestDataKeyFunction( aNoOfBuckets ) );
+    }
+	
+	public TestDataMapForF1BinaryMap( final long anInitialNoOfRecords, 
+    		long aNoOfBuckets, long aMaxNoOfRecords, int aChunkBits,
+    		boolean isConcurrentMap )
+    {
+		this( anInitialNoOfRecords, aNoOfBuckets, aMaxNoOfRecords, aChunkBits, F1BinaryMap.PAGE_MODE_DEFAULT, isConcurrentMap );
+    }
+	
+	public TestDataMapForF1BinaryMap( final long anInitialNoOfRecords, 
+    		long aNoOfBuckets, long aMaxNoOfRecords, int aChunkBits, int aPageMode,
+    		boolean isConcurrentMap )
+    {
+		binaryMap = new F1BinaryMap( anInitialNoOfRecords, 
+    		TestDataForF1BinaryMap.KEY_SIZE, TestDataForF1BinaryMap.VALUE_SIZE, aNoOfBuckets, aMaxNoOfRecords,
+    		aChunkBits, aPageMode, isConcurrentMap, new TestDataKeyFunction( aNoOfBuckets ) );
+    }
+	
 	public TestDataMapForF1BinaryMap( final String aMemoryMappedFilenamePrefix, final long anInitialNoOfRecords, 
     		long aNoOfBuckets, long aMaxNoOfRecords,
     		boolean isConcurrentMap ) throws IOException
@@ -44,6 +73,133 @@ public final class TestDataMapForF1BinaryMap implements TestDataMap
     		isConcurrentMap, new TestDataKeyFunction( aNoOfBuckets ) );
     }
 	
+	public TestDataMapForF1BinaryMap( final String aMemoryMappedFilenamePrefix, final long anInitialNoOfRecords, 
+    		long aNoOfBuckets, long aMaxNoOfRecords, int aSegmentBits,
+    		boolean isConcurrentMap ) throws IOException
+    {
+		this( aMemoryMappedFilenamePrefix, anInitialNoOfRecords, aNoOfBuckets, aMaxNoOfRecords, aSegmentBits, 
+				F1BinaryMap.RECORD_LAYOUT_PACKED, isConcurrentMap );
+    }
+	
+	public TestDataMapForF1BinaryMap( final String aMemoryMappedFilenamePrefix, final long anInitialNoOfRecords, 
+    		long aNoOfBuckets, long aMaxNoOfRecords, int aSegmentBits, int aRecordLayout,
+    		boolean isConcurrentMap ) throws IOException
+    {
+		this( aMemoryMappedFilenamePrefix, anInitialNoOfRecords, aNoOfBuckets, aMaxNoOfRecords, aSegmentBits, 
+				aRecordLayout, F1BinaryMap.LOAD_MODE_EAGER, isConcurrentMap );
+    }
+	
+	public TestDataMapForF1BinaryMap( final String aMemoryMappedFilenamePrefix, final long anInitialNoOfRecords, 
+    		long aNoOfBuckets, long aMaxNoOfRecords, int aSegmentBits, int aRecordLayout, int aLoadMode,
+    		boolean isConcurrentMap ) throws IOException
+    {
+		this( aMemoryMappedFilenamePrefix, anInitialNoOfRecords, aNoOfBuckets, aMaxNoOfRecords, aSegmentBits, 
+				aRecordLayout, aLoadMode, F1BinaryMap.PAGE_MODE_DEFAULT, isConcurrentMap );
+    }
+	
+	public TestDataMapForF1BinaryMap( final String aMemoryMappedFilenamePrefix, final long anInitialNoOfRecords, 
+    		long aNoOfBuckets, long aMaxNoOfRecords, int aSegmentBits, int aRecordLayout, int aLoadMode, int aPageMode,
+    		boolean isConcurrentMap ) throws IOException
+    {
+		binaryMap = new F1BinaryMap( aMemoryMappedFilenamePrefix, anInitialNoOfRecords, 
+    		TestDataForF1BinaryMap.KEY_SIZE, TestDataForF1BinaryMap.VALUE_SIZE, aNoOfBuckets, aMaxNoOfRecords,
+    		aSegmentBits, aRecordLayout, aLoadMode, aPageMode, isConcurrentMap, new TestDataKeyFunction( aNoOfBuckets ) );
+    }
+	
+	public TestDataMapForF1BinaryMap( final String aMemoryMappedFilenamePrefix, final long anInitialNoOfRecords, 
+    		long aNoOfBuckets, long aMaxNoOfRecords, int aSegmentBits, boolean isConcurrentMap, long aNoOfHotRecords, 
+    		int aPromotionSampleBits ) throws IOException
+    {
+		binaryMap = new F1BinaryMap( aMemoryMappedFilenamePrefix, anInitialNoOfRecords, 
+    		TestDataForF1BinaryMap.KEY_SIZE, TestDataForF1BinaryMap.VALUE_SIZE, aNoOfBuckets, aMaxNoOfRecords,
+    		aSegmentBits, isConcurrentMap, aNoOfHotRecords, aPromotionSampleBits, new TestDataKeyFunction( aNoOfBuckets ) );
+    }
+	
+	public TestDataMapForF1BinaryMap( final String aMemoryMappedFilenamePrefix, long aNoOfBuckets, 
+    		boolean isConcurrentMap ) throws IOException
+    {
+		this( aMemoryMappedFilenamePrefix, aNoOfBuckets, F1BinaryMap.LOAD_MODE_EAGER, isConcurrentMap );
+    }
+	
+	public TestDataMapForF1BinaryMap( final String aMemoryMappedFilenamePrefix, long aNoOfBuckets, int aLoadMode,
+    		boolean isConcurrentMap ) throws IOException
+    {
+		binaryMap = new F1BinaryMap( aMemoryMappedFilenamePrefix, 0, 
+    		TestDataForF1BinaryMap.KEY_SIZE, TestDataForF1BinaryMap.VALUE_SIZE, aLoadMode,
+    		isConcurrentMap, new TestDataKeyFunction( aNoOfBuckets ) );
+    }
+	
+	private TestDataMapForF1BinaryMap( final F1BinaryMap aBinaryMap )
+	{
+		binaryMap = aBinaryMap;
+	}
+	
+	/**
+	 * open the memory mapped map of the given prefix read only
+	 */
+	public static TestDataMapForF1BinaryMap OpenReadOnly( final String aMemoryMappedFilenamePrefix, long aNoOfBuckets ) throws IOException
+	{
+		return new TestDataMapForF1BinaryMap( F1BinaryMap.OpenReadOnly( aMemoryMappedFilenamePrefix, TestDataForF1BinaryMap.KEY_SIZE, 
+											TestDataForF1BinaryMap.VALUE_SIZE, F1BinaryMap.LOAD_MODE_LAZY, new TestDataKeyFunction( aNoOfBuckets ) ) );
+	}
+	
+	/**
+	 * open the memory mapped map of the given prefix shared with other writing processes
+	 */
+	public static TestDataMapForF1BinaryMap OpenShared( final String aMemoryMappedFilenamePrefix, long aNoOfBuckets ) throws IOException
+	{
+		return new TestDataMapForF1BinaryMap( F1BinaryMap.OpenShared( aMemoryMappedFilenamePrefix, TestDataForF1BinaryMap.KEY_SIZE, 
+											TestDataForF1BinaryMap.VALUE_SIZE, F1BinaryMap.LOAD_MODE_LAZY, new TestDataKeyFunction( aNoOfBuckets ) ) );
+	}
+	
+	/**
+	 * create the map in direct memory on a memory segment
+	 */
+	public static TestDataMapForF1BinaryMap CreateOnMemorySegment( final long anInitialNoOfRecords, long aNoOfBuckets, long aMaxNoOfRecords,
+											boolean isConcurrentMap )
+	{
+		return new TestDataMapForF1BinaryMap( F1BinaryMap.CreateOnMemorySegment( anInitialNoOfRecords, TestDataForF1BinaryMap.KEY_SIZE, 
+											TestDataForF1BinaryMap.VALUE_SIZE, aNoOfBuckets, aMaxNoOfRecords, isConcurrentMap, 
+											new TestDataKeyFunction( aNoOfBuckets ) ) );
+	}
+	
+	/**
+	 * create the map in a single memory mapped file on a memory segment
+	 */
+	public static TestDataMapForF1BinaryMap CreateOnMemorySegment( final String aMemoryMappedFilename, final long anInitialNoOfRecords, 
+											long aNoOfBuckets, long aMaxNoOfRecords, boolean isConcurrentMap ) throws IOException
+	{
+		return new TestDataMapForF1BinaryMap( F1BinaryMap.CreateOnMemorySegment( aMemoryMappedFilename, anInitialNoOfRecords, 
+											TestDataForF1BinaryMap.KEY_SIZE, TestDataForF1BinaryMap.VALUE_SIZE, aNoOfBuckets, aMaxNoOfRecords, 
+											isConcurrentMap, new TestDataKeyFunction( aNoOfBuckets ) ) );
+	}
+	
+	/**
+	 * open the map of a single memory mapped file on a memory segment
+	 */
+	public static TestDataMapForF1BinaryMap OpenOnMemorySegment( final String aMemoryMappedFilename, long aNoOfBuckets, 
+											boolean isConcurrentMap ) throws IOException
+	{
+		return new TestDataMapForF1BinaryMap( F1BinaryMap.OpenOnMemorySegment( aMemoryMappedFilename, TestDataForF1BinaryMap.KEY_SIZE, 
+											TestDataForF1BinaryMap.VALUE_SIZE, isConcurrentMap, new TestDataKeyFunction( aNoOfBuckets ) ) );
+	}
+	
+	/**
+	 * get a stamp of the bucket of the key of the zero copy test data of a read only map
+	 */
+	public long tryOptimisticRead( final TestData aData )
+	{
+		return binaryMap.tryOptimisticRead( ((TestDataForF1BinaryMapForZeroCopy)aData).getKeyBuffer(), TestDataForF1BinaryMapForZeroCopy.KEY_START_INDEX );
+	}
+	
+	/**
+	 * check if the bucket of the key of the zero copy test data of a read only map has not been changed since the given stamp
+	 */
+	public boolean validate( final TestData aData, final long aStamp )
+	{
+		return binaryMap.validate( ((TestDataForF1BinaryMapForZeroCopy)aData).getKeyBuffer(), TestDataForF1BinaryMapForZeroCopy.KEY_START_INDEX, aStamp );
+	}
+	
 	/**
 	 * put test data into the map
 	 * @param aData
@@ -111,6 +267,14 @@ public final class TestDataMapForF1BinaryMap implements TestDataMap
 		binaryMap.dispose(shouldRemoveFiles);
 	}
 	
+	/**
+	 * close the map without removing the files
+	 */
+	public void close()
+	{
+		binaryMap.close();
+	}
+	
 	/**
 	 * dump
 	 */
@@ -156,8 +320,19 @@ public final class TestDataMapForF1BinaryMap implements TestDataMap
 	}
 	
 	/**
-	 * iterate all long values of the given value offset by traversing the map. This method can be used by non-concurrent map
-	 * and memory access will be provided in no copy style. Access this method with concurrent map will get run time exception
+	 * iterate all the key and values by traversing the map one bucket at a time. This method can be used by both concurrent
+	 * and non-concurrent map and each record is copied into the given buffer
+	 * @param anIterator iterator
+	 * @param aBuffer buffer to copy each record into
+	 */
+	public void traverse( final F1BinaryMapIterator anIterator, final LongMutableDirectBuffer aBuffer )
+	{
+		binaryMap.traverse( anIterator, aBuffer );
+	}
+	
+	/**
+	 * iterate all long values of the given value offset by traversing the map. This method can be used by both concurrent
+	 * and non-concurrent map, a concurrent map is traversed one bucket at a time with the bucket locked
 	 * @param anIterator iterator
 	 * @param aValueOffset address offset from the value position where the long value is located in each record
 	 */
@@ -166,6 +341,219 @@ public final class TestDataMapForF1BinaryMap implements TestDataMap
 		binaryMap.traverse(anIterator, aValueOffset);
 	}
 	
+	/**
+	 * incrementally iterate the key and values of the map starting from the given cursor
+	 * @param aCursor cursor returned by the previous call or 0 to start a new scan
+	 * @param aMaxNoOfRecords no of records to iterate before returning
+	 * @param anIterator iterator
+	 * @param aBuffer buffer to copy each record into
+	 * @return cursor for the next call or 0 if the scan is complete
+	 */
+	public long scan( final long aCursor, final long aMaxNoOfRecords, final F1BinaryMapIterator anIterator, final LongMutableDirectBuffer aBuffer )
+	{
+		return binaryMap.scan( aCursor, aMaxNoOfRecords, anIterator, aBuffer );
+	}
+	
+	/**
+	 * iterate all the key and values by scanning the record region in record order
+	 * @param anIterator iterator
+	 */
+	public void traverseInRecordOrder( final F1BinaryMapIterator anIterator )
+	{
+		binaryMap.traverseInRecordOrder( anIterator );
+	}
+	
+	/**
+	 * iterate all long values of the given value offset by scanning the record region in record order
+	 * @param anIterator iterator
+	 * @param aValueOffset address offset from the value position where the long value is located in each record
+	 */
+	public void traverseInRecordOrder( final F1BinaryMapLongValueIterator anIterator, final int aValueOffset )
+	{
+		binaryMap.traverseInRecordOrder( anIterator, aValueOffset );
+	}
+	
+	/**
+	 * iterate all the key and values by traversing the map with the given no of threads
+	 * @param anIterator thread safe iterator
+	 * @param aParallelism no of threads used to traverse the map
+	 */
+	public void parallelTraverse( final F1BinaryMapIterator anIterator, final int aParallelism )
+	{
+		binaryMap.parallelTraverse( anIterator, aParallelism );
+	}
+	
+	/**
+	 * sum all long values of the given value offset with the given no of threads
+	 * @param aValueOffset address offset from the value position where the long value is located in each record
+	 * @param aParallelism no of threads used to traverse the map
+	 * @return sum of the long values
+	 */
+	public long parallelSum( final int aValueOffset, final int aParallelism )
+	{
+		return binaryMap.parallelSum( aValueOffset, aParallelism );
+	}
+	
+	/**
+	 * get minimum of all long values of the given value offset with the given no of threads
+	 * @param aValueOffset address offset from the value position where the long value is located in each record
+	 * @param aParallelism no of threads used to traverse the map
+	 * @return minimum long value
+	 */
+	public long parallelMin( final int aValueOffset, final int aParallelism )
+	{
+		return binaryMap.parallelMin( aValueOffset, aParallelism );
+	}
+	
+	/**
+	 * get maximum of all long values of the given value offset with the given no of threads
+	 * @param aValueOffset address offset from the value position where the long value is located in each record
+	 * @param aParallelism no of threads used to traverse the map
+	 * @return maximum long value
+	 */
+	public long parallelMax( final int aValueOffset, final int aParallelism )
+	{
+		return binaryMap.parallelMax( aValueOffset, aParallelism );
+	}
+	
+	/**
+	 * get a stream of all the records of the map
+	 * @param isParallel true to get a parallel stream
+	 * @return stream of records
+	 */
+	public Stream<F1BinaryMapRecord> stream( final boolean isParallel )
+	{
+		return binaryMap.stream( isParallel );
+	}
+	
+	/**
+	 * enable the on heap near cache in front of the map
+	 * @param aNoOfEntries no of entries of the near cache
+	 */
+	public void enableNearCache( final int aNoOfEntries )
+	{
+		binaryMap.enableNearCache( aNoOfEntries );
+	}
+	
+	/**
+	 * take a point in time snapshot of the map
+	 * @return read only snapshot of the map
+	 */
+	public TestDataMapForF1BinaryMap snapshot()
+	{
+		return new TestDataMapForF1BinaryMap( binaryMap.snapshot() );
+	}
+	
+	/**
+	 * enable the off heap change log of the map
+	 * @param aNoOfChanges no of changes the change log can hold
+	 * @return change log
+	 */
+	public F1BinaryMapChangeLog enableChangeLog( final long aNoOfChanges )
+	{
+		return binaryMap.enableChangeLog( aNoOfChanges );
+	}
+	
+	/**
+	 * enable flushing the written memory from a background thread
+	 * @param aFlushIntervalInMs max time in ms the written memory stays unflushed
+	 * @param aMaxNoOfDirtyBytes no of dirty bytes triggering a flush
+	 */
+	public void enableAsyncFlush( final long aFlushIntervalInMs, final long aMaxNoOfDirtyBytes )
+	{
+		binaryMap.enableAsyncFlush( aFlushIntervalInMs, aMaxNoOfDirtyBytes );
+	}
+	
+	/**
+	 * flush all the memory written so far
+	 * @throws IOException if the memory cannot be flushed
+	 */
+	public void sync() throws IOException
+	{
+		binaryMap.sync();
+	}
+	
+	/**
+	 * enable the redo journal of the map
+	 * @param aJournalFilenamePrefix file name prefix of the journal files
+	 * @param aSyncIntervalInMs max time in ms a mutation stays unforced
+	 * @return true if the map has been recovered from the journal
+	 * @throws IOException if the journal cannot be read or written
+	 */
+	public boolean enableJournal( final String aJournalFilenamePrefix, final long aSyncIntervalInMs ) throws IOException
+	{
+		return binaryMap.enableJournal( aJournalFilenamePrefix, aSyncIntervalInMs );
+	}
+	
+	/**
+	 * write a checkpoint of the map into the journal
+	 * @throws IOException if the checkpoint cannot be written
+	 */
+	public void checkpoint() throws IOException
+	{
+		binaryMap.checkpoint();
+	}
+	
+	/**
+	 * verify the consistency of the map and optionally repair it
+	 * @param shouldRepair true to repair the inconsistencies found
+	 * @param aParallelism no of threads used to verify the map
+	 * @return verification report
+	 */
+	public F1BinaryMapVerification verify( final boolean shouldRepair, final int aParallelism )
+	{
+		return binaryMap.verify( shouldRepair, aParallelism );
+	}
+	
+	/**
+	 * lock the regions of the map of the given mode in physical memory
+	 * @param aMemoryLockMode memory lock mode
+	 * @return no of bytes locked
+	 */
+	public long lockInMemory( final int aMemoryLockMode )
+	{
+		return binaryMap.lockInMemory( aMemoryLockMode );
+	}
+	
+	/**
+	 * compact the map and release the memory behind the last record
+	 * @return no of memory pages released
+	 */
+	public long compact()
+	{
+		return binaryMap.compact();
+	}
+	
+	public long shrink( final long aNoOfMemoryPages )
+	{
+		return binaryMap.shrink( aNoOfMemoryPages );
+	}
+	
+	public long exportTo( final WritableByteChannel aChannel ) throws IOException
+	{
+		return binaryMap.exportTo( aChannel );
+	}
+	
+	public long importFrom( final ReadableByteChannel aChannel ) throws IOException
+	{
+		return binaryMap.importFrom( aChannel );
+	}
+	
+	public long backup( final WritableByteChannel aChannel ) throws IOException
+	{
+		return binaryMap.backup( aChannel );
+	}
+	
+	public long backupIncremental( final WritableByteChannel aChannel ) throws IOException
+	{
+		return binaryMap.backupIncremental( aChannel );
+	}
+	
+	public long restore( final ReadableByteChannel aChannel ) throws IOException
+	{
+		return binaryMap.restore( aChannel );
+	}
+	
 	/**
 	 * clear all the values from the map
 	 */